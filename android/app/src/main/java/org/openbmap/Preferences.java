@@ -122,6 +122,11 @@ public final class Preferences {
 	 */
 	public static final String KEY_KEEP_XML = "debug.keep_export_files";
 
+	/**
+	 * Gzip files before upload?
+	 */
+	public static final String KEY_GZIP_UPLOAD = "debug.gzip_upload";
+
 	/**
 	 * Blocks wifi and cell scan around current location
 	 */
@@ -250,6 +255,11 @@ public final class Preferences {
 	 */
 	public static final boolean VAL_KEEP_XML = false;
 
+	/**
+	 * By default upload plain xml files, as gzipped files have to be accepted by server
+	 */
+	public static final boolean VAL_GZIP_UPLOAD = false;
+
 	/**
 	 * Save cells by default
 	 */
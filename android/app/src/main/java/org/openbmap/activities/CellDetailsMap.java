@@ -21,9 +21,6 @@ package org.openbmap.activities;
 import android.annotation.SuppressLint;
 import android.content.DialogInterface;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
@@ -35,21 +32,14 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.ViewTreeObserver;
-import android.view.ViewTreeObserver.OnGlobalLayoutListener;
 import android.widget.Toast;
 
-import org.mapsforge.core.model.BoundingBox;
-import org.mapsforge.core.model.LatLong;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 import org.mapsforge.map.android.view.MapView;
 import org.mapsforge.map.layer.Layer;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.download.TileDownloadLayer;
 import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
-import org.mapsforge.map.layer.overlay.Marker;
-import org.mapsforge.map.model.common.Observer;
-import org.mapsforge.map.util.MapPositionUtil;
 import org.openbmap.Preferences;
 import org.openbmap.R;
 import org.openbmap.db.ContentProvider;
@@ -57,8 +47,7 @@ import org.openbmap.db.DataHelper;
 import org.openbmap.db.Schema;
 import org.openbmap.db.models.CellRecord;
 import org.openbmap.heatmap.HeatLatLong;
-import org.openbmap.heatmap.HeatmapBuilder;
-import org.openbmap.heatmap.HeatmapBuilder.HeatmapBuilderListener;
+import org.openbmap.heatmap.HeatmapLayer;
 import org.openbmap.utils.MapUtils;
 
 import java.util.ArrayList;
@@ -66,7 +55,7 @@ import java.util.ArrayList;
 /**
  * Fragment for displaying cell detail information
  */
-public class CellDetailsMap extends Fragment implements HeatmapBuilderListener, LoaderManager.LoaderCallbacks<Cursor>  {
+public class CellDetailsMap extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>  {
 
 	private static final String TAG = CellDetailsMap.class.getSimpleName();
 
@@ -102,24 +91,15 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 
 	private final ArrayList<HeatLatLong> points = new ArrayList<>();
 
-	private boolean	mPointsLoaded  = false;
-
-	private boolean	mLayoutInflated = false;
-
-	private Observer mMapObserver;
-
 	/**
-	 * Current zoom level
+	 * Heat-map, rendered and cached per map tile
 	 */
-	private byte mCurrentZoom;
-
-	private LatLong	mTarget;
-
-	private boolean	mUpdatePending;
-
-	private Marker mHeatmapLayer;
+	private HeatmapLayer mHeatmapLayer;
 
-	private byte mZoomAtTrigger;
+	/**
+	 * Rendered heat-map tiles
+	 */
+	private TileCache mHeatmapCache;
 
 	// [end]
 
@@ -159,6 +139,9 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 		if (mapDownloadLayer != null) {
 			mapDownloadLayer.onResume();
 		}
+		if (mHeatmapLayer != null) {
+			mHeatmapLayer.onResume();
+		}
 	}
 	
 	@Override
@@ -166,6 +149,9 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 		if (mapDownloadLayer != null) {
 			mapDownloadLayer.onResume();
 		}
+		if (mHeatmapLayer != null) {
+			mHeatmapLayer.onPause();
+		}
 		super.onPause();
 	}
 	
@@ -174,6 +160,9 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 	    super.onDestroy();
 
         this.mMapView.destroyAll();
+        if (mHeatmapCache != null) {
+            mHeatmapCache.destroy();
+        }
         MapUtils.clearRessources();
 	}
 
@@ -233,8 +222,7 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 			if (points.size() > 0) {
 				mMapView.getModel().mapViewPosition.setCenter(points.get(points.size()-1));
 			}
-			mPointsLoaded  = true;
-			proceedAfterHeatmapCompleted();
+			showHeatmap();
 
 			// update host activity
 			((CellDetailsActivity) getActivity()).setNoMeasurements(cursor.getCount());
@@ -242,64 +230,34 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 	}
 
 	/**
-	 * 
-	 */
-	private void proceedAfterHeatmapCompleted() {
-		if (mPointsLoaded  && mLayoutInflated && !mUpdatePending) {
-			mUpdatePending = true;
-
-			clearLayer();
-
-			final BoundingBox bbox = MapPositionUtil.getBoundingBox(
-					mMapView.getModel().mapViewPosition.getMapPosition(),
-					mMapView.getDimension(), mMapView.getModel().displayModel.getTileSize());
-
-			mTarget = mMapView.getModel().mapViewPosition.getCenter();
-			mZoomAtTrigger = mMapView.getModel().mapViewPosition.getZoomLevel();
-
-			mHeatmapLayer = new Marker(mTarget, null, 0, 0);
-			mMapView.getLayerManager().getLayers().add(mHeatmapLayer);
-
-			new HeatmapBuilder(
-					CellDetailsMap.this, mMapView.getWidth(), mMapView.getHeight(), bbox,
-					mMapView.getModel().mapViewPosition.getZoomLevel(), mMapView.getModel().displayModel.getScaleFactor(),
-					mMapView.getModel().displayModel.getTileSize(), RADIUS).execute(points);
-		} else {
-			Log.i(TAG, "Another heat-map is currently generated. Skipped");
-		}
-	}
-
-	/* (non-Javadoc)
-	 * @see org.openbmap.soapclient.HeatmapBuilder.HeatmapBuilderListener#onHeatmapCompleted(android.graphics.Bitmap)
+	 * Adds heat-map layer or updates its points. Tiles are rendered in background,
+	 * so panning and zooming only render tiles which aren't cached yet
 	 */
-	@Override
-	public final void onHeatmapCompleted(final Bitmap backbuffer) {
-		// zoom level has changed in the mean time - regenerate
-		if (mMapView.getModel().mapViewPosition.getZoomLevel() != mZoomAtTrigger) {
-			mUpdatePending = false;
-			Log.i(TAG, "Zoom level has changed - have to re-generate heat-map");
-			clearLayer();
-			proceedAfterHeatmapCompleted();
+	private void showHeatmap() {
+		if (mHeatmapLayer != null) {
+			mHeatmapLayer.setPoints(points);
 			return;
 		}
 
-		final BitmapDrawable drawable = new BitmapDrawable(backbuffer);
-		final org.mapsforge.core.graphics.Bitmap mfBitmap = AndroidGraphicFactory.convertToBitmap(drawable);
-		if (mHeatmapLayer != null && mfBitmap != null) {
-			mHeatmapLayer.setBitmap(mfBitmap);
-		} else {
-			Log.w(TAG, "Skipped heatmap draw: either layer or bitmap is null");
-		}
-		mUpdatePending = false;
-		//saveHeatmapToFile(backbuffer);
-
+		mHeatmapCache = MapUtils.createHeatmapCache(getActivity(), mMapView.getModel().displayModel.getTileSize(),
+				mMapView.getModel().frameBufferModel.getOverdrawFactor());
+		mHeatmapLayer = new HeatmapLayer(mHeatmapCache, mMapView.getModel().mapViewPosition, AndroidGraphicFactory.INSTANCE,
+				getHeatmapSource(), points, RADIUS);
+		mMapView.getLayerManager().getLayers().add(mHeatmapLayer);
+		mHeatmapLayer.onResume();
 	}
-	/** 
-	 * Callback function when heatmap generation has failed
+
+	/**
+	 * Cache key of this cell's heat-map
 	 */
-	@Override
-	public final void onHeatmapFailed() {
-		mUpdatePending = false;
+	private String getHeatmapSource() {
+		if (mCell == null) {
+			return "cell";
+		}
+		final String id = mCell.isCdma()
+				? mCell.getSystemId() + "_" + mCell.getNetworkId() + "_" + mCell.getBaseId()
+				: mCell.getOperator() + "_" + mCell.getArea() + "_" + mCell.getLogicalCellId() + "_" + mCell.getPsc();
+		return "cell_" + id.replaceAll("[^A-Za-z0-9_-]", "");
 	}
 
 	/* (non-Javadoc)
@@ -310,20 +268,6 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
 
 	}
 
-	/**
-	 * Removes heatmap layer (if any)
-	 */
-	private void clearLayer() {
-		if (mHeatmapLayer == null) {
-			return;
-		}
-
-		if (mMapView.getLayerManager().getLayers().indexOf(mHeatmapLayer) != -1) {
-			mMapView.getLayerManager().getLayers().remove(mHeatmapLayer);
-			mHeatmapLayer = null;
-		}
-	}
-
 	/**
 	 * Initializes map components
 	 */
@@ -352,53 +296,6 @@ public class CellDetailsMap extends Fragment implements HeatmapBuilderListener,
             AlertDialog dialog = builder.create();
 		}
 
-		// register for layout finalization - we need this to get width and height
-		final ViewTreeObserver vto = mMapView.getViewTreeObserver();
-		vto.addOnGlobalLayoutListener(new OnGlobalLayoutListener() {
-
-			@SuppressLint("NewApi")
-			@Override
-			public void onGlobalLayout() {
-
-				mLayoutInflated = true;
-				proceedAfterHeatmapCompleted();
-
-				final ViewTreeObserver obs = mMapView.getViewTreeObserver();
-
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-					obs.removeOnGlobalLayoutListener(this);
-				} else {
-					obs.removeGlobalOnLayoutListener(this);
-				}
-			}
-		});
-
-		// Register for zoom changes
-		this.mMapObserver = new Observer() {
-			@Override
-			public void onChange() {
-
-				final byte newZoom = mMapView.getModel().mapViewPosition.getZoomLevel();
-				if (newZoom != mCurrentZoom) {
-					// update overlays on zoom level changed
-					Log.i(TAG, "New zoom level " + newZoom + ", reloading map objects");
-					Log.i(TAG, "Update" + mUpdatePending);
-					// cancel pending heat-maps
-					//if (builder != null) {
-					//	builder.cancel(true);
-					//}
-
-					// if another update is pending, wait for complete
-					if (!mUpdatePending) {
-						clearLayer();
-						proceedAfterHeatmapCompleted();
-					}
-					mCurrentZoom = newZoom;
-				}
-			}
-		};
-		this.mMapView.getModel().mapViewPosition.addObserver(mMapObserver);
-
 		this.mMapView.setClickable(true);
 		this.mMapView.getMapScaleBar().setVisible(true);
 
@@ -49,6 +49,7 @@ import org.openbmap.Preferences;
 import org.openbmap.R;
 import org.openbmap.RadioBeacon;
 import org.openbmap.utils.CatalogDownload;
+import org.openbmap.utils.CatalogIndexBuilder;
 import org.openbmap.utils.FileUtils;
 
 import java.io.BufferedReader;
@@ -172,6 +173,7 @@ public class DialogPreferenceCatalogs extends DialogPreference implements ICatal
             //-initActiveCatalogControl();
             // handling Catalog files
             activateCatalog(file);
+            new CatalogIndexBuilder().execute(file);
         }
     }
 
@@ -26,6 +26,7 @@ import android.graphics.Matrix;
 import android.location.Location;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AlertDialog;
@@ -57,7 +58,6 @@ import org.mapsforge.map.layer.Layers;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.download.TileDownloadLayer;
 import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
-import org.mapsforge.map.layer.overlay.Circle;
 import org.mapsforge.map.layer.overlay.Polyline;
 import org.mapsforge.map.model.common.Observer;
 import org.mapsforge.map.util.MapPositionUtil;
@@ -70,17 +70,19 @@ import org.openbmap.db.models.WifiRecord;
 import org.openbmap.events.onLocationUpdate;
 import org.openbmap.utils.CatalogObjectsLoader;
 import org.openbmap.utils.CatalogObjectsLoader.OnCatalogLoadedListener;
+import org.openbmap.utils.DensityLatLong;
 import org.openbmap.utils.GeometryUtils;
 import org.openbmap.utils.GpxMapObjectsLoader;
 import org.openbmap.utils.GpxMapObjectsLoader.OnGpxLoadedListener;
 import org.openbmap.utils.MapUtils;
+import org.openbmap.utils.MapRefreshScheduler;
 import org.openbmap.utils.MapUtils.onLongPressHandler;
+import org.openbmap.utils.PointsLayer;
 import org.openbmap.utils.SessionLatLong;
 import org.openbmap.utils.SessionObjectsLoader;
 import org.openbmap.utils.SessionObjectsLoader.OnSessionLoadedListener;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -111,6 +113,11 @@ public class MapViewActivity extends Fragment implements
     private static final int ALPHA_WIFI_CATALOG_FILL = 90;
     private static final int ALPHA_WIFI_CATALOG_STROKE = 100;
 
+    /**
+     * Density cell alpha for less than 10, 100, 1000 and more wifis
+     */
+    private static final int[] ALPHA_DENSITY_FILL = {40, 80, 120, 160};
+
     private static final int ALPHA_SESSION_FILL = 50;
     private static final int ALPHA_OTHER_SESSIONS_FILL = 35;
 
@@ -123,6 +130,19 @@ public class MapViewActivity extends Fragment implements
 
     private static final int STROKE_GPX_WIDTH = 5;
 
+    /**
+     * Point styles in catalog layer and session layer
+     */
+    private static final int STYLE_CATALOG_WIFI = 0;
+    private static final int STYLE_DENSITY = 1;
+    private static final int STYLE_ACTIVE_SESSION = 0;
+    private static final int STYLE_OTHER_SESSION = 1;
+
+    /**
+     * Approximate length of one degree latitude (in meter), for density cell size
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+
     /**
      * Keeps the SharedPreferences.
      */
@@ -156,6 +176,16 @@ public class MapViewActivity extends Fragment implements
      */
     protected static final float GPX_REFRESH_INTERVAL = 1000;
 
+    /**
+     * Quiet time after last viewport change, before layers are refreshed (in millis)
+     */
+    private static final long REFRESH_DEBOUNCE = 300;
+
+    /**
+     * Max. time between viewport change and layer refresh while map keeps moving (in millis)
+     */
+    private static final long REFRESH_MAX_DELAY = 1500;
+
     /**
      * Load more than currently visible objects?
      */
@@ -196,6 +226,8 @@ public class MapViewActivity extends Fragment implements
 
     private Paint mPaintCatalogStroke;
 
+    private Paint[] mPaintDensityFill;
+
     /**
      * Paint style for active sessions objects
      */
@@ -206,9 +238,15 @@ public class MapViewActivity extends Fragment implements
      */
     private Paint mPaintOtherSessionFill;
 
-    private List<Layer> mCatalogObjects;
+    /**
+     * Catalog wifis or density cells, drawn in a single layer
+     */
+    private PointsLayer mCatalogLayer;
 
-    private List<Layer> mSessionObjects;
+    /**
+     * Session wifis, drawn in a single layer on top of catalog layer
+     */
+    private PointsLayer mSessionLayer;
 
     private Polyline mGpxObjects;
     //[end]
@@ -227,14 +265,14 @@ public class MapViewActivity extends Fragment implements
     private Observer mMapObserver;
 
     /**
-     * Wifi catalog layer is currently refreshing
+     * Debounces and runs wifi catalog layer refreshes
      */
-    private boolean mRefreshCatalogPending = false;
+    private MapRefreshScheduler mCatalogRefresh;
 
     /**
-     * Session layer is currently refreshing
+     * Debounces and runs session layer refreshes
      */
-    private boolean mRefreshSessionPending = false;
+    private MapRefreshScheduler mSessionRefresh;
 
     /**
      * Direction marker is currently updated
@@ -296,8 +334,6 @@ public class MapViewActivity extends Fragment implements
         // get shared preferences
         prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
 
-        mCatalogObjects = new ArrayList<>();
-        mSessionObjects = new ArrayList<>();
         mGpxObjects = new Polyline(MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(Color.BLACK), STROKE_GPX_WIDTH,
                 Style.STROKE), AndroidGraphicFactory.INSTANCE);
     }
@@ -326,6 +362,7 @@ public class MapViewActivity extends Fragment implements
             mMapDownloadLayer.onPause();
         }
 
+        cancelRefreshes();
         clearCatalogLayer();
         clearSessionLayer();
         clearGpxLayer();
@@ -350,6 +387,7 @@ public class MapViewActivity extends Fragment implements
             //initMap();
         } else {
             Log.d(TAG, "Map not visible, releasing");
+            cancelRefreshes();
             clearCatalogLayer();
             clearSessionLayer();
             clearGpxLayer();
@@ -455,11 +493,12 @@ public class MapViewActivity extends Fragment implements
                     position.setLatitude(tmp.latitude);
                     position.setLongitude(tmp.longitude);
 
-                    if (sessionLayerOutdated(position)) {
+                    // no interval check: last viewport must be loaded even if map stops shortly after a refresh
+                    if (sessionLayerMoved(position)) {
                         refreshSessionLayer(position);
                     }
 
-                    if (catalogLayerSelected() && catalogLayerOutdated(position)) {
+                    if (catalogLayerSelected() && catalogLayerMoved(position)) {
                         refreshCatalogLayer(position);
                     } else {
                         clearCatalogLayer();
@@ -479,8 +518,37 @@ public class MapViewActivity extends Fragment implements
     private void initUi(final View view) {
         mPaintCatalogFill = MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(ALPHA_WIFI_CATALOG_FILL, 120, 150, 120), 2, Style.FILL);
         mPaintCatalogStroke = MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(ALPHA_WIFI_CATALOG_STROKE, 120, 150, 120), 2, Style.STROKE);
+        mPaintDensityFill = new Paint[ALPHA_DENSITY_FILL.length];
+        for (int i = 0; i < ALPHA_DENSITY_FILL.length; i++) {
+            mPaintDensityFill[i] = MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(ALPHA_DENSITY_FILL[i], 120, 150, 120), 2, Style.FILL);
+        }
         mPaintActiveSessionFill = MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(ALPHA_SESSION_FILL, 0, 0, 255), 2, Style.FILL);
         mPaintOtherSessionFill = MapUtils.createPaint(AndroidGraphicFactory.INSTANCE.createColor(ALPHA_OTHER_SESSIONS_FILL, 255, 0, 255), 2, Style.FILL);
+
+        // catalog styles: single wifi, followed by density shades
+        final Paint[] catalogFills = new Paint[1 + mPaintDensityFill.length];
+        final Paint[] catalogStrokes = new Paint[catalogFills.length];
+        catalogFills[STYLE_CATALOG_WIFI] = mPaintCatalogFill;
+        catalogStrokes[STYLE_CATALOG_WIFI] = mPaintCatalogStroke;
+        System.arraycopy(mPaintDensityFill, 0, catalogFills, STYLE_DENSITY, mPaintDensityFill.length);
+        mCatalogLayer = new PointsLayer(catalogFills, catalogStrokes);
+
+        mSessionLayer = new PointsLayer(
+                new Paint[] {mPaintActiveSessionFill, mPaintOtherSessionFill},
+                new Paint[] {null, null});
+
+        mCatalogRefresh = new MapRefreshScheduler("Catalog", new MapRefreshScheduler.Refresh() {
+            @Override
+            public AsyncTask<?, ?, ?> start() {
+                return triggerCatalogObjectsUpdate();
+            }
+        }, REFRESH_DEBOUNCE, REFRESH_MAX_DELAY);
+        mSessionRefresh = new MapRefreshScheduler("Session", new MapRefreshScheduler.Refresh() {
+            @Override
+            public AsyncTask<?, ?, ?> start() {
+                return triggerSessionObjectsUpdate(null);
+            }
+        }, REFRESH_DEBOUNCE, REFRESH_MAX_DELAY);
     }
 
     @Override
@@ -590,64 +658,48 @@ public class MapViewActivity extends Fragment implements
         }
     }
 
-    /**7
-     * Refreshes catalog layer, if not already refreshing
+    /**
+     * Requests catalog layer refresh. Requests are debounced, a running refresh is superseded
      *
      * @param location
      */
     protected final void refreshCatalogLayer(final Location location) {
-        if (!mRefreshCatalogPending && isVisible()) {
+        if (isVisible()) {
             Log.d(TAG, "Updating wifi catalog layer");
-            mRefreshCatalogPending = true;
-            triggerCatalogObjectsUpdate();
+            mCatalogRefresh.request();
             catalogObjectsRefreshedAt = location;
             catalogObjectsRefreshTime = System.currentTimeMillis();
-        } else if (!isVisible()){
-            Log.v(TAG, "Not visible, skipping refresh");
         } else {
-            Log.v(TAG, "Wifi catalog layer is refreshing. Skipping refresh..");
+            Log.v(TAG, "Not visible, skipping refresh");
         }
     }
 
     /**
-     *
+     * Cancels pending layer refreshes
      */
-    private void clearSessionLayer() {
-        if (mSessionObjects == null) {
-            return;
-        }
-
-        if (mMapView == null) {
-            mSessionObjects = null;
-            return;
+    private void cancelRefreshes() {
+        if (mCatalogRefresh != null) {
+            mCatalogRefresh.cancel();
+            mSessionRefresh.cancel();
+            Log.i(TAG, "Map refreshes: " + mCatalogRefresh.getMetrics() + "; " + mSessionRefresh.getMetrics());
         }
+    }
 
-        for (final Iterator<Layer> iterator = mSessionObjects.iterator(); iterator.hasNext(); ) {
-            final Layer layer = iterator.next();
-            this.mMapView.getLayerManager().getLayers().remove(layer);
+    /**
+     *
+     */
+    private void clearSessionLayer() {
+        if (mSessionLayer != null) {
+            mSessionLayer.clear();
         }
-        mSessionObjects.clear();
     }
 
     /**
      * Clears catalog layer objects
      */
     private void clearCatalogLayer() {
-        if (mCatalogObjects == null) {
-            return;
-        }
-
-        if (mMapView == null) {
-            mCatalogObjects = null;
-            return;
-        }
-
-        synchronized (mCatalogObjects) {
-            for (final Iterator<Layer> iterator = mCatalogObjects.iterator(); iterator.hasNext(); ) {
-                final Layer layer = iterator.next();
-                this.mMapView.getLayerManager().getLayers().remove(layer);
-            }
-            mCatalogObjects.clear();
+        if (mCatalogLayer != null) {
+            mCatalogLayer.clear();
         }
     }
 
@@ -677,19 +729,30 @@ public class MapViewActivity extends Fragment implements
         }
 
         return (
-                (catalogObjectsRefreshedAt.distanceTo(current) > CATALOG_REFRESH_DISTANCE)
+                catalogLayerMoved(current)
                         && ((System.currentTimeMillis() - catalogObjectsRefreshTime) > CATALOG_REFRESH_INTERVAL)
         );
     }
 
+    /**
+     * Is new location far enough from last refresh location?
+     *
+     * @return true if catalog layer needs refresh
+     */
+    private boolean catalogLayerMoved(final Location current) {
+        return current == null || catalogObjectsRefreshedAt.distanceTo(current) > CATALOG_REFRESH_DISTANCE;
+    }
+
     /**
      * Loads reference wifis around location from openbmap wifi catalog.
      * Callback function, upon completion onCatalogLoaded is called for drawing
+     *
+     * @return loader task, null if map isn't available
      */
-    private void triggerCatalogObjectsUpdate() {
+    private AsyncTask<?, ?, ?> triggerCatalogObjectsUpdate() {
 
         if (mMapView == null) {
-            return;
+            return null;
         }
 
         final BoundingBox bbox = MapPositionUtil.getBoundingBox(
@@ -711,8 +774,8 @@ public class MapViewActivity extends Fragment implements
             maxLongitude += lonSpan * 0.5;
         }
         final CatalogObjectsLoader task = new CatalogObjectsLoader(getActivity(), this);
-        task.execute(minLatitude, maxLatitude, minLongitude, maxLongitude);
-
+        // own thread pool: catalog and session refreshes must not wait for each other
+        return task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, minLatitude, maxLatitude, minLongitude, maxLongitude);
     }
 
     /* (non-Javadoc)
@@ -725,15 +788,18 @@ public class MapViewActivity extends Fragment implements
             return;
         }
 
-        final Layers layers = mMapView.getLayerManager().getLayers();
-
-        clearCatalogLayer();
-
-        // redraw
+        final PointsLayer.Points catalog = new PointsLayer.Points(points.size());
         for (final LatLong point : points) {
-            final Circle circle = new Circle(point, CIRCLE_WIFI_CATALOG_WIDTH, mPaintCatalogFill, mPaintCatalogStroke);
-            mCatalogObjects.add(circle);
+            if (point instanceof DensityLatLong) {
+                // dense area: one circle per density cell, darker for more wifis
+                final DensityLatLong cell = (DensityLatLong) point;
+                final int shade = Math.min(ALPHA_DENSITY_FILL.length - 1, (int) Math.log10(cell.getCount()));
+                catalog.add(point.latitude, point.longitude, (float) (cell.getSize() * METERS_PER_DEGREE / 2), STYLE_DENSITY + shade);
+                continue;
+            }
+            catalog.add(point.latitude, point.longitude, CIRCLE_WIFI_CATALOG_WIDTH, STYLE_CATALOG_WIFI);
         }
+        mCatalogLayer.setPoints(catalog);
 
         /**
          * Draw stack (z-order):
@@ -741,43 +807,30 @@ public class MapViewActivity extends Fragment implements
          *   catalog objects
          *   session objects
          */
-        int insertAfter = -1;
-        synchronized (mCatalogObjects) {
-            if (layers.size() > 0) {
-                // base map
-                insertAfter = 1;
-            } else {
-                // no map
-                insertAfter = 0;
-            }
-
-            for (int i = 0; i < mCatalogObjects.size(); i++) {
-                layers.add(insertAfter + i, mCatalogObjects.get(i));
-            }
+        final Layers layers = mMapView.getLayerManager().getLayers();
+        if (!layers.contains(mCatalogLayer)) {
+            // directly above base map, if any
+            layers.add(Math.min(1, layers.size()), mCatalogLayer);
         }
 
-        // enable next refresh
-        mRefreshCatalogPending = false;
+        mCatalogRefresh.onLoaded(points.size());
         Log.d(TAG, "Drawed catalog objects");
     }
 
     /**
-     * Refreshes reference and session layer.
-     * If another refresh is in progress, update is skipped.
+     * Requests session layer refresh. Requests are debounced, a running refresh is superseded
      *
      * @param location
      */
     protected final void refreshSessionLayer(final Location location) {
-        if (!mRefreshSessionPending && isVisible()) {
+        if (isVisible()) {
             Log.d(TAG, "Updating session layer");
-            mRefreshSessionPending = true;
-            triggerSessionObjectsUpdate(null);
+            // cache has already been invalidated around new wifis by ScanWriter
+            mSessionRefresh.request();
             sessionObjectsRefreshTime = System.currentTimeMillis();
             sessionObjectsRefreshedAt = location;
-        } else if (!isVisible()) {
-            Log.v(TAG, "Not visible, skipping refresh");
         } else {
-            Log.v(TAG, "Session layer is refreshing. Skipping refresh..");
+            Log.v(TAG, "Not visible, skipping refresh");
         }
     }
 
@@ -792,19 +845,29 @@ public class MapViewActivity extends Fragment implements
             return true;
         }
 
-        return ((sessionObjectsRefreshedAt.distanceTo(current) > SESSION_REFRESH_DISTANCE)
+        return (sessionLayerMoved(current)
                         && ((System.currentTimeMillis() - sessionObjectsRefreshTime) > SESSION_REFRESH_INTERVAL));
     }
 
+    /**
+     * Is new location far enough from last refresh location?
+     *
+     * @return true if session layer needs refresh
+     */
+    private boolean sessionLayerMoved(final Location current) {
+        return current == null || sessionObjectsRefreshedAt.distanceTo(current) > SESSION_REFRESH_DISTANCE;
+    }
+
     /**
      * Loads session wifis in visible range.
      * Will call onSessionLoaded callback upon completion
      *
      * @param highlight If highlight is specified only this wifi is displayed
+     * @return loader task, null if map isn't available
      */
-    private void triggerSessionObjectsUpdate(final WifiRecord highlight) {
+    private AsyncTask<?, ?, ?> triggerSessionObjectsUpdate(final WifiRecord highlight) {
         if (mMapView == null) {
-            return;
+            return null;
         }
 
         final BoundingBox bbox = MapPositionUtil.getBoundingBox(
@@ -837,14 +900,14 @@ public class MapViewActivity extends Fragment implements
             }
 
             final SessionObjectsLoader task = new SessionObjectsLoader(getActivity().getApplicationContext(), this, sessions);
-            task.execute(minLatitude, maxLatitude, minLongitude, maxLongitude, null);
+            return task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, minLatitude, maxLatitude, minLongitude, maxLongitude, null);
         } else {
             // draw specific wifi
             final List<Integer> sessions = new ArrayList<>();
             sessions.add(mSessionId);
 
             final SessionObjectsLoader task = new SessionObjectsLoader(getActivity().getApplicationContext(), this, sessions);
-            task.execute(bbox.minLatitude, bbox.maxLatitude, bbox.minLongitude, bbox.maxLatitude, highlight.getBssid());
+            return task.execute(bbox.minLatitude, bbox.maxLatitude, bbox.minLongitude, bbox.maxLatitude, highlight.getBssid());
         }
     }
 
@@ -859,59 +922,29 @@ public class MapViewActivity extends Fragment implements
             return;
         }
 
-        final Layers layers = this.mMapView.getLayerManager().getLayers();
-
-        clearSessionLayer();
-
+        final PointsLayer.Points session = new PointsLayer.Points(points.size());
         for (final SessionLatLong point : points) {
             if (point.getSession() == mSessionId) {
                 // current session objects are larger
-                final Circle circle = new Circle(point, CIRCLE_SESSION_WIDTH, mPaintActiveSessionFill, null);
-                mSessionObjects.add(circle);
+                session.add(point.latitude, point.longitude, CIRCLE_SESSION_WIDTH, STYLE_ACTIVE_SESSION);
             } else {
                 // other session objects are smaller and in other color
-                final Circle circle = new Circle(point, CIRCLE_OTHER_SESSION_WIDTH, mPaintOtherSessionFill, null);
-                mSessionObjects.add(circle);
+                session.add(point.latitude, point.longitude, CIRCLE_OTHER_SESSION_WIDTH, STYLE_OTHER_SESSION);
             }
         }
+        mSessionLayer.setPoints(session);
 
         /**
          * Draw stack (z-order):
          *   base map
-         *   catalog
-         *   objects
+         *   catalog objects
          *   session objects
          */
-        int insertAfter = -1;
-
-        synchronized (mCatalogObjects) {
-            if (layers.size() > 0 && mCatalogObjects.size() > 0) {
-                // base map + catalog objects
-                // this fails if we catalog objects which have not yet been drawn
-                // insertAfter = layers.indexOf((Layer) catalogObjects.get(catalogObjects.size() - 1));
-                // fail safe insert: at the end..
-                insertAfter = layers.size();
-            } else if (layers.size() > 0 && mCatalogObjects.size() == 0) {
-                // base map + no catalog objects
-                insertAfter = 1;
-            } else {
-                // no map + no catalog objects
-                insertAfter = 0;
-            }
-
-            if (insertAfter > layers.size() + 1) {
-                Log.w(TAG, "Index out of bounds, resetting to list end");
-                insertAfter = layers.size();
-            }
-
-            if (insertAfter == -1) {
-                Log.w(TAG, "Index out of bounds, resetting to 0");
-                insertAfter = 0;
-            }
-
-            for (int i = 0; i < mSessionObjects.size(); i++) {
-                layers.add(insertAfter + i, mSessionObjects.get(i));
-            }
+        final Layers layers = this.mMapView.getLayerManager().getLayers();
+        if (!layers.contains(mSessionLayer)) {
+            final int catalog = layers.indexOf(mCatalogLayer);
+            // directly above catalog layer or base map
+            layers.add(catalog != -1 ? catalog + 1 : Math.min(1, layers.size()), mSessionLayer);
         }
 
         /*
@@ -922,9 +955,8 @@ public class MapViewActivity extends Fragment implements
         }
          */
 
-        // enable next refresh
-        mRefreshSessionPending = false;
-        Log.d(TAG, "Drawed catalog objects");
+        mSessionRefresh.onLoaded(points.size());
+        Log.d(TAG, "Drawed session objects");
     }
 
     /**
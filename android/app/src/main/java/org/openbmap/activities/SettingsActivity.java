@@ -38,6 +38,7 @@ import android.util.Log;
 
 import org.openbmap.Preferences;
 import org.openbmap.R;
+import org.openbmap.utils.CatalogIndexBuilder;
 import org.openbmap.utils.FileUtils;
 
 import java.io.File;
@@ -342,6 +343,7 @@ public class SettingsActivity extends PreferenceActivity {
             initActiveCatalogControl();
             // handling wifi catalog files
             activateWifiCatalog(file);
+            new CatalogIndexBuilder().execute(file);
         }
     }
 
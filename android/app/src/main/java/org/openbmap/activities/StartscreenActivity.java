@@ -49,10 +49,12 @@ import org.openbmap.soapclient.ExportSessionTask.UploadTaskListener;
 import org.openbmap.soapclient.GpxSerializer;
 import org.openbmap.soapclient.SaveGpxTask.SaveGpxTaskListener;
 import org.openbmap.utils.AlertDialogUtils;
+import org.openbmap.utils.CatalogIndexBuilder;
 import org.openbmap.utils.OnAlertClickInterface;
 import org.openbmap.utils.TabManager;
 import org.openbmap.utils.TempFileUtils;
 
+import java.io.File;
 import java.util.ArrayList;
 
 /**
@@ -945,6 +947,7 @@ implements SessionListFragment.SessionFragementListener, OnAlertClickInterface,
         } else if (currentVersionCode > savedVersionCode) {
             // This is an upgrade..
             Log.i(TAG, String.format("Cool! You just upgraded from %s to %s", currentVersionCode, savedVersionCode));
+            upgradeWifiCatalog();
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 // request DOZE mode ignore
                 AlertDialogUtils.newInstance(ID_IGNORE_DOZE_MODE,
@@ -958,4 +961,21 @@ implements SessionListFragment.SessionFragementListener, OnAlertClickInterface,
         prefs.edit().putInt(PREF_VERSION_CODE_KEY, currentVersionCode).apply();
 
     }
+
+    /**
+     * Adds tile index and density pyramid to active wifi catalog, if it has been downloaded by an older version.
+     * Runs in background, map falls back to plain queries until done
+     */
+    private void upgradeWifiCatalog() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getString(Preferences.KEY_CATALOG_FILE, Preferences.VAL_CATALOG_NONE).equals(Preferences.VAL_CATALOG_NONE)) {
+            return;
+        }
+        final String file = prefs.getString(Preferences.KEY_WIFI_CATALOG_FOLDER,
+                getExternalFilesDir(null).getAbsolutePath() + File.separator + Preferences.CATALOG_SUBDIR)
+                + File.separator + prefs.getString(Preferences.KEY_CATALOG_FILE, Preferences.VAL_CATALOG_FILE);
+        if (new File(file).exists()) {
+            new CatalogIndexBuilder().execute(file);
+        }
+    }
 }
@@ -33,12 +33,14 @@ import android.widget.TextView;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
 import org.openbmap.R;
 import org.openbmap.RadioBeacon;
 import org.openbmap.db.DataHelper;
-import org.openbmap.events.onCellUpdated;
 import org.openbmap.events.onLocationUpdate;
-import org.openbmap.events.onWifiAdded;
+import org.openbmap.events.onScansWritten;
+import org.openbmap.events.onStartTracking;
+import org.openbmap.events.onStopTracking;
 
 import java.text.DecimalFormat;
 
@@ -80,6 +82,11 @@ public class StatusBar extends LinearLayout {
 
 	private DataHelper mDataHelper;
 
+	/**
+	 * Active session, looked up once per session
+	 */
+	private int mSession = RadioBeacon.SESSION_NOT_TRACKING;
+
 	private final TextView tvWifiCount;
 	private final TextView tvNewWifiCount;
 	private final TextView tvCellCount;
@@ -164,32 +171,58 @@ public class StatusBar extends LinearLayout {
             }
     }
 
-    @Subscribe
-	public void onEvent(onCellUpdated event) {
+	/**
+	 * Refreshes counters once scans have been committed, so they include the latest scan
+	 */
+	@Subscribe(threadMode = ThreadMode.MAIN)
+	public void onEvent(onScansWritten event) {
 		if (mDataHelper != null) {
-			tvCellCount.setText(String.valueOf(mDataHelper.countCells(mDataHelper.getActiveSessionId())));
+			updateCounts(event.hasWifis, event.hasCells);
 		}
 	}
 
-    @Subscribe
-	public void onEvent(onWifiAdded event) {
-		if (mDataHelper != null) {
-			tvWifiCount.setText(String.valueOf(mDataHelper.countWifis(mDataHelper.getActiveSessionId())));
-			tvNewWifiCount.setText(String.valueOf(mDataHelper.countNewWifis(mDataHelper.getActiveSessionId())));
+	@Subscribe
+	public void onEvent(onStartTracking event) {
+		mSession = RadioBeacon.SESSION_NOT_TRACKING;
+	}
+
+	@Subscribe
+	public void onEvent(onStopTracking event) {
+		mSession = RadioBeacon.SESSION_NOT_TRACKING;
+	}
+
+	/**
+	 * Returns active session id. Session is looked up on first call after start tracking only
+	 */
+	private int getActiveSession() {
+		if (mSession == RadioBeacon.SESSION_NOT_TRACKING) {
+			mSession = mDataHelper.getActiveSessionId();
 		}
+		return mSession;
 	}
 
 	@Override
 	protected void onAttachedToWindow() {
 		super.onAttachedToWindow();
 		mDataHelper = new DataHelper(mContext);
+		mSession = RadioBeacon.SESSION_NOT_TRACKING;
 
-        tvWifiCount.setText(String.valueOf(mDataHelper.countWifis(mDataHelper.getActiveSessionId())));
-        tvNewWifiCount.setText(String.valueOf(mDataHelper.countNewWifis(mDataHelper.getActiveSessionId())));
+		updateCounts(true, true);
 
 		registerReceiver();
 	}
 
+	private void updateCounts(final boolean wifis, final boolean cells) {
+		final int session = getActiveSession();
+		if (wifis) {
+			tvWifiCount.setText(String.valueOf(mDataHelper.countWifis(session)));
+			tvNewWifiCount.setText(String.valueOf(mDataHelper.countNewWifis(session)));
+		}
+		if (cells) {
+			tvCellCount.setText(String.valueOf(mDataHelper.countCells(session)));
+		}
+	}
+
 	@Override
 	protected void onDetachedFromWindow() {
 		mDataHelper = null;
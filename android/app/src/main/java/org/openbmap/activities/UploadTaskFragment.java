@@ -158,6 +158,7 @@ public class UploadTaskFragment extends Fragment implements UploadTaskListener,
         final String targetPath = getActivity().getExternalFilesDir(null).getAbsolutePath() + File.separator;
         final boolean skipUpload = PreferenceManager.getDefaultSharedPreferences(getActivity()).getBoolean(Preferences.KEY_SKIP_UPLOAD, Preferences.VAL_SKIP_UPLOAD);
         final boolean skipDelete = PreferenceManager.getDefaultSharedPreferences(getActivity()).getBoolean(Preferences.KEY_KEEP_XML, Preferences.VAL_KEEP_XML);
+        final boolean compressUpload = prefs.getBoolean(Preferences.KEY_GZIP_UPLOAD, Preferences.VAL_GZIP_UPLOAD);
         final boolean anonymiseSsid = prefs.getBoolean(Preferences.KEY_ANONYMISE_SSID, Preferences.VAL_ANONYMISE_SSID);
         final boolean saveGpx = prefs.getBoolean(Preferences.KEY_SAVE_GPX, Preferences.VAL_SAVE_GPX);
 
@@ -174,6 +175,7 @@ public class UploadTaskFragment extends Fragment implements UploadTaskListener,
         // debug settings
         mExportDataTask.setSkipUpload(skipUpload);
         mExportDataTask.setKeepXml(skipDelete);
+        mExportDataTask.setCompressUpload(compressUpload);
 
         mExportDataTask.execute((Void[]) null);
     }
@@ -21,10 +21,6 @@ package org.openbmap.activities;
 import android.annotation.SuppressLint;
 import android.content.DialogInterface;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
@@ -36,12 +32,8 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.ViewTreeObserver;
-import android.view.ViewTreeObserver.OnGlobalLayoutListener;
 import android.widget.Toast;
 
-import org.mapsforge.core.model.BoundingBox;
-import org.mapsforge.core.model.LatLong;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 import org.mapsforge.map.android.util.AndroidUtil;
 import org.mapsforge.map.android.view.MapView;
@@ -49,9 +41,6 @@ import org.mapsforge.map.layer.Layer;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.download.TileDownloadLayer;
 import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
-import org.mapsforge.map.layer.overlay.Marker;
-import org.mapsforge.map.model.common.Observer;
-import org.mapsforge.map.util.MapPositionUtil;
 import org.openbmap.Preferences;
 import org.openbmap.R;
 import org.openbmap.RadioBeacon;
@@ -60,8 +49,7 @@ import org.openbmap.db.DataHelper;
 import org.openbmap.db.Schema;
 import org.openbmap.db.models.WifiRecord;
 import org.openbmap.heatmap.HeatLatLong;
-import org.openbmap.heatmap.HeatmapBuilder;
-import org.openbmap.heatmap.HeatmapBuilder.HeatmapBuilderListener;
+import org.openbmap.heatmap.HeatmapLayer;
 import org.openbmap.utils.MapUtils;
 
 import java.util.ArrayList;
@@ -69,7 +57,7 @@ import java.util.ArrayList;
 /**
  * Fragment for displaying cell detail information
  */
-public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener, LoaderManager.LoaderCallbacks<Cursor>  {
+public class WifiDetailsMap extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>  {
 
 	private static final String TAG = WifiDetailsMap.class.getSimpleName();
 
@@ -105,26 +93,15 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 
 	private final ArrayList<HeatLatLong> points = new ArrayList<>();
 
-	private boolean	pointsLoaded  = false;
-
-	private boolean	layoutInflated = false;
-
-	private Observer mapObserver;
-
 	/**
-	 * Current zoom level
+	 * Heat-map, rendered and cached per map tile
 	 */
-	private byte currentZoom;
-
-	private LatLong	target;
-
-	private boolean	updatePending;
-
-	private Marker heatmapLayer;
-
-	private byte zoomAtTrigger;
+	private HeatmapLayer heatmapLayer;
 
-	private AsyncTask<Object, Integer, Boolean>	builder;
+	/**
+	 * Rendered heat-map tiles
+	 */
+	private TileCache heatmapCache;
 
 	// [end]
 
@@ -173,28 +150,9 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 			mapDownloadLayer.onResume();
 		}
 
-		// register for zoom changes
-		this.mapObserver = new Observer() {
-			@Override
-			public void onChange() {
-
-				final byte zoom = mMapView.getModel().mapViewPosition.getZoomLevel();
-				if (zoom != currentZoom) {
-					// update overlays on zoom level changed
-					Log.i(TAG, "New zoom level " + zoom + ", reloading map objects");
-					/*
-					// cancel pending heat-maps
-					if (builder != null) {
-						builder.cancel(true);
-					}
-					 */
-					clearLayer();
-					proceedAfterHeatmapCompleted();
-					currentZoom = zoom;
-				}
-			}
-		};
-		this.mMapView.getModel().mapViewPosition.addObserver(mapObserver);
+		if (heatmapLayer != null) {
+			heatmapLayer.onResume();
+		}
 	}
 
 
@@ -203,15 +161,20 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 		super.onDestroy();
 
 		this.mMapView.destroyAll();
+		if (heatmapCache != null) {
+			heatmapCache.destroy();
+		}
         MapUtils.clearRessources();
 	}
 
 	@Override
 	public void onPause(){
-		mMapView.getModel().mapViewPosition.removeObserver(mapObserver);
 		if ((mapDownloadLayer != null)) {
 			mapDownloadLayer.onResume();
 		}
+		if (heatmapLayer != null) {
+			heatmapLayer.onPause();
+		}
 		super.onPause();
 	}
 
@@ -247,69 +210,27 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 			if (points.size() > 0) {
 				mMapView.getModel().mapViewPosition.setCenter(points.get(points.size()-1));
 			}
-			pointsLoaded  = true;
-			proceedAfterHeatmapCompleted();
+			showHeatmap();
 		}
 	}
 
 	/**
-	 *
+	 * Adds heat-map layer or updates its points. Tiles are rendered in background,
+	 * so panning and zooming only render tiles which aren't cached yet
 	 */
-	private void proceedAfterHeatmapCompleted() {
-		if (pointsLoaded  && layoutInflated && !updatePending) {
-			updatePending = true;
-
-			clearLayer();
-
-			final BoundingBox bbox = MapPositionUtil.getBoundingBox(
-					mMapView.getModel().mapViewPosition.getMapPosition(),
-					mMapView.getDimension(), mMapView.getModel().displayModel.getTileSize());
-
-			target = mMapView.getModel().mapViewPosition.getCenter();
-			zoomAtTrigger = mMapView.getModel().mapViewPosition.getZoomLevel();
-
-			heatmapLayer = new Marker(target, null, 0, 0);
-			mMapView.getLayerManager().getLayers().add(heatmapLayer);
-
-			builder = new HeatmapBuilder(
-					WifiDetailsMap.this, mMapView.getWidth(), mMapView.getHeight(), bbox,
-					mMapView.getModel().mapViewPosition.getZoomLevel(), mMapView.getModel().displayModel.getScaleFactor(), mMapView.getModel().displayModel.getTileSize(), RADIUS).execute(points);
-		} else {
-			Log.i(TAG, "Another heat-map is currently generated. Skipped");
-		}
-	}
-
-	/* (non-Javadoc)
-	 * @see org.openbmap.soapclient.HeatmapBuilder.HeatmapBuilderListener#onHeatmapCompleted(android.graphics.Bitmap)
-	 */
-	@Override
-	public final void onHeatmapCompleted(final Bitmap backbuffer) {
-		// zoom level has changed in the mean time - regenerate
-		if (mMapView.getModel().mapViewPosition.getZoomLevel() != zoomAtTrigger) {
-			updatePending = false;
-			Log.i(TAG, "Zoom level has changed - have to re-generate heat-map");
-			clearLayer();
-			proceedAfterHeatmapCompleted();
+	private void showHeatmap() {
+		if (heatmapLayer != null) {
+			heatmapLayer.setPoints(points);
 			return;
 		}
 
-		final BitmapDrawable drawable = new BitmapDrawable(backbuffer);
-		final org.mapsforge.core.graphics.Bitmap mfBitmap = AndroidGraphicFactory.convertToBitmap(drawable);
-		if (heatmapLayer != null && mfBitmap != null) {
-			heatmapLayer.setBitmap(mfBitmap);
-		} else {
-			Log.w(TAG, "Skipped heatmap draw: either layer or bitmap is null");
-		}
-		updatePending = false;
-		//saveHeatmapToFile(backbuffer);
-	}
-
-	/**
-	 * Callback function when heatmap generation has failed
-	 */
-	@Override
-	public final void onHeatmapFailed() {
-		updatePending = false;
+		heatmapCache = MapUtils.createHeatmapCache(getActivity(), mMapView.getModel().displayModel.getTileSize(),
+				mMapView.getModel().frameBufferModel.getOverdrawFactor());
+		final String source = "wifi_" + (mWifi != null ? mWifi.getBssid().replaceAll("[^A-Za-z0-9]", "") : "");
+		heatmapLayer = new HeatmapLayer(heatmapCache, mMapView.getModel().mapViewPosition, AndroidGraphicFactory.INSTANCE,
+				source, points, RADIUS);
+		mMapView.getLayerManager().getLayers().add(heatmapLayer);
+		heatmapLayer.onResume();
 	}
 
 	/* (non-Javadoc)
@@ -321,21 +242,6 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 	}
 
 
-	/**
-	 * Removes heatmap layer (if any)
-	 */
-	private void clearLayer() {
-		if (heatmapLayer == null) {
-			return;
-		}
-
-		if (mMapView.getLayerManager().getLayers().indexOf(heatmapLayer) != -1) {
-			mMapView.getLayerManager().getLayers().remove(heatmapLayer);
-			heatmapLayer = null;
-		}
-	}
-
-
 	/**
 	 * Initializes map components
 	 */
@@ -364,53 +270,6 @@ public class WifiDetailsMap extends Fragment implements HeatmapBuilderListener,
 			AlertDialog dialog = builder.create();
 		}
 
-		// register for layout finalization - we need this to get width and height
-		final ViewTreeObserver vto = mMapView.getViewTreeObserver();
-		vto.addOnGlobalLayoutListener(new OnGlobalLayoutListener() {
-
-			@SuppressLint("NewApi")
-			@Override
-			public void onGlobalLayout() {
-
-				layoutInflated = true;
-				proceedAfterHeatmapCompleted();
-
-				final ViewTreeObserver obs = mMapView.getViewTreeObserver();
-
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-					obs.removeOnGlobalLayoutListener(this);
-				} else {
-					obs.removeGlobalOnLayoutListener(this);
-				}
-			}
-		});
-
-		// Register for zoom changes
-		this.mapObserver = new Observer() {
-			@Override
-			public void onChange() {
-
-				final byte newZoom = mMapView.getModel().mapViewPosition.getZoomLevel();
-				if (newZoom != currentZoom) {
-					// update overlays on zoom level changed
-					Log.i(TAG, "New zoom level " + newZoom + ", reloading map objects");
-					Log.i(TAG, "Update" + updatePending);
-					// cancel pending heat-maps
-					//if (builder != null) {
-					//	builder.cancel(true);
-					//}
-
-					// if another update is pending, wait for complete
-					if (!updatePending) {
-						clearLayer();
-						proceedAfterHeatmapCompleted();
-					}
-					currentZoom = newZoom;
-				}
-			}
-		};
-		this.mMapView.getModel().mapViewPosition.addObserver(mapObserver);
-
 		this.mMapView.setClickable(true);
 		this.mMapView.getMapScaleBar().setVisible(true);
 
@@ -1,5 +1,6 @@
 package org.openbmap.db;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -11,13 +12,19 @@ import android.util.Log;
 
 import org.mapsforge.core.model.LatLong;
 import org.openbmap.Preferences;
+import org.openbmap.utils.DensityLatLong;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 public class CatalogDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = CatalogDatabaseHelper.class.getSimpleName();
 
+    /**
+     * Fallback queries, used if catalog has no tile index (e.g. read-only catalog file)
+     */
     public static final String VERBOSE_QUERY = "SELECT _id, latitude as grouped_lat, longitude as grouped_lon FROM wifi_zone WHERE "
             + "(latitude > ? AND latitude < ? AND longitude > ? AND longitude < ?)";
 
@@ -28,12 +35,28 @@ public class CatalogDatabaseHelper extends SQLiteOpenHelper {
      * Maximum overlay items diplayed
      * Prevents out of memory/performance issues
      */
-    private static final int MAX_REFS = 5000;
+    public static final int MAX_REFS = 5000;
+
+    /**
+     * Share of app heap (1/n) a {@link CatalogIndex} may use, see {@link #getIndexBudget(Context)}.
+     * Larger catalogs (e.g. whole countries) exceed memory budget, so callers have to fall back to sql queries
+     */
+    private static final int INDEX_HEAP_SHARE = 8;
 
     private static CatalogDatabaseHelper sInstance;
 
     private static String mFileLocation;
 
+    /**
+     * Whether catalog has a usable tile index, see {@link CatalogTiles}
+     */
+    private volatile boolean mTilesReady = false;
+
+    /**
+     * Whether catalog has a usable density pyramid, see {@link CatalogDensity}
+     */
+    private volatile boolean mDensityReady = false;
+
     public static synchronized CatalogDatabaseHelper getInstance(final Context context) {
         // Use the application context, which will ensure that you
         // don't accidentally leak an Activity's context.
@@ -74,12 +97,21 @@ public class CatalogDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Returns a readable database with disabled journaling for better performance
+     * Returns a readable database with disabled journaling for better performance.
+     * Map queries never build tile index or density pyramid, that's done by {@link org.openbmap.utils.CatalogIndexBuilder}
+     * after download or app upgrade. Until then plain range queries are used
      * @return SQLiteDatabase
      */
     private SQLiteDatabase getOptimizedDatabase() {
         SQLiteDatabase db = getReadableDatabase();
 
+        if (!mTilesReady) {
+            mTilesReady = CatalogTiles.hasIndex(db);
+        }
+        if (mTilesReady && !mDensityReady) {
+            mDensityReady = CatalogDensity.hasPyramid(db);
+        }
+
         // disable journaling
         Log.v(TAG, "Disable journaling on catalog database");
         Cursor pragma = db.rawQuery("PRAGMA journal_mode=OFF", null);
@@ -92,31 +124,13 @@ public class CatalogDatabaseHelper extends SQLiteOpenHelper {
       */
     public ArrayList<LatLong> getPoints(Double min_lat, Double max_lat, Double min_lon, Double max_lon) {
         ArrayList<LatLong> points = new ArrayList<>();
-
-        String[] args = new String[] {
-                        String.valueOf(min_lat),
-                        String.valueOf(max_lat),
-                        String.valueOf(min_lon),
-                        String.valueOf(max_lon)};
-
         try {
             // TODO: do we really need to open database on each query???
             SQLiteDatabase db = getOptimizedDatabase();
-
-            Cursor cursor = db.rawQuery(VERBOSE_QUERY, args);
-
-            int i = 0;
-            final int latCol = cursor.getColumnIndex("grouped_lat");
-            final int lonCol = cursor.getColumnIndex("grouped_lon");
-
-            if (cursor.moveToFirst()) {
-                do {
-                    points.add(new LatLong(cursor.getDouble(latCol), cursor.getDouble(lonCol)));
-                    i++;
-                } while(cursor.moveToNext() && i < MAX_REFS);
-            }
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
+            if (mTilesReady) {
+                queryTiles(db, points, false, MAX_REFS, min_lat, max_lat, min_lon, max_lon);
+            } else {
+                query(db, VERBOSE_QUERY, points, MAX_REFS, min_lat, max_lat, min_lon, max_lon);
             }
             db.close();
         } catch (SQLiteException e) {
@@ -126,37 +140,188 @@ public class CatalogDatabaseHelper extends SQLiteOpenHelper {
         return points;
     }
 
+    /**
+     * Returns points in the database, grouped to ~10 m
+     */
     public ArrayList<LatLong> getPointsLazy(Double min_lat, Double max_lat, Double min_lon, Double max_lon) {
         ArrayList<LatLong> points = new ArrayList<>();
+        getPointsLazy(min_lat, max_lat, min_lon, max_lon, MAX_REFS, points);
+        return points;
+    }
+
+    /**
+     * Loads points in the database, grouped to ~10 m
+     * @param max_points maximum number of points
+     * @param points receives points
+     * @return true if all points within bounding box have been loaded,
+     *          false if result has been truncated to max_points (or per tile row limit) or query failed
+     */
+    public boolean getPointsLazy(Double min_lat, Double max_lat, Double min_lon, Double max_lon, int max_points,
+                                 List<LatLong> points) {
+        // "getReadableDatabase()" and "getWriteableDatabase()" return the same object (except under low disk space scenarios)
+        try {
+            SQLiteDatabase db = getOptimizedDatabase();
+            if (mTilesReady) {
+                return queryTiles(db, points, true, max_points, min_lat, max_lat, min_lon, max_lon);
+            } else {
+                return query(db, HIGHSPEED_QUERY, points, max_points, min_lat, max_lat, min_lon, max_lon);
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error reading from catalog: " + e.toString());
+            return false;
+        }
+    }
 
+    /**
+     * Returns number of wifis per density cell. Cell size depends on viewport size,
+     * viewport is covered by a constant number of cells
+     * @return density cells or null if catalog has no density pyramid
+     */
+    public ArrayList<DensityLatLong> getDensity(Double min_lat, Double max_lat, Double min_lon, Double max_lon) {
+        try {
+            SQLiteDatabase db = getOptimizedDatabase();
+            if (mDensityReady) {
+                return CatalogDensity.query(db, min_lat, max_lat, min_lon, max_lon);
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error reading from catalog: " + e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Loads points via tile index. Each tile row gets an equal share of max_points,
+     * so points are spread over whole viewport
+     * @param grouped merge points within same 0.0001 degree cell. Merged points are placed at cell center,
+     *                so they never move across a cell (or tile) border
+     * @return false if any row has reached its limit, i.e. points are missing
+     */
+    private static boolean queryTiles(SQLiteDatabase db, List<LatLong> points, boolean grouped, int max_points,
+                                      Double min_lat, Double max_lat, Double min_lon, Double max_lon) {
+        final long[][] ranges = CatalogTiles.ranges(min_lat, max_lat, min_lon, max_lon);
+        if (ranges.length == 0) {
+            return true;
+        }
+        final int rowLimit = max_points / ranges.length + 1;
+        final String limit = String.valueOf(rowLimit);
+        final HashSet<Long> seen = new HashSet<>();
+        boolean complete = true;
+
+        for (long[] range : ranges) {
+            Cursor cursor = db.rawQuery(CatalogTiles.TILE_QUERY, new String[] {
+                    String.valueOf(range[0]),
+                    String.valueOf(range[1]),
+                    String.valueOf(min_lat),
+                    String.valueOf(max_lat),
+                    String.valueOf(min_lon),
+                    String.valueOf(max_lon),
+                    limit});
+            try {
+                if (cursor.getCount() >= rowLimit) {
+                    complete = false;
+                }
+                while (cursor.moveToNext()) {
+                    if (points.size() >= max_points) {
+                        complete = false;
+                        break;
+                    }
+                    double lat = cursor.getDouble(0);
+                    double lon = cursor.getDouble(1);
+                    if (grouped) {
+                        final long latKey = (long) Math.floor(lat * 10000);
+                        final long lonKey = (long) Math.floor(lon * 10000);
+                        if (!seen.add(latKey * 10000000L + lonKey)) {
+                            continue;
+                        }
+                        lat = (latKey + 0.5) / 10000d;
+                        lon = (lonKey + 0.5) / 10000d;
+                    }
+                    points.add(new LatLong(lat, lon));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Loads points with a plain lat/lon range query
+     * @return false if points have been truncated to max_points
+     */
+    private static boolean query(SQLiteDatabase db, String sql, List<LatLong> points, int max_points,
+                                 Double min_lat, Double max_lat, Double min_lon, Double max_lon) {
         String[] args = new String[] {
                 String.valueOf(min_lat),
                 String.valueOf(max_lat),
                 String.valueOf(min_lon),
                 String.valueOf(max_lon)};
 
-        // "getReadableDatabase()" and "getWriteableDatabase()" return the same object (except under low disk space scenarios)
+        Cursor cursor = db.rawQuery(sql, args);
+        final int latCol = cursor.getColumnIndex("grouped_lat");
+        final int lonCol = cursor.getColumnIndex("grouped_lon");
+        boolean complete = true;
+        while (cursor.moveToNext()) {
+            if (points.size() >= max_points) {
+                complete = false;
+                break;
+            }
+            points.add(new LatLong(cursor.getDouble(latCol), cursor.getDouble(lonCol)));
+        }
+        cursor.close();
+        return complete;
+    }
 
+    /**
+     * Memory budget for {@link #buildIndex(SQLiteDatabase, long)}, derived from device's per-app heap limit
+     * @return budget in bytes
+     */
+    public static long getIndexBudget(final Context context) {
+        final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024L * 1024L / INDEX_HEAP_SHARE;
+    }
 
+    /**
+     * Loads all bssids of a catalog database into memory. Stops, if calling thread is interrupted
+     * @param catalog opened catalog database
+     * @param budget max. heap size of index (in bytes)
+     * @return index or null if catalog is empty, exceeds budget, can't be read or indexing has been cancelled
+     */
+    public static CatalogIndex buildIndex(final SQLiteDatabase catalog, final long budget) {
+        Cursor cursor = null;
         try {
-            SQLiteDatabase db = getOptimizedDatabase();
-            Cursor cursor = db.rawQuery(HIGHSPEED_QUERY, args);
-            int i = 0;
-            final int latCol = cursor.getColumnIndex("grouped_lat");
-            final int lonCol = cursor.getColumnIndex("grouped_lon");
-
-            if (cursor.moveToFirst()) {
-                do {
-                    points.add(new LatLong(cursor.getDouble(latCol), cursor.getDouble(lonCol)));
-                    i++;
-                } while(cursor.moveToNext() && i < MAX_REFS);
+            cursor = catalog.rawQuery("SELECT count(*) FROM wifi_zone", null);
+            final int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            cursor.close();
+
+            if (count == 0 || CatalogIndex.bytesFor(count) > budget) {
+                Log.i(TAG, "Not indexing catalog: " + count + " bssids, budget " + budget / 1024 + " kb");
+                return null;
+            }
+
+            final long start = System.currentTimeMillis();
+            final CatalogIndex index = new CatalogIndex(count);
+            cursor = catalog.rawQuery("SELECT bssid, source FROM wifi_zone", null);
+            while (cursor.moveToNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.i(TAG, "Indexing catalog cancelled");
+                    return null;
+                }
+                index.put(cursor.getString(0), cursor.getInt(1));
             }
+            Log.i(TAG, "Indexed " + index.size() + " bssids in " + (System.currentTimeMillis() - start) + " ms");
+            return index;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error indexing catalog: " + e.toString());
+            return null;
+        } catch (OutOfMemoryError e) {
+            // callers query catalog instead
+            Log.e(TAG, "Not enough memory to index catalog");
+            return null;
+        } finally {
             if (cursor != null && !cursor.isClosed()) {
                 cursor.close();
             }
-        } catch (SQLiteException e) {
-            Log.e(TAG, "Error reading from catalog: " + e.toString());
         }
-        return points;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import org.openbmap.utils.DensityLatLong;
+
+import java.util.ArrayList;
+
+/**
+ * Density pyramid for wifi catalog: number of wifis per cell on {@link #LEVELS} levels.
+ *
+ * Level 0 uses the {@link CatalogTiles} grid, each further level merges 2x2 cells of the level below,
+ * so cell edge length doubles per level. Cells are numbered row by row like tiles. A viewport is
+ * answered on the finest level, which covers it with at most {@link #MAX_CELLS_PER_SIDE} x
+ * {@link #MAX_CELLS_PER_SIDE} cells, so query cost doesn't depend on zoom level or catalog size.
+ *
+ * Pyramid is built from tile column once and updated incrementally for each wifi added afterwards.
+ */
+public final class CatalogDensity {
+
+    private static final String TAG = CatalogDensity.class.getSimpleName();
+
+    public static final String TBL_DENSITY = "wifi_zone_density";
+
+    /**
+     * Level 0: 0.01 degree cells, level 10: 10.24 degree cells
+     */
+    static final int LEVELS = 11;
+
+    /**
+     * Max. number of cells per viewport edge
+     */
+    static final int MAX_CELLS_PER_SIDE = 32;
+
+    static final String CREATE_TABLE = "CREATE TABLE " + TBL_DENSITY
+            + " (level INTEGER NOT NULL, cell INTEGER NOT NULL, count INTEGER NOT NULL, PRIMARY KEY (level, cell))";
+
+    /**
+     * Cells of a single row. Args: level, first cell, last cell
+     */
+    static final String CELL_QUERY = "SELECT cell, count FROM " + TBL_DENSITY
+            + " WHERE level = ? AND cell BETWEEN ? AND ?";
+
+    static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TBL_DENSITY;
+
+    static final String INSERT_CELL = "INSERT OR IGNORE INTO " + TBL_DENSITY + " VALUES (?, ?, 0)";
+
+    static final String INCREMENT_CELL = "UPDATE " + TBL_DENSITY + " SET count = count + 1 WHERE level = ? AND cell = ?";
+
+    private CatalogDensity() {
+    }
+
+    /**
+     * Number of cell columns on given level
+     */
+    static int columns(final int level) {
+        return (CatalogTiles.COLUMNS + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Cell edge length (in degrees) on given level
+     */
+    static double cellSize(final int level) {
+        return (double) (1 << level) / CatalogTiles.TILES_PER_DEGREE;
+    }
+
+    /**
+     * Cell containing given tile
+     */
+    static long cellOf(final int level, final int tile) {
+        final int row = (tile / CatalogTiles.COLUMNS) >> level;
+        final int column = (tile % CatalogTiles.COLUMNS) >> level;
+        return (long) row * columns(level) + column;
+    }
+
+    /**
+     * Statements building all levels: level 0 is aggregated from tile index, further levels from level below
+     */
+    static String[] buildStatements() {
+        final String[] sql = new String[LEVELS + 1];
+        sql[0] = CREATE_TABLE;
+        sql[1] = "INSERT INTO " + TBL_DENSITY + " SELECT 0, " + CatalogTiles.COL_TILE + ", count(*) FROM "
+                + CatalogTiles.TBL_CATALOG + " WHERE " + CatalogTiles.COL_TILE + " IS NOT NULL GROUP BY " + CatalogTiles.COL_TILE;
+        for (int level = 1; level < LEVELS; level++) {
+            final int below = columns(level - 1);
+            sql[level + 1] = "INSERT INTO " + TBL_DENSITY + " SELECT " + level
+                    + ", ((cell / " + below + ") >> 1) * " + columns(level) + " + ((cell % " + below + ") >> 1), sum(count)"
+                    + " FROM " + TBL_DENSITY + " WHERE level = " + (level - 1) + " GROUP BY 2";
+        }
+        return sql;
+    }
+
+    /**
+     * Finest level, which covers viewport with at most {@link #MAX_CELLS_PER_SIDE} cells per edge
+     */
+    static int levelFor(final double minLat, final double maxLat, final double minLon, final double maxLon) {
+        final int rows = CatalogTiles.row(maxLat) - CatalogTiles.row(minLat);
+        final int columns = CatalogTiles.column(maxLon) - CatalogTiles.column(minLon);
+        int level = 0;
+        while (level < LEVELS - 1 && Math.max(rows, columns) >> level >= MAX_CELLS_PER_SIDE) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Cell ranges covering a viewport on given level, one range per cell row
+     * @return pairs of first and last cell number
+     */
+    static long[][] ranges(final int level, final double minLat, final double maxLat, final double minLon, final double maxLon) {
+        final int firstRow = CatalogTiles.row(minLat) >> level;
+        final int lastRow = CatalogTiles.row(maxLat) >> level;
+        final int firstColumn = CatalogTiles.column(minLon) >> level;
+        final int lastColumn = CatalogTiles.column(maxLon) >> level;
+        if (lastRow < firstRow || lastColumn < firstColumn) {
+            return new long[0][];
+        }
+
+        final long columns = columns(level);
+        final long[][] ranges = new long[lastRow - firstRow + 1][];
+        for (int i = 0; i < ranges.length; i++) {
+            final long row = firstRow + i;
+            ranges[i] = new long[] {row * columns + firstColumn, row * columns + lastColumn};
+        }
+        return ranges;
+    }
+
+    /**
+     * Checks whether catalog has a density pyramid. Doesn't modify catalog
+     * @param catalog catalog database
+     * @return true if density pyramid can be used
+     */
+    public static boolean hasPyramid(final SQLiteDatabase catalog) {
+        final Cursor exists = catalog.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] {TBL_DENSITY});
+        try {
+            return exists.moveToFirst();
+        } finally {
+            exists.close();
+        }
+    }
+
+    /**
+     * Builds density pyramid, unless already present. Requires tile column.
+     * Only called through {@link CatalogTiles#ensureIndex(String)}
+     * @param catalog catalog database, opened for writing
+     * @return true if density pyramid can be used
+     */
+    static boolean ensurePyramid(final SQLiteDatabase catalog) {
+        try {
+            if (hasPyramid(catalog)) {
+                return true;
+            }
+
+            final long start = System.currentTimeMillis();
+            catalog.beginTransaction();
+            try {
+                for (final String sql : buildStatements()) {
+                    catalog.execSQL(sql);
+                }
+                catalog.setTransactionSuccessful();
+            } finally {
+                catalog.endTransaction();
+            }
+            Log.i(TAG, "Built catalog density pyramid in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Can't build catalog density pyramid: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Counts a newly added wifi on all levels. Call within caller's transaction
+     * @param catalog catalog database, opened for writing
+     * @param tile tile of new wifi
+     */
+    public static void add(final SQLiteDatabase catalog, final int tile) {
+        for (int level = 0; level < LEVELS; level++) {
+            final Object[] args = new Object[] {level, cellOf(level, tile)};
+            catalog.execSQL(INSERT_CELL, args);
+            catalog.execSQL(INCREMENT_CELL, args);
+        }
+    }
+
+    /**
+     * Loads density cells within viewport
+     * @param catalog catalog database
+     * @return non-empty cells
+     */
+    static ArrayList<DensityLatLong> query(final SQLiteDatabase catalog,
+                                           final double minLat, final double maxLat, final double minLon, final double maxLon) {
+        final int level = levelFor(minLat, maxLat, minLon, maxLon);
+        final int columns = columns(level);
+        final double size = cellSize(level);
+        final ArrayList<DensityLatLong> cells = new ArrayList<>();
+
+        for (final long[] range : ranges(level, minLat, maxLat, minLon, maxLon)) {
+            final Cursor cursor = catalog.rawQuery(CELL_QUERY, new String[] {
+                    String.valueOf(level),
+                    String.valueOf(range[0]),
+                    String.valueOf(range[1])});
+            try {
+                while (cursor.moveToNext()) {
+                    final long cell = cursor.getLong(0);
+                    final double lat = Math.min(90, (cell / columns + 0.5) * size - 90);
+                    final double lon = Math.min(180, (cell % columns + 0.5) * size - 180);
+                    cells.add(new DensityLatLong(lat, lon, cursor.getInt(1), size));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return cells;
+    }
+}
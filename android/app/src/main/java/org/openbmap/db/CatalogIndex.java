@@ -0,0 +1,229 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import org.openbmap.db.models.WifiRecord.CatalogStatus;
+
+import java.util.Arrays;
+
+/**
+ * In-memory index of wifi catalog bssids.
+ *
+ * Bssids are packed into the lower 48 bits of a long and stored in an open addressing
+ * hash table (linear probing) together with their catalog source. Lookups don't allocate
+ * and don't touch the catalog database, so they are cheap enough for the wifi scan path.
+ *
+ * Writes must be confined to a single thread, reads may happen concurrently once the
+ * index has been published (e.g. via a volatile field).
+ */
+public class CatalogIndex {
+
+    /**
+     * Marks an empty slot. Packed bssids never exceed 48 bits, so -1 is never a valid key
+     */
+    private static final long EMPTY = -1L;
+
+    /**
+     * Returned by {@link #pack(CharSequence)} for malformed bssids
+     */
+    public static final long INVALID = -1L;
+
+    /**
+     * Source code used by openbmap catalog for openbmap wifis
+     */
+    private static final byte SOURCE_OPENBMAP = (byte) CatalogStatus.OPENBMAP.ordinal();
+
+    private static final byte SOURCE_LOCAL = (byte) CatalogStatus.LOCAL.ordinal();
+
+    /**
+     * Maximum load factor before table is grown
+     */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] mKeys;
+    private byte[] mSources;
+    private int mSize;
+    private int mMask;
+    private int mThreshold;
+
+    public CatalogIndex() {
+        this(1024);
+    }
+
+    /**
+     * Creates an index sized for expected number of bssids
+     * @param expected expected number of entries
+     */
+    public CatalogIndex(final int expected) {
+        allocate(tableSizeFor(expected));
+    }
+
+    /**
+     * Adds a catalog entry
+     * @param bssid bssid, with or without colons, case-insensitive
+     * @param source catalog source as stored in wifi_zone.source
+     * @return false if bssid is malformed
+     */
+    public final boolean put(final CharSequence bssid, final int source) {
+        final long key = pack(bssid);
+        if (key == INVALID) {
+            return false;
+        }
+        put(key, source);
+        return true;
+    }
+
+    /**
+     * Adds a catalog entry
+     * @param key packed bssid (see {@link #pack(CharSequence)})
+     * @param source catalog source as stored in wifi_zone.source
+     */
+    public final void put(final long key, final int source) {
+        final byte value = (source == SOURCE_OPENBMAP) ? SOURCE_OPENBMAP : SOURCE_LOCAL;
+        int slot = slot(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                mSources[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mSources[slot] = value;
+        if (++mSize > mThreshold) {
+            rehash(mKeys.length << 1);
+        }
+    }
+
+    /**
+     * Returns catalog status for bssid
+     * @param bssid bssid, with or without colons, case-insensitive
+     * @return {@link CatalogStatus#NEW} if bssid is unknown or malformed
+     */
+    public final CatalogStatus lookup(final CharSequence bssid) {
+        return lookup(pack(bssid));
+    }
+
+    /**
+     * Returns catalog status for packed bssid
+     * @param key packed bssid
+     * @return {@link CatalogStatus#NEW} if bssid is unknown
+     */
+    public final CatalogStatus lookup(final long key) {
+        if (key == INVALID) {
+            return CatalogStatus.NEW;
+        }
+        int slot = slot(key);
+        long current;
+        while ((current = mKeys[slot]) != EMPTY) {
+            if (current == key) {
+                return mSources[slot] == SOURCE_OPENBMAP ? CatalogStatus.OPENBMAP : CatalogStatus.LOCAL;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return CatalogStatus.NEW;
+    }
+
+    /**
+     * Number of bssids in index
+     */
+    public final int size() {
+        return mSize;
+    }
+
+    /**
+     * Packs a bssid into a long. Colons, dashes and dots are skipped, hex digits are case-insensitive.
+     * @param bssid bssid, e.g. 00:11:22:aa:bb:cc or 001122AABBCC
+     * @return packed bssid or {@link #INVALID}, if bssid doesn't consist of exactly 12 hex digits
+     */
+    public static long pack(final CharSequence bssid) {
+        if (bssid == null) {
+            return INVALID;
+        }
+        long result = 0;
+        int digits = 0;
+        for (int i = 0; i < bssid.length(); i++) {
+            final char c = bssid.charAt(i);
+            final int nibble;
+            if (c >= '0' && c <= '9') {
+                nibble = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                nibble = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                nibble = c - 'A' + 10;
+            } else if (c == ':' || c == '-' || c == '.') {
+                continue;
+            } else {
+                return INVALID;
+            }
+            if (++digits > 12) {
+                return INVALID;
+            }
+            result = (result << 4) | nibble;
+        }
+        return digits == 12 ? result : INVALID;
+    }
+
+    private int slot(final long key) {
+        // murmur3 finalizer, spreads vendor prefix bits over whole table
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mMask;
+    }
+
+    private void allocate(final int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mSources = new byte[capacity];
+        mMask = capacity - 1;
+        mThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = mKeys;
+        final byte[] oldSources = mSources;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (mKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = oldKeys[i];
+                mSources[slot] = oldSources[i];
+            }
+        }
+    }
+
+    /**
+     * Heap size (in bytes) of an index sized for expected number of bssids
+     * @param expected expected number of entries
+     */
+    public static long bytesFor(final int expected) {
+        // one long key and one byte source per slot
+        return (long) tableSizeFor(expected) * (Long.SIZE / Byte.SIZE + 1);
+    }
+
+    private static int tableSizeFor(final int expected) {
+        final int min = (int) Math.ceil(Math.max(expected, 16) / LOAD_FACTOR);
+        return Integer.highestOneBit(min - 1) << 1;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Spatial tile index for wifi catalog.
+ *
+ * The world is split into a fixed grid of 1/{@link #TILES_PER_DEGREE} degree tiles, numbered row by row
+ * (row * {@link #COLUMNS} + column). Each catalog wifi stores its tile number in column {@link #COL_TILE},
+ * which is indexed together with latitude and longitude. Thus a viewport is covered by one contiguous
+ * tile range per grid row, and each range is answered by an index-only range scan, no matter how
+ * large the catalog is.
+ *
+ * Tile numbers are computed with the same floating point operations in java ({@link #tileOf(double, double)})
+ * and in sql ({@link #TILE_EXPRESSION}), so both always agree.
+ */
+public final class CatalogTiles {
+
+    private static final String TAG = CatalogTiles.class.getSimpleName();
+
+    public static final String TBL_CATALOG = "wifi_zone";
+
+    public static final String COL_TILE = "tile";
+
+    private static final String IDX_TILE = "idx_wifi_zone_tile";
+
+    /**
+     * Grid resolution: 0.01 degree, i.e. roughly 1.1 km in north-south direction
+     */
+    public static final int TILES_PER_DEGREE = 100;
+
+    static final int ROWS = 180 * TILES_PER_DEGREE;
+
+    static final int COLUMNS = 360 * TILES_PER_DEGREE;
+
+    /**
+     * Sql equivalent of {@link #tileOf(double, double)}
+     */
+    static final String TILE_EXPRESSION =
+            "(max(0, min(" + (ROWS - 1) + ", CAST((latitude + 90.0) * " + TILES_PER_DEGREE + " AS INTEGER))) * " + COLUMNS
+            + " + max(0, min(" + (COLUMNS - 1) + ", CAST((longitude + 180.0) * " + TILES_PER_DEGREE + " AS INTEGER))))";
+
+    /**
+     * Covering index: viewport queries are answered from index alone
+     */
+    static final String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS " + IDX_TILE + " ON " + TBL_CATALOG
+            + " (" + COL_TILE + ", latitude, longitude)";
+
+    static final String ADD_TILE_COLUMN = "ALTER TABLE " + TBL_CATALOG + " ADD COLUMN " + COL_TILE + " INTEGER";
+
+    static final String UPDATE_TILES = "UPDATE " + TBL_CATALOG + " SET " + COL_TILE + " = " + TILE_EXPRESSION;
+
+    /**
+     * Fills tile column of wifis added while tile index was missing
+     */
+    static final String BACKFILL_TILES = UPDATE_TILES + " WHERE " + COL_TILE + " IS NULL";
+
+    /**
+     * Points within a single tile range, i.e. a grid row. Args: first tile, last tile, min lat, max lat, min lon, max lon, limit
+     */
+    public static final String TILE_QUERY = "SELECT latitude, longitude FROM " + TBL_CATALOG
+            + " WHERE " + COL_TILE + " BETWEEN ? AND ?"
+            + " AND latitude > ? AND latitude < ? AND longitude > ? AND longitude < ? LIMIT ?";
+
+    private CatalogTiles() {
+    }
+
+    /**
+     * Tile number of given position
+     */
+    public static int tileOf(final double lat, final double lon) {
+        return row(lat) * COLUMNS + column(lon);
+    }
+
+    static int row(final double lat) {
+        return Math.max(0, Math.min(ROWS - 1, (int) ((lat + 90.0) * TILES_PER_DEGREE)));
+    }
+
+    static int column(final double lon) {
+        return Math.max(0, Math.min(COLUMNS - 1, (int) ((lon + 180.0) * TILES_PER_DEGREE)));
+    }
+
+    /**
+     * Tile ranges covering a viewport, one range per grid row. Every row is returned, so no part
+     * of the viewport is skipped
+     * @return pairs of first and last tile number
+     */
+    public static long[][] ranges(final double minLat, final double maxLat, final double minLon, final double maxLon) {
+        final int firstRow = row(minLat);
+        final int lastRow = row(maxLat);
+        final int firstColumn = column(minLon);
+        final int lastColumn = column(maxLon);
+        if (lastRow < firstRow || lastColumn < firstColumn) {
+            return new long[0][];
+        }
+
+        final long[][] ranges = new long[lastRow - firstRow + 1][];
+        for (int i = 0; i < ranges.length; i++) {
+            final long row = firstRow + i;
+            ranges[i] = new long[] {row * COLUMNS + firstColumn, row * COLUMNS + lastColumn};
+        }
+        return ranges;
+    }
+
+    /**
+     * Checks whether catalog has a complete tile index. Doesn't modify catalog, so it's safe to call
+     * while {@link #ensureIndex(String)} runs on another connection
+     * @param catalog catalog database
+     * @return true if tile index can be used
+     */
+    public static boolean hasIndex(final SQLiteDatabase catalog) {
+        try {
+            if (!hasTileColumn(catalog)) {
+                return false;
+            }
+            final Cursor index = catalog.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                    new String[] {IDX_TILE});
+            try {
+                return index.moveToFirst();
+            } finally {
+                index.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Can't check catalog tile index: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Statements adding and filling tile column and creating tile index
+     */
+    static String[] buildStatements() {
+        return new String[]{ADD_TILE_COLUMN, UPDATE_TILES, CREATE_INDEX};
+    }
+
+    /**
+     * Adds tile column and index to catalog, unless already present. If tile column exists,
+     * tiles missing for wifis added without index are filled in. Only called through {@link #ensureIndex(String)},
+     * so concurrent builders don't race
+     * @param catalog catalog database, opened for writing
+     * @return true if tile index can be used
+     */
+    private static boolean ensureIndex(final SQLiteDatabase catalog) {
+        try {
+            final long start = System.currentTimeMillis();
+            catalog.beginTransaction();
+            try {
+                if (hasTileColumn(catalog)) {
+                    final SQLiteStatement backfill = catalog.compileStatement(BACKFILL_TILES);
+                    final int added;
+                    try {
+                        added = backfill.executeUpdateDelete();
+                    } finally {
+                        backfill.close();
+                    }
+                    if (added > 0) {
+                        // these wifis aren't counted in density pyramid either, so it's rebuilt
+                        catalog.execSQL(CatalogDensity.DROP_TABLE);
+                        Log.i(TAG, "Added " + added + " wifis to catalog tile index");
+                    }
+                    catalog.execSQL(CREATE_INDEX);
+                } else {
+                    for (final String sql : buildStatements()) {
+                        catalog.execSQL(sql);
+                    }
+                    Log.i(TAG, "Built catalog tile index in " + (System.currentTimeMillis() - start) + " ms");
+                }
+                catalog.setTransactionSuccessful();
+            } finally {
+                catalog.endTransaction();
+            }
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Can't build catalog tile index: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Opens catalog file and adds tile index and density pyramid. Filling the tile column takes a while
+     * on large catalogs, so call after download (or app upgrade) and not on main thread,
+     * see {@link org.openbmap.utils.CatalogIndexBuilder}. Calls are serialized, so this is the only
+     * entry point for building the index
+     * @param file catalog file (full path)
+     * @return true if tile index and density pyramid can be used
+     */
+    public static synchronized boolean ensureIndex(final String file) {
+        SQLiteDatabase catalog = null;
+        try {
+            catalog = SQLiteDatabase.openDatabase(file, null, SQLiteDatabase.OPEN_READWRITE);
+            return ensureIndex(catalog) && CatalogDensity.ensurePyramid(catalog);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Can't open wifi catalog " + file + ": " + e.toString());
+            return false;
+        } finally {
+            if (catalog != null) {
+                catalog.close();
+            }
+        }
+    }
+
+    private static boolean hasTileColumn(final SQLiteDatabase catalog) {
+        final Cursor columns = catalog.rawQuery("PRAGMA table_info(" + TBL_CATALOG + ")", null);
+        try {
+            final int nameCol = columns.getColumnIndex("name");
+            while (columns.moveToNext()) {
+                if (COL_TILE.equals(columns.getString(nameCol))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            columns.close();
+        }
+    }
+}
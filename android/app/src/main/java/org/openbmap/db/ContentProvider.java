@@ -144,7 +144,7 @@ public class ContentProvider extends android.content.ContentProvider {
 
 	@Override
 	public final boolean onCreate() {
-		mDbHelper = new DatabaseHelper(getContext().getApplicationContext());
+		mDbHelper = DatabaseHelper.getInstance(getContext());
 		final SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
 		// Enable foreign key constraints (per connection)
@@ -228,7 +228,8 @@ public class ContentProvider extends android.content.ContentProvider {
 	}
 
 	/**
-	 * Inserts a position
+	 * Inserts a position. User-defined positions (waypoints) are counted in session's waypoint counter
+	 * in the same transaction, as they don't pass {@link ScanWriter}
 	 * @param baseUri
 	 * @param values
 	 * @return
@@ -238,10 +239,27 @@ public class ContentProvider extends android.content.ContentProvider {
 				&& values.containsKey(Schema.COL_LATITUDE)
 				&& values.containsKey(Schema.COL_TIMESTAMP)
 				&& values.containsKey(Schema.COL_SESSION_ID)) {
-			final long rowId = mDbHelper.getWritableDatabase().insert(Schema.TBL_POSITIONS, null, values);
+			final boolean waypoint = RadioBeacon.PROVIDER_USER_DEFINED.equals(values.getAsString(Schema.COL_SOURCE));
+			final int session = values.getAsInteger(Schema.COL_SESSION_ID);
+			final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+			final long rowId;
+			db.beginTransaction();
+			try {
+				rowId = db.insert(Schema.TBL_POSITIONS, null, values);
+				if (rowId > 0 && waypoint) {
+					db.execSQL(SessionStats.SQL_INCREMENT_WAYPOINTS, new Object[]{session});
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
 			if (rowId > 0) {
 				final Uri positionUri = ContentUris.withAppendedId(baseUri, rowId);
 				getContext().getContentResolver().notifyChange(ContentProvider.CONTENT_URI_POSITION, null);
+				if (waypoint) {
+					mDbHelper.getSessionStats().addWaypoint(session);
+					getContext().getContentResolver().notifyChange(ContentProvider.CONTENT_URI_SESSION, null);
+				}
 				return positionUri;
 			}
 		} else {
@@ -313,33 +331,31 @@ public class ContentProvider extends android.content.ContentProvider {
 			case Schema.URI_CODE_WIFI_OVERVIEW:
 				/**
 				 *  if several measurements for specific wifi bssid are available only strongest
-				 *  measurement (criteria level) is returned
-				 *  @author http://stackoverflow.com/questions/3800551/sql-select-first-row-in-each-group-by-group
+				 *  measurement (criteria level) is returned. Strongest measurements are maintained
+				 *  in TBL_WIFI_OVERVIEW at insert time, see WifiOverview
 				 */
-
-                String tablesWifis = Schema.TBL_WIFIS + " as w "
-                        + " JOIN " + Schema.TBL_POSITIONS + " as b ON " + Schema.COL_BEGIN_POSITION_ID + " = b." + Schema.COL_ID;
-
                 String columnsWifis[] = {
-                        "w.rowid as " + Schema.COL_ID,
-                        "w." + Schema.COL_BSSID,
-                        "w." + Schema.COL_MD5_SSID,
-                        "w." + Schema.COL_SSID,
-                        "MAX(" + Schema.COL_LEVEL + ")",
-                        "w." + Schema.COL_CAPABILITIES,
-                        "w." + Schema.COL_FREQUENCY,
-                        "w." + Schema.COL_TIMESTAMP,
-                        "w." + Schema.COL_BEGIN_POSITION_ID,
-                        "w." + Schema.COL_END_POSITION_ID,
-                        "w." + Schema.COL_KNOWN_WIFI
+                        Schema.COL_WIFI_ID + " as " + Schema.COL_ID,
+                        Schema.COL_BSSID,
+                        Schema.COL_MD5_SSID,
+                        Schema.COL_SSID,
+                        Schema.COL_LEVEL + " as \"" + Schema.COL_MAX_LEVEL + "\"",
+                        Schema.COL_CAPABILITIES,
+                        Schema.COL_FREQUENCY,
+                        Schema.COL_TIMESTAMP,
+                        Schema.COL_BEGIN_POSITION_ID,
+                        Schema.COL_END_POSITION_ID,
+                        Schema.COL_KNOWN_WIFI,
+                        Schema.COL_LATITUDE,
+                        Schema.COL_LONGITUDE,
+                        Schema.COL_FIRST_SEEN,
+                        Schema.COL_LAST_SEEN
                 };
-                String orderByWifis = "w." + Schema.COL_TIMESTAMP;
-                String groupByWifis = "w." + Schema.COL_BSSID + ", w." + Schema.COL_MD5_SSID;
-                return queryTable(uri, tablesWifis, columnsWifis,
-                        addColumntoSelection("w." + Schema.COL_SESSION_ID, selectionIn),
+                return queryTable(uri, Schema.TBL_WIFI_OVERVIEW, columnsWifis,
+                        addColumntoSelection(Schema.COL_SESSION_ID, selectionIn),
                         addtoSelectionArgs(uri.getLastPathSegment(), selectionArgsIn),
-                        orderByWifis,
-                        groupByWifis,
+                        Schema.COL_TIMESTAMP,
+                        null,
                         null);
 			case Schema.URI_CODE_WIFI_ID:
 				// returns given wifi
@@ -522,7 +538,13 @@ public class ContentProvider extends android.content.ContentProvider {
 			case Schema.URI_CODE_SESSION_ID:
 				return updateTable(uri, Schema.TBL_SESSIONS, values, addColumntoSelection(Schema.COL_ID, selectionIn), addtoSelectionArgs(uri.getLastPathSegment(), selectionArgsIn));
 			case Schema.URI_CODE_WIFIS:
-				return updateTable(uri, Schema.TBL_WIFIS, values, selectionIn, selectionArgsIn);
+				final int rows = updateTable(uri, Schema.TBL_WIFIS, values, selectionIn, selectionArgsIn);
+				if (values.containsKey(Schema.COL_KNOWN_WIFI)) {
+					// catalog status changed: update wifi overview and new wifi counters
+					WifiOverview.refreshStatus(mDbHelper.getWritableDatabase(), selectionIn, selectionArgsIn);
+					mDbHelper.getSessionStats().invalidate();
+				}
+				return rows;
 			default:
 				throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
@@ -553,7 +575,8 @@ public class ContentProvider extends android.content.ContentProvider {
 			case Schema.URI_CODE_WIFI_ID:
 				// Delete selected wifi and delete all related entities (positions etc.).
 				final String wifiId = Long.toString(ContentUris.parseId(uri));
-				final int wRows = mDbHelper.getWritableDatabase().delete(Schema.TBL_WIFIS, Schema.COL_ID + " = ?", new String[] {wifiId});
+				final int wRows = WifiOverview.deleteWifi(mDbHelper.getWritableDatabase(), Long.parseLong(wifiId));
+				mDbHelper.getSessionStats().invalidate();
 				getContext().getContentResolver().notifyChange(ContentProvider.CONTENT_URI_WIFI, null);
 				return wRows;
 			case Schema.URI_CODE_SESSION_ID:
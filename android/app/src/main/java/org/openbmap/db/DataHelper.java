@@ -1,15 +1,11 @@
 package org.openbmap.db;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.RemoteException;
 import android.util.Log;
 
 import org.openbmap.RadioBeacon;
@@ -35,6 +31,8 @@ public class DataHelper {
 	 */
 	private final ContentResolver contentResolver;
 
+	private final Context mContext;
+
 	/**
 	 * Constructor
 	 *
@@ -42,74 +40,7 @@ public class DataHelper {
 	 */
 	public DataHelper(final Context context) {
 		contentResolver = context.getApplicationContext().getContentResolver();
-	}
-
-	/**
-	 * Persists scan's wifis in database.
-	 * @param begin	begin position which is equal across all wifis
-	 * @param end end posistion which is equal across all wifis
-	 * @param wifis list of wifis sharing same begin and end position (i.e. all wifis from one scan)
-	 */
-	public final void storeWifiScanResults(final PositionRecord begin, final PositionRecord end, final ArrayList<WifiRecord> wifis) {
-
-		if (wifis == null || wifis.size() == 0) {
-			return;
-		} else {
-			Log.d(TAG, "Inserting " + wifis.size() + " wifis with " + begin + end + " positions");
-		}
-
-		final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-
-		// saving begin position
-		operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_POSITION)
-				.withValue(Schema.COL_LATITUDE, begin.getLatitude())
-				.withValue(Schema.COL_LONGITUDE, begin.getLongitude())
-				.withValue(Schema.COL_ALTITUDE, begin.getAltitude())
-				.withValue(Schema.COL_TIMESTAMP, begin.getOpenBmapTimestamp())
-				.withValue(Schema.COL_ACCURACY, begin.getAccuracy())
-				.withValue(Schema.COL_BEARING, begin.getBearing())
-				.withValue(Schema.COL_SPEED, begin.getSpeed())
-				.withValue(Schema.COL_SESSION_ID, begin.getSession())
-				.withValue(Schema.COL_SOURCE, begin.getSource())
-				.build());
-
-		// saving end position
-		operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_POSITION)
-				.withValue(Schema.COL_LATITUDE, end.getLatitude())
-				.withValue(Schema.COL_LONGITUDE, end.getLongitude())
-				.withValue(Schema.COL_ALTITUDE, end.getAltitude())
-				.withValue(Schema.COL_TIMESTAMP, end.getOpenBmapTimestamp())
-				.withValue(Schema.COL_ACCURACY, end.getAccuracy())
-				.withValue(Schema.COL_BEARING, end.getBearing())
-				.withValue(Schema.COL_SPEED, end.getSpeed())
-				.withValue(Schema.COL_SESSION_ID, end.getSession())
-				.withValue(Schema.COL_SOURCE, end.getSource())
-				.build());
-
-		for (final WifiRecord wifi : wifis) {
-			operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_WIFI)
-					.withValue(Schema.COL_BSSID, wifi.getBssid())
-					.withValue(Schema.COL_SSID, wifi.getSsid())
-					.withValue(Schema.COL_MD5_SSID, wifi.getMd5Ssid())
-					.withValue(Schema.COL_CAPABILITIES, wifi.getCapabilities())
-					.withValue(Schema.COL_FREQUENCY, wifi.getFrequency())
-					.withValue(Schema.COL_LEVEL, wifi.getLevel())
-					.withValue(Schema.COL_TIMESTAMP, wifi.getOpenBmapTimestamp())
-					.withValueBackReference (Schema.COL_BEGIN_POSITION_ID, 0) /* Index is 0 because Foo A is the first operation in the array*/
-					.withValueBackReference (Schema.COL_END_POSITION_ID, 1)
-					.withValue(Schema.COL_SESSION_ID, wifi.getSessionId())
-					//.withValue(Schema.COL_IS_NEW_WIFI, wifi.isNew() ? 1 : 0)
-					.withValue(Schema.COL_KNOWN_WIFI, wifi.getCatalogStatusInt())
-					.build());
-		}
-
-		try {
-			final ContentProviderResult[] results = contentResolver.applyBatch("org.openbmap.provider", operations);
-		} catch (final RemoteException e) {
-			Log.e(TAG, e.toString(), e);
-		} catch (final OperationApplicationException e) {
-			Log.e(TAG, e.toString(), e);
-		}
+		mContext = context.getApplicationContext();
 	}
 
 	/**
@@ -126,6 +57,9 @@ public class DataHelper {
 				ContentProvider.CONTENT_URI_WIFI, ContentProvider.CONTENT_URI_SESSION_SUFFIX), session),
 				null, null, null, sort);
 
+		final PositionCache positions = new PositionCache(contentResolver);
+		final long[] positionIds = new long[2 * cursor.getCount()];
+
 		// Performance tweaking: don't call ca.getColumnIndex on each iteration
 		final int columnIndex = cursor.getColumnIndex(Schema.COL_BSSID);
 		final int columnIndex2 = cursor.getColumnIndex(Schema.COL_SSID);
@@ -146,41 +80,53 @@ public class DataHelper {
 			wifi.setLevel(cursor.getInt(columnIndex5));
 			wifi.setOpenBmapTimestamp(cursor.getLong(columnIndex6));
 
-			wifi.setBeginPosition(loadPositionById(cursor.getString(columnIndex7)));
-			wifi.setEndPosition(loadPositionById(cursor.getString(columnIndex8)));
+			requestPositions(positions, positionIds, cursor, columnIndex7, columnIndex8);
 			//wifi.setNew(ca.getInt(columnIndex9) == 1);
 			wifi.setCatalogStatus(CatalogStatus.values()[cursor.getInt(columnIndex9)]);
 			wifis.add(wifi);
 		}
 		cursor.close();
+		attachWifiPositions(wifis, positions, positionIds);
 		return wifis;
 	}
 
 	/**
-	 * Counts number of wifis in session.
+	 * Counts number of distinct wifis in session.
 	 * @param session
 	 * @return number of wifis
 	 */
 	public final int countWifis(final int session) {
-		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(Uri.withAppendedPath(
-                        ContentProvider.CONTENT_URI_WIFI, ContentProvider.CONTENT_URI_OVERVIEW_SUFFIX), session),
-                new String[]{Schema.COL_ID}, null, null, null);
-		final int count = cursor.getCount();
-		cursor.close();
-		return count;
+		final int count = getSessionStats().getWifis(session);
+		return count != SessionStats.UNKNOWN ? count : loadSessionCounter(session, Schema.COL_NUMBER_OF_WIFIS);
 	}
 
 	/**
-	 * Counts number of wifis in session.
+	 * Counts number of distinct new wifis (i.e. wifis not in catalog) in session.
 	 * @param session
-	 * @return number of wifis
+	 * @return number of new wifis
 	 */
 	public final int countNewWifis(final int session) {
-        //Log.d(TAG, "countNewWifis called");
-		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(Uri.withAppendedPath(
-				ContentProvider.CONTENT_URI_WIFI, ContentProvider.CONTENT_URI_OVERVIEW_SUFFIX), session),
-				new String[]{Schema.COL_ID}, Schema.COL_KNOWN_WIFI + " = ?", new String[]{"0"}, null);
-		final int count = cursor.getCount();
+		final int count = getSessionStats().getNewWifis(session);
+		return count != SessionStats.UNKNOWN ? count : loadSessionCounter(session, Schema.COL_NUMBER_OF_NEW_WIFIS);
+	}
+
+	/**
+	 * Returns statistics of the session currently written
+	 */
+	private SessionStats getSessionStats() {
+		return DatabaseHelper.getInstance(mContext).getSessionStats();
+	}
+
+	/**
+	 * Loads a counter persisted in TBL_SESSIONS (see {@link SessionStats})
+	 * @param session session id
+	 * @param column counter column
+	 * @return counter value, 0 if session doesn't exist
+	 */
+	private int loadSessionCounter(final int session, final String column) {
+		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(ContentProvider.CONTENT_URI_SESSION, session),
+				new String[]{column}, null, null, null);
+		final int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
 		cursor.close();
 		return count;
 	}
@@ -198,6 +144,12 @@ public class DataHelper {
 		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(ContentProvider.CONTENT_URI_WIFI, id), null, null, null, null);
 		//Log.d(TAG, "getWifiMeasurement returned " + ca.getCount() + " records");
 		if (cursor.moveToNext()) {
+			// begin and end position are loaded with a single query
+			final PositionCache positions = new PositionCache(contentResolver);
+			final long beginId = cursor.getLong(cursor.getColumnIndex(Schema.COL_BEGIN_POSITION_ID));
+			final long endId = cursor.getLong(cursor.getColumnIndex(Schema.COL_END_POSITION_ID));
+			positions.request(beginId);
+			positions.request(endId);
 			wifi = new WifiRecord(
 					cursor.getString(cursor.getColumnIndex(Schema.COL_BSSID)),
 					cursor.getString(cursor.getColumnIndex(Schema.COL_SSID)),
@@ -206,8 +158,8 @@ public class DataHelper {
 					cursor.getInt(cursor.getColumnIndex(Schema.COL_LEVEL)),
 					cursor.getLong(cursor.getColumnIndex(Schema.COL_TIMESTAMP)),
 
-					loadPositionById(cursor.getString(cursor.getColumnIndex(Schema.COL_BEGIN_POSITION_ID))),
-					loadPositionById(cursor.getString(cursor.getColumnIndex(Schema.COL_END_POSITION_ID))),
+					positions.get(beginId),
+					positions.get(endId),
 					//ca.getInt(ca.getColumnIndex(Schema.COL_IS_NEW_WIFI)) == 1);
 					CatalogStatus.values()[cursor.getInt(cursor.getColumnIndex(Schema.COL_KNOWN_WIFI))]);
 		}
@@ -234,6 +186,9 @@ public class DataHelper {
 
 		final Cursor cursor = contentResolver.query(ContentProvider.CONTENT_URI_WIFI, null, selectSql, null, null);
 
+		final PositionCache positions = new PositionCache(contentResolver);
+		final long[] positionIds = new long[2 * cursor.getCount()];
+
 		// Performance tweaking: don't call ca.getColumnIndex on each iteration
 		final int columnIndex = cursor.getColumnIndex(Schema.COL_BSSID);
 		final int columnIndex2 = cursor.getColumnIndex(Schema.COL_SSID);
@@ -254,15 +209,13 @@ public class DataHelper {
 			wifi.setLevel(cursor.getInt(columnIndex5));
 			wifi.setOpenBmapTimestamp(cursor.getLong(columnIndex6));
 
-			// TODO: not too safe ..
-			wifi.setBeginPosition(loadPositionById(cursor.getString(columnIndex7)));
-			// TODO: not too safe ..
-			wifi.setEndPosition(loadPositionById(cursor.getString(columnIndex8)));
+			requestPositions(positions, positionIds, cursor, columnIndex7, columnIndex8);
 			//wifi.setNew(ca.getInt(columnIndex9) == 1);
 			wifi.setCatalogStatus(CatalogStatus.values()[cursor.getInt(columnIndex9)]);
 			wifis.add(wifi);
 		}
 		cursor.close();
+		attachWifiPositions(wifis, positions, positionIds);
 		return wifis;
 	}
 
@@ -276,7 +229,7 @@ public class DataHelper {
 
 
 	/**
-	 * Returns strongest measurement for each wifi within bounding box from TBL_WIFIS.
+	 * Returns strongest measurement for each wifi within bounding box from TBL_WIFI_OVERVIEW.
 	 * @return Arraylist<WifiRecord>
 	 */
 	public final ArrayList<WifiRecord> loadWifisOverviewWithin(final int session, final Double minLon, final Double maxLon, final Double minLat, final Double maxLat) {
@@ -288,10 +241,10 @@ public class DataHelper {
 		String[] selectionArgs = null;
 
 		if (minLon != null && maxLon != null && minLat != null && maxLat != null) {
-			selection = "b." + Schema.COL_LONGITUDE + " >= ?"
-					+ " AND b." + Schema.COL_LONGITUDE + " <= ?"
-					+ " AND b." + Schema.COL_LATITUDE + " >= ?"
-					+ " AND b." + Schema.COL_LATITUDE + " <= ?";
+			selection = Schema.COL_LONGITUDE + " >= ?"
+					+ " AND " + Schema.COL_LONGITUDE + " <= ?"
+					+ " AND " + Schema.COL_LATITUDE + " >= ?"
+					+ " AND " + Schema.COL_LATITUDE + " <= ?";
 			selectionArgs = new String[]{String.valueOf(minLon), String.valueOf(maxLon), String.valueOf(minLat), String.valueOf(maxLat)};
 		}
 
@@ -299,6 +252,9 @@ public class DataHelper {
 				ContentProvider.CONTENT_URI_OVERVIEW_SUFFIX), session),
 				null, selection, selectionArgs, null);
 
+		final PositionCache positions = new PositionCache(contentResolver);
+		final long[] positionIds = new long[2 * cursor.getCount()];
+
 		// Performance tweaking: don't call ca.getColumnIndex on each iteration
 		final int columnIndex = cursor.getColumnIndex(Schema.COL_BSSID);
 		final int columnIndex2 = cursor.getColumnIndex(Schema.COL_SSID);
@@ -319,8 +275,7 @@ public class DataHelper {
 			wifi.setLevel(cursor.getInt(columnIndex5));
 			wifi.setOpenBmapTimestamp(cursor.getLong(columnIndex6));
 
-			wifi.setBeginPosition(loadPositionById(cursor.getString(columnIndex7)));
-			wifi.setEndPosition(loadPositionById(cursor.getString(columnIndex8)));
+			requestPositions(positions, positionIds, cursor, columnIndex7, columnIndex8);
 
 			//wifi.setNew(ca.getInt(columnIndex9) == 1);
 			wifi.setCatalogStatus(CatalogStatus.values()[cursor.getInt(columnIndex9)]);
@@ -328,6 +283,7 @@ public class DataHelper {
 		}
 
 		cursor.close();
+		attachWifiPositions(wifis, positions, positionIds);
 		//Log.d(TAG, "loadWifisOverviewWithiny executed (" + (System.currentTimeMillis() - start) + " ms)");
 		return wifis;
 	}
@@ -419,6 +375,8 @@ public class DataHelper {
 		values.put(Schema.COL_IS_ACTIVE, newSession.isActive());
 		values.put(Schema.COL_NUMBER_OF_CELLS, 0);
 		values.put(Schema.COL_NUMBER_OF_WIFIS, 0);
+		values.put(Schema.COL_NUMBER_OF_NEW_WIFIS, 0);
+		values.put(Schema.COL_NUMBER_OF_WAYPOINTS, 0);
 		return contentResolver.insert(ContentProvider.CONTENT_URI_SESSION, values);
 	}
 
@@ -429,6 +387,7 @@ public class DataHelper {
 	 * @return number of delete rows
 	 */
 	public final long deleteSession(final long id) {
+		getSessionStats().invalidate();
 		return contentResolver.delete(ContentUris.withAppendedId(ContentProvider.CONTENT_URI_SESSION, id), null, null);
 	}
 
@@ -436,6 +395,7 @@ public class DataHelper {
 	 * Deletes all sessions. This will also delete all objects referencing this session as foreign key
 	 */
 	public final long deleteAllSession() {
+		getSessionStats().invalidate();
 		return contentResolver.delete(ContentProvider.CONTENT_URI_SESSION, null, null);
 	}
 
@@ -510,116 +470,6 @@ public class DataHelper {
 		return count;
 	}
 
-	/**
-	 * Persists one scan with cell and neighbor records in database.
-	 * Automatically chooses, whether GSM or CDMA schema is used
-	 * @param begin position which is equal across all cells (i.e. serving cell + neighbors)
-	 * @param cells list of cells sharing same begin and end position (i.e. all cells from one scan)
-	 */
-	public final void storeCellsScanResults(final ArrayList<CellRecord> cells, final PositionRecord begin, final PositionRecord end) {
-		if (cells == null || cells.size() == 0) {
-			return;
-		}
-
-		// add a new ContentProviderOperation
-		final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-
-		//saving begin position
-		operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_POSITION)
-				.withValue(Schema.COL_LATITUDE, begin.getLatitude())
-				.withValue(Schema.COL_LONGITUDE, begin.getLongitude())
-				.withValue(Schema.COL_ALTITUDE, begin.getAltitude())
-				.withValue(Schema.COL_TIMESTAMP, begin.getOpenBmapTimestamp())
-				.withValue(Schema.COL_ACCURACY, begin.getAccuracy())
-				.withValue(Schema.COL_BEARING, begin.getBearing())
-				.withValue(Schema.COL_SPEED, begin.getSpeed())
-				.withValue(Schema.COL_SESSION_ID, begin.getSession())
-				.withValue(Schema.COL_SOURCE, begin.getSource())
-				.build());
-
-		// saving end position
-		operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_POSITION)
-                .withValue(Schema.COL_LATITUDE, end.getLatitude())
-                .withValue(Schema.COL_LONGITUDE, end.getLongitude())
-                .withValue(Schema.COL_ALTITUDE, end.getAltitude())
-                .withValue(Schema.COL_TIMESTAMP, end.getOpenBmapTimestamp())
-                .withValue(Schema.COL_ACCURACY, end.getAccuracy())
-                .withValue(Schema.COL_BEARING, end.getBearing())
-                .withValue(Schema.COL_SPEED, end.getSpeed())
-                .withValue(Schema.COL_SESSION_ID, end.getSession())
-                .withValue(Schema.COL_SOURCE, end.getSource())
-                .build());
-
-		for (final CellRecord cell: cells) {
-			if (!cell.isCdma()) {
-				// store GSM cell
-				operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_CELL)
-						.withValue(Schema.COL_NETWORKTYPE, cell.getNetworkType())
-						.withValue(Schema.COL_IS_CDMA, cell.isCdma())
-						.withValue(Schema.COL_IS_SERVING, cell.isServing())
-						.withValue(Schema.COL_IS_NEIGHBOR, cell.isNeighbor())
-						.withValue(Schema.COL_LOGICAL_CELLID, cell.getLogicalCellId())
-						.withValue(Schema.COL_ACTUAL_CELLID, cell.getActualCellId())
-						.withValue(Schema.COL_UTRAN_RNC, cell.getUtranRnc())
-						.withValue(Schema.COL_PSC, cell.getPsc())
-						.withValue(Schema.COL_AREA, cell.getArea())
-						.withValue(Schema.COL_MCC, cell.getMcc())
-						.withValue(Schema.COL_MNC, cell.getMnc())
-						.withValue(Schema.COL_OPERATORNAME, cell.getOperatorName())
-						.withValue(Schema.COL_OPERATOR, cell.getOperator())
-						.withValue(Schema.COL_STRENGTHDBM, cell.getStrengthdBm())
-						.withValue(Schema.COL_STRENGTHASU, cell.getStrengthAsu())
-						.withValue(Schema.COL_TIMESTAMP, cell.getOpenBmapTimestamp())
-						.withValueBackReference (Schema.COL_BEGIN_POSITION_ID, 0) // Index is 0 because first operation stores cell position
-						.withValueBackReference (Schema.COL_END_POSITION_ID, 1)
-						.withValue(Schema.COL_SESSION_ID, cell.getSessionId())
-						// set unused (CDMA) fields to default
-						.withValue(Schema.COL_CDMA_BASEID, -1)
-						.withValue(Schema.COL_CDMA_NETWORKID, -1)
-						.withValue(Schema.COL_CDMA_SYSTEMID, -1)
-						.withValue(Schema.COL_CDMA_BASEID, -1)
-
-						.build());
-			} else {
-				// store CDMA cell
-				operations.add(ContentProviderOperation.newInsert(ContentProvider.CONTENT_URI_CELL)
-						.withValue(Schema.COL_NETWORKTYPE, cell.getNetworkType())
-						.withValue(Schema.COL_IS_CDMA, cell.isCdma())
-						.withValue(Schema.COL_IS_SERVING, cell.isServing())
-						.withValue(Schema.COL_IS_NEIGHBOR, cell.isNeighbor())
-						.withValue(Schema.COL_AREA, cell.getArea())
-						.withValue(Schema.COL_MCC, cell.getMcc())
-						.withValue(Schema.COL_MNC, cell.getMnc())
-						.withValue(Schema.COL_PSC, cell.getPsc())
-						.withValue(Schema.COL_CDMA_BASEID, cell.getBaseId())
-						.withValue(Schema.COL_CDMA_NETWORKID, cell.getNetworkId())
-						.withValue(Schema.COL_CDMA_SYSTEMID, cell.getSystemId())
-						.withValue(Schema.COL_PSC, cell.getPsc())
-						.withValue(Schema.COL_PSC, cell.getPsc())
-						.withValue(Schema.COL_OPERATORNAME, cell.getOperatorName())
-						.withValue(Schema.COL_OPERATOR, cell.getOperator())
-						.withValue(Schema.COL_STRENGTHDBM, cell.getStrengthdBm())
-						.withValue(Schema.COL_TIMESTAMP, cell.getOpenBmapTimestamp())
-						.withValueBackReference (Schema.COL_BEGIN_POSITION_ID, 0) // Index is 0 because first operation stores cell position
-						.withValueBackReference (Schema.COL_END_POSITION_ID, 1)
-						.withValue(Schema.COL_SESSION_ID, cell.getSessionId())
-
-						// set unused (GSM) fields to -1
-						.withValue(Schema.COL_LOGICAL_CELLID, -1)
-						.withValue(Schema.COL_AREA, -1)
-						.build());
-			}
-		}
-
-		try {
-			final ContentProviderResult[] results = contentResolver.applyBatch("org.openbmap.provider", operations);
-		} catch (final RemoteException e) {
-			Log.e(TAG, e.toString(), e);
-		} catch (final OperationApplicationException e) {
-			Log.e(TAG, e.toString(), e);
-		}
-	}
-
 	/**
 	 * Loads CellRecord from database.
 	 * @param id
@@ -631,7 +481,11 @@ public class DataHelper {
 
 		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(ContentProvider.CONTENT_URI_CELL, id) , null, null, null, null);
 		if (cursor.moveToNext()) {
-			cell = cursorToCell(cursor);
+			final PositionCache positions = new PositionCache(contentResolver);
+			final long[] positionIds = new long[2];
+			cell = cursorToCell(cursor, positions, positionIds);
+			cell.setBeginPosition(positions.get(positionIds[0]));
+			cell.setEndPosition(positions.get(positionIds[1]));
 		}
 		cursor.close();
 		return cell;
@@ -650,20 +504,28 @@ public class DataHelper {
 				ContentProvider.CONTENT_URI_CELL, ContentProvider.CONTENT_URI_SESSION_SUFFIX), session),
 				null, null, null, sort);
 
+		final PositionCache positions = new PositionCache(contentResolver);
+		final long[] positionIds = new long[2 * cursor.getCount()];
 		while (cursor.moveToNext()) {
-			cells.add(cursorToCell(cursor));
+			cells.add(cursorToCell(cursor, positions, positionIds));
 		}
 
 		cursor.close();
+		for (int i = 0; i < cells.size(); i++) {
+			cells.get(i).setBeginPosition(positions.get(positionIds[2 * i]));
+			cells.get(i).setEndPosition(positions.get(positionIds[2 * i + 1]));
+		}
 		return cells;
 	}
 
 	/**
-	 * Creates a CellRecord from cursor row.
+	 * Creates a CellRecord from cursor row. Positions are requested from cache, but not set.
 	 * @param cursor
+	 * @param positions cache receiving begin and end position id
+	 * @param positionIds receives begin and end position id at 2 * cursor position
 	 * @return CellRecord
 	 */
-	private CellRecord cursorToCell(final Cursor cursor) {
+	private CellRecord cursorToCell(final Cursor cursor, final PositionCache positions, final long[] positionIds) {
 		final CellRecord cell = new CellRecord();
 		final int colNetworkType = cursor.getColumnIndex(Schema.COL_NETWORKTYPE);
 		final int colIsCdma = cursor.getColumnIndex(Schema.COL_IS_CDMA);
@@ -707,40 +569,30 @@ public class DataHelper {
 		cell.setStrengthdBm(cursor.getInt(colStrengthDbm));
 		cell.setStrengthAsu(cursor.getInt(colStrengthAsu));
 		cell.setOpenBmapTimestamp(cursor.getLong(colTimestamp));
-		// TODO: dirty ...
-		cell.setBeginPosition(loadPositionById(cursor.getString(colBeginPositionId)));
-		cell.setEndPosition(loadPositionById(cursor.getString(colEndPositionId)));
+		requestPositions(positions, positionIds, cursor, colBeginPositionId, colEndPositionId);
 		cell.setSessionId(cursor.getInt(columnIndex18));
 
 		return cell;
 	}
 
 	/**
-	 * Counts session's number of cells.
+	 * Counts session's number of distinct cells.
 	 * @param session
-	 * @return number of wifis
+	 * @return number of cells
 	 */
 	public final int countCells(final long session) {
-		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(Uri.withAppendedPath(
-				ContentProvider.CONTENT_URI_CELL, ContentProvider.CONTENT_URI_OVERVIEW_SUFFIX), session),
-				new String[]{Schema.COL_ID}, null, null, null);
-		final int count = cursor.getCount();
-		cursor.close();
-		return count;
+		final int count = getSessionStats().getCells((int) session);
+		return count != SessionStats.UNKNOWN ? count : loadSessionCounter((int) session, Schema.COL_NUMBER_OF_CELLS);
 	}
 
     /**
      * Counts session's number of waypoints.
      * @param session
-     * @return number of wifis
+     * @return number of waypoints
      */
     public final int countWaypoints(final long session) {
-		final Cursor cursor = contentResolver.query(ContentUris.withAppendedId(Uri.withAppendedPath(
-						ContentProvider.CONTENT_URI_POSITION, ContentProvider.CONTENT_URI_SESSION_SUFFIX), session),
-				new String[]{Schema.COL_ID}, null, null, null);
-		final int count = cursor.getCount();
-		cursor.close();
-		return count;
+		final int count = getSessionStats().getWaypoints((int) session);
+		return count != SessionStats.UNKNOWN ? count : loadSessionCounter((int) session, Schema.COL_NUMBER_OF_WAYPOINTS);
     }
 
 	/**
@@ -823,12 +675,37 @@ public class DataHelper {
 		return positions;
 	}
 
+	/**
+	 * Reads begin and end position id of current cursor row and requests them from cache
+	 * @param positions position cache
+	 * @param positionIds receives begin and end position id at 2 * cursor position
+	 */
+	private static void requestPositions(final PositionCache positions, final long[] positionIds, final Cursor cursor,
+			final int colBeginPositionId, final int colEndPositionId) {
+		final int row = cursor.getPosition();
+		positionIds[2 * row] = cursor.getLong(colBeginPositionId);
+		positionIds[2 * row + 1] = cursor.getLong(colEndPositionId);
+		positions.request(positionIds[2 * row]);
+		positions.request(positionIds[2 * row + 1]);
+	}
+
+	/**
+	 * Sets wifis' begin and end positions, loading all requested positions at once
+	 * @param positionIds begin and end position id per wifi, see {@link #requestPositions}
+	 */
+	private static void attachWifiPositions(final List<WifiRecord> wifis, final PositionCache positions, final long[] positionIds) {
+		for (int i = 0; i < wifis.size(); i++) {
+			wifis.get(i).setBeginPosition(positions.get(positionIds[2 * i]));
+			wifis.get(i).setEndPosition(positions.get(positionIds[2 * i + 1]));
+		}
+	}
+
 	/**
 	 * Creates PositionRecord from cursor.
 	 * @param cursor
 	 * @return
 	 */
-	private PositionRecord positionFromCursor(final Cursor cursor) {
+	static PositionRecord positionFromCursor(final Cursor cursor) {
 		// Performance tweaking: don't call ca.getColumnIndex on each iteration
 		final int columnIndex = cursor.getColumnIndex(Schema.COL_LATITUDE);
 		final int columnIndex2 = cursor.getColumnIndex(Schema.COL_LONGITUDE);
@@ -917,7 +794,7 @@ public class DataHelper {
     /**
      * Stores position.
      * This method is only used for separate positions. Wifi and cell positions are added in batch mode
-     * in storeCellsScanResults and storeWifiScanResults
+     * by {@link ScanWriter}
      * @param pos
      * @return
      */
@@ -933,6 +810,7 @@ public class DataHelper {
 		values.put(Schema.COL_SESSION_ID, pos.getSession());
 		values.put(Schema.COL_SOURCE, pos.getSource());
 
+		// waypoints are counted by content provider
 		return contentResolver.insert(ContentProvider.CONTENT_URI_POSITION, values);
 	}
 }
@@ -20,9 +20,11 @@ package org.openbmap.db;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -38,6 +40,9 @@ import java.io.IOException;
 /**
  * Takes care of database creation
  *
+ * Database runs in write-ahead logging mode: exports, map overlays and session lists read from separate
+ * pooled connections and never block (or get blocked by) the logger's write transactions.
+ *
  * Reminder:
  * In an earlier version, database has been provisioned via sdcard
  * @link http://www.reigndesign.com/blog/using-your-own-sqlite-database-in-android-applications/
@@ -231,7 +236,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ Schema.COL_IS_ACTIVE + " INTEGER,"
 			+ Schema.COL_NUMBER_OF_WIFIS + " INTEGER,"
 			+ Schema.COL_NUMBER_OF_CELLS + " INTEGER,"
-			+ Schema.COL_NUMBER_OF_WAYPOINTS + " INTEGER"
+			+ Schema.COL_NUMBER_OF_WAYPOINTS + " INTEGER,"
+			+ Schema.COL_NUMBER_OF_NEW_WIFIS + " INTEGER"
 			+ ")";
 
 	/**
@@ -281,6 +287,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+  Schema.COL_END_POSITION_ID
 			+  ")";
 
+	/**
+	 * SQL for creating export index on WIFIS: wifi export pages by (session, begin position, _id)
+	 */
+	private static final String SQL_CREATE_IDX_WIFIS_SESSION_BEGIN = ""
+			+  "CREATE INDEX idx_wifis_session_begin ON "
+			+  Schema.TBL_WIFIS + "("
+			+  Schema.COL_SESSION_ID + ", "
+			+  Schema.COL_BEGIN_POSITION_ID
+			+  ")";
+
+	/**
+	 * SQL for creating export index on CELLS: cell export pages by (session, begin position, _id)
+	 */
+	private static final String SQL_CREATE_IDX_CELLS_SESSION_BEGIN = ""
+			+  "CREATE INDEX idx_cells_session_begin ON "
+			+  Schema.TBL_CELLS + "("
+			+  Schema.COL_SESSION_ID + ", "
+			+  Schema.COL_BEGIN_POSITION_ID
+			+  ")";
+
 	/**
 	 * SQL for creating index on CELLS
 	 */
@@ -301,6 +327,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+  Schema.COL_LONGITUDE + ""
 			+  ")";
 
+	/**
+	 * SQL for creating export index on Positions: gpx export pages by (session, timestamp, _id)
+	 */
+	private static final String	SQL_CREATE_IDX_POSITIONS_SESSION_TIMESTAMP	= ""
+			+  "CREATE INDEX idx_positions_session_timestamp ON "
+			+  Schema.TBL_POSITIONS + "("
+			+  Schema.COL_SESSION_ID + ", "
+			+  Schema.COL_TIMESTAMP
+			+  ")";
+
 	/**
 	 * SQL for creating index on Positions
 	 */
@@ -310,57 +346,155 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+  Schema.COL_TIMESTAMP
 			+  ")";
 
+	/**
+	 * Statements creating tables, views and indices of a new database, in order.
+	 * Unit tests build their sqlite-jdbc databases from the same statements
+	 */
+	static final String[] SQL_CREATE_SCHEMA = {
+			// general purpose tables
+			SQL_CREATE_TABLE_POSITIONS,
+			SQL_CREATE_IDX_POSITIONS,
+			SQL_CREATE_TABLE_LOGS,
+			SQL_CREATE_TABLE_SESSIONS,
+			SQL_CREATE_TABLE_CELLS,
+			SQL_CREATE_TABLE_WIFIS,
+			WifiOverview.CREATE_TABLE,
+			WifiOverview.CREATE_INDEX,
+			WifiOverview.CREATE_INDEX_POSITION,
+			// views
+			SQL_CREATE_VIEW_WIFI_POSITIONS,
+			SQL_CREATE_VIEW_CELL_POSITIONS,
+			// indices
+			SQL_CREATE_IDX_WIFIS,
+			SQL_CREATE_IDX_CELLS,
+			SQL_CREATE_IDX_WIFIS_SESSION_ID,
+			SQL_CREATE_IDX_WIFIS_BEGIN_POSITION_ID,
+			SQL_CREATE_IDX_WIFIS_END_POSITION_ID,
+			SQL_CREATE_IDX_CELLS_SESSION_ID,
+			SQL_CREATE_IDX_CELLS_BEGIN_POSITION_ID,
+			SQL_CREATE_IDX_CELLS_END_POSITION_ID,
+			SQL_CREATE_IDX_WIFIS_SESSION_BEGIN,
+			SQL_CREATE_IDX_CELLS_SESSION_BEGIN,
+			SQL_CREATE_IDX_POSITIONS_SESSION_TIMESTAMP
+	};
+
 	private SQLiteDatabase mDataBase;
 
 	private final Context mContext;
 
+	private static DatabaseHelper sInstance;
+
+	/**
+	 * Page cache of write connection in KiB (negative cache_size), keeps indices touched by scan inserts in memory
+	 */
+	private static final int CACHE_SIZE_KB = 4096;
+
 	/**
-	 * Initializes DatabaseHelper
+	 * Statistics of the session currently written, shared by all writers
+	 */
+	private final SessionStats mSessionStats = new SessionStats();
+
+	/**
+	 * Returns process-wide database helper, which is shared by content provider and in-process writers.
+	 * Sharing a single connection avoids lock contention between concurrent writers
+	 * @param context context
+	 * @return shared database helper
+	 */
+	public static synchronized DatabaseHelper getInstance(final Context context) {
+		if (sInstance == null) {
+			sInstance = new DatabaseHelper(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Initializes DatabaseHelper, use {@link #getInstance(Context)} instead
 	 * @param appContext Application context
      */
-	public DatabaseHelper(final Context appContext) {
+	private DatabaseHelper(final Context appContext) {
 		super(appContext, DB_NAME, null, RadioBeacon.DATABASE_VERSION);
 		Log.i(TAG, "Database scheme version " + RadioBeacon.DATABASE_VERSION);
 		mContext = appContext.getApplicationContext();
 	}
 
+	/**
+	 * Returns statistics of the session currently written
+	 * @return session statistics
+	 */
+	public final SessionStats getSessionStats() {
+		return mSessionStats;
+	}
+
+	/**
+	 * Enables write-ahead logging (API 16+, called before onCreate, onUpgrade and onOpen)
+	 */
+	@Override
+	public final void onConfigure(final SQLiteDatabase db) {
+		super.onConfigure(db);
+		configure(db);
+	}
+
+	@Override
+	public final void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+			// onConfigure isn't called on older devices
+			configure(db);
+		}
+	}
+
+	/**
+	 * Switches to write-ahead logging, which also enables the connection pool's read connections.
+	 * With WAL, synchronous=NORMAL is still safe against corruption: a power loss may only lose the
+	 * last transactions, not the database. Pragmas apply to the primary (i.e. write) connection.
+	 * @param db database to configure
+	 */
+	private void configure(final SQLiteDatabase db) {
+		if (db.isReadOnly() || !db.enableWriteAheadLogging()) {
+			Log.w(TAG, "Write-ahead logging not available");
+			return;
+		}
+		db.execSQL("PRAGMA synchronous = NORMAL");
+		db.execSQL("PRAGMA cache_size = -" + CACHE_SIZE_KB);
+	}
+
+	/**
+	 * Copies write-ahead log into database and truncates it, called when logging has stopped.
+	 * Waits for running readers at most for busy timeout, the checkpoint stays partial then.
+	 * On SQLite versions before 3.8.8 TRUNCATE falls back to a passive checkpoint, without WAL it's a no-op
+	 * @param db writable database
+	 */
+	static void checkpoint(final SQLiteDatabase db) {
+		final Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+		try {
+			if (cursor.moveToFirst()) {
+				Log.i(TAG, "WAL checkpoint: busy " + cursor.getInt(0) + ", log frames " + cursor.getInt(1)
+						+ ", checkpointed frames " + cursor.getInt(2));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
 	@Override
 	public final void onCreate(final SQLiteDatabase db) {
 		Log.d(TAG, "Creating application database at " + db.getPath());
 		this.mDataBase = db;
 
 		if (!db.isReadOnly()) {
-			// create general purpose tables
 			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_POSITIONS);
-			db.execSQL(SQL_CREATE_TABLE_POSITIONS);
-			db.execSQL(SQL_CREATE_IDX_POSITIONS);
 			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_LOGS);
-			db.execSQL(SQL_CREATE_TABLE_LOGS);
 			// TODO: find solution for Session NOT_TRACKING
 			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_SESSIONS);
-			db.execSQL(SQL_CREATE_TABLE_SESSIONS);
-
 			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_CELLS);
-			db.execSQL(SQL_CREATE_TABLE_CELLS);
 			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_WIFIS);
-			db.execSQL(SQL_CREATE_TABLE_WIFIS);
-
-			// create views
+			db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_WIFI_OVERVIEW);
 			db.execSQL("DROP VIEW IF EXISTS " + Schema.VIEW_WIFIS_EXTENDED);
-			db.execSQL(SQL_CREATE_VIEW_WIFI_POSITIONS);
-
 			db.execSQL("DROP VIEW IF EXISTS " + Schema.VIEW_CELLS_EXTENDED);
-			db.execSQL(SQL_CREATE_VIEW_CELL_POSITIONS);
 
-			// Create indices
-			db.execSQL(SQL_CREATE_IDX_WIFIS);
-			db.execSQL(SQL_CREATE_IDX_CELLS);
-			db.execSQL(SQL_CREATE_IDX_WIFIS_SESSION_ID);
-			db.execSQL(SQL_CREATE_IDX_WIFIS_BEGIN_POSITION_ID);
-			db.execSQL(SQL_CREATE_IDX_WIFIS_END_POSITION_ID);
-			db.execSQL(SQL_CREATE_IDX_CELLS_SESSION_ID);
-			db.execSQL(SQL_CREATE_IDX_CELLS_BEGIN_POSITION_ID);
-			db.execSQL(SQL_CREATE_IDX_CELLS_END_POSITION_ID);
+			for (final String sql : SQL_CREATE_SCHEMA) {
+				db.execSQL(sql);
+			}
 		}
 	}
 
@@ -518,6 +652,56 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 Log.w(TAG, "Couldn't create cell position timestamp index");
             }
         }
+
+        // Export indices for keyset pagination (see WifiSerializer, CellSerializer, GpxSerializer)
+        if (oldVersion <= 13) {
+            try {
+                Log.w(TAG, "Database upgrade: creating export indices. This may take some time!!!");
+                db.execSQL("DROP INDEX IF EXISTS idx_wifis_session_begin");
+                db.execSQL(SQL_CREATE_IDX_WIFIS_SESSION_BEGIN);
+                db.execSQL("DROP INDEX IF EXISTS idx_cells_session_begin");
+                db.execSQL(SQL_CREATE_IDX_CELLS_SESSION_BEGIN);
+                db.execSQL("DROP INDEX IF EXISTS idx_positions_session_timestamp");
+                db.execSQL(SQL_CREATE_IDX_POSITIONS_SESSION_TIMESTAMP);
+            } catch (final SQLException e) {
+                Log.w(TAG, "Couldn't create export indices");
+            }
+        }
+
+        // Session counters are maintained incrementally from now on (see SessionStats)
+        if (oldVersion <= 14) {
+            try {
+                db.execSQL("ALTER TABLE " + Schema.TBL_SESSIONS + " ADD COLUMN " + Schema.COL_NUMBER_OF_NEW_WIFIS + " INTEGER DEFAULT 0");
+            } catch (final SQLException e) {
+                Log.i(TAG, "Nothing to do: new wifis column already exists");
+            }
+            try {
+                Log.w(TAG, "Database upgrade: recounting sessions. This may take some time!!!");
+                db.execSQL(SessionStats.SQL_RECOUNT_ALL);
+            } catch (final SQLException e) {
+                Log.w(TAG, "Couldn't recount sessions");
+            }
+        }
+
+        // Materialized wifi overview (see WifiOverview)
+        if (oldVersion <= 15) {
+            try {
+                Log.w(TAG, "Database upgrade: building wifi overview. This may take some time!!!");
+                WifiOverview.create(db);
+            } catch (final SQLException e) {
+                Log.w(TAG, "Couldn't build wifi overview");
+            }
+        }
+
+        // One position row per GPS fix (see ScanPositions)
+        if (oldVersion <= 16) {
+            try {
+                Log.w(TAG, "Database upgrade: collapsing duplicate positions. This may take some time!!!");
+                ScanPositions.collapseDuplicates(db);
+            } catch (final SQLException e) {
+                Log.w(TAG, "Couldn't collapse duplicate positions");
+            }
+        }
 	}
 
     @Override public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -0,0 +1,123 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import org.openbmap.db.models.PositionRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Loads positions referenced by wifis and cells in batches, instead of two queries per record.
+ *
+ * Loaders first request all position ids of their records, then read the positions: pending ids are
+ * fetched with one IN query per {@link #BATCH_SIZE} ids. Loaded positions are kept, so records sharing
+ * a scan position (all wifis and cells of one scan) share the same {@link PositionRecord} instance.
+ *
+ * Not thread-safe, intended for a single load operation.
+ */
+class PositionCache {
+
+    /**
+     * Max. number of ids per query, well below SQLite's host parameter limit (999)
+     */
+    static final int BATCH_SIZE = 500;
+
+    private final ContentResolver mResolver;
+
+    private final HashMap<Long, PositionRecord> mPositions = new HashMap<>();
+
+    /**
+     * Requested, but not yet loaded ids
+     */
+    private final LinkedHashSet<Long> mPending = new LinkedHashSet<>();
+
+    /**
+     * @param resolver content resolver positions are queried from
+     */
+    PositionCache(final ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Marks position to be loaded with next batch
+     * @param id position id
+     */
+    final void request(final long id) {
+        if (!mPositions.containsKey(id)) {
+            mPending.add(id);
+        }
+    }
+
+    /**
+     * Returns position, loading all pending positions first
+     * @param id position id
+     * @return position, empty position if id doesn't exist (same as {@link DataHelper#loadPositionById})
+     */
+    final PositionRecord get(final long id) {
+        request(id);
+        if (!mPending.isEmpty()) {
+            load();
+        }
+        return mPositions.get(id);
+    }
+
+    /**
+     * Loads pending positions in batches
+     */
+    private void load() {
+        final ArrayList<Long> ids = new ArrayList<>(mPending);
+        mPending.clear();
+
+        for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+            final int end = Math.min(start + BATCH_SIZE, ids.size());
+            final StringBuilder selection = new StringBuilder(Schema.COL_ID).append(" IN (");
+            final String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ", ?");
+                selectionArgs[i - start] = String.valueOf(ids.get(i));
+            }
+            selection.append(')');
+
+            final Cursor cursor = query(selection.toString(), selectionArgs);
+            final int colId = cursor.getColumnIndex(Schema.COL_ID);
+            while (cursor.moveToNext()) {
+                mPositions.put(cursor.getLong(colId), DataHelper.positionFromCursor(cursor));
+            }
+            cursor.close();
+        }
+
+        for (Long id : ids) {
+            if (!mPositions.containsKey(id)) {
+                mPositions.put(id, new PositionRecord());
+            }
+        }
+    }
+
+    /**
+     * Queries positions table
+     */
+    Cursor query(final String selection, final String[] selectionArgs) {
+        return mResolver.query(ContentProvider.CONTENT_URI_POSITION, null, selection, selectionArgs, null);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.openbmap.RadioBeacon;
+import org.openbmap.db.models.PositionRecord;
+
+/**
+ * Position interning: each GPS fix is stored as exactly one row in {@link Schema#TBL_POSITIONS}.
+ *
+ * Wifi scans, cell scans and gpx trackpoints of the same fix share that row, as do a scan's begin and
+ * end position, if equal. A fix is identified by session, timestamp, latitude, longitude and source.
+ * User-defined waypoints are never interned, they're written by content provider and counted separately.
+ *
+ * Existing duplicates are collapsed once on upgrade, see {@link #collapseDuplicates(SQLiteDatabase)}.
+ */
+public final class ScanPositions {
+
+    private static final String FIX = Schema.COL_SESSION_ID + ", " + Schema.COL_TIMESTAMP + ", "
+            + Schema.COL_LATITUDE + ", " + Schema.COL_LONGITUDE + ", " + Schema.COL_SOURCE;
+
+    /**
+     * Returns id of an existing row of the same fix or -1. Uses idx_positions_session_timestamp.
+     * Args: session id, timestamp, latitude, longitude, source
+     */
+    static final String SQL_FIND = "SELECT ifnull((SELECT " + Schema.COL_ID + " FROM " + Schema.TBL_POSITIONS
+            + " WHERE " + Schema.COL_SESSION_ID + " = ? AND " + Schema.COL_TIMESTAMP + " = ?"
+            + " AND " + Schema.COL_LATITUDE + " = ? AND " + Schema.COL_LONGITUDE + " = ?"
+            + " AND " + Schema.COL_SOURCE + " IS ?"
+            + " AND " + Schema.COL_SOURCE + " IS NOT '" + RadioBeacon.PROVIDER_USER_DEFINED + "'"
+            + " ORDER BY " + Schema.COL_ID + " LIMIT 1), -1)";
+
+    private static final String TBL_POSITION_MAP = "position_map";
+
+    private ScanPositions() {
+    }
+
+    /**
+     * Whether both positions are the same fix, i.e. would be interned into the same row
+     */
+    static boolean isSameFix(final PositionRecord a, final PositionRecord b) {
+        if (a == b) {
+            return true;
+        }
+        return a != null && b != null
+                && a.getSession() == b.getSession()
+                && a.getOpenBmapTimestamp() == b.getOpenBmapTimestamp()
+                && Double.compare(a.getLatitude(), b.getLatitude()) == 0
+                && Double.compare(a.getLongitude(), b.getLongitude()) == 0
+                && (a.getSource() == null ? b.getSource() == null : a.getSource().equals(b.getSource()));
+    }
+
+    /**
+     * Statements collapsing duplicate positions into the fix's oldest row: references from wifis, cells and
+     * wifi overview are redirected, duplicates deleted afterwards
+     */
+    static String[] buildStatements() {
+        final String redirect = "UPDATE %1$s SET %2$s = (SELECT new_id FROM " + TBL_POSITION_MAP + " WHERE old_id = %1$s.%2$s)"
+                + " WHERE %2$s IN (SELECT old_id FROM " + TBL_POSITION_MAP + ")";
+        return new String[] {
+                "DROP TABLE IF EXISTS " + TBL_POSITION_MAP,
+                "CREATE TEMP TABLE " + TBL_POSITION_MAP + " (old_id INTEGER PRIMARY KEY, new_id INTEGER NOT NULL)",
+                "INSERT INTO " + TBL_POSITION_MAP + " SELECT p." + Schema.COL_ID + ", k.keep_id FROM " + Schema.TBL_POSITIONS + " AS p"
+                        + " JOIN (SELECT MIN(" + Schema.COL_ID + ") AS keep_id, " + FIX + " FROM " + Schema.TBL_POSITIONS
+                        + " WHERE " + Schema.COL_SOURCE + " IS NOT '" + RadioBeacon.PROVIDER_USER_DEFINED + "'"
+                        + " GROUP BY " + FIX + " HAVING count(*) > 1) AS k"
+                        + " ON p." + Schema.COL_SESSION_ID + " IS k." + Schema.COL_SESSION_ID
+                        + " AND p." + Schema.COL_TIMESTAMP + " = k." + Schema.COL_TIMESTAMP
+                        + " AND p." + Schema.COL_LATITUDE + " = k." + Schema.COL_LATITUDE
+                        + " AND p." + Schema.COL_LONGITUDE + " = k." + Schema.COL_LONGITUDE
+                        + " AND p." + Schema.COL_SOURCE + " IS k." + Schema.COL_SOURCE
+                        + " WHERE p." + Schema.COL_ID + " != k.keep_id",
+                String.format(redirect, Schema.TBL_WIFIS, Schema.COL_BEGIN_POSITION_ID),
+                String.format(redirect, Schema.TBL_WIFIS, Schema.COL_END_POSITION_ID),
+                String.format(redirect, Schema.TBL_CELLS, Schema.COL_BEGIN_POSITION_ID),
+                String.format(redirect, Schema.TBL_CELLS, Schema.COL_END_POSITION_ID),
+                String.format(redirect, Schema.TBL_WIFI_OVERVIEW, Schema.COL_BEGIN_POSITION_ID),
+                String.format(redirect, Schema.TBL_WIFI_OVERVIEW, Schema.COL_END_POSITION_ID),
+                "DELETE FROM " + Schema.TBL_POSITIONS + " WHERE " + Schema.COL_ID + " IN (SELECT old_id FROM " + TBL_POSITION_MAP + ")",
+                "DROP TABLE " + TBL_POSITION_MAP
+        };
+    }
+
+    /**
+     * Collapses duplicate positions (written before positions were interned) in a single transaction
+     * @param db writable database
+     */
+    static void collapseDuplicates(final SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            for (final String sql : buildStatements()) {
+                db.execSQL(sql);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
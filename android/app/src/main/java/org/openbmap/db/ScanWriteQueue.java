@@ -0,0 +1,337 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.openbmap.db.ScanWriter.Scan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind queue for scan results.
+ *
+ * Logger services hand over cell scans, wifi scans and gpx trackpoints, a single writer thread
+ * persists them. Pending scans are coalesced into one transaction, which is committed as soon as
+ * {@link #MAX_BATCH_ROWS} rows are pending, the oldest pending scan is older than {@link #MAX_DELAY}
+ * or a flush is requested.
+ *
+ * The queue is shared by all logger services of the process, so cells, wifis and trackpoints of
+ * a GPS fix end up in the same transaction. Services acquire it in onCreate and release it in onDestroy.
+ * After last release the writer thread drains pending scans, checkpoints the database's write-ahead log and stops.
+ *
+ * Scans are never dropped: if the writer can't keep up, new scans are written on the caller's thread,
+ * like before the queue existed. This is logged and counted, see {@link #getInlineScans()}.
+ */
+public final class ScanWriteQueue {
+
+    private static final String TAG = ScanWriteQueue.class.getSimpleName();
+
+    /**
+     * Maximum number of pending scans. When exceeded, new scans are written on caller's thread
+     */
+    private static final int CAPACITY = 256;
+
+    /**
+     * Rows per transaction, which trigger a flush
+     */
+    private static final int MAX_BATCH_ROWS = 500;
+
+    /**
+     * Maximum time in millis a scan waits in queue
+     */
+    private static final long MAX_DELAY = 2000;
+
+    /**
+     * Marks a flush request in queue
+     */
+    private static final Object FLUSH = new Object();
+
+    private static ScanWriteQueue sInstance;
+
+    private static int sReferences = 0;
+
+    private final BlockingQueue<Object> mQueue = new LinkedBlockingQueue<>(CAPACITY);
+
+    private final ScanWriter mWriter;
+
+    private final Thread mThread;
+
+    private volatile boolean mRunning = true;
+
+    /*
+     * Metrics
+     */
+    private volatile long mLastFlushMillis;
+    private volatile long mMaxFlushMillis;
+    private volatile long mTotalFlushMillis;
+    private final AtomicInteger mFlushCount = new AtomicInteger();
+    private volatile long mRowsWritten;
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicInteger mInlineScans = new AtomicInteger();
+
+    /**
+     * Returns process-wide write queue and starts writer thread if needed.
+     * Each call has to be balanced with {@link #release()}
+     * @param context context
+     * @return shared queue
+     */
+    public static synchronized ScanWriteQueue acquire(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ScanWriteQueue(new ScanWriter(context));
+        }
+        sReferences++;
+        return sInstance;
+    }
+
+    private ScanWriteQueue(final ScanWriter writer) {
+        mWriter = writer;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, "ScanWriteQueue");
+        mThread.start();
+    }
+
+    /**
+     * Releases queue. After last release writer thread writes all pending scans and stops.
+     * Returns immediately, as it's called from onDestroy on main thread
+     */
+    public void release() {
+        synchronized (ScanWriteQueue.class) {
+            if (--sReferences > 0) {
+                return;
+            }
+            sInstance = null;
+        }
+
+        mRunning = false;
+        mThread.interrupt();
+    }
+
+    /**
+     * Queues a scan for writing. If queue is full or has already been closed,
+     * scan is written on caller's thread instead
+     * @param scan scan
+     */
+    public void add(final Scan scan) {
+        if (!enqueue(scan)) {
+            writeInline(scan);
+        }
+    }
+
+    /**
+     * Asks writer thread to commit all pending scans now. Returns immediately,
+     * as it's called from stopTracking on main thread
+     */
+    public void flush() {
+        if (!enqueue(FLUSH)) {
+            // full queue is written anyway, closed queue is drained by writer thread
+            Log.d(TAG, "Flush not queued, " + mQueue.size() + " scans pending");
+        }
+    }
+
+    /**
+     * Current number of pending scans
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Maximum number of pending scans seen so far
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Duration of last flush in millis
+     */
+    public long getLastFlushMillis() {
+        return mLastFlushMillis;
+    }
+
+    /**
+     * Longest flush so far in millis
+     */
+    public long getMaxFlushMillis() {
+        return mMaxFlushMillis;
+    }
+
+    /**
+     * Average flush duration in millis
+     */
+    public long getAverageFlushMillis() {
+        final int count = mFlushCount.get();
+        return count == 0 ? 0 : mTotalFlushMillis / count;
+    }
+
+    /**
+     * Number of scans written on caller's thread, because queue was full or closed
+     */
+    public int getInlineScans() {
+        return mInlineScans.get();
+    }
+
+    /**
+     * Human-readable summary of queue metrics
+     */
+    public String getMetrics() {
+        return "flushes " + mFlushCount.get()
+                + ", rows " + mRowsWritten
+                + ", inline scans " + mInlineScans.get()
+                + ", queue depth " + getQueueDepth() + " (max " + mMaxQueueDepth.get() + ")"
+                + ", flush latency last " + mLastFlushMillis + " ms, avg " + getAverageFlushMillis() + " ms, max " + mMaxFlushMillis + " ms";
+    }
+
+    /**
+     * Adds item to queue without blocking
+     * @return false if queue is full or has already been closed
+     */
+    private boolean enqueue(final Object item) {
+        if (!mRunning) {
+            Log.e(TAG, "Write queue already closed");
+            return false;
+        }
+        if (!mQueue.offer(item)) {
+            Log.w(TAG, "Write queue full, writer can't keep up");
+            return false;
+        }
+        final int depth = mQueue.size();
+        int max;
+        while (depth > (max = mMaxQueueDepth.get()) && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // retry, another thread raised maximum concurrently
+        }
+        return true;
+    }
+
+    /**
+     * Writes a single scan on caller's thread. Waits for a running batch,
+     * as {@link ScanWriter} is synchronized
+     */
+    private void writeInline(final Scan scan) {
+        mInlineScans.incrementAndGet();
+        try {
+            if (!mWriter.write(Collections.singletonList(scan))) {
+                Log.e(TAG, "Failed to write scan on caller's thread");
+            }
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Error writing scan on caller's thread: " + e.toString(), e);
+        } finally {
+            scan.recycle();
+        }
+        if (!mThread.isAlive()) {
+            // writer thread has already released its statements
+            mWriter.close();
+        }
+    }
+
+    /**
+     * Writer loop: collects scans until size or time threshold is reached, then writes them in one transaction
+     */
+    private void processQueue() {
+        final ArrayList<Scan> batch = new ArrayList<>();
+
+        while (mRunning || !mQueue.isEmpty()) {
+            try {
+                Object item = mQueue.poll(MAX_DELAY, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    continue;
+                }
+
+                int rows = 0;
+                final long deadline = System.currentTimeMillis() + MAX_DELAY;
+                while (item != null) {
+                    if (item == FLUSH) {
+                        break;
+                    }
+                    batch.add((Scan) item);
+                    rows += ((Scan) item).rows();
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (rows >= MAX_BATCH_ROWS || remaining <= 0) {
+                        break;
+                    }
+                    item = mQueue.poll(remaining, TimeUnit.MILLISECONDS);
+                }
+                write(batch, rows);
+            } catch (final InterruptedException e) {
+                // woken up for shutdown, pending items are drained in next iterations
+                if (!mRunning) {
+                    drain(batch);
+                }
+            }
+        }
+        // logging has stopped: move write-ahead log into database, off the caller's thread
+        mWriter.checkpoint();
+        mWriter.close();
+        Log.i(TAG, "Write queue closed: " + getMetrics());
+    }
+
+    /**
+     * Writes everything left in queue without waiting
+     */
+    private void drain(final ArrayList<Scan> batch) {
+        int rows = 0;
+        Object item;
+        while ((item = mQueue.poll()) != null) {
+            if (item != FLUSH) {
+                batch.add((Scan) item);
+                rows += ((Scan) item).rows();
+            }
+        }
+        write(batch, rows);
+    }
+
+    private void write(final ArrayList<Scan> batch, final int rows) {
+        if (batch.size() == 0) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            if (!mWriter.write(batch)) {
+                Log.e(TAG, "Failed to write " + batch.size() + " scans");
+            }
+        } catch (final RuntimeException e) {
+            // keep writer thread alive, otherwise queue fills up and all further scans are lost
+            Log.e(TAG, "Error writing " + batch.size() + " scans: " + e.toString(), e);
+        }
+        final long duration = System.currentTimeMillis() - start;
+
+        mLastFlushMillis = duration;
+        mTotalFlushMillis += duration;
+        if (duration > mMaxFlushMillis) {
+            mMaxFlushMillis = duration;
+        }
+        mFlushCount.incrementAndGet();
+        mRowsWritten += rows;
+        for (final Scan scan : batch) {
+            scan.recycle();
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,602 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.greenrobot.eventbus.EventBus;
+import org.openbmap.db.models.CellRecord;
+import org.openbmap.db.models.PositionRecord;
+import org.openbmap.db.models.WifiRecord;
+import org.openbmap.events.onScansWritten;
+
+import java.util.List;
+
+/**
+ * Bulk writer for scan results.
+ *
+ * Bypasses content provider for in-process writes: inserts are executed with precompiled,
+ * reusable statements in one transaction per scan (or per batch of scans, see {@link ScanWriteQueue}).
+ * Content observers are notified once per transaction instead of once per row.
+ * Session statistics ({@link SessionStats}) and wifi overview ({@link WifiOverview}) are updated in the same transaction.
+ * Positions are interned, i.e. one row per GPS fix is shared by wifis, cells and trackpoints ({@link ScanPositions}).
+ */
+public class ScanWriter {
+
+    private static final String TAG = ScanWriter.class.getSimpleName();
+
+    static final String SQL_INSERT_POSITION = "INSERT INTO " + Schema.TBL_POSITIONS + " ("
+            + Schema.COL_LATITUDE + ", "
+            + Schema.COL_LONGITUDE + ", "
+            + Schema.COL_ALTITUDE + ", "
+            + Schema.COL_TIMESTAMP + ", "
+            + Schema.COL_ACCURACY + ", "
+            + Schema.COL_BEARING + ", "
+            + Schema.COL_SPEED + ", "
+            + Schema.COL_SESSION_ID + ", "
+            + Schema.COL_SOURCE
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String SQL_INSERT_WIFI = "INSERT INTO " + Schema.TBL_WIFIS + " ("
+            + Schema.COL_BSSID + ", "
+            + Schema.COL_SSID + ", "
+            + Schema.COL_MD5_SSID + ", "
+            + Schema.COL_CAPABILITIES + ", "
+            + Schema.COL_FREQUENCY + ", "
+            + Schema.COL_LEVEL + ", "
+            + Schema.COL_TIMESTAMP + ", "
+            + Schema.COL_BEGIN_POSITION_ID + ", "
+            + Schema.COL_END_POSITION_ID + ", "
+            + Schema.COL_SESSION_ID + ", "
+            + Schema.COL_KNOWN_WIFI
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String SQL_INSERT_CELL = "INSERT INTO " + Schema.TBL_CELLS + " ("
+            + Schema.COL_NETWORKTYPE + ", "
+            + Schema.COL_IS_CDMA + ", "
+            + Schema.COL_IS_SERVING + ", "
+            + Schema.COL_IS_NEIGHBOR + ", "
+            + Schema.COL_LOGICAL_CELLID + ", "
+            + Schema.COL_ACTUAL_CELLID + ", "
+            + Schema.COL_UTRAN_RNC + ", "
+            + Schema.COL_PSC + ", "
+            + Schema.COL_AREA + ", "
+            + Schema.COL_MCC + ", "
+            + Schema.COL_MNC + ", "
+            + Schema.COL_OPERATORNAME + ", "
+            + Schema.COL_OPERATOR + ", "
+            + Schema.COL_STRENGTHDBM + ", "
+            + Schema.COL_STRENGTHASU + ", "
+            + Schema.COL_TIMESTAMP + ", "
+            + Schema.COL_BEGIN_POSITION_ID + ", "
+            + Schema.COL_END_POSITION_ID + ", "
+            + Schema.COL_SESSION_ID + ", "
+            + Schema.COL_CDMA_BASEID + ", "
+            + Schema.COL_CDMA_NETWORKID + ", "
+            + Schema.COL_CDMA_SYSTEMID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final SQLiteDatabase mDb;
+
+    private final ContentResolver mContentResolver;
+
+    private final SessionStats mStats;
+
+    private CompiledStatement mInsertPosition;
+    private CompiledStatement mFindPosition;
+    private CompiledStatement mInsertWifi;
+    private CompiledStatement mInsertCell;
+    private CompiledStatement mInsertOverview;
+    private CompiledStatement mUpdateOverviewSeen;
+    private CompiledStatement mUpdateOverviewStrongest;
+
+    /**
+     * Position interned last within current transaction, shortcut for equal begin and end positions
+     * and consecutive scans of the same fix
+     */
+    private PositionRecord mLastPosition;
+    private long mLastPositionId;
+
+    /**
+     * Creates a writer on the application database
+     * @param context context used for acquiring database and content resolver
+     */
+    public ScanWriter(final Context context) {
+        final DatabaseHelper helper = DatabaseHelper.getInstance(context);
+        mDb = helper.getWritableDatabase();
+        mStats = helper.getSessionStats();
+        mContentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    /**
+     * Persists several scans in one transaction. Content observers are notified once per batch
+     * and {@link onScansWritten} is posted with the positions of new wifis
+     * @param scans scans to write
+     * @return true on success, false if transaction has been rolled back
+     */
+    public final synchronized boolean write(final List<Scan> scans) {
+        if (scans.size() == 0) {
+            return true;
+        }
+
+        boolean hasWifis = false;
+        boolean hasCells = false;
+        boolean success = false;
+        mLastPosition = null;
+        mDb.beginTransaction();
+        try {
+            for (final Scan scan : scans) {
+                if (scan.mWifis != null) {
+                    insertWifis(scan.mBegin, scan.mEnd, scan.mWifis);
+                    hasWifis = true;
+                } else if (scan.mCells != null) {
+                    insertCells(scan.mCells, scan.mBegin, scan.mEnd);
+                    hasCells = true;
+                } else {
+                    insertPosition(scan.mBegin);
+                }
+            }
+            mStats.persist(mDb);
+            mDb.setTransactionSuccessful();
+            success = true;
+        } catch (final SQLException e) {
+            Log.e(TAG, "Error saving scans: " + e.toString(), e);
+            return false;
+        } finally {
+            mDb.endTransaction();
+            mLastPosition = null;
+            if (!success) {
+                // counters may include rolled back rows
+                mStats.invalidate();
+            }
+        }
+
+        mContentResolver.notifyChange(ContentProvider.CONTENT_URI_POSITION, null);
+        if (hasWifis) {
+            mContentResolver.notifyChange(ContentProvider.CONTENT_URI_WIFI, null);
+        }
+        if (hasCells) {
+            mContentResolver.notifyChange(ContentProvider.CONTENT_URI_CELL, null);
+        }
+        EventBus.getDefault().post(new onScansWritten(hasWifis, hasCells, hasWifis ? wifiPositions(scans) : new double[0]));
+        return true;
+    }
+
+    /**
+     * Inserts wifis and their positions, caller has to take care of transaction
+     */
+    private void insertWifis(final PositionRecord begin, final PositionRecord end, final List<WifiRecord> wifis) {
+        final long beginId = insertPosition(begin);
+        final long endId = insertPosition(end);
+
+        if (mInsertWifi == null) {
+            mInsertWifi = compile(SQL_INSERT_WIFI);
+        }
+        for (final WifiRecord wifi : wifis) {
+            mStats.select(mDb, wifi.getSessionId());
+            bindWifi(mInsertWifi, wifi, beginId, endId);
+            final long wifiId = mInsertWifi.mStatement.executeInsert();
+            final boolean firstSeen = mStats.addWifi(wifi.getBssid(), wifi.getMd5Ssid(), wifi.getCatalogStatusInt());
+            updateOverview(wifi, wifiId, begin, beginId, endId, firstSeen);
+        }
+    }
+
+    /**
+     * Adds wifi to overview or updates its overview row, caller has to take care of transaction
+     * @param firstSeen true, if wifi is seen for the first time in its session
+     */
+    private void updateOverview(final WifiRecord wifi, final long wifiId, final PositionRecord begin,
+                                final long beginId, final long endId, final boolean firstSeen) {
+        if (firstSeen) {
+            if (mInsertOverview == null) {
+                mInsertOverview = compile(WifiOverview.SQL_INSERT);
+            }
+            bindOverviewInsert(mInsertOverview, wifi, wifiId, begin, beginId, endId);
+            if (mInsertOverview.mStatement.executeInsert() != -1) {
+                return;
+            }
+            // already in overview, i.e. session statistics had been discarded
+        }
+
+        if (mUpdateOverviewSeen == null) {
+            mUpdateOverviewSeen = compile(WifiOverview.SQL_UPDATE_SEEN);
+        }
+        bindOverviewSeen(mUpdateOverviewSeen, wifi);
+        mUpdateOverviewSeen.mStatement.executeUpdateDelete();
+
+        if (mUpdateOverviewStrongest == null) {
+            mUpdateOverviewStrongest = compile(WifiOverview.SQL_UPDATE_STRONGEST);
+        }
+        bindOverviewStrongest(mUpdateOverviewStrongest, wifi, wifiId, begin, beginId, endId);
+        mUpdateOverviewStrongest.mStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Inserts cells and their positions, caller has to take care of transaction
+     */
+    private void insertCells(final List<CellRecord> cells, final PositionRecord begin, final PositionRecord end) {
+        final long beginId = insertPosition(begin);
+        final long endId = insertPosition(end);
+
+        if (mInsertCell == null) {
+            mInsertCell = compile(SQL_INSERT_CELL);
+        }
+        for (final CellRecord cell : cells) {
+            mStats.select(mDb, cell.getSessionId());
+            bindCell(mInsertCell, cell, beginId, endId);
+            mInsertCell.mStatement.executeInsert();
+            mStats.addCell(cell.isCdma() ? -1 : cell.getLogicalCellId(), cell.getPsc(), cell.isServing());
+        }
+    }
+
+    /**
+     * Collects positions of scans with wifis, as scans are recycled once written
+     * @return latitude/longitude pairs
+     */
+    private static double[] wifiPositions(final List<Scan> scans) {
+        int count = 0;
+        for (final Scan scan : scans) {
+            if (scan.mWifis != null && !scan.mWifis.isEmpty()) {
+                count++;
+            }
+        }
+        final double[] positions = new double[2 * count];
+        int i = 0;
+        for (final Scan scan : scans) {
+            if (scan.mWifis != null && !scan.mWifis.isEmpty()) {
+                positions[i++] = scan.mBegin.getLatitude();
+                positions[i++] = scan.mBegin.getLongitude();
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Checkpoints write-ahead log, see {@link DatabaseHelper#checkpoint(SQLiteDatabase)}
+     */
+    public final synchronized void checkpoint() {
+        try {
+            DatabaseHelper.checkpoint(mDb);
+        } catch (final SQLException e) {
+            Log.w(TAG, "Checkpoint failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Releases precompiled statements
+     */
+    public final synchronized void close() {
+        for (final CompiledStatement statement : new CompiledStatement[]{mInsertPosition, mFindPosition, mInsertWifi,
+                mInsertCell, mInsertOverview, mUpdateOverviewSeen, mUpdateOverviewStrongest}) {
+            if (statement != null) {
+                statement.mStatement.close();
+            }
+        }
+        mInsertPosition = null;
+        mFindPosition = null;
+        mInsertWifi = null;
+        mInsertCell = null;
+        mInsertOverview = null;
+        mUpdateOverviewSeen = null;
+        mUpdateOverviewStrongest = null;
+    }
+
+    /**
+     * Inserts position, unless the same fix has been stored before (see {@link ScanPositions}).
+     * Caller has to take care of transaction
+     * @param position position to insert
+     * @return row id
+     */
+    private long insertPosition(final PositionRecord position) {
+        if (mLastPosition != null && ScanPositions.isSameFix(mLastPosition, position)) {
+            return mLastPositionId;
+        }
+
+        if (mFindPosition == null) {
+            mFindPosition = compile(ScanPositions.SQL_FIND);
+        }
+        bindFindPosition(mFindPosition, position);
+        long id = mFindPosition.mStatement.simpleQueryForLong();
+
+        if (id == -1) {
+            if (mInsertPosition == null) {
+                mInsertPosition = compile(SQL_INSERT_POSITION);
+            }
+            bindPosition(mInsertPosition, position);
+            id = mInsertPosition.mStatement.executeInsert();
+        }
+        mLastPosition = position;
+        mLastPositionId = id;
+        return id;
+    }
+
+    private CompiledStatement compile(final String sql) {
+        return new CompiledStatement(mDb.compileStatement(sql));
+    }
+
+    /**
+     * Binds {@link #SQL_INSERT_POSITION} parameters
+     */
+    static void bindPosition(final Binder statement, final PositionRecord position) {
+        statement.bindDouble(1, position.getLatitude());
+        statement.bindDouble(2, position.getLongitude());
+        statement.bindDouble(3, position.getAltitude());
+        statement.bindLong(4, position.getOpenBmapTimestamp());
+        statement.bindDouble(5, position.getAccuracy());
+        statement.bindDouble(6, position.getBearing());
+        statement.bindDouble(7, position.getSpeed());
+        statement.bindLong(8, position.getSession());
+        bind(statement, 9, position.getSource());
+    }
+
+    /**
+     * Binds {@link ScanPositions#SQL_FIND} parameters
+     */
+    static void bindFindPosition(final Binder statement, final PositionRecord position) {
+        statement.bindLong(1, position.getSession());
+        statement.bindLong(2, position.getOpenBmapTimestamp());
+        statement.bindDouble(3, position.getLatitude());
+        statement.bindDouble(4, position.getLongitude());
+        bind(statement, 5, position.getSource());
+    }
+
+    /**
+     * Binds {@link #SQL_INSERT_WIFI} parameters
+     */
+    static void bindWifi(final Binder statement, final WifiRecord wifi, final long beginId, final long endId) {
+        bind(statement, 1, wifi.getBssid());
+        bind(statement, 2, wifi.getSsid());
+        bind(statement, 3, wifi.getMd5Ssid());
+        bind(statement, 4, wifi.getCapabilities());
+        statement.bindLong(5, wifi.getFrequency());
+        statement.bindLong(6, wifi.getLevel());
+        statement.bindLong(7, wifi.getOpenBmapTimestamp());
+        statement.bindLong(8, beginId);
+        statement.bindLong(9, endId);
+        statement.bindLong(10, wifi.getSessionId());
+        statement.bindLong(11, wifi.getCatalogStatusInt());
+    }
+
+    /**
+     * Binds {@link WifiOverview#SQL_INSERT} parameters
+     */
+    static void bindOverviewInsert(final Binder statement, final WifiRecord wifi, final long wifiId, final PositionRecord begin,
+                                   final long beginId, final long endId) {
+        statement.bindLong(1, wifi.getSessionId());
+        statement.bindString(2, WifiOverview.nullToEmpty(wifi.getBssid()));
+        statement.bindString(3, WifiOverview.nullToEmpty(wifi.getMd5Ssid()));
+        statement.bindLong(4, wifiId);
+        statement.bindLong(5, wifi.getLevel());
+        bind(statement, 6, wifi.getSsid());
+        bind(statement, 7, wifi.getCapabilities());
+        statement.bindLong(8, wifi.getFrequency());
+        statement.bindLong(9, wifi.getOpenBmapTimestamp());
+        statement.bindLong(10, beginId);
+        statement.bindLong(11, endId);
+        statement.bindDouble(12, begin.getLatitude());
+        statement.bindDouble(13, begin.getLongitude());
+        statement.bindLong(14, wifi.getCatalogStatusInt());
+        statement.bindLong(15, wifi.getOpenBmapTimestamp());
+        statement.bindLong(16, wifi.getOpenBmapTimestamp());
+    }
+
+    /**
+     * Binds {@link WifiOverview#SQL_UPDATE_SEEN} parameters
+     */
+    static void bindOverviewSeen(final Binder statement, final WifiRecord wifi) {
+        statement.bindLong(1, wifi.getCatalogStatusInt());
+        statement.bindLong(2, wifi.getOpenBmapTimestamp());
+        statement.bindLong(3, wifi.getOpenBmapTimestamp());
+        statement.bindLong(4, wifi.getSessionId());
+        statement.bindString(5, WifiOverview.nullToEmpty(wifi.getBssid()));
+        statement.bindString(6, WifiOverview.nullToEmpty(wifi.getMd5Ssid()));
+    }
+
+    /**
+     * Binds {@link WifiOverview#SQL_UPDATE_STRONGEST} parameters
+     */
+    static void bindOverviewStrongest(final Binder statement, final WifiRecord wifi, final long wifiId, final PositionRecord begin,
+                                      final long beginId, final long endId) {
+        statement.bindLong(1, wifiId);
+        statement.bindLong(2, wifi.getLevel());
+        bind(statement, 3, wifi.getSsid());
+        bind(statement, 4, wifi.getCapabilities());
+        statement.bindLong(5, wifi.getFrequency());
+        statement.bindLong(6, wifi.getOpenBmapTimestamp());
+        statement.bindLong(7, beginId);
+        statement.bindLong(8, endId);
+        statement.bindDouble(9, begin.getLatitude());
+        statement.bindDouble(10, begin.getLongitude());
+        statement.bindLong(11, wifi.getSessionId());
+        statement.bindString(12, WifiOverview.nullToEmpty(wifi.getBssid()));
+        statement.bindString(13, WifiOverview.nullToEmpty(wifi.getMd5Ssid()));
+        statement.bindLong(14, wifi.getLevel());
+    }
+
+    /**
+     * Binds {@link #SQL_INSERT_CELL} parameters. Fields of the other radio technology (GSM or CDMA) are set to defaults
+     */
+    static void bindCell(final Binder statement, final CellRecord cell, final long beginId, final long endId) {
+        statement.bindLong(1, cell.getNetworkType());
+        statement.bindLong(2, cell.isCdma() ? 1 : 0);
+        statement.bindLong(3, cell.isServing() ? 1 : 0);
+        statement.bindLong(4, cell.isNeighbor() ? 1 : 0);
+        statement.bindLong(8, cell.getPsc());
+        bind(statement, 10, cell.getMcc());
+        bind(statement, 11, cell.getMnc());
+        bind(statement, 12, cell.getOperatorName());
+        bind(statement, 13, cell.getOperator());
+        statement.bindLong(14, cell.getStrengthdBm());
+        statement.bindLong(16, cell.getOpenBmapTimestamp());
+        statement.bindLong(17, beginId);
+        statement.bindLong(18, endId);
+        statement.bindLong(19, cell.getSessionId());
+
+        if (!cell.isCdma()) {
+            statement.bindLong(5, cell.getLogicalCellId());
+            statement.bindLong(6, cell.getActualCellId());
+            statement.bindLong(7, cell.getUtranRnc());
+            statement.bindLong(9, cell.getArea());
+            statement.bindLong(15, cell.getStrengthAsu());
+            // set unused (CDMA) fields to default
+            statement.bindLong(20, -1);
+            statement.bindLong(21, -1);
+            statement.bindLong(22, -1);
+        } else {
+            // set unused (GSM) fields to default
+            statement.bindLong(5, -1);
+            statement.bindLong(6, -1);
+            statement.bindLong(7, -1);
+            statement.bindLong(9, -1);
+            statement.bindLong(15, 0);
+            bind(statement, 20, cell.getBaseId());
+            bind(statement, 21, cell.getNetworkId());
+            bind(statement, 22, cell.getSystemId());
+        }
+    }
+
+    /**
+     * Binds string or null
+     */
+    private static void bind(final Binder statement, final int index, final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Parameter target of the bind methods: a compiled statement on device, a jdbc statement in unit tests
+     */
+    interface Binder {
+        void bindLong(int index, long value);
+
+        void bindDouble(int index, double value);
+
+        void bindString(int index, String value);
+
+        void bindNull(int index);
+    }
+
+    /**
+     * Precompiled statement of application database
+     */
+    private static final class CompiledStatement implements Binder {
+        private final SQLiteStatement mStatement;
+
+        private CompiledStatement(final SQLiteStatement statement) {
+            mStatement = statement;
+        }
+
+        @Override
+        public void bindLong(final int index, final long value) {
+            mStatement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(final int index, final double value) {
+            mStatement.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(final int index, final String value) {
+            mStatement.bindString(index, value);
+        }
+
+        @Override
+        public void bindNull(final int index) {
+            mStatement.bindNull(index);
+        }
+    }
+
+    /**
+     * Pending write: either a wifi scan, a cell scan or a single (gpx) trackpoint
+     */
+    public static final class Scan {
+        private final PositionRecord mBegin;
+        private final PositionRecord mEnd;
+        private final List<WifiRecord> mWifis;
+        private final List<CellRecord> mCells;
+
+        /**
+         * Whether wifi records have been obtained from {@link WifiRecord#obtain()} and are recycled once written
+         */
+        private boolean mPooled;
+
+        private Scan(final PositionRecord begin, final PositionRecord end, final List<WifiRecord> wifis, final List<CellRecord> cells) {
+            mBegin = begin;
+            mEnd = end;
+            mWifis = wifis;
+            mCells = cells;
+        }
+
+        public static Scan wifis(final PositionRecord begin, final PositionRecord end, final List<WifiRecord> wifis) {
+            return new Scan(begin, end, wifis, null);
+        }
+
+        /**
+         * Wifi scan, whose records are recycled after writing. Caller must not use records after handing them over
+         */
+        public static Scan pooledWifis(final PositionRecord begin, final PositionRecord end, final List<WifiRecord> wifis) {
+            final Scan scan = new Scan(begin, end, wifis, null);
+            scan.mPooled = true;
+            return scan;
+        }
+
+        /**
+         * Returns pooled wifi records, if any
+         */
+        void recycle() {
+            if (!mPooled) {
+                return;
+            }
+            for (final WifiRecord wifi : mWifis) {
+                wifi.recycle();
+            }
+            mWifis.clear();
+            mPooled = false;
+        }
+
+        public static Scan cells(final List<CellRecord> cells, final PositionRecord begin, final PositionRecord end) {
+            return new Scan(begin, end, null, cells);
+        }
+
+        public static Scan trackpoint(final PositionRecord position) {
+            return new Scan(position, null, null, null);
+        }
+
+        /**
+         * Number of rows this scan adds to database
+         */
+        public int rows() {
+            if (mWifis != null) {
+                return mWifis.size() + 2;
+            } else if (mCells != null) {
+                return mCells.size() + 2;
+            }
+            return 1;
+        }
+    }
+}
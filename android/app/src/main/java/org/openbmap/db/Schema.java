@@ -34,6 +34,7 @@ public final class Schema {
 	public static final String TBL_WIFI_POSITIONS = "wifi_zone";
 	public static final String TBL_LOGS = "logs";
 	public static final String TBL_SESSIONS = "sessions";
+	public static final String TBL_WIFI_OVERVIEW = "wifi_overview";
 	
 	// Views
 	public static final String	VIEW_WIFIS_EXTENDED	= "wifis_positions";
@@ -97,6 +98,13 @@ public final class Schema {
 	public static final String COL_MAX_LEVEL = "MAX(" + COL_LEVEL + ")";
 	//public static final String COL_IS_NEW_WIFI	= "is_new_wifi";	
 	public static final String COL_KNOWN_WIFI = "is_known";
+
+	/**
+	 * Additional columns TBL_WIFI_OVERVIEW, rest is same as TBL_WIFIS.
+	 */
+	public static final String COL_WIFI_ID = "wifi_id";
+	public static final String COL_FIRST_SEEN = "first_seen";
+	public static final String COL_LAST_SEEN = "last_seen";
 	
 	/**
 	 * Columns TBL_LOG_FILE.
@@ -118,6 +126,7 @@ public final class Schema {
 	public static final String COL_NUMBER_OF_WIFIS = "no_wifis";
 	public static final String COL_NUMBER_OF_CELLS = "no_cells";
 	public static final String COL_NUMBER_OF_WAYPOINTS = "no_waypoints";
+	public static final String COL_NUMBER_OF_NEW_WIFIS = "no_new_wifis";
 
 	public static final int URI_CODE_CELLS = 0;
 	public static final int URI_CODE_CELL_ID = 1;
@@ -0,0 +1,281 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.openbmap.RadioBeacon;
+import org.openbmap.db.models.WifiRecord.CatalogStatus;
+
+import java.util.HashSet;
+
+/**
+ * Statistics of the session currently written: number of distinct wifis, new wifis, cells and waypoints.
+ *
+ * Counters are maintained at insert time by {@link ScanWriter}, within the same transaction as the scan,
+ * and persisted in {@link Schema#TBL_SESSIONS}. Thus reading a session's statistics never requires
+ * grouping its wifis or cells. Distinct wifi and cell keys of the current session are held in memory,
+ * they're loaded once, when the session is written for the first time after start.
+ *
+ * Wifis are distinct by bssid and md5 ssid, cells by cell id, psc and serving flag, i.e. same as
+ * wifi and cell overview queries. Waypoints are counted with a single increment in database.
+ */
+public final class SessionStats {
+
+    private static final String TAG = SessionStats.class.getSimpleName();
+
+    /**
+     * Returned by getters, if session isn't held in memory
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Distinct key of a wifi, same as {@link #wifiKey(String, String)}
+     */
+    static final String WIFI_KEY = "ifnull(" + Schema.COL_BSSID + ", '') || '/' || ifnull(" + Schema.COL_MD5_SSID + ", '')";
+
+    /**
+     * Distinct key of a cell, same as {@link #cellKey(int, int, boolean)}. CDMA cells have no cell id, they're not counted
+     */
+    static final String CELL_KEY = Schema.COL_LOGICAL_CELLID + " || '/' || " + Schema.COL_PSC + " || '/' || " + Schema.COL_IS_SERVING;
+
+    /**
+     * Session's distinct wifis from {@link WifiOverview}, second column is 0 for new wifis. Args: session id
+     */
+    static final String SQL_WIFI_KEYS = "SELECT " + WIFI_KEY + ", " + Schema.COL_KNOWN_WIFI + " FROM " + Schema.TBL_WIFI_OVERVIEW
+            + " WHERE " + Schema.COL_SESSION_ID + " = ?";
+
+    /**
+     * Session's distinct cells. Args: session id
+     */
+    static final String SQL_CELL_KEYS = "SELECT DISTINCT " + CELL_KEY + " FROM " + Schema.TBL_CELLS
+            + " WHERE " + Schema.COL_SESSION_ID + " = ? AND " + Schema.COL_LOGICAL_CELLID + " > -1";
+
+    static final String SQL_LOAD_WAYPOINTS = "SELECT " + Schema.COL_NUMBER_OF_WAYPOINTS + " FROM " + Schema.TBL_SESSIONS
+            + " WHERE " + Schema.COL_ID + " = ?";
+
+    /**
+     * Args: wifis, new wifis, cells, session id
+     */
+    static final String SQL_UPDATE_COUNTS = "UPDATE " + Schema.TBL_SESSIONS + " SET "
+            + Schema.COL_NUMBER_OF_WIFIS + " = ?, "
+            + Schema.COL_NUMBER_OF_NEW_WIFIS + " = ?, "
+            + Schema.COL_NUMBER_OF_CELLS + " = ? WHERE " + Schema.COL_ID + " = ?";
+
+    /**
+     * Args: session id
+     */
+    static final String SQL_INCREMENT_WAYPOINTS = "UPDATE " + Schema.TBL_SESSIONS + " SET "
+            + Schema.COL_NUMBER_OF_WAYPOINTS + " = ifnull(" + Schema.COL_NUMBER_OF_WAYPOINTS + ", 0) + 1 WHERE " + Schema.COL_ID + " = ?";
+
+    /**
+     * Recounts all sessions from scratch, used on database upgrade
+     */
+    static final String SQL_RECOUNT_ALL = "UPDATE " + Schema.TBL_SESSIONS + " SET "
+            + Schema.COL_NUMBER_OF_WIFIS + " = (SELECT count(DISTINCT " + WIFI_KEY + ") FROM " + Schema.TBL_WIFIS
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID + "), "
+            + Schema.COL_NUMBER_OF_NEW_WIFIS + " = (SELECT count(DISTINCT " + WIFI_KEY + ") FROM " + Schema.TBL_WIFIS
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID
+            + " AND " + Schema.COL_KNOWN_WIFI + " = " + CatalogStatus.NEW.ordinal() + "), "
+            + Schema.COL_NUMBER_OF_CELLS + " = (SELECT count(DISTINCT " + CELL_KEY + ") FROM " + Schema.TBL_CELLS
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID
+            + " AND " + Schema.COL_LOGICAL_CELLID + " > -1), "
+            + Schema.COL_NUMBER_OF_WAYPOINTS + " = (SELECT count(*) FROM " + Schema.TBL_POSITIONS
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID
+            + " AND " + Schema.COL_SOURCE + " = '" + RadioBeacon.PROVIDER_USER_DEFINED + "')";
+
+    /**
+     * Session held in memory
+     */
+    private int mSession = RadioBeacon.SESSION_NOT_TRACKING;
+
+    private boolean mLoaded = false;
+
+    private final HashSet<String> mWifis = new HashSet<>();
+
+    private final HashSet<String> mNewWifis = new HashSet<>();
+
+    private final HashSet<String> mCells = new HashSet<>();
+
+    private int mWaypoints;
+
+    /**
+     * Have wifi or cell counters changed since last {@link #persist(SQLiteDatabase)}?
+     */
+    private boolean mChanged = false;
+
+    static String wifiKey(final String bssid, final String md5Ssid) {
+        return (bssid == null ? "" : bssid) + '/' + (md5Ssid == null ? "" : md5Ssid);
+    }
+
+    static String cellKey(final int cellId, final int psc, final boolean isServing) {
+        return cellId + "/" + psc + '/' + (isServing ? 1 : 0);
+    }
+
+    /**
+     * Makes given session the current session. Counters of previous session are persisted, distinct keys
+     * of given session are loaded from database. Call within caller's transaction
+     */
+    synchronized void select(final SQLiteDatabase db, final int session) {
+        if (mLoaded && mSession == session) {
+            return;
+        }
+        persist(db);
+
+        final long start = System.currentTimeMillis();
+        reset(session);
+        final String[] args = new String[]{String.valueOf(session)};
+        Cursor cursor = db.rawQuery(SQL_WIFI_KEYS, args);
+        try {
+            while (cursor.moveToNext()) {
+                loadWifi(cursor.getString(0), cursor.getInt(1) == CatalogStatus.NEW.ordinal());
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.rawQuery(SQL_CELL_KEYS, args);
+        try {
+            while (cursor.moveToNext()) {
+                loadCell(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.rawQuery(SQL_LOAD_WAYPOINTS, args);
+        try {
+            mWaypoints = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+        // persisted counters may be outdated, e.g. by a former rollback
+        mChanged = true;
+        Log.i(TAG, "Loaded statistics of session " + session + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Clears memory and starts with an empty session
+     */
+    synchronized void reset(final int session) {
+        mSession = session;
+        mLoaded = true;
+        mChanged = false;
+        mWifis.clear();
+        mNewWifis.clear();
+        mCells.clear();
+        mWaypoints = 0;
+    }
+
+    synchronized void loadWifi(final String key, final boolean isNew) {
+        mWifis.add(key);
+        if (isNew) {
+            mNewWifis.add(key);
+        }
+    }
+
+    synchronized void loadCell(final String key) {
+        mCells.add(key);
+    }
+
+    /**
+     * Counts a wifi of current session
+     * @param catalogStatus {@link org.openbmap.db.models.WifiRecord#getCatalogStatusInt()}
+     * @return true, if wifi hasn't been seen in current session before
+     */
+    synchronized boolean addWifi(final String bssid, final String md5Ssid, final int catalogStatus) {
+        final String key = wifiKey(bssid, md5Ssid);
+        final boolean added = mWifis.add(key);
+        mChanged |= added;
+        if (catalogStatus == CatalogStatus.NEW.ordinal()) {
+            mChanged |= mNewWifis.add(key);
+        }
+        return added;
+    }
+
+    /**
+     * Counts a cell of current session. Cells without cell id (i.e. CDMA cells) aren't counted
+     */
+    synchronized void addCell(final int cellId, final int psc, final boolean isServing) {
+        if (cellId > -1) {
+            mChanged |= mCells.add(cellKey(cellId, psc, isServing));
+        }
+    }
+
+    /**
+     * Counts a waypoint in memory. Database is updated by {@link ContentProvider} with {@link #SQL_INCREMENT_WAYPOINTS}
+     */
+    synchronized void addWaypoint(final int session) {
+        if (mLoaded && mSession == session) {
+            mWaypoints++;
+        }
+    }
+
+    /**
+     * Writes wifi and cell counters of current session, if changed. Call within caller's transaction
+     */
+    synchronized void persist(final SQLiteDatabase db) {
+        if (!mLoaded || !mChanged) {
+            return;
+        }
+        db.execSQL(SQL_UPDATE_COUNTS, new Object[]{mWifis.size(), mNewWifis.size(), mCells.size(), mSession});
+        mChanged = false;
+    }
+
+    /**
+     * Discards memory, e.g. after a rolled back transaction or if session has been deleted.
+     * Statistics will be reloaded from database on next write
+     */
+    public synchronized void invalidate() {
+        mLoaded = false;
+        mChanged = false;
+        mWifis.clear();
+        mNewWifis.clear();
+        mCells.clear();
+        mWaypoints = 0;
+    }
+
+    /**
+     * @return number of distinct wifis or {@link #UNKNOWN}, if session isn't held in memory
+     */
+    public synchronized int getWifis(final int session) {
+        return mLoaded && mSession == session ? mWifis.size() : UNKNOWN;
+    }
+
+    /**
+     * @return number of distinct new wifis or {@link #UNKNOWN}, if session isn't held in memory
+     */
+    public synchronized int getNewWifis(final int session) {
+        return mLoaded && mSession == session ? mNewWifis.size() : UNKNOWN;
+    }
+
+    /**
+     * @return number of distinct cells or {@link #UNKNOWN}, if session isn't held in memory
+     */
+    public synchronized int getCells(final int session) {
+        return mLoaded && mSession == session ? mCells.size() : UNKNOWN;
+    }
+
+    /**
+     * @return number of waypoints or {@link #UNKNOWN}, if session isn't held in memory
+     */
+    public synchronized int getWaypoints(final int session) {
+        return mLoaded && mSession == session ? mWaypoints : UNKNOWN;
+    }
+}
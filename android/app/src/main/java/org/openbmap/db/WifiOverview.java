@@ -0,0 +1,252 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Materialized wifi overview: strongest measurement of each wifi per session.
+ *
+ * {@link Schema#TBL_WIFI_OVERVIEW} holds one row per session, bssid and md5 ssid with the strongest
+ * measurement's wifi row id, level and begin position, the session's lowest catalog status (i.e. new, if
+ * any measurement was new) and first and last seen timestamps. Rows are maintained by {@link ScanWriter}
+ * in the same transaction as the wifis, thus overview queries don't group the session's wifis anymore.
+ *
+ * Bssid and md5 ssid are stored as empty string instead of null, so they can be part of the unique key.
+ */
+public final class WifiOverview {
+
+    static final String CREATE_TABLE = "CREATE TABLE " + Schema.TBL_WIFI_OVERVIEW + " ("
+            + Schema.COL_SESSION_ID + " INTEGER NOT NULL, "
+            + Schema.COL_BSSID + " TEXT NOT NULL, "
+            + Schema.COL_MD5_SSID + " TEXT NOT NULL, "
+            + Schema.COL_WIFI_ID + " INTEGER NOT NULL, "
+            + Schema.COL_LEVEL + " INTEGER, "
+            + Schema.COL_SSID + " TEXT, "
+            + Schema.COL_CAPABILITIES + " TEXT, "
+            + Schema.COL_FREQUENCY + " INTEGER, "
+            + Schema.COL_TIMESTAMP + " LONG, "
+            + Schema.COL_BEGIN_POSITION_ID + " INTEGER, "
+            + Schema.COL_END_POSITION_ID + " INTEGER, "
+            + Schema.COL_LATITUDE + " DOUBLE, "
+            + Schema.COL_LONGITUDE + " DOUBLE, "
+            + Schema.COL_KNOWN_WIFI + " INTEGER, "
+            + Schema.COL_FIRST_SEEN + " LONG, "
+            + Schema.COL_LAST_SEEN + " LONG, "
+            + " FOREIGN KEY (" + Schema.COL_SESSION_ID + ") REFERENCES " + Schema.TBL_SESSIONS + "( " + Schema.COL_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    static final String CREATE_INDEX = "CREATE UNIQUE INDEX idx_wifi_overview ON " + Schema.TBL_WIFI_OVERVIEW
+            + " (" + Schema.COL_SESSION_ID + ", " + Schema.COL_BSSID + ", " + Schema.COL_MD5_SSID + ")";
+
+    /**
+     * Viewport queries on map
+     */
+    static final String CREATE_INDEX_POSITION = "CREATE INDEX idx_wifi_overview_position ON " + Schema.TBL_WIFI_OVERVIEW
+            + " (" + Schema.COL_SESSION_ID + ", " + Schema.COL_LATITUDE + ", " + Schema.COL_LONGITUDE + ")";
+
+    private static final String KEY = Schema.COL_SESSION_ID + " = ? AND " + Schema.COL_BSSID + " = ? AND " + Schema.COL_MD5_SSID + " = ?";
+
+    /**
+     * Args: session id, bssid, md5 ssid, wifi id, level, ssid, capabilities, frequency, timestamp, begin position id,
+     * end position id, latitude, longitude, catalog status, first seen, last seen
+     */
+    static final String SQL_INSERT = "INSERT OR IGNORE INTO " + Schema.TBL_WIFI_OVERVIEW + " ("
+            + Schema.COL_SESSION_ID + ", "
+            + Schema.COL_BSSID + ", "
+            + Schema.COL_MD5_SSID + ", "
+            + Schema.COL_WIFI_ID + ", "
+            + Schema.COL_LEVEL + ", "
+            + Schema.COL_SSID + ", "
+            + Schema.COL_CAPABILITIES + ", "
+            + Schema.COL_FREQUENCY + ", "
+            + Schema.COL_TIMESTAMP + ", "
+            + Schema.COL_BEGIN_POSITION_ID + ", "
+            + Schema.COL_END_POSITION_ID + ", "
+            + Schema.COL_LATITUDE + ", "
+            + Schema.COL_LONGITUDE + ", "
+            + Schema.COL_KNOWN_WIFI + ", "
+            + Schema.COL_FIRST_SEEN + ", "
+            + Schema.COL_LAST_SEEN
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Args: catalog status, timestamp, timestamp, session id, bssid, md5 ssid
+     */
+    static final String SQL_UPDATE_SEEN = "UPDATE " + Schema.TBL_WIFI_OVERVIEW + " SET "
+            + Schema.COL_KNOWN_WIFI + " = min(" + Schema.COL_KNOWN_WIFI + ", ?), "
+            + Schema.COL_FIRST_SEEN + " = min(" + Schema.COL_FIRST_SEEN + ", ?), "
+            + Schema.COL_LAST_SEEN + " = max(" + Schema.COL_LAST_SEEN + ", ?)"
+            + " WHERE " + KEY;
+
+    /**
+     * Replaces strongest measurement, if given level is stronger.
+     * Args: wifi id, level, ssid, capabilities, frequency, timestamp, begin position id, end position id,
+     * latitude, longitude, session id, bssid, md5 ssid, level
+     */
+    static final String SQL_UPDATE_STRONGEST = "UPDATE " + Schema.TBL_WIFI_OVERVIEW + " SET "
+            + Schema.COL_WIFI_ID + " = ?, "
+            + Schema.COL_LEVEL + " = ?, "
+            + Schema.COL_SSID + " = ?, "
+            + Schema.COL_CAPABILITIES + " = ?, "
+            + Schema.COL_FREQUENCY + " = ?, "
+            + Schema.COL_TIMESTAMP + " = ?, "
+            + Schema.COL_BEGIN_POSITION_ID + " = ?, "
+            + Schema.COL_END_POSITION_ID + " = ?, "
+            + Schema.COL_LATITUDE + " = ?, "
+            + Schema.COL_LONGITUDE + " = ?"
+            + " WHERE " + KEY + " AND " + Schema.COL_LEVEL + " < ?";
+
+    /**
+     * Filters wifis of a single overview row. Args: session id, bssid, md5 ssid
+     */
+    private static final String WIFI_KEY_FILTER = "w." + Schema.COL_SESSION_ID + " = ? AND ifnull(w." + Schema.COL_BSSID + ", '') = ?"
+            + " AND ifnull(w." + Schema.COL_MD5_SSID + ", '') = ?";
+
+    /**
+     * Recounts distinct and new wifis of given sessions from overview. Format arg: filter on sessions
+     */
+    private static final String SQL_RECOUNT_SESSIONS = "UPDATE " + Schema.TBL_SESSIONS + " SET "
+            + Schema.COL_NUMBER_OF_WIFIS + " = (SELECT count(*) FROM " + Schema.TBL_WIFI_OVERVIEW
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID + "), "
+            + Schema.COL_NUMBER_OF_NEW_WIFIS + " = (SELECT count(*) FROM " + Schema.TBL_WIFI_OVERVIEW
+            + " WHERE " + Schema.COL_SESSION_ID + " = " + Schema.TBL_SESSIONS + "." + Schema.COL_ID
+            + " AND " + Schema.COL_KNOWN_WIFI + " = 0)"
+            + " WHERE %s";
+
+    /**
+     * Refreshes catalog status of all overview rows whose wifis match a filter. Format arg: wifi filter
+     */
+    private static final String SQL_REFRESH_STATUS = "UPDATE " + Schema.TBL_WIFI_OVERVIEW + " SET "
+            + Schema.COL_KNOWN_WIFI + " = (SELECT MIN(w." + Schema.COL_KNOWN_WIFI + ") FROM " + Schema.TBL_WIFIS + " AS w"
+            + " WHERE w." + Schema.COL_SESSION_ID + " = " + Schema.TBL_WIFI_OVERVIEW + "." + Schema.COL_SESSION_ID
+            + " AND w." + Schema.COL_BSSID + " = " + Schema.TBL_WIFI_OVERVIEW + "." + Schema.COL_BSSID
+            + " AND ifnull(w." + Schema.COL_MD5_SSID + ", '') = " + Schema.TBL_WIFI_OVERVIEW + "." + Schema.COL_MD5_SSID + ")"
+            + " WHERE " + Schema.COL_BSSID + " IN (SELECT " + Schema.COL_BSSID + " FROM " + Schema.TBL_WIFIS + " WHERE %s)";
+
+    private WifiOverview() {
+    }
+
+    /**
+     * Statement building overview rows from wifis. Strongest measurement and aggregates are selected separately,
+     * as sqlite only guarantees bare columns of a single max() aggregate to belong to the max row
+     * @param filter filter on wifis (table alias w) or null for all wifis. Filter args have to be passed twice
+     */
+    static String buildStatement(final String filter) {
+        final String where = filter == null ? "" : " WHERE " + filter;
+        final String key = "w." + Schema.COL_SESSION_ID + " AS " + Schema.COL_SESSION_ID + ", "
+                + "ifnull(w." + Schema.COL_BSSID + ", '') AS " + Schema.COL_BSSID + ", "
+                + "ifnull(w." + Schema.COL_MD5_SSID + ", '') AS " + Schema.COL_MD5_SSID;
+        return "INSERT INTO " + Schema.TBL_WIFI_OVERVIEW + " ("
+                + Schema.COL_SESSION_ID + ", "
+                + Schema.COL_BSSID + ", "
+                + Schema.COL_MD5_SSID + ", "
+                + Schema.COL_WIFI_ID + ", "
+                + Schema.COL_LEVEL + ", "
+                + Schema.COL_SSID + ", "
+                + Schema.COL_CAPABILITIES + ", "
+                + Schema.COL_FREQUENCY + ", "
+                + Schema.COL_TIMESTAMP + ", "
+                + Schema.COL_BEGIN_POSITION_ID + ", "
+                + Schema.COL_END_POSITION_ID + ", "
+                + Schema.COL_LATITUDE + ", "
+                + Schema.COL_LONGITUDE + ", "
+                + Schema.COL_KNOWN_WIFI + ", "
+                + Schema.COL_FIRST_SEEN + ", "
+                + Schema.COL_LAST_SEEN + ")"
+                + " SELECT s.*, a.known, a.first_seen, a.last_seen FROM"
+                + " (SELECT " + key + ", w." + Schema.COL_ID + ", MAX(w." + Schema.COL_LEVEL + "), w." + Schema.COL_SSID
+                + ", w." + Schema.COL_CAPABILITIES + ", w." + Schema.COL_FREQUENCY + ", w." + Schema.COL_TIMESTAMP
+                + ", w." + Schema.COL_BEGIN_POSITION_ID + ", w." + Schema.COL_END_POSITION_ID
+                + ", b." + Schema.COL_LATITUDE + ", b." + Schema.COL_LONGITUDE
+                + " FROM " + Schema.TBL_WIFIS + " AS w JOIN " + Schema.TBL_POSITIONS + " AS b"
+                + " ON w." + Schema.COL_BEGIN_POSITION_ID + " = b." + Schema.COL_ID + where + " GROUP BY 1, 2, 3) AS s"
+                + " JOIN (SELECT " + key + ", MIN(w." + Schema.COL_KNOWN_WIFI + ") AS known"
+                + ", MIN(w." + Schema.COL_TIMESTAMP + ") AS first_seen, MAX(w." + Schema.COL_TIMESTAMP + ") AS last_seen"
+                + " FROM " + Schema.TBL_WIFIS + " AS w" + where + " GROUP BY 1, 2, 3) AS a"
+                + " ON s." + Schema.COL_SESSION_ID + " = a." + Schema.COL_SESSION_ID
+                + " AND s." + Schema.COL_BSSID + " = a." + Schema.COL_BSSID
+                + " AND s." + Schema.COL_MD5_SSID + " = a." + Schema.COL_MD5_SSID;
+    }
+
+    /**
+     * Creates and fills overview table from all wifis, used on database creation and upgrade
+     */
+    static void create(final SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Schema.TBL_WIFI_OVERVIEW);
+        db.execSQL(CREATE_TABLE);
+        db.execSQL(buildStatement(null));
+        db.execSQL(CREATE_INDEX);
+        db.execSQL(CREATE_INDEX_POSITION);
+    }
+
+    /**
+     * Updates catalog status and new wifi counters after wifis' catalog status has been changed
+     * @param db database, opened for writing
+     * @param selection filter on wifis, which have been updated, or null for all wifis
+     * @param selectionArgs filter args
+     */
+    static void refreshStatus(final SQLiteDatabase db, final String selection, final String[] selectionArgs) {
+        final String filter = selection == null ? "1" : selection;
+        final Object[] args = selectionArgs == null ? new Object[0] : selectionArgs;
+        db.beginTransaction();
+        try {
+            db.execSQL(String.format(SQL_REFRESH_STATUS, filter), args);
+            db.execSQL(String.format(SQL_RECOUNT_SESSIONS, Schema.COL_ID + " IN (SELECT " + Schema.COL_SESSION_ID
+                    + " FROM " + Schema.TBL_WIFIS + " WHERE " + filter + ")"), args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes a single wifi measurement and rebuilds its overview row
+     * @param db database, opened for writing
+     * @param id wifi id
+     * @return number of deleted wifis
+     */
+    static int deleteWifi(final SQLiteDatabase db, final long id) {
+        db.beginTransaction();
+        try {
+            final Cursor cursor = db.query(Schema.TBL_WIFIS, new String[]{Schema.COL_SESSION_ID, Schema.COL_BSSID, Schema.COL_MD5_SSID},
+                    Schema.COL_ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+            final String[] key = cursor.moveToFirst()
+                    ? new String[]{cursor.getString(0), nullToEmpty(cursor.getString(1)), nullToEmpty(cursor.getString(2))}
+                    : null;
+            cursor.close();
+
+            final int rows = db.delete(Schema.TBL_WIFIS, Schema.COL_ID + " = ?", new String[]{String.valueOf(id)});
+            if (key != null) {
+                db.delete(Schema.TBL_WIFI_OVERVIEW, KEY, key);
+                db.execSQL(buildStatement(WIFI_KEY_FILTER), new Object[]{key[0], key[1], key[2], key[0], key[1], key[2]});
+                db.execSQL(String.format(SQL_RECOUNT_SESSIONS, Schema.COL_ID + " = ?"), new Object[]{key[0]});
+            }
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+}
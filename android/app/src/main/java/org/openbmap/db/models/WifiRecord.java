@@ -22,8 +22,17 @@ import android.util.Log;
 
 import org.openbmap.RadioBeacon;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Model for wifi records
@@ -34,6 +43,102 @@ public class WifiRecord extends AbstractLogEntry<WifiRecord> {
 
 	public enum CatalogStatus {NEW, OPENBMAP, LOCAL}
 
+	/**
+	 * Max. number of recycled records kept for re-use
+	 */
+	private static final int POOL_SIZE = 256;
+
+	/**
+	 * Max. number of recent ssid hashes kept
+	 */
+	private static final int MD5_CACHE_SIZE = 256;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Recycled records
+	 */
+	private static final WifiRecord[] sPool = new WifiRecord[POOL_SIZE];
+	private static int sPoolSize = 0;
+
+	/**
+	 * Upper-case md5 by ssid, least recently used first
+	 */
+	private static final Map<String, String> sMd5Cache = new LinkedHashMap<String, String>(MD5_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+			return size() > MD5_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Hasher per thread, as MessageDigest and CharsetEncoder aren't thread-safe
+	 */
+	private static final ThreadLocal<Md5> sMd5 = new ThreadLocal<Md5>() {
+		@Override
+		protected Md5 initialValue() {
+			try {
+				return new Md5(MessageDigest.getInstance("MD5"));
+			} catch (NoSuchAlgorithmException e) {
+				Log.e(TAG, e.toString(), e);
+				return null;
+			}
+		}
+	};
+
+	/**
+	 * Md5 of UTF-8 encoded strings. Encoder, buffers and digest are re-used, so hashing only allocates the result
+	 */
+	private static final class Md5 {
+		private static final int DIGEST_LENGTH = 16;
+
+		private final MessageDigest mDigest;
+		private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final byte[] mResult = new byte[DIGEST_LENGTH];
+		private final char[] mHex = new char[2 * DIGEST_LENGTH];
+		private CharBuffer mChars = CharBuffer.allocate(64);
+		private ByteBuffer mBytes = ByteBuffer.allocate(64 * 3);
+
+		private Md5(final MessageDigest digest) {
+			mDigest = digest;
+		}
+
+		private String hash(final String source) {
+			if (mChars.capacity() < source.length()) {
+				mChars = CharBuffer.allocate(source.length());
+				mBytes = ByteBuffer.allocate((int) Math.ceil(source.length() * mEncoder.maxBytesPerChar()));
+			}
+			mChars.clear();
+			mChars.put(source);
+			mChars.flip();
+			mBytes.clear();
+			mEncoder.reset();
+			mEncoder.encode(mChars, mBytes, true);
+			mEncoder.flush(mBytes);
+			mBytes.flip();
+			mDigest.update(mBytes);
+			try {
+				mDigest.digest(mResult, 0, DIGEST_LENGTH);
+			} catch (final DigestException e) {
+				Log.e(TAG, e.toString(), e);
+				return "";
+			}
+
+			// Create Hex String
+			int length = 0;
+			for (final byte b : mResult) {
+				final int value = 0xFF & b;
+				if (value >= 0x10) {
+					mHex[length++] = HEX_DIGITS[value >>> 4];
+				}
+				mHex[length++] = HEX_DIGITS[value & 0x0F];
+			}
+			return new String(mHex, 0, length);
+		}
+	}
+
 	private String mBSsid;
 	private String mSsid;
 	private String mCapabilities;
@@ -64,6 +169,41 @@ public class WifiRecord extends AbstractLogEntry<WifiRecord> {
 
 	}
 
+	/**
+	 * Returns a recycled record or a new one, if none available
+	 */
+	public static WifiRecord obtain() {
+		synchronized (sPool) {
+			if (sPoolSize > 0) {
+				final WifiRecord wifi = sPool[--sPoolSize];
+				sPool[sPoolSize] = null;
+				return wifi;
+			}
+		}
+		return new WifiRecord();
+	}
+
+	/**
+	 * Returns record to pool. Record must not be used afterwards
+	 */
+	public final void recycle() {
+		mBSsid = null;
+		mSsid = null;
+		mCapabilities = null;
+		mFrequency = 0;
+		mLevel = 0;
+		mOpenBmapTimestamp = 0;
+		mBeginPosition = null;
+		mEndPosition = null;
+		mSessionID = 0;
+		mCatalogStatus = null;
+		synchronized (sPool) {
+			if (sPoolSize < POOL_SIZE) {
+				sPool[sPoolSize++] = this;
+			}
+		}
+	}
+
 	/**
 	 * Initialises Wifi Record without setting session id
 	 */
@@ -116,7 +256,8 @@ public class WifiRecord extends AbstractLogEntry<WifiRecord> {
      * Please note: bssid are always convert to UPPERCASE
      */
 	public final String getBssid() {
-		return mBSsid.toUpperCase();
+		// already converted in setter
+		return mBSsid;
 	}
 
     /**
@@ -135,9 +276,20 @@ public class WifiRecord extends AbstractLogEntry<WifiRecord> {
     /**
      * Returns hashed bssid
      * Please note: hashed bssid is always convert to UPPERCASE
+     * Hashes of recent ssids are cached, as the same ssids are seen scan after scan
      */
 	public final String getMd5Ssid() {
-		return md5(mSsid).toUpperCase();
+		synchronized (sMd5Cache) {
+			final String cached = sMd5Cache.get(mSsid);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		final String md5 = md5(mSsid).toUpperCase(Locale.US);
+		synchronized (sMd5Cache) {
+			sMd5Cache.put(mSsid, md5);
+		}
+		return md5;
 	}
 
 	public final void setSsid(final String ssid) {
@@ -212,24 +364,15 @@ public class WifiRecord extends AbstractLogEntry<WifiRecord> {
 		return mCatalogStatus.ordinal();
 	}
 
+	/**
+	 * Md5 hash of UTF-8 encoded source as lower-case hex string. Please note: leading zeros of each byte are omitted
+	 */
 	public static String md5(final String source) {
-		try {
-			// Create MD5 Hash
-			MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-			digest.update(source.getBytes());
-			byte[] messageDigest = digest.digest();
-
-			// Create Hex String
-			StringBuffer hexString = new StringBuffer();
-			for (int i = 0; i < messageDigest.length; i++) {
-				hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
-			}
-			return hexString.toString();
-
-		} catch (NoSuchAlgorithmException e) {
-			Log.e(TAG, e.toString(), e);
+		final Md5 md5 = sMd5.get();
+		if (md5 == null) {
+			return "";
 		}
-		return "";
+		return md5.hash(source);
 	}
 
 
@@ -0,0 +1,40 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.events;
+
+/**
+ * Fired by scan writer after a batch of scans has been committed, i.e. session counters and
+ * database include the new wifis and cells. Posted on writer thread
+ */
+public class onScansWritten {
+
+    public final boolean hasWifis;
+    public final boolean hasCells;
+
+    /**
+     * Positions of new wifis as latitude/longitude pairs
+     */
+    public final double[] wifiPositions;
+
+    public onScansWritten(final boolean hasWifis, final boolean hasCells, final double[] wifiPositions) {
+        this.hasWifis = hasWifis;
+        this.hasCells = hasCells;
+        this.wifiPositions = wifiPositions;
+    }
+}
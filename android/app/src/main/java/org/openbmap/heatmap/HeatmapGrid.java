@@ -0,0 +1,189 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Heat-map accumulation and coloring in plain java.
+ *
+ * Each point stamps a {@link HeatmapKernel} into an intensity grid. Stamps are blended like alpha
+ * compositing (source over), so overlapping points saturate instead of overflowing. Intensities are
+ * mapped to heat colors with a 256 entry lookup table.
+ *
+ * Not thread-safe, use one grid per thread.
+ */
+public class HeatmapGrid {
+
+	/**
+	 * Heat color by intensity (0..255), as ARGB
+	 */
+	static final int[] COLORS = createColors();
+
+	/**
+	 * Min. rows per band for parallel coloring
+	 */
+	private static final int MIN_BAND_ROWS = 16;
+
+	private final int mWidth;
+
+	private final int mHeight;
+
+	private final HeatmapKernel mKernel;
+
+	/**
+	 * Intensity per pixel (0..1), row by row
+	 */
+	private final float[] mIntensities;
+
+	public HeatmapGrid(final int width, final int height, final HeatmapKernel kernel) {
+		mWidth = width;
+		mHeight = height;
+		mKernel = kernel;
+		mIntensities = new float[width * height];
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Stamps kernel centered at given position, clipped to grid
+	 * @param x center x (in pixels)
+	 * @param y center y (in pixels)
+	 * @param alpha center intensity (0..255)
+	 */
+	public void add(final float x, final float y, final int alpha) {
+		final float scale = alpha / 255f;
+		final int radius = mKernel.mRadius;
+		final int centerX = Math.round(x);
+		final int centerY = Math.round(y);
+		final int firstY = Math.max(0, centerY - radius);
+		final int lastY = Math.min(mHeight - 1, centerY + radius);
+
+		final float[] weights = mKernel.mWeights;
+		for (int row = firstY; row <= lastY; row++) {
+			// skip zero weights in stamp's corners
+			final int stampRow = row - centerY + radius;
+			final int extent = mKernel.mExtents[stampRow];
+			final int firstX = Math.max(0, centerX - extent);
+			final int lastX = Math.min(mWidth - 1, centerX + extent);
+			int pixel = row * mWidth + firstX;
+			int weight = stampRow * mKernel.mSize + firstX - centerX + radius;
+			for (int column = firstX; column <= lastX; column++, pixel++, weight++) {
+				final float source = weights[weight] * scale;
+				mIntensities[pixel] += source * (1f - mIntensities[pixel]);
+			}
+		}
+	}
+
+	/**
+	 * Intensity at given pixel (0..255)
+	 */
+	public int getIntensity(final int x, final int y) {
+		return toByte(mIntensities[y * mWidth + x]);
+	}
+
+	/**
+	 * Maps intensities to heat colors
+	 * @param pixels receives ARGB colors, row by row, at least width * height
+	 */
+	public void colorize(final int[] pixels) {
+		colorizeRows(pixels, 0, mHeight);
+	}
+
+	/**
+	 * Maps intensities to heat colors, bands of rows in parallel
+	 * @param pixels receives ARGB colors, row by row, at least width * height
+	 * @param executor runs bands
+	 * @param bands number of bands, usually number of cores
+	 */
+	public void colorize(final int[] pixels, final ExecutorService executor, final int bands) throws InterruptedException {
+		final int rows = Math.max(MIN_BAND_ROWS, (mHeight + bands - 1) / bands);
+		final List<Future<Void>> futures = new ArrayList<>();
+		for (int first = 0; first < mHeight; first += rows) {
+			final int start = first;
+			final int end = Math.min(mHeight, first + rows);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					colorizeRows(pixels, start, end);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (final Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException("Heat-map coloring failed", e.getCause());
+		}
+	}
+
+	private void colorizeRows(final int[] pixels, final int firstRow, final int endRow) {
+		for (int i = firstRow * mWidth; i < endRow * mWidth; i++) {
+			pixels[i] = COLORS[toByte(mIntensities[i])];
+		}
+	}
+
+	private static int toByte(final float intensity) {
+		return (int) (intensity * 255f + 0.5f);
+	}
+
+	/**
+	 * Blue for low intensities, via cyan, green and yellow to red for high intensities, half transparent
+	 */
+	private static int[] createColors() {
+		final int[] colors = new int[256];
+		for (int alpha = 1; alpha < colors.length; alpha++) {
+			int r = 0, g = 0, b = 0, tmp;
+			if (alpha >= 235) {
+				tmp = 255 - alpha;
+				r = 255 - tmp;
+				g = tmp * 12;
+			} else if (alpha >= 200) {
+				tmp = 234 - alpha;
+				r = (int) (255f - (tmp * 7.5f));
+				g = 255;
+			} else if (alpha >= 150) {
+				tmp = 199 - alpha;
+				g = 255;
+				b = tmp * 5;
+			} else if (alpha >= 100) {
+				tmp = 149 - alpha;
+				g = 255 - (tmp * 5);
+				b = 255;
+			} else {
+				b = 255;
+			}
+			colors[alpha] = (alpha / 2) << 24 | r << 16 | g << 8 | b;
+		}
+		return colors;
+	}
+}
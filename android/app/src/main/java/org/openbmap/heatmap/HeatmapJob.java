@@ -0,0 +1,71 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.queue.Job;
+
+/**
+ * Heat-map tile job. Besides the tile, jobs are identified by heat-map source (e.g. a single wifi)
+ * and data version, so cached tiles of other sources or outdated data are never reused.
+ *
+ * Key keeps the three level layout zoom/x/y expected by mapsforge's file system cache,
+ * so cached tiles are found again after restart.
+ */
+public class HeatmapJob extends Job {
+
+	private final String mKey;
+
+	/**
+	 * Renders this job's data version
+	 */
+	final HeatmapTileRenderer mRenderer;
+
+	/**
+	 * @param tile map tile
+	 * @param source heat-map source, must be a valid file name
+	 * @param renderer renderer for current data
+	 */
+	public HeatmapJob(final Tile tile, final String source, final HeatmapTileRenderer renderer) {
+		super(tile, true);
+		mRenderer = renderer;
+		mKey = composeKey(source + "_" + renderer.getVersion() + "_" + tile.zoomLevel, String.valueOf(tile.tileX), String.valueOf(tile.tileY));
+	}
+
+	@Override
+	public String getKey() {
+		return mKey;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof HeatmapJob)) {
+			return false;
+		}
+		return mKey.equals(((HeatmapJob) obj).mKey) && super.equals(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * super.hashCode() + mKey.hashCode();
+	}
+}
@@ -0,0 +1,62 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+/**
+ * Precomputed radial kernel stamp: weight falls linearly from 1 at the center to 0 at the radius,
+ * like a radial gradient from opaque to transparent
+ */
+public final class HeatmapKernel {
+
+	/**
+	 * Stamp radius (in pixels), stamp edge length is 2 * radius + 1
+	 */
+	final int mRadius;
+
+	final int mSize;
+
+	/**
+	 * Weights, row by row
+	 */
+	final float[] mWeights;
+
+	/**
+	 * Per stamp row: horizontal offset of first non-zero weight from center, rows are symmetric
+	 */
+	final int[] mExtents;
+
+	/**
+	 * @param radius kernel radius (in pixels)
+	 */
+	public HeatmapKernel(final float radius) {
+		mRadius = (int) Math.ceil(radius);
+		mSize = 2 * mRadius + 1;
+		mWeights = new float[mSize * mSize];
+		mExtents = new int[mSize];
+		for (int y = 0; y < mSize; y++) {
+			for (int x = 0; x < mSize; x++) {
+				final double distance = Math.hypot(x - mRadius, y - mRadius);
+				mWeights[y * mSize + x] = distance < radius ? (float) (1.0 - distance / radius) : 0f;
+				if (mWeights[y * mSize + x] > 0f) {
+					mExtents[y] = Math.max(mExtents[y], Math.abs(x - mRadius));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.TileLayer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.MapViewPosition;
+import org.mapsforge.map.model.common.Observer;
+
+import java.util.List;
+
+/**
+ * Heat-map layer, rendered tile by tile in background.
+ *
+ * Rendered tiles are kept in a tile cache (usually memory and disk, both LRU), keyed by source, data version
+ * and tile. Panning only renders tiles entering the viewport, zooming back reuses cached tiles.
+ * While a tile is rendered, parent tiles from cache are drawn scaled instead.
+ *
+ * Like {@link org.mapsforge.map.layer.download.TileDownloadLayer}: call {@link #onResume()}, {@link #onPause()}
+ * and {@link #onDestroy()} from fragment lifecycle.
+ */
+public class HeatmapLayer extends TileLayer<HeatmapJob> implements Observer {
+
+	private final GraphicFactory mGraphicFactory;
+
+	private final TileCache mTileCache;
+
+	private final String mSource;
+
+	private final float mRadius;
+
+	private HeatmapTileRenderer mRenderer;
+
+	private HeatmapTileThread mThread;
+
+	private boolean mStarted;
+
+	/**
+	 * @param tileCache cache for rendered tiles
+	 * @param source heat-map source (e.g. wifi or cell), must be a valid file name
+	 * @param points heat points
+	 * @param radius heat radius (in pixels)
+	 */
+	public HeatmapLayer(final TileCache tileCache, final MapViewPosition mapViewPosition, final GraphicFactory graphicFactory,
+			final String source, final List<HeatLatLong> points, final float radius) {
+		super(tileCache, mapViewPosition, graphicFactory.createMatrix(), true);
+		mTileCache = tileCache;
+		mGraphicFactory = graphicFactory;
+		mSource = source;
+		mRadius = radius;
+		mRenderer = new HeatmapTileRenderer(points, radius);
+	}
+
+	/**
+	 * Replaces heat points. Cached tiles of previous data aren't used anymore
+	 */
+	public synchronized void setPoints(final List<HeatLatLong> points) {
+		mRenderer = new HeatmapTileRenderer(points, mRadius);
+		requestRedraw();
+	}
+
+	@Override
+	public synchronized void setDisplayModel(final DisplayModel displayModel) {
+		super.setDisplayModel(displayModel);
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+		if (displayModel != null) {
+			mThread = new HeatmapTileThread(mTileCache, jobQueue, this, mGraphicFactory);
+			if (mStarted) {
+				mThread.start();
+			}
+		}
+	}
+
+	public synchronized void start() {
+		if (mThread != null && !mThread.isAlive()) {
+			mThread.start();
+		}
+		mStarted = true;
+	}
+
+	public synchronized void onResume() {
+		if (!mStarted) {
+			start();
+		}
+		if (mThread != null) {
+			mThread.proceed();
+		}
+	}
+
+	public synchronized void onPause() {
+		if (mThread != null) {
+			mThread.pause();
+		}
+	}
+
+	@Override
+	public synchronized void onDestroy() {
+		if (mThread != null) {
+			mThread.interrupt();
+		}
+		super.onDestroy();
+	}
+
+	@Override
+	protected synchronized HeatmapJob createJob(final Tile tile) {
+		return new HeatmapJob(tile, mSource, mRenderer);
+	}
+
+	/**
+	 * Data version is part of cache key, so cached tiles never become stale
+	 */
+	@Override
+	protected boolean isTileStale(final Tile tile, final TileBitmap bitmap) {
+		return false;
+	}
+
+	@Override
+	protected void onAdd() {
+		mTileCache.addObserver(this);
+		super.onAdd();
+	}
+
+	@Override
+	protected void onRemove() {
+		mTileCache.removeObserver(this);
+		super.onRemove();
+	}
+
+	@Override
+	public void onChange() {
+		requestRedraw();
+	}
+}
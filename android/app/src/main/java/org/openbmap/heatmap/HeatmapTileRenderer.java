@@ -0,0 +1,272 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+import android.graphics.Bitmap;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Renders single heat-map tiles.
+ *
+ * Points are projected to map pixels and sorted by tile once per zoom level. A tile is rendered from all
+ * points within heat radius of the tile, so adjacent tiles fit seamlessly. Only points of the tile and its
+ * neighbours are visited. Heat is accumulated and colored by {@link HeatmapGrid}, the bitmap is only
+ * written once per tile.
+ *
+ * Thread-safe, tiles may be rendered in parallel.
+ */
+public class HeatmapTileRenderer {
+
+	private final double[] mLatitudes;
+	private final double[] mLongitudes;
+	private final int[] mIntensities;
+
+	private final float mRadius;
+
+	private final String mVersion;
+
+	/**
+	 * Bits reserved for point index in sorted tile keys
+	 */
+	private static final int INDEX_BITS = 21;
+
+	/**
+	 * Projection of last zoom level
+	 */
+	private Projection mProjection;
+
+	/**
+	 * Kernel stamp of heat radius, shared by all tiles
+	 */
+	private final HeatmapKernel mKernel;
+
+	/**
+	 * @param points heat points, copied
+	 * @param radius heat radius (in pixels)
+	 */
+	public HeatmapTileRenderer(final List<HeatLatLong> points, final float radius) {
+		mLatitudes = new double[points.size()];
+		mLongitudes = new double[points.size()];
+		mIntensities = new int[points.size()];
+		mRadius = radius;
+		mKernel = new HeatmapKernel(radius);
+
+		long hash = Float.floatToIntBits(radius);
+		for (int i = 0; i < mLatitudes.length; i++) {
+			final HeatLatLong point = points.get(i);
+			mLatitudes[i] = point.latitude;
+			mLongitudes[i] = point.longitude;
+			mIntensities[i] = point.getIntensity();
+			hash = 31 * hash + Double.doubleToLongBits(point.latitude);
+			hash = 31 * hash + Double.doubleToLongBits(point.longitude);
+			hash = 31 * hash + point.getIntensity();
+		}
+		mVersion = String.format(Locale.US, "%d%016x", mLatitudes.length, hash);
+	}
+
+	/**
+	 * Data version: same points and radius always yield the same version, also after restart
+	 */
+	public String getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Points projected to map pixels on a single zoom level
+	 */
+	private static final class Projection {
+		final byte zoom;
+		final int tileSize;
+
+		/**
+		 * x and y in map pixels
+		 */
+		final double[] pixels;
+
+		/**
+		 * Tile number relative to data's top left tile, followed by point index, in ascending order.
+		 * Null if data spans too many tiles, all points are visited then
+		 */
+		long[] sorted;
+		long minTileX;
+		long minTileY;
+		long columns;
+
+		Projection(final byte zoom, final int tileSize, final double[] pixels) {
+			this.zoom = zoom;
+			this.tileSize = tileSize;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * Collects points affecting a tile
+	 * @param tile map tile
+	 * @param out receives x and y (relative to tile origin, in pixels) and intensity per point, at least 3 * point count
+	 * @return number of points
+	 */
+	int collect(final Tile tile, final float[] out) {
+		final Projection projection = project(tile.zoomLevel, tile.tileSize);
+		final double left = (double) tile.tileX * tile.tileSize;
+		final double top = (double) tile.tileY * tile.tileSize;
+
+		if (projection.sorted == null) {
+			int count = 0;
+			for (int i = 0; i < mIntensities.length; i++) {
+				count = add(projection.pixels, i, left, top, tile.tileSize, out, count);
+			}
+			return count;
+		}
+
+		// neighbour tiles within heat radius
+		final long span = (long) Math.ceil(mRadius / tile.tileSize);
+		int count = 0;
+		for (long y = tile.tileY - span; y <= tile.tileY + span; y++) {
+			for (long x = tile.tileX - span; x <= tile.tileX + span; x++) {
+				final long row = y - projection.minTileY;
+				final long column = x - projection.minTileX;
+				if (row < 0 || column < 0 || column >= projection.columns) {
+					continue;
+				}
+				final long key = (row * projection.columns + column) << INDEX_BITS;
+				int pos = Arrays.binarySearch(projection.sorted, key);
+				if (pos < 0) {
+					pos = -pos - 1;
+				}
+				while (pos < projection.sorted.length && projection.sorted[pos] >>> INDEX_BITS == key >>> INDEX_BITS) {
+					final int i = (int) (projection.sorted[pos] & ((1L << INDEX_BITS) - 1));
+					count = add(projection.pixels, i, left, top, tile.tileSize, out, count);
+					pos++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds point to out, if within heat radius of tile
+	 * @return new number of points
+	 */
+	private int add(final double[] pixels, final int i, final double left, final double top, final int tileSize,
+			final float[] out, final int count) {
+		final double x = pixels[2 * i] - left;
+		final double y = pixels[2 * i + 1] - top;
+		if (x > -mRadius && x < tileSize + mRadius && y > -mRadius && y < tileSize + mRadius) {
+			out[3 * count] = (float) x;
+			out[3 * count + 1] = (float) y;
+			out[3 * count + 2] = mIntensities[i];
+			return count + 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Renders tile into ARGB pixels
+	 * @param tile map tile
+	 * @return pixels row by row, or null if no point affects this tile
+	 */
+	int[] renderPixels(final Tile tile) {
+		final float[] points = new float[3 * mIntensities.length];
+		final int count = collect(tile, points);
+		if (count == 0) {
+			return null;
+		}
+
+		final HeatmapGrid grid = new HeatmapGrid(tile.tileSize, tile.tileSize, mKernel);
+		for (int i = 0; i < count; i++) {
+			grid.add(points[3 * i], points[3 * i + 1], centerAlpha((int) points[3 * i + 2]));
+		}
+		final int[] pixels = new int[tile.tileSize * tile.tileSize];
+		grid.colorize(pixels);
+		return pixels;
+	}
+
+	/**
+	 * Renders tile into bitmap
+	 * @param tile map tile
+	 * @param target transparent bitmap of tile size
+	 * @return false if no point affects this tile, target is unchanged then
+	 */
+	public boolean render(final Tile tile, final Bitmap target) {
+		final int[] pixels = renderPixels(tile);
+		if (pixels == null) {
+			return false;
+		}
+		target.setPixels(pixels, 0, tile.tileSize, 0, 0, tile.tileSize, tile.tileSize);
+		return true;
+	}
+
+	/**
+	 * Projects all points on given zoom level and sorts them by tile, computed once per zoom level
+	 */
+	private synchronized Projection project(final byte zoom, final int tileSize) {
+		if (mProjection != null && mProjection.zoom == zoom && mProjection.tileSize == tileSize) {
+			return mProjection;
+		}
+
+		final long mapSize = MercatorProjection.getMapSize(zoom, tileSize);
+		final double[] pixels = new double[2 * mIntensities.length];
+		long minTileX = Long.MAX_VALUE;
+		long minTileY = Long.MAX_VALUE;
+		long maxTileX = Long.MIN_VALUE;
+		long maxTileY = Long.MIN_VALUE;
+		for (int i = 0; i < mIntensities.length; i++) {
+			pixels[2 * i] = MercatorProjection.longitudeToPixelX(mLongitudes[i], mapSize);
+			pixels[2 * i + 1] = MercatorProjection.latitudeToPixelY(mLatitudes[i], mapSize);
+			final long tileX = (long) (pixels[2 * i] / tileSize);
+			final long tileY = (long) (pixels[2 * i + 1] / tileSize);
+			minTileX = Math.min(minTileX, tileX);
+			minTileY = Math.min(minTileY, tileY);
+			maxTileX = Math.max(maxTileX, tileX);
+			maxTileY = Math.max(maxTileY, tileY);
+		}
+
+		final Projection projection = new Projection(zoom, tileSize, pixels);
+		final long columns = maxTileX - minTileX + 1;
+		final long tiles = columns * (maxTileY - minTileY + 1);
+		if (mIntensities.length > 0 && mIntensities.length < 1 << INDEX_BITS && tiles < 1L << (63 - INDEX_BITS)) {
+			final long[] sorted = new long[mIntensities.length];
+			for (int i = 0; i < sorted.length; i++) {
+				final long tile = ((long) (pixels[2 * i + 1] / tileSize) - minTileY) * columns
+						+ (long) (pixels[2 * i] / tileSize) - minTileX;
+				sorted[i] = tile << INDEX_BITS | i;
+			}
+			Arrays.sort(sorted);
+			projection.sorted = sorted;
+			projection.minTileX = minTileX;
+			projection.minTileY = minTileY;
+			projection.columns = columns;
+		}
+		mProjection = projection;
+		return projection;
+	}
+
+	/**
+	 * Center alpha of a point, same as former gradient paint's center color Color.argb(max(10 * times, 255), 0, 0, 0)
+	 */
+	static int centerAlpha(final int times) {
+		return Math.max(10 * times, 255) & 0xff;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.heatmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.layer.Layer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.JobQueue;
+import org.mapsforge.map.util.PausableThread;
+
+/**
+ * Renders queued heat-map tiles into tile cache
+ */
+class HeatmapTileThread extends PausableThread {
+
+	private static final String TAG = HeatmapTileThread.class.getSimpleName();
+
+	private final TileCache mTileCache;
+
+	private final JobQueue<HeatmapJob> mJobQueue;
+
+	private final Layer mLayer;
+
+	private final GraphicFactory mGraphicFactory;
+
+	HeatmapTileThread(final TileCache tileCache, final JobQueue<HeatmapJob> jobQueue, final Layer layer,
+			final GraphicFactory graphicFactory) {
+		super();
+		mTileCache = tileCache;
+		mJobQueue = jobQueue;
+		mLayer = layer;
+		mGraphicFactory = graphicFactory;
+	}
+
+	@Override
+	protected void doWork() throws InterruptedException {
+		final HeatmapJob job = mJobQueue.get();
+		try {
+			if (!mTileCache.containsKey(job)) {
+				renderTile(job);
+			}
+		} catch (final RuntimeException e) {
+			// skip broken tile, otherwise thread dies and no further tiles are rendered
+			Log.e(TAG, "Error rendering heat-map tile " + job.getKey() + ": " + e.toString(), e);
+		} finally {
+			mJobQueue.remove(job);
+		}
+	}
+
+	private void renderTile(final HeatmapJob job) {
+		final long start = System.currentTimeMillis();
+		final TileBitmap tileBitmap = mGraphicFactory.createTileBitmap(job.tile.tileSize, true);
+		// tile bitmaps are recycled, clear previous content
+		final Bitmap bitmap = AndroidGraphicFactory.getBitmap(tileBitmap);
+		bitmap.eraseColor(Color.TRANSPARENT);
+
+		// empty tiles are cached too, so they aren't queued again
+		job.mRenderer.render(job.tile, bitmap);
+		tileBitmap.setTimestamp(System.currentTimeMillis());
+
+		mTileCache.put(job, tileBitmap);
+		tileBitmap.decrementRefCount();
+		mLayer.requestRedraw();
+		Log.v(TAG, "Rendered heat-map tile " + job.getKey() + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	@Override
+	protected ThreadPriority getThreadPriority() {
+		return ThreadPriority.BELOW_NORMAL;
+	}
+
+	@Override
+	protected boolean hasWork() {
+		return true;
+	}
+}
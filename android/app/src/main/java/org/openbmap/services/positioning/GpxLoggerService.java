@@ -26,7 +26,8 @@ import android.util.Log;
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.openbmap.RadioBeacon;
-import org.openbmap.db.DataHelper;
+import org.openbmap.db.ScanWriteQueue;
+import org.openbmap.db.ScanWriter;
 import org.openbmap.db.models.PositionRecord;
 import org.openbmap.events.onLocationUpdate;
 import org.openbmap.events.onStartGpx;
@@ -66,10 +67,10 @@ public class GpxLoggerService extends AbstractService {
 	 */
 	private int mSessionId = RadioBeacon.SESSION_NOT_TRACKING;
 
-	/*
-	 * DataHelper for persisting recorded information in database
+	/**
+	 * Persists trackpoints in background
 	 */
-	private DataHelper mDataHelper;
+	private ScanWriteQueue mWriteQueue;
 
 	@Override
 	public final void onCreate() {
@@ -82,7 +83,7 @@ public class GpxLoggerService extends AbstractService {
 		/*
 		 * Setting up database connection
 		 */
-		mDataHelper = new DataHelper(this);
+		mWriteQueue = ScanWriteQueue.acquire(this);
 	}
 
 	@Override
@@ -92,6 +93,9 @@ public class GpxLoggerService extends AbstractService {
 			stopTracking();
 		}
 
+		// writes pending trackpoints
+		mWriteQueue.release();
+
 		super.onDestroy();
 	}
 
@@ -108,7 +112,7 @@ public class GpxLoggerService extends AbstractService {
 		final PositionRecord pos = new PositionRecord(gpsLocation, mSessionId, source);
 
 		// so far we set end position = begin position
-		mDataHelper.storePosition(pos);
+		mWriteQueue.add(ScanWriter.Scan.trackpoint(pos));
 	}
 
 	@Override
@@ -140,6 +144,7 @@ public class GpxLoggerService extends AbstractService {
 		Log.d(TAG, "Stop tracking on session " + mSessionId);
 		mIsTracking = false;
 		mSessionId = RadioBeacon.SESSION_NOT_TRACKING;
+		mWriteQueue.flush();
 	}
 
 	/**
@@ -61,7 +61,11 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.openbmap.Preferences;
 import org.openbmap.RadioBeacon;
+import org.openbmap.db.CatalogDatabaseHelper;
+import org.openbmap.db.CatalogIndex;
 import org.openbmap.db.DataHelper;
+import org.openbmap.db.ScanWriteQueue;
+import org.openbmap.db.ScanWriter;
 import org.openbmap.db.models.CellRecord;
 import org.openbmap.db.models.LogFile;
 import org.openbmap.db.models.PositionRecord;
@@ -81,9 +85,12 @@ import org.openbmap.utils.GeometryUtils;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
@@ -214,11 +221,21 @@ public class WirelessLoggerService extends AbstractService {
      */
     private static final int INVALID_VALUE = -1;
 
+    /**
+     * Maximum number of bssids per catalog query (sqlite limits host parameters to 999)
+     */
+    private static final int MAX_CATALOG_QUERY_ARGS = 500;
+
     /*
      * DataHelper for persisting recorded information in database
      */
     private DataHelper mDataHelper;
 
+    /**
+     * Persists scan results in background
+     */
+    private ScanWriteQueue mWriteQueue;
+
     private LogFile mLogFile;
 
     /**
@@ -237,6 +254,17 @@ public class WirelessLoggerService extends AbstractService {
      */
     private SQLiteDatabase mRefDb;
 
+    /**
+     * In-memory copy of wifi catalog's bssids. Null until loaded in background or if catalog exceeds memory budget,
+     * in which case catalog status is queried from mRefDb
+     */
+    private volatile CatalogIndex mCatalogIndex;
+
+    /**
+     * Background thread loading {@link #mCatalogIndex}, interrupted in onDestroy
+     */
+    private Thread mCatalogIndexLoader;
+
     /**
      * Receives location updates as well as wifi scan result updates
      */
@@ -278,6 +306,7 @@ public class WirelessLoggerService extends AbstractService {
             } else {
                 try {
                     mRefDb = SQLiteDatabase.openDatabase(catalogPath, null, SQLiteDatabase.OPEN_READONLY);
+                    loadCatalogIndex(catalogPath);
                 } catch (final SQLiteCantOpenDatabaseException ex) {
                     Log.e(TAG, "Can't open wifi catalog database @ " + catalogPath);
                     mRefDb = null;
@@ -291,6 +320,7 @@ public class WirelessLoggerService extends AbstractService {
          * Setting up database connection
 		 */
         mDataHelper = new DataHelper(this);
+        mWriteQueue = ScanWriteQueue.acquire(this);
 
         registerWakeLocks();
 
@@ -301,6 +331,33 @@ public class WirelessLoggerService extends AbstractService {
         initBlacklists();
     }
 
+    /**
+     * Loads wifi catalog bssids into memory. Runs in background on a separate connection,
+     * until finished catalog status is queried from database
+     *
+     * @param catalogPath path to wifi catalog
+     */
+    private void loadCatalogIndex(final String catalogPath) {
+        final long budget = CatalogDatabaseHelper.getIndexBudget(this);
+        mCatalogIndexLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase catalog = null;
+                try {
+                    catalog = SQLiteDatabase.openDatabase(catalogPath, null, SQLiteDatabase.OPEN_READONLY);
+                    mCatalogIndex = CatalogDatabaseHelper.buildIndex(catalog, budget);
+                } catch (final SQLiteException e) {
+                    Log.e(TAG, "Can't index wifi catalog @ " + catalogPath + ": " + e.toString());
+                } finally {
+                    if (catalog != null && catalog.isOpen()) {
+                        catalog.close();
+                    }
+                }
+            }
+        }, "CatalogIndexLoader");
+        mCatalogIndexLoader.start();
+    }
+
     /**
      *
      */
@@ -494,10 +551,19 @@ public class WirelessLoggerService extends AbstractService {
         unregisterWakeLocks();
         unregisterReceivers();
 
+        if (mCatalogIndexLoader != null) {
+            // stops indexing, if still running
+            mCatalogIndexLoader.interrupt();
+            mCatalogIndexLoader = null;
+        }
+
         if (mRefDb != null && mRefDb.isOpen()) {
             mRefDb.close();
         }
 
+        // writes pending scans
+        mWriteQueue.release();
+
         super.onDestroy();
     }
 
@@ -558,52 +624,48 @@ public class WirelessLoggerService extends AbstractService {
                                     return;
                                 }
 
-                                final ArrayList<WifiRecord> wifis = new ArrayList<>();
+                                final ArrayList<WifiRecord> wifis = new ArrayList<>(scanlist.size());
+                                final Map<String, CatalogStatus> catalogStatus = checkCatalogStatus(scanlist);
                                 final PositionRecord begin = new PositionRecord(mBeginLocation, mSessionId, mBeginLocationProvider);
                                 final PositionRecord end = new PositionRecord(mMostCurrentLocation, mSessionId, mMostCurrentLocationProvider);
 
                                 // Generates a list of wifis from scan results
+                                // Records are pooled and recycled by write queue, log messages are only built if enabled
                                 for (final ScanResult r : scanlist) {
-                                    boolean skipThis = false;
                                     if (mSsidBlackList.contains(r.SSID)) {
                                         // skip invalid wifis
-                                        Log.i(TAG, "Ignored " + r.SSID + " (on ssid blacklist)");
+                                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                                            Log.d(TAG, "Ignored " + r.SSID + " (on ssid blacklist)");
+                                        }
                                         broadcastBlacklisted(r.SSID, r.BSSID, BlacklistReasonType.SsidBlocked);
-                                        skipThis = true;
-                                    } else {
-                                        Log.v(TAG, "Wifi not ssid blocked");
+                                        continue;
                                     }
 
-                                    if (!skipThis) {
-                                        //Log.i(TAG, "Serializing wifi");
-                                        final WifiRecord wifi = new WifiRecord();
-                                        wifi.setBssid(r.BSSID);
-                                        wifi.setSsid(r.SSID.toLowerCase(Locale.US));
-                                        wifi.setCapabilities(r.capabilities);
-                                        wifi.setFrequency(r.frequency);
-                                        wifi.setLevel(r.level);
-                                        // TODO: clumsy: implicit conversion from UTC to YYYYMMDDHHMMSS in begin.setTimestamp
-                                        wifi.setOpenBmapTimestamp(begin.getOpenBmapTimestamp());
-                                        wifi.setBeginPosition(begin);
-                                        wifi.setEndPosition(end);
-                                        wifi.setSessionId(mSessionId);
-                                        //wifi.setNew(checkIsNew(r.BSSID));
-                                        Log.i(TAG, "Checking catalog status");
-                                        wifi.setCatalogStatus(checkCatalogStatus(r.BSSID));
-                                        wifis.add(wifi);
-                                        if (wifi.isFree()) {
-                                            Log.i(TAG, "Found free wifi, broadcasting");
-                                            broadcastFree(r.SSID);
-                                        }
-
+                                    final WifiRecord wifi = WifiRecord.obtain();
+                                    wifi.setBssid(r.BSSID);
+                                    wifi.setSsid(r.SSID.toLowerCase(Locale.US));
+                                    wifi.setCapabilities(r.capabilities);
+                                    wifi.setFrequency(r.frequency);
+                                    wifi.setLevel(r.level);
+                                    // TODO: clumsy: implicit conversion from UTC to YYYYMMDDHHMMSS in begin.setTimestamp
+                                    wifi.setOpenBmapTimestamp(begin.getOpenBmapTimestamp());
+                                    wifi.setBeginPosition(begin);
+                                    wifi.setEndPosition(end);
+                                    wifi.setSessionId(mSessionId);
+                                    //wifi.setNew(checkIsNew(r.BSSID));
+                                    wifi.setCatalogStatus(catalogStatus.get(normalizeBssid(r.BSSID)));
+                                    wifis.add(wifi);
+                                    if (wifi.isFree()) {
+                                        Log.i(TAG, "Found free wifi, broadcasting");
+                                        broadcastFree(r.SSID);
                                     }
                                 }
-                                // Log.i(TAG, "Saving wifis");
-                                mDataHelper.storeWifiScanResults(begin, end, wifis);
 
                                 // take last seen wifi and broadcast infos in ui
+                                // before handing over to write queue, which recycles records once written
                                 if (wifis.size() > 0) {
                                     broadcastWifiInfos(wifis);
+                                    mWriteQueue.add(ScanWriter.Scan.pooledWifis(begin, end, wifis));
                                 }
 
                                 mWifiSavedAt = mBeginLocation;
@@ -742,7 +804,9 @@ public class WirelessLoggerService extends AbstractService {
 
         // now persist list of cell records in database
         // Caution: So far we set end position = begin position
-        mDataHelper.storeCellsScanResults(cells, pos, pos);
+        if (cells.size() > 0) {
+            mWriteQueue.add(ScanWriter.Scan.cells(cells, pos, pos));
+        }
 
         return (cells.size() > 0);
     }
@@ -1430,6 +1494,8 @@ public class WirelessLoggerService extends AbstractService {
         mSessionId = RadioBeacon.SESSION_NOT_TRACKING;
         mWifiScanResults = null;
         mLogFile = null;
+        mWriteQueue.flush();
+        Log.i(TAG, "Scan write queue: " + mWriteQueue.getMetrics());
     }
 
     /**
@@ -1517,49 +1583,69 @@ public class WirelessLoggerService extends AbstractService {
     }
 
     /**
-     * Checks, whether bssid exists in wifi catalog.
+     * Checks, which bssids of a scan exist in wifi catalog.
+     * Uses in-memory catalog index if available, otherwise all bssids are resolved with
+     * one (chunked) query against the wifi catalog
      *
-     * @param bssid
-     * @return Returns
+     * @param scanlist scan results
+     * @return catalog status by normalized bssid (see {@link #normalizeBssid(String)}).
+     * Bssids not in catalog are mapped to {@link CatalogStatus#NEW}
      */
-    @SuppressLint("DefaultLocale")
-    private CatalogStatus checkCatalogStatus(final String bssid) {
+    private Map<String, CatalogStatus> checkCatalogStatus(final List<ScanResult> scanlist) {
+        final Map<String, CatalogStatus> result = new HashMap<>(scanlist.size() * 2);
+        for (final ScanResult r : scanlist) {
+            result.put(normalizeBssid(r.BSSID), CatalogStatus.NEW);
+        }
 
-        // default: return true, if ref database n/a
+        final CatalogIndex index = mCatalogIndex;
+        if (index != null) {
+            for (final Map.Entry<String, CatalogStatus> entry : result.entrySet()) {
+                entry.setValue(index.lookup(entry.getKey()));
+            }
+            return result;
+        }
+
+        // default: all wifis are new, if ref database n/a
         if (mRefDb == null) {
             Log.e(TAG, "Reference database not specified");
-            return CatalogStatus.NEW;
+            return result;
         }
 
+        final String[] bssids = result.keySet().toArray(new String[result.size()]);
         try {
-			/*
-			 * Caution:
-			 * 		Requires wifi catalog's bssid in LOWER CASE. Otherwise no records are returned
-			 *
-			 *		If wifi catalog's bssid aren't in LOWER case, consider SELECT bssid FROM wifi_zone WHERE LOWER(bssid) = ?
-			 *		Drawback: can't use indices then
-			 */
-            final Cursor exists = mRefDb.rawQuery("SELECT bssid, source FROM wifi_zone WHERE bssid = ?", new String[]{bssid.replace(":", "").toUpperCase()});
-            if (exists.moveToFirst()) {
-                final int source = exists.getInt(1);
-                exists.close();
-                if (source == CatalogStatus.OPENBMAP.ordinal()) {
-                    Log.i(TAG, bssid + " is in openbmap reference database");
-                    return CatalogStatus.OPENBMAP;
-                } else {
-                    Log.i(TAG, bssid + " is in local reference database");
-                    return CatalogStatus.LOCAL;
+            for (int offset = 0; offset < bssids.length; offset += MAX_CATALOG_QUERY_ARGS) {
+                final String[] args = Arrays.copyOfRange(bssids, offset, Math.min(offset + MAX_CATALOG_QUERY_ARGS, bssids.length));
+                final StringBuilder sql = new StringBuilder("SELECT bssid, source FROM wifi_zone WHERE bssid IN (?");
+                for (int i = 1; i < args.length; i++) {
+                    sql.append(",?");
                 }
-            } else {
-                Log.i(TAG, bssid + " is NOT in reference database");
-                exists.close();
-                //mRefdb.close();
-                return CatalogStatus.NEW;
+                sql.append(')');
+
+                /*
+                 * Caution:
+                 * 		Requires wifi catalog's bssid in UPPER CASE without colons. Otherwise no records are returned
+                 */
+                final Cursor known = mRefDb.rawQuery(sql.toString(), args);
+                while (known.moveToNext()) {
+                    final int source = known.getInt(1);
+                    result.put(known.getString(0), source == CatalogStatus.OPENBMAP.ordinal() ? CatalogStatus.OPENBMAP : CatalogStatus.LOCAL);
+                }
+                known.close();
             }
         } catch (final SQLiteException e) {
             Log.e(TAG, "Couldn't open reference database");
-            return CatalogStatus.NEW;
         }
+        return result;
+    }
+
+    /**
+     * Converts bssid into wifi catalog format, i.e. upper case without colons
+     *
+     * @param bssid bssid as reported by scan result
+     * @return normalized bssid
+     */
+    private static String normalizeBssid(final String bssid) {
+        return bssid.replace(":", "").toUpperCase(Locale.US);
     }
 
     /**
@@ -18,7 +18,6 @@
 
 package org.openbmap.services.wireless.blacklists;
 
-import android.annotation.SuppressLint;
 import android.location.Location;
 import android.util.Log;
 
@@ -33,12 +32,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Validates ssid against xml file of black listed locations
  * Create a file name custom_location.xml in your org.openbmap/blacklists folder
  * Example content (lat, lon, radius in meters):
  * <ignorelist><location comment="test area"><latitude>49.55306</latitude><longitude>9.0057</longitude><radius>550</radius></location></ignorelist>
+ *
+ * Blocked areas are indexed in a uniform grid of 1/{@link #CELLS_PER_DEGREE} degree cells. A location is only
+ * checked against areas registered in its cell, and exact distance is computed only for areas passing a cheap
+ * equirectangular pre-filter. Thus lookup time doesn't grow with the number of blocked areas.
  */
 
 public class LocationBlackList {
@@ -70,18 +74,59 @@ public class LocationBlackList {
 	 */
 	private static final int DEFAULT_RADIUS = 500;
 
+	/**
+	 * Grid resolution: 0.01 degree, i.e. roughly 1.1 km in north-south direction
+	 */
+	static final int CELLS_PER_DEGREE = 100;
+
+	private static final int ROWS = 180 * CELLS_PER_DEGREE;
+
+	private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+
+	/**
+	 * Areas covering more cells (huge radius, close to poles or date line) aren't indexed, but checked on each lookup
+	 */
+	static final int MAX_CELLS_PER_AREA = 256;
+
+	private static final double METERS_PER_DEGREE = 111320;
+
+	/**
+	 * Pre-filter tolerance: on indexed areas equirectangular distance is off from ellipsoid distance by far less than 10 %
+	 */
+	private static final double PREFILTER_MARGIN = 1.1;
+
 	/**
 	 * List of blocked locations
 	 */
 	private final ArrayList<ForbiddenArea> mBlockList;
 
+	/**
+	 * Grid index: cell number, followed by index in mBlockList, in ascending order
+	 */
+	private long[] mCells = new long[0];
+
+	/**
+	 * Areas not in grid index
+	 */
+	private final ArrayList<ForbiddenArea> mLargeAreas = new ArrayList<>();
+
 	/**
 	 * Dead zone is defined by center point and radius
 	 */
-	private class ForbiddenArea {
+	private static class ForbiddenArea {
 		protected Location location;
 		protected long radius;
 
+		/**
+		 * Max. pre-filter distance, squared (in square meters)
+		 */
+		protected double prefilter;
+
+		/**
+		 * Meters per degree longitude at center
+		 */
+		protected double metersPerLongitude;
+
 		/**
 		 * @param loc
 		 * @param rad
@@ -89,6 +134,8 @@ public class LocationBlackList {
 		public ForbiddenArea(final Location loc, final long rad) {
 			location = loc;
 			radius = rad;
+			prefilter = Math.pow(rad * PREFILTER_MARGIN, 2);
+			metersPerLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(loc.getLatitude()));
 		}
 	}
 
@@ -168,7 +215,7 @@ public class LocationBlackList {
 					} else if (eventType == XmlPullParser.END_TAG) {
 						if (LOCATION_TAG.equals(xpp.getName())) {
 							if (GeometryUtils.isValidLocation(loc, false)) {
-								mBlockList.add(new ForbiddenArea(loc, radius));
+								add(loc, radius);
 							} else {
 								Log.e(TAG, "Invalid location");
 							}
@@ -182,7 +229,67 @@ public class LocationBlackList {
 		} catch (final XmlPullParserException e) {
 			Log.e(TAG, "Error parsing blacklist");
 		}
-		Log.i(TAG, "Loaded " + mBlockList.size() + " location blacklist entries");
+		buildIndex();
+		Log.i(TAG, "Loaded " + mBlockList.size() + " location blacklist entries, " + mLargeAreas.size() + " not indexed");
+	}
+
+	/**
+	 * Adds blocked area. Call {@link #buildIndex()} when done
+	 * @param location center
+	 * @param radius radius (in meters)
+	 */
+	final void add(final Location location, final long radius) {
+		mBlockList.add(new ForbiddenArea(location, radius));
+	}
+
+	/**
+	 * Registers all blocked areas in grid cells within their (pre-filter) radius
+	 */
+	final void buildIndex() {
+		long[] cells = new long[mBlockList.size()];
+		int count = 0;
+		mLargeAreas.clear();
+		for (int i = 0; i < mBlockList.size(); i++) {
+			final ForbiddenArea area = mBlockList.get(i);
+			final double lat = area.location.getLatitude();
+			final double lon = area.location.getLongitude();
+			final double latSpan = area.radius * PREFILTER_MARGIN / METERS_PER_DEGREE;
+			final double lonSpan = latSpan / Math.cos(Math.toRadians(Math.min(90, Math.abs(lat) + latSpan)));
+			if (lat - latSpan < -90 || lat + latSpan > 90 || lon - lonSpan < -180 || lon + lonSpan > 180) {
+				mLargeAreas.add(area);
+				continue;
+			}
+
+			final int firstRow = row(lat - latSpan);
+			final int lastRow = row(lat + latSpan);
+			final int firstColumn = column(lon - lonSpan);
+			final int lastColumn = column(lon + lonSpan);
+			final long areaCells = (long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1);
+			if (areaCells > MAX_CELLS_PER_AREA) {
+				mLargeAreas.add(area);
+				continue;
+			}
+
+			if (count + areaCells > cells.length) {
+				cells = Arrays.copyOf(cells, Math.max(2 * cells.length, count + (int) areaCells));
+			}
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					cells[count++] = (long) (row * COLUMNS + column) << 32 | i;
+				}
+			}
+		}
+		cells = Arrays.copyOf(cells, count);
+		Arrays.sort(cells);
+		mCells = cells;
+	}
+
+	private static int row(final double lat) {
+		return Math.max(0, Math.min(ROWS - 1, (int) ((lat + 90.0) * CELLS_PER_DEGREE)));
+	}
+
+	private static int column(final double lon) {
+		return Math.max(0, Math.min(COLUMNS - 1, (int) ((lon + 180.0) * CELLS_PER_DEGREE)));
 	}
 
 	/**
@@ -190,15 +297,40 @@ public class LocationBlackList {
 	 * @param location location
 	 * @return true, if in ignore list
 	 */
-	@SuppressLint("DefaultLocale")
 	public final boolean contains(final Location location) {
-		boolean match = false;
-		for (final ForbiddenArea dead : mBlockList) {
+		final double lat = location.getLatitude();
+		final double lon = location.getLongitude();
+		final long cell = row(lat) * COLUMNS + column(lon);
+
+		int pos = Arrays.binarySearch(mCells, cell << 32);
+		if (pos < 0) {
+			pos = -pos - 1;
+		}
+		while (pos < mCells.length && mCells[pos] >>> 32 == cell) {
+			if (isWithin(location, lat, lon, mBlockList.get((int) mCells[pos]))) {
+				return true;
+			}
+			pos++;
+		}
+
+		// pre-filter isn't accurate enough for large areas
+		for (final ForbiddenArea dead : mLargeAreas) {
 			if (location.distanceTo(dead.location) < dead.radius) {
-				match = true; 
-				break;
+				return true;
 			}
 		}
-		return match; 
+		return false;
+	}
+
+	/**
+	 * Equirectangular pre-filter, followed by exact distance check
+	 */
+	private static boolean isWithin(final Location location, final double lat, final double lon, final ForbiddenArea dead) {
+		final double dy = (lat - dead.location.getLatitude()) * METERS_PER_DEGREE;
+		final double dx = (lon - dead.location.getLongitude()) * dead.metersPerLongitude;
+		if (dx * dx + dy * dy > dead.prefilter) {
+			return false;
+		}
+		return location.distanceTo(dead.location) < dead.radius;
 	}
 }
@@ -18,7 +18,6 @@
 
 package org.openbmap.services.wireless.blacklists;
 
-import android.annotation.SuppressLint;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -31,9 +30,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Validates ssid against xml file of black listed wifis (e.g. mobile wlans on buses, trains, etc)
+ *
+ * Prefixes and suffixes are compiled into case-insensitive tries once loaded, so checking a ssid
+ * takes a single pass over the ssid, regardless of blacklist size.
  */
 public class SsidBlackList {
 
@@ -67,9 +70,20 @@ public class SsidBlackList {
 	 */
 	private final ArrayList<String>	mSuffixes;
 
+	/**
+	 * Compiled prefixes
+	 */
+	private SsidTrie mPrefixTrie;
+
+	/**
+	 * Compiled suffixes, reversed
+	 */
+	private SsidTrie mSuffixTrie;
+
 	public SsidBlackList() {
 		mPrefixes = new ArrayList<>();
 		mSuffixes = new ArrayList<>();
+		compile();
 	}
 
 	/**
@@ -106,6 +120,26 @@ public class SsidBlackList {
 		} else {
 			Log.i(TAG, "No user-defined blacklist provided");
 		}
+		compile();
+	}
+
+	/**
+	 * Adds entries without xml file
+	 * @param prefixes ignored ssid prefixes
+	 * @param suffixes ignored ssid suffixes
+	 */
+	final void add(final Collection<String> prefixes, final Collection<String> suffixes) {
+		mPrefixes.addAll(prefixes);
+		mSuffixes.addAll(suffixes);
+		compile();
+	}
+
+	/**
+	 * Builds tries from loaded entries
+	 */
+	private void compile() {
+		mPrefixTrie = new SsidTrie(mPrefixes, false);
+		mSuffixTrie = new SsidTrie(mSuffixes, true);
 	}
 
 	/**
@@ -155,28 +189,10 @@ public class SsidBlackList {
 	 * @param ssid SSID to check
 	 * @return true, if in ignore list
 	 */
-	@SuppressLint("DefaultLocale")
 	public final boolean contains(final String ssid) {
-		boolean match = false;
-		for (final String prefix : mPrefixes) {
-			if (ssid.toLowerCase().startsWith(prefix.toLowerCase())) {
-				match = true; 
-				break;
-			}
-		}
-
-		// don't look any further
-		if (match) {
-			return match;
+		if (ssid == null) {
+			return false;
 		}
-		
-		for (final String suffix : mSuffixes) {
-			if (ssid.toLowerCase().endsWith(suffix.toLowerCase())) {
-				match = true;
-				break;
-			}
-		}
-
-		return match; // OK
+		return mPrefixTrie.matches(ssid) || mSuffixTrie.matches(ssid);
 	}
 }
@@ -73,7 +73,7 @@ public final class SsidBlackListBootstraper {
 	 */
 	private static final String END_TAG= "</ignorelist>";
 
-	private static final String[][] PREFIXES = {
+	static final String[][] PREFIXES = {
 		{"default", "ASUS"},
 		{"default", "Android Barnacle Wifi Tether"},
 		{"default", "AndroidAP"},
@@ -203,7 +203,7 @@ public final class SsidBlackListBootstraper {
 		{"BART", "wifi_rail"}
 	};
 
-	private static final String[][] SUFFIXES = {
+	static final String[][] SUFFIXES = {
 		{"default", "MacBook"},
 		{"default", "MacBook Pro"},
 		{"default", "MiFi"},
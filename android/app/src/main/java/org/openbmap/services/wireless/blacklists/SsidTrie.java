@@ -0,0 +1,177 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.openbmap.services.wireless.blacklists;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive trie over blacklist entries, matching ssids which start (or end) with any entry.
+ *
+ * Entries are compiled once into flat arrays: each node's children are sorted by character and found by
+ * binary search. Thus a lookup visits at most one node per ssid character and allocates nothing.
+ * Characters are case-folded one by one with {@link Character#toLowerCase(char)}, independent of locale.
+ *
+ * Immutable and thread-safe.
+ */
+final class SsidTrie {
+
+	/**
+	 * Per node: index of first child in mLabels and mTargets
+	 */
+	private final int[] mFirstChild;
+
+	/**
+	 * Per node: number of children
+	 */
+	private final int[] mChildCount;
+
+	/**
+	 * Per node: whether an entry ends here
+	 */
+	private final boolean[] mTerminal;
+
+	/**
+	 * Child characters, sorted per node
+	 */
+	private final char[] mLabels;
+
+	/**
+	 * Child nodes, same order as mLabels
+	 */
+	private final int[] mTargets;
+
+	/**
+	 * Whether entries are matched against end of ssid (suffix trie over reversed entries)
+	 */
+	private final boolean mSuffixes;
+
+	/**
+	 * Node while building
+	 */
+	private static final class Node {
+		final TreeMap<Character, Node> children = new TreeMap<>();
+		boolean terminal;
+		int index;
+	}
+
+	/**
+	 * @param entries blacklist entries, null entries are ignored
+	 * @param suffixes true to match end of ssid, false to match start of ssid
+	 */
+	SsidTrie(final Collection<String> entries, final boolean suffixes) {
+		mSuffixes = suffixes;
+
+		final Node root = new Node();
+		for (final String entry : entries) {
+			if (entry == null) {
+				continue;
+			}
+			Node node = root;
+			for (int i = 0; i < entry.length(); i++) {
+				final char c = Character.toLowerCase(entry.charAt(suffixes ? entry.length() - 1 - i : i));
+				Node child = node.children.get(c);
+				if (child == null) {
+					child = new Node();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.terminal = true;
+		}
+
+		// number nodes breadth first, so children of a node are stored next to each other
+		final ArrayList<Node> nodes = new ArrayList<>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++) {
+			nodes.get(i).index = i;
+			nodes.addAll(nodes.get(i).children.values());
+		}
+
+		mFirstChild = new int[nodes.size()];
+		mChildCount = new int[nodes.size()];
+		mTerminal = new boolean[nodes.size()];
+		mLabels = new char[nodes.size() - 1];
+		mTargets = new int[nodes.size() - 1];
+		int edge = 0;
+		for (final Node node : nodes) {
+			mFirstChild[node.index] = edge;
+			mChildCount[node.index] = node.children.size();
+			mTerminal[node.index] = node.terminal;
+			for (final Map.Entry<Character, Node> child : node.children.entrySet()) {
+				mLabels[edge] = child.getKey();
+				mTargets[edge] = child.getValue().index;
+				edge++;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether ssid starts (or ends, for suffix tries) with any entry, ignoring case
+	 * @param ssid SSID to check
+	 * @return true on match
+	 */
+	boolean matches(final String ssid) {
+		int node = 0;
+		if (mTerminal[node]) {
+			return true;
+		}
+		final int length = ssid.length();
+		for (int i = 0; i < length; i++) {
+			node = child(node, Character.toLowerCase(ssid.charAt(mSuffixes ? length - 1 - i : i)));
+			if (node < 0) {
+				return false;
+			}
+			if (mTerminal[node]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Number of trie nodes
+	 */
+	int size() {
+		return mTerminal.length;
+	}
+
+	/**
+	 * Binary search for child by character
+	 * @return child node or -1 if none
+	 */
+	private int child(final int node, final char c) {
+		int low = mFirstChild[node];
+		int high = low + mChildCount[node] - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final char label = mLabels[mid];
+			if (label < c) {
+				low = mid + 1;
+			} else if (label > c) {
+				high = mid - 1;
+			} else {
+				return mTargets[mid];
+			}
+		}
+		return -1;
+	}
+}
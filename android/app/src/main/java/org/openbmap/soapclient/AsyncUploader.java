@@ -22,21 +22,30 @@ import android.os.AsyncTask;
 import android.util.Base64;
 import android.util.Log;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Uploads xml files as multipart message to webservice.
+ * Optionally xml files are gzipped before upload: file part is then sent as application/x-gzip
+ * with an additional .gz extension, so server can tell compressed from plain uploads.
  */
 public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
 
@@ -45,12 +54,6 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
     public enum UploadResult {
 		UNDEFINED, OK, ERROR, WRONG_PASSWORD
 	}
-	/**
-	 * Socket and connection parameters for http upload
-	 */
-	//private static final int SOCKET_TIMEOUT = 30000;
-	//private static final int CONNECTION_TIMEOUT = 30000;
-
 	private static final String TAG = AsyncUploader.class.getSimpleName();
 
     /**
@@ -63,12 +66,44 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
 	 */
 	private static final String FILE_FIELD = "file";
 
+	/**
+	 * Mime type of plain xml files
+	 */
+	private static final String XML_MIME = "text/xml";
+
+	/**
+	 * Mime type and file extension of compressed xml files
+	 */
+	static final String GZIP_MIME = "application/x-gzip";
+
+	static final String GZIP_SUFFIX = ".gz";
+
+	/**
+	 * Copy buffer size for compression
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	
 	/**
 	 * Retry upload how many times on failed upload
 	 * 0 means no retry
 	 */
-	private static final int MAX_RETRIES = 2;
+	private static final int MAX_RETRIES = 3;
+
+	/**
+	 * Delay before first retry (in millis). Delay doubles on each further retry
+	 */
+	private static final long BASE_BACKOFF = 1000;
+
+	/**
+	 * Max. delay between retries (in millis)
+	 */
+	private static final long MAX_BACKOFF = 30000;
+
+	/**
+	 * Jitter for retry delays, so parallel uploads failing at the same time don't retry in lockstep
+	 */
+	private final Random mRandom = new Random();
 
 	/**
 	 * Used for callbacks.
@@ -123,6 +158,26 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
      */
     private long mSpeed;
 
+    /**
+     * Number of retries needed for last upload
+     */
+    private int mRetries;
+
+    /**
+     * Gzip file before upload?
+     */
+    private boolean mCompress = false;
+
+    /**
+     * Compressed file content, built on first attempt and reused on retries
+     */
+    private byte[] mCompressed;
+
+    /**
+     * Shared http client, see {@link UploadConnectionPool}. If null, a client is created per upload
+     */
+    private HttpClient mHttpClient;
+
 	/**
 	 * 
 	 * @param listener UploadTaskListener which is informed about upload result
@@ -161,17 +216,20 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
 	@Deprecated
 	@Override
 	protected final Boolean doInBackground(final String... params) {
-		Log.i(TAG, "Uploading " + params[0]);
-		mFile = params[0];
-        long beforeTime = System.currentTimeMillis();
-
-        mResult = upload(mFile);
-        if (mResult == UploadResult.WRONG_PASSWORD) {
-            return false;
-        }
+		return uploadBlocking(params[0]);
+	}
 
-        mSpeed = calcSpeed(System.currentTimeMillis(), beforeTime, mSize);
+	/**
+	 * Uploads file on calling thread, including retries. Listener isn't called, results are available
+	 * via {@link #getSize()}, {@link #getSpeed()}, {@link #getRetries()} and {@link #getLastError()}
+	 * @param file File to upload (full path)
+	 * @return true on success
+	 */
+	public final boolean uploadBlocking(final String file) {
+		Log.i(TAG, "Uploading " + file);
+		mFile = file;
 
+		mResult = upload(mFile);
 		return (mResult == UploadResult.OK);
 	}
 
@@ -201,19 +259,12 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
         // TODO check network state
         // @see http://developer.android.com/training/basics/network-ops/connecting.html
 
-        // Adjust HttpClient parameters
-        final HttpParams httpParameters = new BasicHttpParams();
-        // Set the timeout in milliseconds until a connection is established.
-        // The default value is zero, that means the timeout is not used.
-        // HttpConnectionParams.setConnectionTimeout(httpParameters, CONNECTION_TIMEOUT);
-        // Set the default socket timeout (SO_TIMEOUT)
-        // in milliseconds which is the timeout for waiting for data.
-        //HttpConnectionParams.setSoTimeout(httpParameters, SOCKET_TIMEOUT);
-        final DefaultHttpClient httpclient = new DefaultHttpClient(httpParameters);
+        // reuse pooled connections if available, otherwise open a new connection
+        final HttpClient httpclient = (mHttpClient != null) ? mHttpClient : new DefaultHttpClient(UploadConnectionPool.createParams());
         final HttpPost httppost = new HttpPost(mServer);
         try {
             final MultipartEntity entity = new MultipartEntity();
-            entity.addPart(FILE_FIELD, new FileBody(new File(file), "text/xml"));
+            entity.addPart(FILE_FIELD, createFileBody(file));
 
             if ((mUser != null) && (mPassword != null)) {
                 final String authorizationString = "Basic " + Base64.encodeToString((mUser + ":" + mPassword).getBytes(), Base64.NO_WRAP);
@@ -227,9 +278,16 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
             httppost.setEntity(entity);
             final HttpResponse response = httpclient.execute(httppost);
 
+            // read reply completely, so connection can be kept alive and released to pool
+            final HttpEntity replyEntity = response.getEntity();
+            if (replyEntity != null) {
+                replyEntity.consumeContent();
+            }
+
             final int reply = response.getStatusLine().getStatusCode();
             if (reply == 200) {
                 // everything is ok if we receive HTTP 200
+                // size is measured on the wire, i.e. after compression
                 mSize = entity.getContentLength();
                 Log.i(TAG, "Uploaded " + file + ": Server reply " + reply);
                 return UploadResult.OK;
@@ -247,27 +305,85 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
             Log.e(TAG, e.getMessage());
         } catch (final IOException e) {
             Log.e(TAG, "I/O exception on file " + file);
+            httppost.abort();
         }
         return UploadResult.UNDEFINED;
     }
 
+    /**
+     * Builds multipart file body: either plain xml file or gzipped content
+     * @param file File to upload (full path)
+     * @return file body
+     * @throws IOException if file can't be compressed
+     */
+    private ContentBody createFileBody(final String file) throws IOException {
+        final File xml = new File(file);
+        if (!mCompress) {
+            return new FileBody(xml, XML_MIME);
+        }
+
+        if (mCompressed == null) {
+            mCompressed = gzip(xml);
+            Log.i(TAG, "Compressed " + file + " from " + xml.length() + " to " + mCompressed.length + " bytes");
+        }
+        return new ByteArrayBody(mCompressed, GZIP_MIME, xml.getName() + GZIP_SUFFIX);
+    }
+
+    /**
+     * Gzips file into memory. Log files are limited to a few thousand records, so they easily fit
+     * into memory, which gives the upload a known content length
+     * @param file file to compress
+     * @return compressed content
+     * @throws IOException on read errors
+     */
+    static byte[] gzip(final File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) (file.length() / 4) + 64);
+        final InputStream in = new FileInputStream(file);
+        try {
+            final GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                gzip.write(buffer, 0, read);
+            }
+            gzip.close();
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
 	/**
-	 * Uploads file. If upload hasn't succeeded on first attempt, upload is tried again MAX_RETRIES times
+	 * Uploads file. If upload hasn't succeeded on first attempt, upload is tried again up to MAX_RETRIES times,
+	 * waiting exponentially longer (with jitter) between attempts. Wrong credentials aren't retried.
 	 * @param file File to upload (full path).
 	 * @return true on success, false on error
 	 */
 	private UploadResult upload(final String file) {
+        long beforeTime = System.currentTimeMillis();
         UploadResult result = httpPostRequest(file);
 
-		// simple resume upload mechanism on failed upload
 		int i = 0;
-		while (result != UploadResult.OK && i < MAX_RETRIES) {
-			Log.w(TAG, "Upload failed: Retry " + i + ": " + file);
-            result = httpPostRequest(file);
+		while (result != UploadResult.OK && result != UploadResult.WRONG_PASSWORD && i < MAX_RETRIES) {
+			final long delay = backoff(i, mRandom);
+			Log.w(TAG, "Upload failed: Retry " + i + " in " + delay + " ms: " + file);
+			try {
+				Thread.sleep(delay);
+			} catch (final InterruptedException e) {
+				Log.w(TAG, "Upload cancelled: " + file);
+				Thread.currentThread().interrupt();
+				break;
+			}
 			i++;
+			beforeTime = System.currentTimeMillis();
+            result = httpPostRequest(file);
 		}
+		mRetries = i;
 
-		if (result != UploadResult.OK) {
+		if (result == UploadResult.OK) {
+			// speed of successful attempt only, i.e. without failed attempts and retry delays
+			mSpeed = calcSpeed(System.currentTimeMillis(), beforeTime, mSize);
+		} else {
 			lastErrorMsg = "Upload failed after " + i + " retries";
 			Log.e(TAG, "Upload failed after " + i + " retries");
 		}
@@ -275,6 +391,63 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
 		return result;
 	}
 
+	/**
+	 * Delay before a retry: exponential backoff with jitter, i.e. random delay between half and full
+	 * of BASE_BACKOFF * 2^retry, capped at MAX_BACKOFF
+	 * @param retry retry number, starting at 0
+	 * @param random random generator for jitter
+	 * @return delay in millis
+	 */
+	static long backoff(final int retry, final Random random) {
+		final long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(retry, 20));
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+    /**
+     * Size of last successful upload (in bytes, after compression)
+     */
+    public final long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Speed of last successful upload (in KB per second)
+     */
+    public final long getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Number of retries of last upload
+     */
+    public final int getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * Error message of last failed upload
+     */
+    public final String getLastError() {
+        return lastErrorMsg;
+    }
+
+    /**
+     * Enables or disables gzip compression of uploaded files.
+     * Server has to accept gzipped files, so this is off by default
+     * @param compress
+     */
+    public final void setCompress(final boolean compress) {
+        mCompress = compress;
+    }
+
+    /**
+     * Sets shared http client, so connections are reused across uploads
+     * @param client client from {@link UploadConnectionPool#getClient()}
+     */
+    public final void setHttpClient(final HttpClient client) {
+        mHttpClient = client;
+    }
+
     /**
      * Returns upload speed in KB (crude calculation)
      * @param afterTime
@@ -282,7 +455,7 @@ public class AsyncUploader extends AsyncTask<String, Integer, Boolean> {
      * @param bytes Upload size (in bytes)
      */
     private long calcSpeed(long afterTime, long beforeTime, long bytes) {
-        return Math.round(bytes / (afterTime - beforeTime));
+        return Math.round(bytes / Math.max(afterTime - beforeTime, 1));
     }
 
 }
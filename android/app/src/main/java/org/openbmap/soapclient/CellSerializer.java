@@ -19,7 +19,9 @@
 package org.openbmap.soapclient;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import org.openbmap.db.DataHelper;
@@ -28,13 +30,12 @@ import org.openbmap.db.Schema;
 import org.openbmap.db.models.CellRecord;
 import org.openbmap.db.models.LogFile;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Exports cells to xml format for later upload.
@@ -43,39 +44,7 @@ public class CellSerializer {
 	private static final String TAG = CellSerializer.class.getSimpleName();
 
 	/**
-	 * Initial size wifi StringBuffer
-	 */
-	private static final int CELL_XML_DEFAULT_LENGTH = 220;
-
-	/**
-	 * Cursor windows size, to prevent running out of mem on to large cursor
-	 */
-	private static final int CURSOR_SIZE = 3000;
-
-	/**
-	 * XML templates
-	 */
-	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>";
-
-	private static final String LOG_XML = "\n<logfile manufacturer=\"%s\" model=\"%s\" revision=\"%s\" swid=\"%s\" swver=\"%s\" exportver=\"%s\">";
-
-	private static final String SCAN_XML = "\n<scan time=\"%s\">";
-
-	private static final String POSITION_XML = "\n\t<gps time=\"%s\" lng=\"%s\" lat=\"%s\" alt=\"%s\" hdg=\"%s\" spe=\"%s\" accuracy=\"%s\" type=\"%s\" />";
-
-
-	/**
-	 * XML template closing logfile
-	 */
-	private static final String	CLOSE_LOGFILE	= "\n</logfile>";
-
-	/**
-	 * XML template closing scan tag
-	 */
-	private static final String	CLOSE_SCAN_TAG	= "\n</scan>";
-
-	/**
-	 * Entries per log file
+	 * Entries per log file. Each file is read with a single cursor of that size
 	 */
 	private static final int CELLS_PER_FILE	= 1000;
 
@@ -120,6 +89,16 @@ public class CellSerializer {
 	private int mColPositionId;
 	private int mColSessionId;
 
+	/**
+	 * Log file header, loaded by {@link #planChunks()}
+	 */
+	private LogFile mHeaderRecord;
+
+	/**
+	 * Network type names, built once per export
+	 */
+	private final Map<Integer, String> mTechnologies = CellRecord.TECHNOLOGY_MAP();
+
 	private int	mColReqLat;
 
 	private int	mColReqTimestamp;
@@ -174,6 +153,12 @@ public class CellSerializer {
 	 */
 	private final String	mExportVersion;
 
+	/**
+	 * Cells are paged by (begin position id, cell id): each page (i.e. file, see {@link ExportChunk}) continues right
+	 * after last row of previous page, so the index on (session_id, request_pos_id) seeks straight to page start
+	 * instead of skipping OFFSET rows.
+	 * Parameters: session id, last begin position id, last begin position id, last cell id
+	 */
 	private static final String CELL_SQL_QUERY = " SELECT " + Schema.TBL_CELLS + "." + Schema.COL_ID + ", "
 			+ Schema.COL_NETWORKTYPE + ", "
 			+ Schema.COL_IS_CDMA + ", "
@@ -213,9 +198,23 @@ public class CellSerializer {
 			+ " JOIN \"" + Schema.TBL_POSITIONS + "\" AS \"req\" ON (" + Schema.COL_BEGIN_POSITION_ID + " = \"req\".\"_id\")"
 			+ " JOIN \"" + Schema.TBL_POSITIONS + "\" AS \"last\" ON (" + Schema.COL_END_POSITION_ID + " = \"last\".\"_id\")"
 			+ " WHERE " + Schema.TBL_CELLS + "." + Schema.COL_SESSION_ID + " = ?"
-			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID
-			+ " LIMIT " + CURSOR_SIZE
-			+ " OFFSET ?";
+			+ " AND (" + Schema.COL_BEGIN_POSITION_ID + " > ?"
+			+ " OR (" + Schema.COL_BEGIN_POSITION_ID + " = ? AND " + Schema.TBL_CELLS + "." + Schema.COL_ID + " > ?))"
+			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.TBL_CELLS + "." + Schema.COL_ID
+			+ " LIMIT " + CELLS_PER_FILE;
+
+	/**
+	 * Finds chunk boundaries: returns last row of a chunk and first row of next chunk, if any.
+	 * Only reads index on (session_id, request_pos_id), so planning all chunks is cheap.
+	 * Parameters: session id, last begin position id, last begin position id, last cell id
+	 */
+	private static final String CELL_CHUNK_QUERY = " SELECT " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.COL_ID
+			+ " FROM " + Schema.TBL_CELLS
+			+ " WHERE " + Schema.COL_SESSION_ID + " = ?"
+			+ " AND (" + Schema.COL_BEGIN_POSITION_ID + " > ?"
+			+ " OR (" + Schema.COL_BEGIN_POSITION_ID + " = ? AND " + Schema.COL_ID + " > ?))"
+			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.COL_ID
+			+ " LIMIT 2 OFFSET " + (CELLS_PER_FILE - 1);
 
 	/**
 	 * Default constructor
@@ -259,23 +258,81 @@ public class CellSerializer {
 	}
 
 	/**
-	 * Builds cell xml files and saves/uploads them
+	 * Builds cell xml files one after another
 	 * @return file names of generated files
 	 */
 	protected final ArrayList<String> export() {
+		final long startTime = System.currentTimeMillis();
+
+		final ArrayList<String> generatedFiles = new ArrayList<>();
+		for (final ExportChunk chunk : planChunks()) {
+			final String file = exportChunk(chunk);
+			if (file != null) {
+				generatedFiles.add(file);
+			}
+		}
+
+		final long difference = System.currentTimeMillis() - startTime;
+		Log.i(TAG, "Serialize cells took " + difference + " ms");
+		return generatedFiles;
+	}
+
+	/**
+	 * Splits session into chunks of CELLS_PER_FILE cells, one per file.
+	 * Has to be called before {@link #exportChunk(ExportChunk)}
+	 * @return chunks, empty if session has no cells
+	 */
+	protected final List<ExportChunk> planChunks() {
 		Log.d(TAG, "Start cell export. Data source: " + CELL_SQL_QUERY);
 
-		final LogFile headerRecord = mDataHelper.loadLogFileBySession(mSession);
+		mHeaderRecord = mDataHelper.loadLogFileBySession(mSession);
 
-		final DatabaseHelper mDbHelper = new DatabaseHelper(mContext.getApplicationContext());
+		final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+		final Cursor first = db.rawQuery(CELL_SQL_QUERY, ExportChunk.FIRST.toArgs(mSession));
+		initColumns(first);
+		mActiveMcc = determineActiveMcc(first);
+		final boolean empty = first.getCount() == 0;
+		first.close();
+		if (empty) {
+			return new ArrayList<>();
+		}
 
-		final ArrayList<String> generatedFiles = new ArrayList<>();
+		final List<ExportChunk> chunks = planChunks(ExportChunk.queryOn(db), mSession);
+		Log.i(TAG, "Cell export split into " + chunks.size() + " files");
+		return chunks;
+	}
 
-		// get first CHUNK_SIZE records
-		Cursor cursorCells = mDbHelper.getReadableDatabase().rawQuery(CELL_SQL_QUERY,
-				new String[]{String.valueOf(mSession), String.valueOf(0)});
+	/**
+	 * Splits session into chunks, using {@link #CELL_CHUNK_QUERY}
+	 */
+	static List<ExportChunk> planChunks(final ExportChunk.KeyQuery query, final int session) {
+		return ExportChunk.plan(query, CELL_CHUNK_QUERY, session);
+	}
+
+	/**
+	 * Writes a single cell log file. Thread-safe, chunks may be exported in parallel
+	 * @param chunk chunk as returned by {@link #planChunks()}
+	 * @return file name or null on error
+	 */
+	protected final String exportChunk(final ExportChunk chunk) {
+		final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+		final Cursor cursor = db.rawQuery(CELL_SQL_QUERY, chunk.toArgs(mSession));
+		try {
+			if (cursor.getCount() == 0) {
+				Log.w(TAG, "No cells in " + chunk);
+				return null;
+			}
+			final String fileName = mTempPath + generateFilename(mActiveMcc, determineFileTimestamp(cursor), chunk.mIndex);
+			return saveAndMoveCursor(fileName, mHeaderRecord, cursor);
+		} finally {
+			cursor.close();
+		}
+	}
 
-		// [start] init columns
+	/**
+	 * Looks up column indices
+	 */
+	private void initColumns(final Cursor cursorCells) {
 		mColNetworkType = cursorCells.getColumnIndex(Schema.COL_NETWORKTYPE);
 		mColIsCdma = cursorCells.getColumnIndex(Schema.COL_IS_CDMA);
 		mColIsServing = cursorCells.getColumnIndex(Schema.COL_IS_SERVING);
@@ -309,47 +366,8 @@ public class CellSerializer {
 		mColLastHead = cursorCells.getColumnIndex("last_" + Schema.COL_BEARING);
 		mColLastSpeed = cursorCells.getColumnIndex("last_" + Schema.COL_SPEED);
 		mColLastAcc = cursorCells.getColumnIndex("last_" + Schema.COL_ACCURACY);
-		// [end]
-
-		final long startTime = System.currentTimeMillis();
-
-		mActiveMcc = determineActiveMcc(cursorCells);
-
-		long outer = 0;
-		// serialize
-		while (!cursorCells.isAfterLast()) {
-			long i = 0;
-			while (!cursorCells.isAfterLast()) {
-				// creates files of 100 wifis each
-				Log.i(TAG, "Cycle " + i);
-
-				final long fileTimeStamp = determineFileTimestamp(cursorCells);
-				final String fileName  = mTempPath + generateFilename(mActiveMcc, fileTimeStamp);
-				saveAndMoveCursor(fileName, headerRecord, cursorCells);
-
-				i += CELLS_PER_FILE;
-				generatedFiles.add(fileName);
-			}
-
-			// fetch next CURSOR_SIZE records
-			outer += CURSOR_SIZE;
-			cursorCells.close();
-			cursorCells = mDbHelper.getReadableDatabase().rawQuery(CELL_SQL_QUERY,
-					new String[]{String.valueOf(mSession),
-					String.valueOf(outer)});
-		}
-
-		final long difference = System.currentTimeMillis() - startTime;
-		Log.i(TAG, "Serialize cells took " + difference + " ms");
-
-		cursorCells.close();
-		cursorCells = null;
-		mDbHelper.close();
-
-		return generatedFiles;
 	}
 
-
 	/**
 	 * Gets timestamp from current record
 	 * @param cursor
@@ -389,236 +407,147 @@ public class CellSerializer {
 	 * @param fileName Filename, including full path
 	 * @param headerRecord Header information record
 	 * @param cursor Cursor to read from
+	 * @return file name or null on error
 	 */
-	private void saveAndMoveCursor(final String fileName, final LogFile headerRecord, final Cursor cursor) {
+	private String saveAndMoveCursor(final String fileName, final LogFile headerRecord, final Cursor cursor) {
 
 		// for performance reasons direct database access is used here (instead of content provider)
+		final CharArrayBuffer mccBuffer = new CharArrayBuffer(3);
+		final CharArrayBuffer mncBuffer = new CharArrayBuffer(3);
+
+		LogXmlWriter writer = null;
 		try {
 			cursor.moveToPrevious();
 
-			File file = new File(fileName);
-
-			Writer bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.getAbsoluteFile()), "UTF-8"), 30 * 1024);
+			writer = new LogXmlWriter(new FileOutputStream(new File(fileName).getAbsoluteFile()));
 
 			// Write header
-			bw.write(XML_HEADER);
-			bw.write(logToXml(headerRecord.getManufacturer(), headerRecord.getModel(), headerRecord.getRevision(), headerRecord.getSwid(), headerRecord.getSwVersion(), mExportVersion));
+			writer.openLogfile(headerRecord.getManufacturer(), headerRecord.getModel(), headerRecord.getRevision(), headerRecord.getSwid(), headerRecord.getSwVersion(), mExportVersion);
 
 			long previousBeginId = 0;
-			String previousEnd = "";
 
 			int i = 0;
 			// Iterate cells cursor until last row reached or CELLS_PER_FILE is reached
 			while (i < CELLS_PER_FILE && cursor.moveToNext()) {
 
-				final long beginId = Long.valueOf(cursor.getString(mColBeginPosId));
-
-				final String currentBegin = positionToXml(
-						cursor.getLong(mColReqTimestamp),
-						cursor.getDouble(mColReqLon),
-						cursor.getDouble(mColReqLat),
-						cursor.getDouble(mColReqAlt),
-						cursor.getDouble(mColReqHead),
-						cursor.getDouble(mColReqSpeed),
-						cursor.getDouble(mColReqAcc),
-						"begin");
-
-				final String currentEnd = positionToXml(
-						cursor.getLong(mColLastTimestamp),
-						cursor.getDouble(mColLastLon),
-						cursor.getDouble(mColLastLat),
-						cursor.getDouble(mColLastAlt) ,
-						cursor.getDouble(mColLastHead),
-						cursor.getDouble(mColLastSpeed),
-						cursor.getDouble(mColLastAcc),
-						"end");
+				final long beginId = cursor.getLong(mColBeginPosId);
 
 				if (i == 0) {
 					// Write first scan and gps tag at the beginning
-					bw.write(scanToXml(cursor.getLong(mColTimestamp)));
-					bw.write(currentBegin);
+					writer.openScan(cursor.getLong(mColTimestamp));
+					writeBeginPosition(writer, cursor);
 				} else {
 					// Later on, scan and gps tags are only needed, if we have a new scan
 					if (beginId != previousBeginId) {
 
 						// write end gps tag for previous scan
-						bw.write(previousEnd);
-						bw.write(CLOSE_SCAN_TAG);
+						cursor.moveToPrevious();
+						writeEndPosition(writer, cursor);
+						cursor.moveToNext();
+						writer.closeScan();
 
 						// Write new scan and gps tag
 						// TODO distance calculation, seems optional
-						bw.write(scanToXml(cursor.getLong(mColTimestamp)));
-						bw.write(currentBegin);
+						writer.openScan(cursor.getLong(mColTimestamp));
+						writeBeginPosition(writer, cursor);
 					}
 				}
 
 				/*
 				 *  At this point, we will always have an open scan and gps tag,
 				 *  so write cell xml now
-				 *	Note that for performance reasons all columns except colIsServing and colIsNeigbor
-				 *	are casted to string for performance reasons
+				 *	Note that for performance reasons mcc and mnc are copied into reusable buffers
 				 */
 				// TODO UMTS/CDMA not properly serialized!!!! Basestation, System and Network Id missing!
-				bw.write(cellToXML(
-						cursor.getInt(mColIsServing),
-						cursor.getInt(mColIsNeigbor),
-						cursor.getString(mColMcc),
-						cursor.getString(mColMnc),
-						cursor.getString(mColLac),
-						cursor.getString(mColLogicalCellId),
-						cursor.getString(mColActualCellId),
-						cursor.getString(mColUtranRnc),
-						cursor.getString(mColStrengthDbm),
-						cursor.getString(mColStrengthAsu),
-						cursor.getInt(mColNetworkType),
-						cursor.getString(mColPsc)));
+				writer.cell(
+						cursor.getInt(mColIsServing) != 0,
+						cursor.getInt(mColIsNeigbor) != 0,
+						copyString(cursor, mColMcc, mccBuffer),
+						copyString(cursor, mColMnc, mncBuffer),
+						cursor.getLong(mColLac),
+						cursor.getLong(mColLogicalCellId),
+						cursor.getLong(mColActualCellId),
+						cursor.getLong(mColUtranRnc),
+						cursor.getLong(mColStrengthDbm),
+						cursor.getLong(mColStrengthAsu),
+						mTechnologies.get(cursor.getInt(mColNetworkType)),
+						cursor.getLong(mColPsc));
 
 				previousBeginId = beginId;
-				previousEnd = currentEnd;
 
 				i++;
 			}
 
 			// If we are at the last cell, close open scan and gps tag
-			bw.write(previousEnd);
-			bw.write(CLOSE_SCAN_TAG);
+			if (i > 0) {
+				if (cursor.isAfterLast()) {
+					cursor.moveToPrevious();
+					writeEndPosition(writer, cursor);
+					cursor.moveToNext();
+				} else {
+					writeEndPosition(writer, cursor);
+				}
+			}
+			writer.closeScan();
 
-			bw.write(CLOSE_LOGFILE);
+			writer.closeLogfile();
 			// ensure that everything is really written out and close
-			bw.close();
-			file = null;
-			bw = null;
-
+			writer.close();
+			writer = null;
+			return fileName;
 		} catch (final IOException ioe) {
-			cursor.close();
 			Log.e(TAG, ioe.toString(), ioe);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					Log.w(TAG, "Error closing " + fileName);
+				}
+			}
+			return null;
 		}
 	}
 
 	/**
-	 * Generates cell xml
-	 * @param isServing
-	 * @param isNeighbour
-	 * @param mcc
-	 * @param mnc
-	 * @param lac
-	 * @param logicalId	logical cell id (lcid)
-	 * @param actualId	actual cell id (cid), may equal logicalId on GSM networks
-	 * @param rnc		radio network controller id
-	 * @param strengthDbm
-	 * @param strengthAsu
-	 * @param type
-	 * @param psc
-	 * @return
+	 * Copies string column into reusable buffer
+	 * @return buffer or null, if column is null
 	 */
-	private static String cellToXML(final int isServing, final int isNeighbour,
-			final String mcc, final String mnc, final String lac, final String logicalId, final String actualId, final String rnc, final String strengthDbm, final String strengthAsu, final int type, final String psc) {
-		final StringBuffer s = new StringBuffer(CELL_XML_DEFAULT_LENGTH);
-		if (isServing != 0) {
-			s.append("\n\t\t<gsmserving mcc=\"");
-			s.append(mcc);
-			s.append("\"");
-			s.append(" mnc=\"");
-			s.append(mnc);
-			s.append("\"");
-			s.append(" lac=\"");
-			s.append(lac);
-			s.append("\"");
-			s.append(" id=\"");
-			s.append(logicalId);
-			s.append("\"");
-			s.append(" act_id=\"");
-			s.append(actualId);
-			s.append("\"");
-			s.append(" rnc=\"");
-			s.append(rnc);
-			s.append("\"");
-			s.append(" psc=\"");
-			s.append(psc);
-			s.append("\"");
-			s.append(" ss=\"");
-			s.append(strengthDbm);
-			s.append("\"");
-			s.append(" act=\"");
-			s.append(CellRecord.TECHNOLOGY_MAP().get(type));
-			s.append("\"");
-			s.append(" rxlev=\"");
-			s.append(strengthAsu);
-			s.append("\"");
-			s.append("/>");
+	private static CharArrayBuffer copyString(final Cursor cursor, final int column, final CharArrayBuffer buffer) {
+		if (cursor.isNull(column)) {
+			return null;
 		}
-
-		if (isNeighbour != 0) {
-			s.append("\n\t\t<gsmneighbour mcc=\"");
-			s.append(mcc);
-			s.append("\"");
-			s.append(" mnc=\"");
-			s.append(mnc);
-			s.append("\"");
-			s.append(" lac=\"");
-			s.append(lac);
-			s.append("\"");
-			s.append(" id=\"");
-			s.append(logicalId);
-			s.append("\"");
-			s.append(" act_id=\"");
-			s.append(actualId);
-			s.append("\"");
-			s.append(" rnc=\"");
-			s.append(rnc);
-			s.append("\"");
-			s.append(" psc=\"");
-			s.append(psc);
-			s.append("\"");
-			s.append(" rxlev=\"");
-			s.append(strengthAsu);
-			s.append("\"");
-			s.append(" act=\"");
-			s.append(CellRecord.TECHNOLOGY_MAP().get(type));
-			s.append("\"");
-			s.append("/>");
-		}
-
-		return s.toString();
-	}
-
-	/**
-	 * Generates scan tag
-	 * @param timestamp
-	 * @return
-	 */
-	private static String scanToXml(final long timestamp) {
-		return String.format(SCAN_XML, timestamp);
+		cursor.copyStringToBuffer(column, buffer);
+		return buffer;
 	}
 
 	/**
-	 * Generates log file header
-	 * @param manufacturer
-	 * @param model
-	 * @param revision
-	 * @param swid
-	 * @param swVersion
-	 * @return log tag
+	 * Writes begin position of current row
 	 */
-	private static String logToXml(final String manufacturer, final String model, final String revision, final String swid, final String swVersion, final String exportVersion) {
-		return String.format(LOG_XML, manufacturer, model, revision, swid, swVersion, exportVersion);
+	private void writeBeginPosition(final LogXmlWriter writer, final Cursor cursor) throws IOException {
+		writer.position(
+				cursor.getLong(mColReqTimestamp),
+				cursor.getDouble(mColReqLon),
+				cursor.getDouble(mColReqLat),
+				cursor.getDouble(mColReqAlt),
+				cursor.getDouble(mColReqHead),
+				cursor.getDouble(mColReqSpeed),
+				cursor.getDouble(mColReqAcc),
+				"begin");
 	}
 
 	/**
-	 * Generates position tag
-	 * @param reqTime
-	 * @param lng
-	 * @param lat
-	 * @param alt
-	 * @param head
-	 * @param speed
-	 * @param acc
-	 * @param type
-	 * @return position tag
+	 * Writes end position of current row
 	 */
-	private static String positionToXml(final long reqTime, final double lng, final double lat,
-			final double alt, final double head, final double speed, final double acc, final String type) {
-		return String.format(POSITION_XML, reqTime, lng, lat, alt, head, speed, acc, type);
+	private void writeEndPosition(final LogXmlWriter writer, final Cursor cursor) throws IOException {
+		writer.position(
+				cursor.getLong(mColLastTimestamp),
+				cursor.getDouble(mColLastLon),
+				cursor.getDouble(mColLastLat),
+				cursor.getDouble(mColLastAlt),
+				cursor.getDouble(mColLastHead),
+				cursor.getDouble(mColLastSpeed),
+				cursor.getDouble(mColLastAcc),
+				"end");
 	}
 
 	/**
@@ -628,9 +557,10 @@ public class CellSerializer {
 	 * i.e. [username]_V[format version]_[mcc]_log[date]-cellular.xml
 	 * Keep in mind, that openbmap server currently only accepts filenames following the above mentioned
 	 * naming pattern, otherwise files are ignored.
+	 * @param chunk chunk index, as chunks exported in parallel may start at the same timestamp
 	 * @return filename
 	 */
-	private String generateFilename(final String mcc, final long timestamp) {
+	private String generateFilename(final String mcc, final long timestamp, final int chunk) {
 		/**
 		 * Option 1: generate filename by export time
 		 */
@@ -645,7 +575,7 @@ public class CellSerializer {
 		/**
 		 * Option 2: generate by first timestamp in file
 		 */
-		return "V2_" + mcc + "_log" + String.valueOf(timestamp) + "-cellular.xml";
+		return "V2_" + mcc + "_log" + String.valueOf(timestamp) + "_" + chunk + "-cellular.xml";
 	}
 
 
@@ -0,0 +1,125 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.soapclient;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Part of a session export, which goes into a single log file.
+ * Rows are ordered by (begin position id, row id), a chunk holds up to one file's worth of rows
+ * following its start key. As chunks don't depend on each other, they can be written in parallel.
+ */
+final class ExportChunk {
+
+	/**
+	 * Runs a chunk boundary query, i.e. a keyset query selecting begin position id and row id
+	 */
+	interface KeyQuery {
+		/**
+		 * @return begin position id and row id of each result row
+		 */
+		long[][] query(String sql, String[] args);
+	}
+
+	/**
+	 * Chunk starting at first row of session
+	 */
+	static final ExportChunk FIRST = new ExportChunk(-1, -1, 0);
+
+	/**
+	 * Begin position id of last row before chunk
+	 */
+	final long mAfterBeginId;
+
+	/**
+	 * Row id of last row before chunk
+	 */
+	final long mAfterId;
+
+	/**
+	 * Position in export order, keeps file names of chunks unique
+	 */
+	final int mIndex;
+
+	ExportChunk(final long afterBeginId, final long afterId, final int index) {
+		mAfterBeginId = afterBeginId;
+		mAfterId = afterId;
+		mIndex = index;
+	}
+
+	/**
+	 * Query arguments for keyset queries: session id, begin position id (twice), row id
+	 */
+	String[] toArgs(final int session) {
+		return new String[] {
+				String.valueOf(session),
+				String.valueOf(mAfterBeginId),
+				String.valueOf(mAfterBeginId),
+				String.valueOf(mAfterId)};
+	}
+
+	@Override
+	public String toString() {
+		return "chunk after " + mAfterBeginId + "/" + mAfterId;
+	}
+
+	/**
+	 * Splits a session into chunks: starting with {@link #FIRST}, the boundary query returns last row
+	 * of the current chunk and first row of the next one. If there is no second row, current chunk is the last one
+	 * @param query runs boundary query
+	 * @param sql boundary query, with limit 2 and offset of one file's worth of rows minus one
+	 * @param session session id
+	 * @return chunks in export order
+	 */
+	static List<ExportChunk> plan(final KeyQuery query, final String sql, final int session) {
+		final List<ExportChunk> chunks = new ArrayList<>();
+		ExportChunk chunk = FIRST;
+		while (chunk != null) {
+			chunks.add(chunk);
+			final long[][] boundary = query.query(sql, chunk.toArgs(session));
+			chunk = boundary.length == 2 ? new ExportChunk(boundary[0][0], boundary[0][1], chunks.size()) : null;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Boundary queries on the measurement database
+	 */
+	static KeyQuery queryOn(final SQLiteDatabase db) {
+		return new KeyQuery() {
+			@Override
+			public long[][] query(final String sql, final String[] args) {
+				final Cursor cursor = db.rawQuery(sql, args);
+				try {
+					final long[][] rows = new long[cursor.getCount()][];
+					for (int i = 0; cursor.moveToNext(); i++) {
+						rows[i] = new long[] {cursor.getLong(0), cursor.getLong(1)};
+					}
+					return rows;
+				} finally {
+					cursor.close();
+				}
+			}
+		};
+	}
+}
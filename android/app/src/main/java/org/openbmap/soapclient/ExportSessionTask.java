@@ -28,9 +28,8 @@ import android.widget.Toast;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
 import org.openbmap.Preferences;
 import org.openbmap.R;
 import org.openbmap.RadioBeacon;
@@ -43,6 +42,18 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages export and upload processes
@@ -57,7 +68,19 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 	private final int MAX_THREADS = 5;
 
 	/**
-	 * Wait for how many milliseconds for upload to be completed
+	 * Number of files serialized in parallel. Serialization is mostly bound by database reads,
+	 * so a small pool is enough to keep uploads busy
+	 */
+	private static final int EXPORT_THREADS = 2;
+
+	/**
+	 * Max. number of exported files, which haven't been uploaded yet. Export threads wait for uploads,
+	 * so temp folder never holds more than a few files of a session
+	 */
+	private static final int MAX_PENDING_FILES = 8;
+
+	/**
+	 * Wait for how many milliseconds for upload to be completed, after last file has been queued
 	 * Users have reported issues with GRACE_TIME = 30000, so give it some more time
 	 */
 	private static final int GRACE_TIME	= 120000;
@@ -143,6 +166,11 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 	 */
 	private boolean mKeepXml = Preferences.VAL_KEEP_XML;
 
+	/**
+	 * Gzip files before upload?
+	 */
+	private boolean mCompressUpload = Preferences.VAL_GZIP_UPLOAD;
+
     /**
      * Create a GPX track
      */
@@ -154,20 +182,24 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 	private boolean	mUpdateWifiCatalog = false;
 
 	/**
-	 * Number of active upload tasks
+	 * Runs uploads, at most MAX_THREADS at the same time
 	 */
-	private int	mActiveUploads;
+	private UploadScheduler mScheduler;
 
     /**
      * One-time token for anonymous upload
      */
     private String mToken;
 
+    /**
+     * Keep-alive connections shared by all uploads of this export
+     */
+    private UploadConnectionPool mConnectionPool;
+
 	/**
 	 * List of all successfully uploaded files. For the moment no differentiation between cells and wifis
 	 */
-	private ArrayList<String> mUploadedFiles;
-    private long mSpeed = -1;
+	private List<String> mUploadedFiles;
 
     public interface UploadTaskListener {
 		void onUploadProgressUpdate(Object... values);
@@ -196,33 +228,78 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 		mListener = listener;
 
         mAnonymousUpload = anonymous_upload;
-		mUploadedFiles = new ArrayList<>();
+		mUploadedFiles = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	/**
+	 * Slots for exported files waiting for upload, see {@link #MAX_PENDING_FILES}
+	 */
+	private final Semaphore mPendingFiles = new Semaphore(MAX_PENDING_FILES);
+
+	/**
+	 * Exported files holding a slot. Files exported after a stall hold none, so they mustn't release one
+	 */
+	private final Set<String> mSlotFiles = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * A file written by an export thread
+	 */
+	private static final class ExportedFile {
+		private final String mFile;
+		private final boolean mIsWifi;
+
+		private ExportedFile(final String file, final boolean isWifi) {
+			mFile = file;
+			mIsWifi = isWifi;
+		}
 	}
 
 	/**
-	 * Builds cell xml files and saves/uploads them
+	 * Builds cell and wifi xml files and saves/uploads them.
+	 * Files are serialized in parallel and each file is handed over to upload as soon as it has been written,
+	 * so serialization and upload overlap instead of running one after another.
+	 * Export threads wait while {@link #MAX_PENDING_FILES} files are waiting for upload.
 	 */
 	@SuppressLint("NewApi")
 	@Override
 	protected final Boolean doInBackground(final Void... params) {
-		ArrayList<String> wifiFiles = new ArrayList<>();
-		ArrayList<String> cellFiles = new ArrayList<>();
 		Boolean success = true;
 
+		if (!mSkipUpload) {
+			mConnectionPool = new UploadConnectionPool(MAX_THREADS);
+			mScheduler = new UploadScheduler(this, MAX_THREADS);
+		}
+
         if (!mSkipUpload && mAnonymousUpload && (mExportCells || mExportWifis)) {
             mToken = getToken();
             Log.i(TAG, "Token " + mToken);
         }
 
+		final long startTime = System.currentTimeMillis();
+		final ExecutorService exportPool = Executors.newFixedThreadPool(EXPORT_THREADS);
+		final CompletionService<ExportedFile> exported = new ExecutorCompletionService<>(exportPool);
+		int pending = 0;
+
+		publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient),
+				mAppContext.getResources().getString(mExportCells ? R.string.exporting_cells : R.string.exporting_wifis), 0);
 		if (mExportCells) {
 			Log.i(TAG, "Exporting cells");
-			// export cells
-			publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient), mAppContext.getResources().getString(R.string.exporting_cells), 0);
-			cellFiles = new CellSerializer(mAppContext, mSession, mTempPath, RadioBeacon.SW_VERSION).export();
-
-			// upload
-			if (!mSkipUpload) {
-				uploadAllCells(cellFiles);
+			final CellSerializer serializer = new CellSerializer(mAppContext, mSession, mTempPath, RadioBeacon.SW_VERSION);
+			for (final ExportChunk chunk : serializer.planChunks()) {
+				exported.submit(new Callable<ExportedFile>() {
+					@Override
+					public ExportedFile call() throws InterruptedException {
+						final boolean slot = acquireFileSlot();
+						String file = null;
+						try {
+							file = serializer.exportChunk(chunk);
+						} finally {
+							holdFileSlot(file, slot);
+						}
+						return new ExportedFile(file, false);
+					}
+				});
+				pending++;
 			}
 		} else {
 			Log.i(TAG, "Cell export skipped");
@@ -230,45 +307,85 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 
 		if (mExportWifis) {
 			Log.i(TAG, "Exporting wifis");
-			// export wifis
-			publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient), mAppContext.getResources().getString(R.string.exporting_wifis), 50);
-			wifiFiles = new WifiSerializer(mAppContext, mSession, mTempPath, RadioBeacon.SW_VERSION, mAnonymiseSsid).export();
-
-			// upload
-			if (!mSkipUpload) {
-				uploadAllWifis(wifiFiles);
+			final WifiSerializer serializer = new WifiSerializer(mAppContext, mSession, mTempPath, RadioBeacon.SW_VERSION, mAnonymiseSsid);
+			for (final ExportChunk chunk : serializer.planChunks()) {
+				exported.submit(new Callable<ExportedFile>() {
+					@Override
+					public ExportedFile call() throws InterruptedException {
+						final boolean slot = acquireFileSlot();
+						String file = null;
+						try {
+							file = serializer.exportChunk(chunk);
+						} finally {
+							holdFileSlot(file, slot);
+						}
+						return new ExportedFile(file, true);
+					}
+				});
+				pending++;
 			}
 		} else {
 			Log.i(TAG, "Wifi export skipped");
 		}
+		exportPool.shutdown();
+
+		// consume files in order of completion
+		final int total = pending;
+		int started = 0;
+		while (pending > 0) {
+			ExportedFile file = null;
+			try {
+				file = exported.take().get();
+			} catch (final InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for export");
+				exportPool.shutdownNow();
+				Thread.currentThread().interrupt();
+				success = false;
+				break;
+			} catch (final ExecutionException e) {
+				Log.e(TAG, "Export failed: " + e.getCause(), e.getCause());
+			}
+			pending--;
+
+			if (file == null || file.mFile == null) {
+				// slot has already been freed by export thread
+				Log.e(TAG, "Export of a file failed, upload skipped");
+				success = false;
+				continue;
+			}
+
+			if (!mSkipUpload) {
+				final String message = mAppContext.getResources().getString(file.mIsWifi ? R.string.uploading_wifis : R.string.uploading_cells)
+						+ "(" + mAppContext.getString(R.string.files) + ": " + String.valueOf(total - started) + ")";
+				publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient), message, started * 75 / total);
+				if (upload(file.mFile, file.mIsWifi)) {
+					started++;
+				} else {
+					releaseFileSlot(file.mFile);
+				}
+			}
+		}
+		Log.i(TAG, "Serialized " + total + " files in " + (System.currentTimeMillis() - startTime) + " ms");
 
 		if (!mSkipUpload) {
-			// wait max 30s for all upload tasks to finish
-			final long startGrace = System.currentTimeMillis();
-			sleepTillCompleted(startGrace);
+			// wait for all upload tasks to finish
+			if (!mScheduler.awaitCompletion(GRACE_TIME)) {
+				Log.w(TAG, "Not all uploads finished in time");
+			}
 
 			// check, whether all files are uploaded
-			if (mUploadedFiles.size() != (wifiFiles.size() + cellFiles.size())) {
+			if (mUploadedFiles.size() != total) {
 				Log.e(TAG, "Not all files have been uploaded!");
 				// set state to failed on upload problems
 				success = false;
 			} else {
 				Log.i(TAG, "All files uploaded");
 			}
+			Log.i(TAG, "Export and upload took " + (System.currentTimeMillis() - startTime) + " ms: " + mScheduler.getMetrics());
 
-			// and cleanup
-			if (!mKeepXml) {
-				// delete only successfully uploaded files
-				Log.i(TAG, "Deleting uploaded files");
-				deleteXmlFiles(mUploadedFiles);
-			} else {
-				Log.i(TAG, "Deleting files skipped");
-			}
+			mConnectionPool.shutdown();
 		}
 		// clean up a bit
-		wifiFiles = null;
-		cellFiles = null;
-		mUploadedFiles = null;
 		System.gc();
 
 		if (mUpdateWifiCatalog) {
@@ -293,93 +410,70 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 		return success;
 	}
 
-	private void deleteXmlFiles(ArrayList<String> files) {
-		for (int i = 0; i < files.size(); i++) {
-            final File temp = new File(files.get(i));
-            if (!temp.delete()) {
-				Log.w(TAG, "Couldn't delete " + temp.getAbsolutePath());
-            }
-        }
-	}
-
-	private void sleepTillCompleted(long startGrace) {
-		while (mActiveUploads > 0 ) {
-            Log.i(TAG, "Waiting for uploads to complete. (Active " + String.valueOf(mActiveUploads) + ")");
-            try {
-                Thread.sleep(50);
-            } catch (final InterruptedException e) {
-            }
-            if (System.currentTimeMillis() - startGrace > GRACE_TIME) {
-                Log.i(TAG, "Timeout reached");
-                break;
-            }
-        }
+	/**
+	 * Waits until number of files waiting for upload drops below {@link #MAX_PENDING_FILES}.
+	 * Dry runs keep all files, so they aren't limited. If uploads stall, export continues after {@link #GRACE_TIME}
+	 * @return true if a slot has been acquired, false if export continues without one
+	 * @throws InterruptedException if export has been cancelled
+	 */
+	private boolean acquireFileSlot() throws InterruptedException {
+		if (mSkipUpload) {
+			return false;
+		}
+		if (!mPendingFiles.tryAcquire(GRACE_TIME, TimeUnit.MILLISECONDS)) {
+			Log.w(TAG, "Uploads stalled, exporting next file anyway");
+			return false;
+		}
+		return true;
 	}
 
-	private void uploadAllCells(ArrayList<String> cellFiles) {
-		for (int i = 0; i < cellFiles.size(); i++) {
-            // thread control for the poor: spawn only MAX_THREADS tasks
-            while (mActiveUploads >= allowedThreads()) {
-                Log.i(TAG, "Number of upload threads exceeds max parallel threads (" + mActiveUploads + "/" + allowedThreads() + "). Waiting..");
-                try {
-                    Thread.sleep(100);
-                } catch (final InterruptedException e) {
-                }
-            }
-            publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient), mAppContext.getResources().getString(R.string.uploading_cells) + "(" + "Files" + ": " + String.valueOf(cellFiles.size() -i) +")" , 0);
-
-            // enforce parallel execution on HONEYCOMB
-            if (!mAnonymousUpload) {
-                new AsyncUploader(this, mUser, mPassword, CELL_WEBSERVICE).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, cellFiles.get(i));
-                mActiveUploads += 1;
-            } else if (mAnonymousUpload && (mToken != null)){
-                new AsyncUploader(this, mToken, CELL_ANONYMOUS_WEBSERVICE).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, cellFiles.get(i));
-                mActiveUploads += 1;
-            } else {
-                Log.e(TAG, "Neither user name nor token was available");
-            }
-        }
+	/**
+	 * Assigns an acquired slot to exported file, until it has been uploaded. If export failed, slot is freed right away
+	 * @param file exported file or null on error
+	 * @param slot true if a slot has been acquired for this file
+	 */
+	private void holdFileSlot(final String file, final boolean slot) {
+		if (!slot) {
+			return;
+		}
+		if (file != null) {
+			mSlotFiles.add(file);
+		} else {
+			mPendingFiles.release();
+		}
 	}
 
-	private void uploadAllWifis(ArrayList<String> wifiFiles) {
-		for (int i = 0; i < wifiFiles.size(); i++) {
-            while (mActiveUploads >= allowedThreads()) {
-                Log.i(TAG, "Maximum number of upload threads reached. Waiting..");
-                try {
-                    Thread.sleep(50);
-                } catch (final InterruptedException e) {
-                }
-            }
-            publishProgress(mAppContext.getResources().getString(R.string.please_stay_patient), mAppContext.getResources().getString(R.string.uploading_wifis) + "(" + mAppContext.getString(R.string.files) + ": " + String.valueOf(wifiFiles.size() -i ) + ")", 50);
-            // enforce parallel execution on HONEYCOMB
-            if (!mAnonymousUpload) {
-                new AsyncUploader(this, mUser, mPassword, WIFI_WEBSERVICE).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, wifiFiles.get(i));
-                mActiveUploads += 1;
-            } else if (mAnonymousUpload && (mToken != null)) {
-                new AsyncUploader(this, mToken, WIFI_ANONYMOUS_WEBSERVICE).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, wifiFiles.get(i));
-                mActiveUploads += 1;
-            } else {
-                Log.e(TAG, "Neither user name nor token was available");
-            }
-        }
+	/**
+	 * Frees slot of a file, which has been uploaded or failed. Files without slot are ignored
+	 * @param file file name
+	 */
+	private void releaseFileSlot(final String file) {
+		if (mSlotFiles.remove(file)) {
+			mPendingFiles.release();
+		}
 	}
 
 	/**
-     * Returns number of parallel uploads threads
-     * @return 1 if no speed measurement available yet
-     */
-	private int allowedThreads() {
-        if (mSpeed == -1) {
-            Log.d(TAG, "No speed measurements. Only 1 thread allowed");
-            return 1;
-        } else if (mSpeed < 10) {
-            Log.d(TAG, "Speed below 10kb. Only 1 thread allowed");
-            return 1;
-        } else {
-            Log.d(TAG, "No thread restriction. " + MAX_THREADS + " allowed");
-            return MAX_THREADS;
-        }
-    }
+	 * Queues upload of a single file, blocks while all upload slots are in use
+	 * @param file file to upload
+	 * @param isWifi true for wifi log files, false for cell log files
+	 * @return true, if upload has been queued
+	 */
+	private boolean upload(final String file, final boolean isWifi) {
+		final AsyncUploader uploader;
+		if (!mAnonymousUpload) {
+			uploader = new AsyncUploader(this, mUser, mPassword, isWifi ? WIFI_WEBSERVICE : CELL_WEBSERVICE);
+		} else if (mToken != null) {
+			uploader = new AsyncUploader(this, mToken, isWifi ? WIFI_ANONYMOUS_WEBSERVICE : CELL_ANONYMOUS_WEBSERVICE);
+		} else {
+			Log.e(TAG, "Neither user name nor token was available");
+			return false;
+		}
+		uploader.setCompress(mCompressUpload);
+		uploader.setHttpClient(mConnectionPool.getClient());
+
+		return mScheduler.submit(uploader, file);
+	}
 
 	/**
 	 * Updates progress bar.
@@ -472,25 +566,41 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 		this.mKeepXml = keepXml;
 	}
 
+    /**
+     * Enables or disables gzip compression of uploaded files
+     * @param compressUpload
+     */
+	public final void setCompressUpload(final boolean compressUpload) {
+		this.mCompressUpload = compressUpload;
+	}
+
 	/* (non-Javadoc)
+	 * Called on upload threads
 	 * @see org.openbmap.soapclient.FileUploader.UploadTaskListener#onUploadCompleted(java.util.ArrayList)
 	 */
 	@Override
 	public final void onUploadCompleted(final String file, final long size, final long speed) {
 		mUploadedFiles.add(file);
-		mActiveUploads -= 1;
-        mSpeed = speed;
-		Log.i(TAG, "Finished upload (size " + size + " bytes, speed" + speed + "kb), pending uploads " + mActiveUploads);
+		Log.i(TAG, "Finished upload (size " + size + " bytes, speed" + speed + "kb), total throughput " + mScheduler.getThroughput() + "kb");
+
+		// delete right away, so temp folder doesn't have to hold whole session
+		if (!mKeepXml) {
+			final File temp = new File(file);
+			if (!temp.delete()) {
+				Log.w(TAG, "Couldn't delete " + temp.getAbsolutePath());
+			}
+		}
+		releaseFileSlot(file);
 	}
 
 	/* (non-Javadoc)
+	 * Called on upload threads
 	 * @see org.openbmap.soapclient.FileUploader.UploadTaskListener#onUploadFailed(java.lang.String)
 	 */
 	@Override
 	public final void onUploadFailed(final String file, final String error) {
 		Log.e(TAG, "Upload failed:" + file + " " + error);
-		mActiveUploads -= 1;
-        mSpeed = -1;
+		releaseFileSlot(file);
 	}
 
 	/**
@@ -501,7 +611,7 @@ public class ExportSessionTask extends AsyncTask<Void, Object, Boolean> implemen
 	}
 
     private String getToken() {
-        final DefaultHttpClient httpclient = new DefaultHttpClient(new BasicHttpParams());
+        final HttpClient httpclient = mConnectionPool.getClient();
         final HttpPost httppost = new HttpPost("https://radiocells.org/openbmap/uploads/generate_api_key");
         final StringBuilder sb = new StringBuilder();
 
@@ -47,7 +47,9 @@ public class GpxSerializer {
     private static final String TAG = GpxSerializer.class.getSimpleName();
 
     /**
-     * Cursor windows size, to prevent running out of mem on to large cursor
+     * Cursor windows size, to prevent running out of mem on to large cursor.
+     * Pages are fetched by keyset (i.e. continuing after last row of previous page), not by OFFSET,
+     * so each page costs the same no matter how large the session is
      */
     private static final int CURSOR_SIZE = 1000;
 
@@ -69,7 +71,7 @@ public class GpxSerializer {
     private static final String TAG_GPX_CLOSE = "</gpx>";
 
     private static final String TRACKPOINT_SQL_QUERY1 =
-            "SELECT " + Schema.COL_LATITUDE + ", "
+            "SELECT " + Schema.COL_ID + ", " + Schema.COL_LATITUDE + ", "
                   + Schema.COL_LONGITUDE + ", " + " " +
                     Schema.COL_ALTITUDE + ", " +
                     Schema.COL_ACCURACY + ", " +
@@ -83,11 +85,11 @@ public class GpxSerializer {
                     " WHERE " +
                     Schema.COL_SESSION_ID + " = ?"
                 + " AND source != '" + RadioBeacon.PROVIDER_USER_DEFINED + "' "
-                + " ORDER BY " + Schema.COL_TIMESTAMP + " LIMIT " + CURSOR_SIZE
-                + " OFFSET ?";
+                + " AND (" + Schema.COL_TIMESTAMP + " > ? OR (" + Schema.COL_TIMESTAMP + " = ? AND " + Schema.COL_ID + " > ?))"
+                + " ORDER BY " + Schema.COL_TIMESTAMP + ", " + Schema.COL_ID + " LIMIT " + CURSOR_SIZE;
 
     private static final String WAYPOINT_SQL_QUERY =
-            "SELECT " + Schema.COL_LATITUDE + ", " +
+            "SELECT " + Schema.COL_ID + ", " + Schema.COL_LATITUDE + ", " +
                     Schema.COL_LONGITUDE + ", "
             + " " + Schema.COL_ALTITUDE + ", " +
                     Schema.COL_ACCURACY + ", " +
@@ -99,16 +101,17 @@ public class GpxSerializer {
             + " FROM " + Schema.TBL_POSITIONS +
                     " WHERE " + Schema.COL_SESSION_ID + " = ?"
                   + " AND source = '" + RadioBeacon.PROVIDER_USER_DEFINED + "' "
-                  + " ORDER BY " + Schema.COL_TIMESTAMP + " LIMIT " + CURSOR_SIZE
-                  + " OFFSET ?";
+                  + " AND (" + Schema.COL_TIMESTAMP + " > ? OR (" + Schema.COL_TIMESTAMP + " = ? AND " + Schema.COL_ID + " > ?))"
+                  + " ORDER BY " + Schema.COL_TIMESTAMP + ", " + Schema.COL_ID + " LIMIT " + CURSOR_SIZE;
 
     private static final String WIFI_POINTS_SQL_QUERY =
-            "SELECT w.rowid as " + Schema.COL_ID + ", w." +Schema.COL_BSSID + ", w." + Schema.COL_SSID + ", "
+            "SELECT w." + Schema.COL_WIFI_ID + " as " + Schema.COL_ID + ", w." +Schema.COL_BSSID + ", w." + Schema.COL_SSID + ", "
             + " MAX(" + Schema.COL_LEVEL + "), w." + Schema.COL_TIMESTAMP + ", "
             + " b." + Schema.COL_LATITUDE + ", b." + Schema.COL_LONGITUDE + ", b." + Schema.COL_ALTITUDE + ", b." + Schema.COL_ACCURACY
-            + " FROM " + Schema.TBL_WIFIS + " as w JOIN positions as b ON request_pos_id = b._id "
-            + " WHERE w." + Schema.COL_SESSION_ID + " = ? GROUP BY w." + Schema.COL_BSSID
-            + " LIMIT " + CURSOR_SIZE + " OFFSET ?";
+            + " FROM " + Schema.TBL_WIFI_OVERVIEW + " as w JOIN positions as b ON request_pos_id = b._id "
+            + " WHERE w." + Schema.COL_SESSION_ID + " = ? AND w." + Schema.COL_BSSID + " > ?"
+            + " GROUP BY w." + Schema.COL_BSSID
+            + " ORDER BY w." + Schema.COL_BSSID + " LIMIT " + CURSOR_SIZE;
 
     private static final String CELL_POINTS_SQL_QUERY =
             "SELECT " +
@@ -116,7 +119,7 @@ public class GpxSerializer {
                     Schema.COL_LONGITUDE + ", " +
                     Schema.COL_ALTITUDE + ", " +
                     Schema.COL_ACCURACY + ", " +
-                    Schema.COL_TIMESTAMP + ", \"CELL \" ||" +
+                    Schema.COL_TIMESTAMP + ", c." + Schema.COL_ID + " AS cell_id, \"CELL \" ||" +
                     Schema.COL_OPERATORNAME + " ||" +
                     Schema.COL_LOGICAL_CELLID + " AS name"
                 + " FROM " + Schema.TBL_POSITIONS + " AS p LEFT JOIN "
@@ -128,8 +131,8 @@ public class GpxSerializer {
             + " AS c ON c." +
                     Schema.COL_BEGIN_POSITION_ID + " = p._id WHERE c._id IS NOT NULL " +
                     "AND p." + Schema.COL_SESSION_ID + " = ?"
-            + " ORDER BY " + Schema.COL_TIMESTAMP + " LIMIT " + CURSOR_SIZE
-            + " OFFSET ?";
+            + " AND (p." + Schema.COL_TIMESTAMP + " > ? OR (p." + Schema.COL_TIMESTAMP + " = ? AND c." + Schema.COL_ID + " > ?))"
+            + " ORDER BY p." + Schema.COL_TIMESTAMP + ", c." + Schema.COL_ID + " LIMIT " + CURSOR_SIZE;
     //@formatter:on
     /**
      * Date format as used internally
@@ -174,7 +177,7 @@ public class GpxSerializer {
      */
     public final void doExport(final String trackName, final File target, int verbosity) throws IOException {
         Log.i(TAG, "Exporting gpx file" + target.getAbsolutePath());
-        mDbHelper = new DatabaseHelper(mContext.getApplicationContext());
+        mDbHelper = DatabaseHelper.getInstance(mContext);
 
         final BufferedWriter bw = new BufferedWriter(new FileWriter(target));
 
@@ -201,7 +204,6 @@ public class GpxSerializer {
         bw.write(TAG_GPX_CLOSE);
         bw.close();
 
-        mDbHelper.close();
         Log.i(TAG, "Finished building gpx file");
     }
 
@@ -214,20 +216,14 @@ public class GpxSerializer {
     private void writeWaypoints(final BufferedWriter bw) throws IOException {
         Log.i(TAG, "Writing trackpoints");
 
-        //@formatter:off
-        Cursor c = mDbHelper.getReadableDatabase().rawQuery(WAYPOINT_SQL_QUERY,
-                                                            new String[] {
-                                                                    String.valueOf(mSession),
-                                                                    String.valueOf(0)
-                                                            });
-        //@formatter:on
+        Cursor c = queryPage(WAYPOINT_SQL_QUERY, "-1", "-1", "-1");
 
         final int colLatitude = c.getColumnIndex(Schema.COL_LATITUDE);
         final int colLongitude = c.getColumnIndex(Schema.COL_LONGITUDE);
         final int colAltitude = c.getColumnIndex(Schema.COL_ALTITUDE);
         final int colTimestamp = c.getColumnIndex(Schema.COL_TIMESTAMP);
+        final int colId = c.getColumnIndex(Schema.COL_ID);
 
-        long outer = 0;
         while(!c.isAfterLast()) {
             c.moveToFirst();
             while(!c.isAfterLast()) {
@@ -252,17 +248,12 @@ public class GpxSerializer {
                 c.moveToNext();
             }
 
-            // fetch next CURSOR_SIZE records
-            outer += CURSOR_SIZE;
+            // fetch next CURSOR_SIZE records, starting after last row of current page
+            c.moveToLast();
+            final String lastTimestamp = c.getString(colTimestamp);
+            final String lastId = c.getString(colId);
             c.close();
-
-            //@formatter:off
-            c = mDbHelper.getReadableDatabase().rawQuery(WAYPOINT_SQL_QUERY,
-                                                         new String[] {
-                                                                 String.valueOf(mSession),
-                                                                 String.valueOf(outer)
-                                                         });
-            //@formatter:on
+            c = queryPage(WAYPOINT_SQL_QUERY, lastTimestamp, lastTimestamp, lastId);
         }
 
         c.close();
@@ -279,18 +270,13 @@ public class GpxSerializer {
     private void writeTrackpoints(final String trackName, final BufferedWriter bw) throws IOException {
         Log.i(TAG, "Writing trackpoints");
 
-        //@formatter:off
-        Cursor c = mDbHelper.getReadableDatabase().rawQuery(TRACKPOINT_SQL_QUERY1,
-                                                            new String[] {
-                                                                    String.valueOf(mSession),
-                                                                    String.valueOf(0)
-                                                            });
-        //@formatter:on
+        Cursor c = queryPage(TRACKPOINT_SQL_QUERY1, "-1", "-1", "-1");
 
         final int colLatitude = c.getColumnIndex(Schema.COL_LATITUDE);
         final int colLongitude = c.getColumnIndex(Schema.COL_LONGITUDE);
         final int colAltitude = c.getColumnIndex(Schema.COL_ALTITUDE);
         final int colTimestamp = c.getColumnIndex(Schema.COL_TIMESTAMP);
+        final int colId = c.getColumnIndex(Schema.COL_ID);
 
         bw.write("<trk>");
         bw.write("<name>");
@@ -298,7 +284,6 @@ public class GpxSerializer {
         bw.write("</name>");
         bw.write("<trkseg>");
 
-        long outer = 0;
         while(!c.isAfterLast()) {
             c.moveToFirst();
             while(!c.isAfterLast()) {
@@ -323,16 +308,12 @@ public class GpxSerializer {
                 c.moveToNext();
             }
 
-            // fetch next CURSOR_SIZE records
-            outer += CURSOR_SIZE;
+            // fetch next CURSOR_SIZE records, starting after last row of current page
+            c.moveToLast();
+            final String lastTimestamp = c.getString(colTimestamp);
+            final String lastId = c.getString(colId);
             c.close();
-            //@formatter:off
-            c = mDbHelper.getReadableDatabase().rawQuery(TRACKPOINT_SQL_QUERY1,
-                                                         new String[] {
-                                                                 String.valueOf(mSession),
-                                                                 String.valueOf(outer)
-                                                         });
-            //@formatter:on
+            c = queryPage(TRACKPOINT_SQL_QUERY1, lastTimestamp, lastTimestamp, lastId);
         }
         c.close();
 
@@ -350,21 +331,15 @@ public class GpxSerializer {
     private void writeWifis(final BufferedWriter bw) throws IOException {
         Log.i(TAG, "Writing wifi waypoints");
 
-        //@formatter:off
-        Cursor c = mDbHelper.getReadableDatabase().rawQuery(WIFI_POINTS_SQL_QUERY,
-                                                            new String[] {
-                                                                    String.valueOf(mSession),
-                                                                    String.valueOf(0)
-                                                            });
-        //@formatter:on
+        Cursor c = queryPage(WIFI_POINTS_SQL_QUERY, "");
 
         final int colLatitude = c.getColumnIndex(Schema.COL_LATITUDE);
         final int colLongitude = c.getColumnIndex(Schema.COL_LONGITUDE);
         final int colAltitude = c.getColumnIndex(Schema.COL_ALTITUDE);
         final int colTimestamp = c.getColumnIndex(Schema.COL_TIMESTAMP);
         final int colSsid = c.getColumnIndex(Schema.COL_SSID);
+        final int colBssid = c.getColumnIndex(Schema.COL_BSSID);
 
-        long outer = 0;
         while(!c.isAfterLast()) {
             c.moveToFirst();
             while(!c.isAfterLast()) {
@@ -390,16 +365,11 @@ public class GpxSerializer {
                 bw.flush();
                 c.moveToNext();
             }
-            // fetch next CURSOR_SIZE records
-            outer += CURSOR_SIZE;
+            // fetch next CURSOR_SIZE records, starting after last bssid of current page
+            c.moveToLast();
+            final String lastBssid = c.getString(colBssid);
             c.close();
-            //@formatter:off
-            c = mDbHelper.getReadableDatabase().rawQuery(WIFI_POINTS_SQL_QUERY,
-                                                         new String[] {
-                                                                 String.valueOf(mSession),
-                                                                 String.valueOf(outer)
-                                                         });
-            //@formatter:on
+            c = queryPage(WIFI_POINTS_SQL_QUERY, lastBssid);
         }
         c.close();
     }
@@ -412,21 +382,15 @@ public class GpxSerializer {
      */
     private void writeCells(final BufferedWriter bw) throws IOException {
         Log.i(TAG, "Writing cell waypoints");
-        //@formatter:off
-        Cursor c = mDbHelper.getReadableDatabase().rawQuery(CELL_POINTS_SQL_QUERY,
-                                                            new String[] {
-                                                                    String.valueOf(mSession),
-                                                                    String.valueOf(0)
-                                                            });
-        //@formatter:on
+        Cursor c = queryPage(CELL_POINTS_SQL_QUERY, "-1", "-1", "-1");
 
         final int colLatitude = c.getColumnIndex(Schema.COL_LATITUDE);
         final int colLongitude = c.getColumnIndex(Schema.COL_LONGITUDE);
         final int colAltitude = c.getColumnIndex(Schema.COL_ALTITUDE);
         final int colTimestamp = c.getColumnIndex(Schema.COL_TIMESTAMP);
         final int colName = c.getColumnIndex("name");
+        final int colId = c.getColumnIndex("cell_id");
 
-        long outer = 0;
         while(!c.isAfterLast()) {
             c.moveToFirst();
             while(!c.isAfterLast()) {
@@ -456,20 +420,33 @@ public class GpxSerializer {
 
             //bw.write(out.toString());
             //out = null;
-            // fetch next CURSOR_SIZE records
-            outer += CURSOR_SIZE;
+            // fetch next CURSOR_SIZE records, starting after last row of current page
+            c.moveToLast();
+            final String lastTimestamp = c.getString(colTimestamp);
+            final String lastId = c.getString(colId);
             c.close();
-            //@formatter:off
-            c = mDbHelper.getReadableDatabase().rawQuery(CELL_POINTS_SQL_QUERY,
-                                                         new String[] {
-                                                                 String.valueOf(mSession),
-                                                                 String.valueOf(outer)
-                                                         });
-            //@formatter:on
+            c = queryPage(CELL_POINTS_SQL_QUERY, lastTimestamp, lastTimestamp, lastId);
         }
         c.close();
     }
 
+    /**
+     * Queries next page for current session
+     *
+     * @param sql
+     *         Query, first parameter is session id
+     * @param after
+     *         Keyset of last row already written, i.e. remaining query parameters
+     *
+     * @return cursor with up to CURSOR_SIZE rows
+     */
+    private Cursor queryPage(final String sql, final String... after) {
+        final String[] args = new String[after.length + 1];
+        args[0] = String.valueOf(mSession);
+        System.arraycopy(after, 0, args, 1, after.length);
+        return mDbHelper.getReadableDatabase().rawQuery(sql, args);
+    }
+
     /**
      * Converts from openbmap date format (YYYYMMDDHHMMSS) to gpx date format (ISO 8601)
      *
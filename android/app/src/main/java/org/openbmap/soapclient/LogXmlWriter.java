@@ -0,0 +1,367 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.soapclient;
+
+import android.database.CharArrayBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer for openBmap wifi and cell log files.
+ *
+ * Tags are encoded straight into a reusable UTF-8 byte buffer: numbers are appended digit by digit,
+ * strings char by char, so writing a row doesn't create any intermediate strings.
+ * Output is identical to the former String.format templates, i.e. numbers are printed like
+ * {@link Long#toString(long)} and {@link Double#toString(double)}, attribute values are written as is.
+ *
+ * Not thread-safe, use one writer per file.
+ * @see <a href="http://sourceforge.net/apps/mediawiki/myposition/index.php?title=Wifi_log_format">openBmap format specification</a>
+ */
+public final class LogXmlWriter implements Closeable {
+
+	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>";
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * Longest UTF-8 sequence written for a single char (surrogate pairs are handled separately)
+	 */
+	private static final int MAX_BYTES_PER_CHAR = 3;
+
+	private final OutputStream mOut;
+
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	private int mCount;
+
+	/**
+	 * Scratch space for long to decimal conversion
+	 */
+	private final byte[] mDigits = new byte[20];
+
+	/**
+	 * Scratch space for double to decimal conversion, keeps {@link Double#toString(double)} formatting
+	 */
+	private final StringBuilder mScratch = new StringBuilder(32);
+
+	public LogXmlWriter(final OutputStream out) {
+		mOut = out;
+	}
+
+	/**
+	 * Writes xml declaration and opening logfile tag
+	 */
+	public void openLogfile(final String manufacturer, final String model, final String revision,
+			final String swid, final String swVersion, final String exportVersion) throws IOException {
+		append(XML_HEADER);
+		append("\n<logfile manufacturer=\"");
+		append(manufacturer);
+		append("\" model=\"");
+		append(model);
+		append("\" revision=\"");
+		append(revision);
+		append("\" swid=\"");
+		append(swid);
+		append("\" swver=\"");
+		append(swVersion);
+		append("\" exportver=\"");
+		append(exportVersion);
+		append("\">");
+	}
+
+	public void closeLogfile() throws IOException {
+		append("\n</logfile>");
+	}
+
+	public void openScan(final long timestamp) throws IOException {
+		append("\n<scan time=\"");
+		append(timestamp);
+		append("\">");
+	}
+
+	public void closeScan() throws IOException {
+		append("\n</scan>");
+	}
+
+	/**
+	 * Writes gps tag
+	 * @param type	"begin" or "end"
+	 */
+	public void position(final long time, final double lng, final double lat, final double alt,
+			final double head, final double speed, final double acc, final String type) throws IOException {
+		append("\n\t<gps time=\"");
+		append(time);
+		append("\" lng=\"");
+		append(lng);
+		append("\" lat=\"");
+		append(lat);
+		append("\" alt=\"");
+		append(alt);
+		append("\" hdg=\"");
+		append(head);
+		append("\" spe=\"");
+		append(speed);
+		append("\" accuracy=\"");
+		append(acc);
+		append("\" type=\"");
+		append(type);
+		append("\" />");
+	}
+
+	/**
+	 * Writes wifiap tag
+	 * String values may be null, they are written as "null" like before.
+	 * @param bssid	bssid, colons are skipped (xml files use bssids without colons for backwards compatibility)
+	 * @param md5essid md5 hash of ssid
+	 * @param ssid	ssid or null, if ssid shall be omitted. Callers have to check {@link #isPlainSsid(CharArrayBuffer)} before
+	 * @param capa	capabilities
+	 * @param level	signal strength
+	 * @param freq	frequency
+	 */
+	public void wifi(final CharArrayBuffer bssid, final CharArrayBuffer md5essid, final CharArrayBuffer ssid,
+			final CharArrayBuffer capa, final int level, final int freq) throws IOException {
+		append("\n\t\t<wifiap bssid=\"");
+		if (bssid == null) {
+			append("null");
+		} else {
+			for (int i = 0; i < bssid.sizeCopied; i++) {
+				if (bssid.data[i] != ':') {
+					append(bssid.data[i]);
+				}
+			}
+		}
+		append("\" md5essid=\"");
+		append(md5essid);
+		append('"');
+		if (ssid != null) {
+			append(" ssid=\"");
+			append(ssid);
+			append('"');
+		}
+		append(" capa=\"");
+		append(capa);
+		append("\" ss=\"");
+		append(level);
+		append("\" ntiu=\"");
+		append(freq);
+		append("\"/>");
+	}
+
+	/**
+	 * Writes gsmserving and/or gsmneighbour tag
+	 * @param act	technology name, see CellRecord.TECHNOLOGY_MAP()
+	 */
+	public void cell(final boolean isServing, final boolean isNeighbour, final CharArrayBuffer mcc, final CharArrayBuffer mnc,
+			final long lac, final long logicalId, final long actualId, final long rnc, final long strengthDbm,
+			final long strengthAsu, final String act, final long psc) throws IOException {
+		if (isServing) {
+			append("\n\t\t<gsmserving");
+			appendCellIds(mcc, mnc, lac, logicalId, actualId, rnc, psc);
+			append(" ss=\"");
+			append(strengthDbm);
+			append("\" act=\"");
+			append(act);
+			append("\" rxlev=\"");
+			append(strengthAsu);
+			append("\"/>");
+		}
+
+		if (isNeighbour) {
+			append("\n\t\t<gsmneighbour");
+			appendCellIds(mcc, mnc, lac, logicalId, actualId, rnc, psc);
+			append(" rxlev=\"");
+			append(strengthAsu);
+			append("\" act=\"");
+			append(act);
+			append("\"/>");
+		}
+	}
+
+	private void appendCellIds(final CharArrayBuffer mcc, final CharArrayBuffer mnc, final long lac,
+			final long logicalId, final long actualId, final long rnc, final long psc) throws IOException {
+		append(" mcc=\"");
+		append(mcc);
+		append("\" mnc=\"");
+		append(mnc);
+		append("\" lac=\"");
+		append(lac);
+		append("\" id=\"");
+		append(logicalId);
+		append("\" act_id=\"");
+		append(actualId);
+		append("\" rnc=\"");
+		append(rnc);
+		append("\" psc=\"");
+		append(psc);
+		append('"');
+	}
+
+	/**
+	 * Checks whether ssid can be written to log file, i.e. only contains A-Z, a-z, 0-9, - + . ! _ and whitespace.
+	 * Allocation-free equivalent of {@link org.openbmap.utils.XmlSanitizer#isValid(String)}
+	 * @param ssid ssid
+	 * @return true, if ssid only contains valid chars
+	 */
+	public static boolean isPlainSsid(final CharArrayBuffer ssid) {
+		for (int i = 0; i < ssid.sizeCopied; i++) {
+			final char c = ssid.data[i];
+			final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '+' || c == '.' || c == '!' || c == '_'
+					|| c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+			if (!valid) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes buffered bytes to underlying stream
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		mOut.flush();
+	}
+
+	/**
+	 * Flushes and closes underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			mOut.close();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (mCount > 0) {
+			mOut.write(mBuffer, 0, mCount);
+			mCount = 0;
+		}
+	}
+
+	private void append(final long value) throws IOException {
+		if (mCount + mDigits.length + 1 > mBuffer.length) {
+			flushBuffer();
+		}
+		if (value == Long.MIN_VALUE) {
+			append(Long.toString(value));
+			return;
+		}
+		long rest = value;
+		if (rest < 0) {
+			mBuffer[mCount++] = '-';
+			rest = -rest;
+		}
+		int pos = mDigits.length;
+		do {
+			mDigits[--pos] = (byte) ('0' + (rest % 10));
+			rest /= 10;
+		} while (rest != 0);
+		final int length = mDigits.length - pos;
+		System.arraycopy(mDigits, pos, mBuffer, mCount, length);
+		mCount += length;
+	}
+
+	private void append(final double value) throws IOException {
+		mScratch.setLength(0);
+		mScratch.append(value);
+		append(mScratch);
+	}
+
+	/**
+	 * Appends buffer content. Null is written as "null", like String.format did
+	 */
+	private void append(final CharArrayBuffer value) throws IOException {
+		if (value == null) {
+			append("null");
+			return;
+		}
+		append(value.data, value.sizeCopied);
+	}
+
+	private void append(final char[] chars, final int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			final char c = chars[i];
+			if (c < 0x80) {
+				append(c);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+				appendCodePoint(Character.toCodePoint(c, chars[++i]));
+			} else {
+				append(c);
+			}
+		}
+	}
+
+	/**
+	 * Appends string. Null is written as "null", like String.format did
+	 */
+	private void append(final CharSequence value) throws IOException {
+		if (value == null) {
+			append("null");
+			return;
+		}
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c < 0x80) {
+				append(c);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				appendCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+			} else {
+				append(c);
+			}
+		}
+	}
+
+	/**
+	 * Appends single char as UTF-8. Unpaired surrogates are replaced by '?', like OutputStreamWriter does
+	 */
+	private void append(final char c) throws IOException {
+		if (mCount + MAX_BYTES_PER_CHAR > mBuffer.length) {
+			flushBuffer();
+		}
+		if (c < 0x80) {
+			mBuffer[mCount++] = (byte) c;
+		} else if (c < 0x800) {
+			mBuffer[mCount++] = (byte) (0xc0 | (c >> 6));
+			mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isSurrogate(c)) {
+			mBuffer[mCount++] = '?';
+		} else {
+			mBuffer[mCount++] = (byte) (0xe0 | (c >> 12));
+			mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void appendCodePoint(final int codePoint) throws IOException {
+		if (mCount + 4 > mBuffer.length) {
+			flushBuffer();
+		}
+		mBuffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+		mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+		mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+		mBuffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.soapclient;
+
+import android.util.Log;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Thread-safe http client shared by all uploads of an export.
+ *
+ * Connections are kept alive and reused by subsequent uploads to the same server, so only
+ * the first uploads pay TCP and TLS handshakes. Number of connections is bounded, uploads
+ * exceeding the limit wait up to {@link #CONNECTION_TIMEOUT} for a free connection.
+ * Call {@link #shutdown()} once all uploads have finished.
+ */
+public final class UploadConnectionPool {
+
+	private static final String TAG = UploadConnectionPool.class.getSimpleName();
+
+	/**
+	 * Socket and connection parameters for http upload
+	 */
+	static final int SOCKET_TIMEOUT = 30000;
+	static final int CONNECTION_TIMEOUT = 30000;
+
+	private final ClientConnectionManager mConnectionManager;
+
+	private final DefaultHttpClient mClient;
+
+	/**
+	 * @param maxConnections max. number of open connections, per server and in total
+	 */
+	public UploadConnectionPool(final int maxConnections) {
+		final HttpParams params = createParams();
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+		ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
+
+		final SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		mConnectionManager = new ThreadSafeClientConnManager(params, registry);
+		mClient = new DefaultHttpClient(mConnectionManager, params);
+	}
+
+	/**
+	 * Http parameters with connect and socket timeouts
+	 */
+	static HttpParams createParams() {
+		final HttpParams params = new BasicHttpParams();
+		// Set the timeout in milliseconds until a connection is established.
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		// Set the default socket timeout (SO_TIMEOUT)
+		// in milliseconds which is the timeout for waiting for data.
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		// check pooled connections before reuse, server may have closed them meanwhile
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		return params;
+	}
+
+	/**
+	 * Shared client. Response entities have to be consumed, otherwise connections aren't released to pool
+	 */
+	public HttpClient getClient() {
+		return mClient;
+	}
+
+	/**
+	 * Closes all connections
+	 */
+	public void shutdown() {
+		Log.i(TAG, "Closing upload connections");
+		mConnectionManager.shutdown();
+	}
+}
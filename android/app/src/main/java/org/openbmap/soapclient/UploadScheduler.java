@@ -0,0 +1,267 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.soapclient;
+
+import android.util.Log;
+
+import org.openbmap.soapclient.AsyncUploader.FileUploadListener;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for file uploads.
+ *
+ * Each upload holds a permit while it runs, {@link #submit(AsyncUploader, String)} blocks until a permit
+ * is available. Uploads start one at a time; once aggregated throughput reaches {@link #MIN_PARALLEL_SPEED},
+ * up to maxUploads files are uploaded in parallel. On failures it falls back to a single upload again.
+ * Retries are handled per file by {@link AsyncUploader}.
+ *
+ * Listener is called on upload threads, not on main thread.
+ */
+public final class UploadScheduler {
+
+	private static final String TAG = UploadScheduler.class.getSimpleName();
+
+	/**
+	 * Aggregated throughput (in KB per second) needed for parallel uploads
+	 */
+	private static final long MIN_PARALLEL_SPEED = 10;
+
+	private final FileUploadListener mListener;
+
+	private final int mMaxUploads;
+
+	private final ExecutorService mExecutor;
+
+	/**
+	 * Upload slots. Starts with a single slot, further slots are released once throughput is known to be good
+	 */
+	private final Semaphore mPermits = new Semaphore(1);
+
+	/**
+	 * Whether all mMaxUploads slots are currently in use
+	 */
+	private boolean mParallel = false;
+
+	/**
+	 * Slots to withdraw after fallback to single upload: finishing uploads don't return their permit while > 0
+	 */
+	private int mPermitDebt = 0;
+
+	/*
+	 * Metrics
+	 */
+	private final AtomicInteger mCompleted = new AtomicInteger();
+	private final AtomicInteger mFailed = new AtomicInteger();
+	private final AtomicInteger mRetries = new AtomicInteger();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mBusyNanos = new AtomicLong();
+	private volatile long mFirstStart;
+	private volatile long mLastEnd;
+
+	/**
+	 * Active uploads, for metrics only
+	 */
+	private final AtomicInteger mActive = new AtomicInteger();
+	private volatile int mMaxActive;
+
+	/**
+	 * @param listener informed about each upload's result
+	 * @param maxUploads max. number of parallel uploads
+	 */
+	public UploadScheduler(final FileUploadListener listener, final int maxUploads) {
+		mListener = listener;
+		mMaxUploads = maxUploads;
+		mExecutor = Executors.newFixedThreadPool(maxUploads);
+	}
+
+	/**
+	 * Queues upload, blocks while all upload slots are in use
+	 * @param uploader uploader, configured with server and credentials
+	 * @param file file to upload (full path)
+	 * @return false, if interrupted while waiting for a free slot
+	 */
+	public boolean submit(final AsyncUploader uploader, final String file) {
+		try {
+			mPermits.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runUpload(uploader, file);
+				} finally {
+					releasePermit();
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Waits until all submitted uploads have finished. No further uploads may be submitted afterwards
+	 * @param timeout max. wait time (in millis)
+	 * @return true if all uploads have finished, false on timeout
+	 */
+	public boolean awaitCompletion(final long timeout) {
+		mExecutor.shutdown();
+		try {
+			if (mExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.w(TAG, "Timeout reached, cancelling pending uploads");
+		mExecutor.shutdownNow();
+		return false;
+	}
+
+	private void runUpload(final AsyncUploader uploader, final String file) {
+		final long start = System.nanoTime();
+		if (mFirstStart == 0) {
+			mFirstStart = start;
+		}
+		final int active = mActive.incrementAndGet();
+		if (active > mMaxActive) {
+			mMaxActive = active;
+		}
+
+		final boolean success = uploader.uploadBlocking(file);
+
+		mActive.decrementAndGet();
+		final long end = System.nanoTime();
+		mLastEnd = end;
+		mBusyNanos.addAndGet(end - start);
+		mRetries.addAndGet(uploader.getRetries());
+
+		if (success) {
+			mCompleted.incrementAndGet();
+			mBytes.addAndGet(uploader.getSize());
+			adjustParallelism(getThroughput() >= MIN_PARALLEL_SPEED);
+			if (mListener != null) {
+				mListener.onUploadCompleted(file, uploader.getSize(), uploader.getSpeed());
+			}
+		} else {
+			mFailed.incrementAndGet();
+			adjustParallelism(false);
+			if (mListener != null) {
+				mListener.onUploadFailed(file, uploader.getLastError());
+			}
+		}
+	}
+
+	/**
+	 * Opens or closes additional upload slots
+	 * @param parallel true to allow mMaxUploads parallel uploads, false for single upload
+	 */
+	private synchronized void adjustParallelism(final boolean parallel) {
+		if (parallel == mParallel || mMaxUploads == 1) {
+			return;
+		}
+		mParallel = parallel;
+		final int extra = mMaxUploads - 1;
+		if (parallel) {
+			// settle outstanding debt first, then open remaining slots
+			final int settled = Math.min(mPermitDebt, extra);
+			mPermitDebt -= settled;
+			mPermits.release(extra - settled);
+			Log.i(TAG, "Good throughput, allowing " + mMaxUploads + " parallel uploads");
+		} else {
+			mPermitDebt += extra;
+			Log.i(TAG, "Slow or failing uploads, falling back to single upload");
+		}
+	}
+
+	private synchronized void releasePermit() {
+		if (mPermitDebt > 0) {
+			mPermitDebt--;
+		} else {
+			mPermits.release();
+		}
+	}
+
+	/**
+	 * Number of successfully uploaded files
+	 */
+	public int getCompleted() {
+		return mCompleted.get();
+	}
+
+	/**
+	 * Number of files, which couldn't be uploaded
+	 */
+	public int getFailed() {
+		return mFailed.get();
+	}
+
+	/**
+	 * Total number of retries
+	 */
+	public int getRetries() {
+		return mRetries.get();
+	}
+
+	/**
+	 * Uploaded bytes (after compression)
+	 */
+	public long getBytes() {
+		return mBytes.get();
+	}
+
+	/**
+	 * Max. number of uploads, which have been running at the same time
+	 */
+	public int getMaxActive() {
+		return mMaxActive;
+	}
+
+	/**
+	 * Aggregated throughput (in KB per second): uploaded bytes over wall time from first upload start to last upload end.
+	 * Unlike a single file's speed this accounts for parallel uploads
+	 */
+	public long getThroughput() {
+		final long elapsed = mLastEnd - mFirstStart;
+		if (mFirstStart == 0 || elapsed <= 0) {
+			return 0;
+		}
+		return mBytes.get() * 1000000L / elapsed;
+	}
+
+	/**
+	 * Human-readable summary of upload metrics
+	 */
+	public String getMetrics() {
+		return "uploads " + getCompleted() + " ok, " + getFailed() + " failed"
+				+ ", retries " + getRetries()
+				+ ", bytes " + getBytes()
+				+ ", throughput " + getThroughput() + " KB/s"
+				+ ", busy " + mBusyNanos.get() / 1000000 + " ms"
+				+ ", max parallel " + getMaxActive();
+	}
+}
@@ -19,7 +19,9 @@
 package org.openbmap.soapclient;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.text.Html;
 import android.util.Log;
 
@@ -27,15 +29,12 @@ import org.openbmap.db.DataHelper;
 import org.openbmap.db.DatabaseHelper;
 import org.openbmap.db.Schema;
 import org.openbmap.db.models.LogFile;
-import org.openbmap.utils.XmlSanitizer;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Exports wifis to xml format for later upload.
@@ -45,38 +44,9 @@ public class WifiSerializer {
 	private static final String TAG = WifiSerializer.class.getSimpleName();
 
 	/**
-	 * Cursor windows size, to prevent running out of mem on to large cursor
+	 * Entries per log file. Each file is read with a single cursor of that size
 	 */
-	private static final int CURSOR_SIZE	= 3000;
-
-	/**
-	 * XML templates
-	 */
-	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>";
-
-	private static final String LOG_XML = "\n<logfile manufacturer=\"%s\" model=\"%s\" revision=\"%s\" swid=\"%s\" swver=\"%s\" exportver=\"%s\">";
-
-	private static final String SCAN_XML = "\n<scan time=\"%s\">";
-
-	private static final String POSITION_XML = "\n\t<gps time=\"%s\" lng=\"%s\" lat=\"%s\" alt=\"%s\" hdg=\"%s\" spe=\"%s\" accuracy=\"%s\" type=\"%s\" />";
-
-	private static final String WIFI_XML = "\n\t\t<wifiap bssid=\"%s\" md5essid=\"%s\"%s capa=\"%s\" ss=\"%s\" ntiu=\"%s\"/>";
-
-	/**
-	 * XML template closing logfile
-	 */
-	private static final String	CLOSE_LOGFILE	= "\n</logfile>";
-
-
-	/**
-	 * XML template closing scan tag
-	 */
-	private static final String	CLOSE_SCAN_TAG	= "\n</scan>";
-
-	/**
-	 * Entries per log file
-	 */
-	private static final int WIFIS_PER_FILE	= 1000;
+	static final int WIFIS_PER_FILE	= 1000;
 
 
 	private final Context mContext;
@@ -147,6 +117,11 @@ public class WifiSerializer {
 
 	private int	colBssid;
 
+	/**
+	 * Log file header, loaded by {@link #planChunks()}
+	 */
+	private LogFile mHeaderRecord;
+
 	/**
 	 * Timestamp for filename generation, this is generated by looking at the first cell
 	 */
@@ -165,7 +140,13 @@ public class WifiSerializer {
 	 */
 	private boolean	mAnonymise = false;
 
-	private static final String WIFI_SQL_QUERY = " SELECT " + Schema.TBL_WIFIS + "." + Schema.COL_ID + " AS \"_id\","
+	/**
+	 * Wifis are paged by (begin position id, wifi id): each page (i.e. file, see {@link ExportChunk})
+	 * continues right after last row of previous page. Unlike LIMIT/OFFSET, the index on (session_id, request_pos_id)
+	 * seeks straight to page start, so every page costs the same, regardless how far into the session it is.
+	 * Parameters: session id, last begin position id, last begin position id, last wifi id
+	 */
+	static final String WIFI_SQL_QUERY = " SELECT " + Schema.TBL_WIFIS + "." + Schema.COL_ID + " AS \"_id\","
 			+ Schema.COL_BSSID + ", "
 			+ Schema.COL_SSID + ", "
 			+ Schema.COL_MD5_SSID + ", "
@@ -196,9 +177,23 @@ public class WifiSerializer {
 			+ " JOIN \"" + Schema.TBL_POSITIONS + "\" AS \"req\" ON (\"request_pos_id\" = \"req\".\"_id\")"
 			+ " JOIN \"" + Schema.TBL_POSITIONS + "\" AS \"last\" ON (\"last_pos_id\" = \"last\".\"_id\")"
 			+ " WHERE " + Schema.TBL_WIFIS + "." + Schema.COL_SESSION_ID + " = ?"
-			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID
-			+ " LIMIT " + CURSOR_SIZE
-			+ " OFFSET ?";
+			+ " AND (" + Schema.COL_BEGIN_POSITION_ID + " > ?"
+			+ " OR (" + Schema.COL_BEGIN_POSITION_ID + " = ? AND " + Schema.TBL_WIFIS + "." + Schema.COL_ID + " > ?))"
+			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.TBL_WIFIS + "." + Schema.COL_ID
+			+ " LIMIT " + WIFIS_PER_FILE;
+
+	/**
+	 * Finds chunk boundaries: returns last row of a chunk and first row of next chunk, if any.
+	 * Only reads index on (session_id, request_pos_id), so planning all chunks is cheap.
+	 * Parameters: session id, last begin position id, last begin position id, last wifi id
+	 */
+	static final String WIFI_CHUNK_QUERY = " SELECT " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.COL_ID
+			+ " FROM " + Schema.TBL_WIFIS
+			+ " WHERE " + Schema.COL_SESSION_ID + " = ?"
+			+ " AND (" + Schema.COL_BEGIN_POSITION_ID + " > ?"
+			+ " OR (" + Schema.COL_BEGIN_POSITION_ID + " = ? AND " + Schema.COL_ID + " > ?))"
+			+ " ORDER BY " + Schema.COL_BEGIN_POSITION_ID + ", " + Schema.COL_ID
+			+ " LIMIT 2 OFFSET " + (WIFIS_PER_FILE - 1);
 
 	/**
 	 * Default constructor
@@ -241,22 +236,80 @@ public class WifiSerializer {
 	}
 
 	/**
-	 * Builds wifi and cell xml files and saves/uploads them
+	 * Builds wifi xml files one after another
+	 * @return file names of generated files
 	 */
 	protected final ArrayList<String> export() {
+		final long startTime = System.currentTimeMillis();
+
+		final ArrayList<String> generatedFiles = new ArrayList<>();
+		for (final ExportChunk chunk : planChunks()) {
+			final String file = exportChunk(chunk);
+			if (file != null) {
+				generatedFiles.add(file);
+			}
+		}
+
+		final long difference = System.currentTimeMillis() - startTime;
+		Log.i(TAG, "Serialize wifi took " + difference + " ms");
+		return generatedFiles;
+	}
+
+	/**
+	 * Splits session into chunks of WIFIS_PER_FILE wifis, one per file.
+	 * Has to be called before {@link #exportChunk(ExportChunk)}
+	 * @return chunks, empty if session has no wifis
+	 */
+	protected final List<ExportChunk> planChunks() {
 		Log.d(TAG, "Start wifi export. Data source: " + WIFI_SQL_QUERY);
 
-		final LogFile headerRecord = mDataHelper.loadLogFileBySession(mSession);
+		mHeaderRecord = mDataHelper.loadLogFileBySession(mSession);
 
-		final DatabaseHelper mDbHelper = new DatabaseHelper(mContext.getApplicationContext());
+		final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+		final Cursor first = db.rawQuery(WIFI_SQL_QUERY, ExportChunk.FIRST.toArgs(mSession));
+		initColumns(first);
+		final boolean empty = first.getCount() == 0;
+		first.close();
+		if (empty) {
+			return new ArrayList<>();
+		}
 
-		final ArrayList<String> generatedFiles = new ArrayList<>();
+		final List<ExportChunk> chunks = planChunks(ExportChunk.queryOn(db), mSession);
+		Log.i(TAG, "Wifi export split into " + chunks.size() + " files");
+		return chunks;
+	}
 
-		// get first CHUNK_SIZE records
-		Cursor cursorWifis = mDbHelper.getReadableDatabase().rawQuery(WIFI_SQL_QUERY,
-				new String[] {String.valueOf(mSession), String.valueOf(0)});
+	/**
+	 * Splits session into chunks, using {@link #WIFI_CHUNK_QUERY}
+	 */
+	static List<ExportChunk> planChunks(final ExportChunk.KeyQuery query, final int session) {
+		return ExportChunk.plan(query, WIFI_CHUNK_QUERY, session);
+	}
 
-		// [start] init columns
+	/**
+	 * Writes a single wifi log file. Thread-safe, chunks may be exported in parallel
+	 * @param chunk chunk as returned by {@link #planChunks()}
+	 * @return file name or null on error
+	 */
+	protected final String exportChunk(final ExportChunk chunk) {
+		final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+		final Cursor cursor = db.rawQuery(WIFI_SQL_QUERY, chunk.toArgs(mSession));
+		try {
+			if (cursor.getCount() == 0) {
+				Log.w(TAG, "No wifis in " + chunk);
+				return null;
+			}
+			final String filename = mTempPath + generateFilename(determineFileTimestamp(cursor), chunk.mIndex);
+			return saveAndMoveCursor(filename, mHeaderRecord, cursor);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Looks up column indices
+	 */
+	private void initColumns(final Cursor cursorWifis) {
 		colBssid = cursorWifis.getColumnIndex(Schema.COL_BSSID);
 		colSsid = cursorWifis.getColumnIndex(Schema.COL_SSID);
 		colMd5Essid = cursorWifis.getColumnIndex(Schema.COL_MD5_SSID);
@@ -282,45 +335,8 @@ public class WifiSerializer {
 		colLastHead = cursorWifis.getColumnIndex("last_" + Schema.COL_BEARING);
 		colLastSpeed = cursorWifis.getColumnIndex("last_" + Schema.COL_SPEED);
 		colLastAcc = cursorWifis.getColumnIndex("last_" + Schema.COL_ACCURACY);
-		// [end]
-
-		final long startTime = System.currentTimeMillis();
-
-		long outer = 0;
-		while (!cursorWifis.isAfterLast()) {
-			long i = 0;
-			while (!cursorWifis.isAfterLast()) {
-				// creates files of 100 wifis each
-				Log.i(TAG, "Cycle " + i);
-
-				final long fileTimeStamp = determineFileTimestamp(cursorWifis);
-				final String filename  = mTempPath + generateFilename(fileTimeStamp);
-
-				saveAndMoveCursor(filename, headerRecord, cursorWifis);
-
-				i += WIFIS_PER_FILE;
-
-				generatedFiles.add(filename);
-			}
-			// fetch next CURSOR_SIZE records
-			outer += CURSOR_SIZE;
-			cursorWifis.close();
-			cursorWifis = mDbHelper.getReadableDatabase().rawQuery(WIFI_SQL_QUERY,
-					new String[]{String.valueOf(mSession),
-					String.valueOf(outer)});
-		}
-
-		final long difference = System.currentTimeMillis() - startTime;
-		Log.i(TAG, "Serialize wifi took " + difference + " ms");
-
-		cursorWifis.close();
-		cursorWifis = null;
-		mDbHelper.close();
-
-		return generatedFiles;
 	}
 
-
 	/**
 	 * Gets timestamp from current record
 	 * @param cursor
@@ -348,142 +364,148 @@ public class WifiSerializer {
 	private String saveAndMoveCursor(final String fileName, final LogFile headerRecord, final Cursor cursor) {
 		// for performance reasons direct database access is used here (instead of content provider)
 		//TODO: behaves strange on non-ascii characters, maybe get ideas from https://android.googlesource.com/platform/frameworks/base.git/+/android-4.2.2_r1/wifi/java/android/net/wifi/WifiSsid.java
+		final CharArrayBuffer bssidBuffer = new CharArrayBuffer(17);
+		final CharArrayBuffer md5EssidBuffer = new CharArrayBuffer(32);
+		final CharArrayBuffer ssidBuffer = new CharArrayBuffer(32);
+		final CharArrayBuffer capaBuffer = new CharArrayBuffer(64);
+
+		LogXmlWriter writer = null;
 		try {
 			cursor.moveToPrevious();
 
-			File file = new File(fileName);
-			Writer bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.getAbsoluteFile()), "UTF-8"), 30 * 1024);
+			writer = new LogXmlWriter(new FileOutputStream(new File(fileName).getAbsoluteFile()));
 
 			// Write header
-			bw.write(XML_HEADER);
-			bw.write(logToXml(headerRecord.getManufacturer(), headerRecord.getModel(), headerRecord.getRevision(), headerRecord.getSwid(), headerRecord.getSwVersion(), mExportVersion));
+			writer.openLogfile(headerRecord.getManufacturer(), headerRecord.getModel(), headerRecord.getRevision(), headerRecord.getSwid(), headerRecord.getSwVersion(), mExportVersion);
 
 			long previousBeginId = 0;
-			String previousEnd = "";
 
 			int i = 0;
 			// Iterate wifis cursor until last row reached or WIFIS_PER_FILE is reached
 			while (i < WIFIS_PER_FILE && cursor.moveToNext()) {
 
-				final long beginId = Long.valueOf(cursor.getString(colBeginPosId));
-
-				final String currentBegin = positionToXml(
-						cursor.getLong(colReqTimestamp),
-						cursor.getDouble(colReqLon),
-						cursor.getDouble(colReqLat),
-						cursor.getDouble(colReqAlt),
-						cursor.getDouble(colReqHead),
-						cursor.getDouble(colReqSpeed),
-						cursor.getDouble(colReqAcc),
-						"begin");
-
-				final String currentEnd = positionToXml(
-						cursor.getLong(colLastTimestamp),
-						cursor.getDouble(colLastLon),
-						cursor.getDouble(colLastLat),
-						cursor.getDouble(colLastAlt) ,
-						cursor.getDouble(colLastHead),
-						cursor.getDouble(colLastSpeed),
-						cursor.getDouble(colLastAcc),
-						"end");
+				final long beginId = cursor.getLong(colBeginPosId);
 
 				if (i == 0) {
 					// Write first scan and gps tag at the beginning
-					bw.write(scanToXml(cursor.getLong(colTimestamp)));
-					bw.write(currentBegin);
+					writer.openScan(cursor.getLong(colTimestamp));
+					writeBeginPosition(writer, cursor);
 				} else {
 					// Later on, scan and gps tags are only needed, if we have a new scan
 					if (beginId != previousBeginId) {
 
 						// write end gps tag for previous scan
-						bw.write(previousEnd);
-						bw.write(CLOSE_SCAN_TAG);
+						cursor.moveToPrevious();
+						writeEndPosition(writer, cursor);
+						cursor.moveToNext();
+						writer.closeScan();
 
 						// Write new scan and gps tag
 						// TODO distance calculation, seems optional
-						bw.write(scanToXml(cursor.getLong(colTimestamp)));
-						bw.write(currentBegin);
+						writer.openScan(cursor.getLong(colTimestamp));
+						writeBeginPosition(writer, cursor);
 					}
 				}
 
 				/*
 				 *  At this point, we will always have an open scan and gps tag,
 				 *  so write wifi xml now
-				 *  Note that for performance reasons all columns are casted to strings
+				 *  Note that for performance reasons strings are copied into reusable buffers
 				 *
 				 *  BSSID: in xml files mac is printed without ":" (as opposed to database) for backwards compatibility
-				 *  SSID: ssid can contain invalid characters, so sanitize..
+				 *  SSID: ssid can contain invalid characters, so only plain ssids are sent
 				 */
-				bw.write(wifiToXml(
-						cursor.getString(colBssid).replace(":", ""),
-						cursor.getString(colMd5Essid),
-						// sanitizing moved to wifiToXml function
-						/*XmlSanitizer.sanitize(cursor.getString(colSsid)),*/
-						cursor.getString(colSsid),
-						cursor.getString(colCapa),
-						cursor.getString(colLevel),
-						cursor.getString(colFreq),
-						mAnonymise));
+				final CharArrayBuffer ssid = copyString(cursor, colSsid, ssidBuffer);
+
+				// add ssid only if user has chosen to send ssid and ssid is pure ASCII
+				final boolean sendSsid = !mAnonymise && ssid != null && LogXmlWriter.isPlainSsid(ssid);
+				if (!mAnonymise && !sendSsid) {
+					Log.i(TAG, "Skipping no ascii ssid " + cursor.getString(colSsid));
+				}
+
+				writer.wifi(
+						copyString(cursor, colBssid, bssidBuffer),
+						copyString(cursor, colMd5Essid, md5EssidBuffer),
+						sendSsid ? ssid : null,
+						copyString(cursor, colCapa, capaBuffer),
+						cursor.getInt(colLevel),
+						cursor.getInt(colFreq));
 
 				previousBeginId = beginId;
-				previousEnd = currentEnd;
 
 				i++;
 			}
 
 			// If we are at the last wifi, close open scan and gps tag
-			bw.write(previousEnd);
-			bw.write(CLOSE_SCAN_TAG);
+			if (i > 0) {
+				if (cursor.isAfterLast()) {
+					cursor.moveToPrevious();
+					writeEndPosition(writer, cursor);
+					cursor.moveToNext();
+				} else {
+					writeEndPosition(writer, cursor);
+				}
+			}
+			writer.closeScan();
 
-			bw.write(CLOSE_LOGFILE);
+			writer.closeLogfile();
 			// ensure that everything is really written out and close
-			bw.close();
-			file = null;
-			bw = null;
+			writer.close();
+			writer = null;
 			return fileName;
 		} catch (final IOException ioe) {
-			cursor.close();
 			Log.e(TAG, ioe.toString(), ioe);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					Log.w(TAG, "Error closing " + fileName);
+				}
+			}
 			return null;
 		}
 	}
 
 	/**
-	 * Generates scan tag
+	 * Copies string column into reusable buffer
+	 * @return buffer or null, if column is null
 	 */
-	private static String scanToXml(final long timestamp) {
-		return String.format(SCAN_XML, timestamp);
-	}
-
-	/**
-	 * Generates log file header
-	 */
-	private static String logToXml(final String manufacturer, final String model, final String revision, final String swid, final String swVersion, final String exportVersion) {
-		return String.format(LOG_XML, manufacturer, model, revision, swid, swVersion, exportVersion);
+	private static CharArrayBuffer copyString(final Cursor cursor, final int column, final CharArrayBuffer buffer) {
+		if (cursor.isNull(column)) {
+			return null;
+		}
+		cursor.copyStringToBuffer(column, buffer);
+		return buffer;
 	}
 
 	/**
-	 * Generates position tag
+	 * Writes begin position of current row
 	 */
-	private static String positionToXml(final long reqTime, final double lng, final double lat,
-			final double alt, final double head, final double speed, final double acc, final String type) {
-		return String.format(POSITION_XML, reqTime, lng, lat, alt, head, speed, acc, type);
+	private void writeBeginPosition(final LogXmlWriter writer, final Cursor cursor) throws IOException {
+		writer.position(
+				cursor.getLong(colReqTimestamp),
+				cursor.getDouble(colReqLon),
+				cursor.getDouble(colReqLat),
+				cursor.getDouble(colReqAlt),
+				cursor.getDouble(colReqHead),
+				cursor.getDouble(colReqSpeed),
+				cursor.getDouble(colReqAcc),
+				"begin");
 	}
 
 	/**
-	 * Generates wifi tag
+	 * Writes end position of current row
 	 */
-	private static String wifiToXml(final String bssid, final String md5essid, final String ssid, final String capa, final String level, final String freq, final boolean anonymise) {
-
-		String ssidXmlOrNothing = "";
-		// add only if user has chosen to send ssid and ssid is pure ASCII
-		if (!anonymise && XmlSanitizer.isValid(ssid)) {
-			ssidXmlOrNothing = String.format(" ssid=\"%s\"", ssid);
-		} else if (!anonymise && !XmlSanitizer.isValid(ssid)) {
-			Log.i(TAG, "Skipping no ascii ssid " + ssid);
-		}
-
-		return String.format(WIFI_XML, bssid, md5essid, ssidXmlOrNothing, capa, level, freq);
+	private void writeEndPosition(final LogXmlWriter writer, final Cursor cursor) throws IOException {
+		writer.position(
+				cursor.getLong(colLastTimestamp),
+				cursor.getDouble(colLastLon),
+				cursor.getDouble(colLastLat),
+				cursor.getDouble(colLastAlt),
+				cursor.getDouble(colLastHead),
+				cursor.getDouble(colLastSpeed),
+				cursor.getDouble(colLastAcc),
+				"end");
 	}
 
 	// http://stackoverflow.com/questions/6502759/how-to-strip-or-escape-html-tags-in-android
@@ -499,9 +521,10 @@ public class WifiSerializer {
 	 * Keep in mind, that openbmap server currently only accepts filenames following the above mentioned
 	 * naming pattern, otherwise files are ignored.
 	 * @param timestamp timestamp of first wifi entry
+	 * @param chunk chunk index, as chunks exported in parallel may start at the same timestamp
 	 * @return filename
 	 */
-	private String generateFilename(final long timestamp) {
+	private String generateFilename(final long timestamp, final int chunk) {
 		/**
 		 * Option 1: generate filename by export time
 		 */
@@ -518,7 +541,7 @@ public class WifiSerializer {
 		/**
 		 * 		 * Option 2: generate by first timestamp in file
 		 */
-		return "V1_log" + timestamp + "-wifi.xml";
+		return "V1_log" + timestamp + "_" + chunk + "-wifi.xml";
 	}
 
 }
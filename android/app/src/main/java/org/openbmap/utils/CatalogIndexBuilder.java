@@ -0,0 +1,43 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.utils;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.openbmap.db.CatalogTiles;
+
+/**
+ * Builds spatial tile index and density pyramid of a freshly downloaded (or, after app upgrade, existing)
+ * wifi catalog in background. This is the only place they are built: map queries never modify the catalog
+ */
+public class CatalogIndexBuilder extends AsyncTask<String, Void, Boolean> {
+
+	private static final String	TAG	= CatalogIndexBuilder.class.getSimpleName();
+
+	@Override
+	protected final Boolean doInBackground(final String... files) {
+		boolean success = true;
+		for (final String file : files) {
+			Log.i(TAG, "Building tile index and density pyramid for " + file);
+			success &= CatalogTiles.ensureIndex(file);
+		}
+		return success;
+	}
+}
@@ -31,6 +31,7 @@ import java.util.List;
 
 /**
  * Loads reference wifis asynchronously.
+ * In dense areas, {@link DensityLatLong} cells are returned instead of single wifis.
  * Upon completion callback mListener in activity is invoked.
  */
 public class CatalogObjectsLoader extends AsyncTask<Object, Void, List<LatLong>> {
@@ -60,6 +61,28 @@ public class CatalogObjectsLoader extends AsyncTask<Object, Void, List<LatLong>>
      */
     private static final boolean GROUP_WIFIS = true;
 
+    /**
+     * Cache grid resolution: 0.02 degree tiles
+     */
+    private static final int CACHE_TILES_PER_DEGREE = 50;
+
+    /**
+     * Memory budget of cached catalog wifis (in bytes)
+     */
+    private static final long CACHE_BUDGET = 4 * 1024 * 1024;
+
+    /**
+     * Max. points per cache load. Exceeds MAX_REFS, so loaded tiles are complete in all but very dense areas.
+     * Truncated loads aren't cached
+     */
+    private static final int CACHE_LOAD_LIMIT = 4 * CatalogDatabaseHelper.MAX_REFS;
+
+    /**
+     * Grouped catalog wifis, shared by all loaders. Catalog wifis rarely change, so only tiles entering
+     * the viewport have to be queried
+     */
+    private static final MapObjectCache<LatLong> sCache = new MapObjectCache<>(CACHE_TILES_PER_DEGREE, CACHE_BUDGET);
+
     private OnCatalogLoadedListener mListener;
     private final Context mAppContext;
 
@@ -90,7 +113,7 @@ public class CatalogObjectsLoader extends AsyncTask<Object, Void, List<LatLong>>
         List<LatLong> points = new ArrayList<>();
 
         try {
-            CatalogDatabaseHelper databaseHelper = CatalogDatabaseHelper.getInstance(mAppContext);
+            final CatalogDatabaseHelper databaseHelper = CatalogDatabaseHelper.getInstance(mAppContext);
 
             // return empty result list if reference database not available
             if(databaseHelper.getFilename() == null) {
@@ -104,11 +127,34 @@ public class CatalogObjectsLoader extends AsyncTask<Object, Void, List<LatLong>>
                                                   (Double) args[MIN_LON_COL],
                                                   (Double) args[MAX_LON_COL]);
             } else {
-                // Option 2 (default): Group in 10m intervals for performance reasons
-                points = databaseHelper.getPointsLazy((Double) args[MIN_LAT_COL],
-                                                      (Double) args[MAX_LAT_COL],
-                                                      (Double) args[MIN_LON_COL],
-                                                      (Double) args[MAX_LON_COL]);
+                // Option 2 (default): show density cells, if there are too many wifis to show them one by one
+                final List<DensityLatLong> cells = databaseHelper.getDensity((Double) args[MIN_LAT_COL],
+                                                                            (Double) args[MAX_LAT_COL],
+                                                                            (Double) args[MIN_LON_COL],
+                                                                            (Double) args[MAX_LON_COL]);
+                if (cells != null && countWifis(cells) > CatalogDatabaseHelper.MAX_REFS) {
+                    Log.v(TAG, "Dense area, showing " + cells.size() + " density cells");
+                    return new ArrayList<LatLong>(cells);
+                }
+
+                if (isCancelled()) {
+                    // superseded by newer viewport, skip point query
+                    return points;
+                }
+
+                // Group in 10m intervals for performance reasons
+                points = sCache.get((Double) args[MIN_LAT_COL],
+                                    (Double) args[MAX_LAT_COL],
+                                    (Double) args[MIN_LON_COL],
+                                    (Double) args[MAX_LON_COL],
+                                    new MapObjectCache.Loader<LatLong>() {
+                                        @Override
+                                        public boolean load(double minLat, double maxLat, double minLon, double maxLon,
+                                                            List<LatLong> objects) {
+                                            return databaseHelper.getPointsLazy(minLat, maxLat, minLon, maxLon, CACHE_LOAD_LIMIT, objects);
+                                        }
+                                    });
+                Log.v(TAG, "Catalog cache: " + sCache.size() + " tiles, " + sCache.getHits() + " hits, " + sCache.getMisses() + " misses");
             }
 
         } catch(final SQLiteException e) {
@@ -120,6 +166,21 @@ public class CatalogObjectsLoader extends AsyncTask<Object, Void, List<LatLong>>
         return points;
     }
 
+    /**
+     * Drops cached catalog wifis, e.g. after local wifis have been added to catalog
+     */
+    public static void invalidateCache() {
+        sCache.clear();
+    }
+
+    private static int countWifis(final List<DensityLatLong> cells) {
+        int count = 0;
+        for (final DensityLatLong cell : cells) {
+            count += cell.getCount();
+        }
+        return count;
+    }
+
     @Override
     protected final void onPostExecute(final List<LatLong> points) {
 
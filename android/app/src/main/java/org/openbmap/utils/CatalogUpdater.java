@@ -30,6 +30,8 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.openbmap.Preferences;
+import org.openbmap.db.CatalogDensity;
+import org.openbmap.db.CatalogTiles;
 import org.openbmap.db.ContentProvider;
 import org.openbmap.db.DatabaseHelper;
 import org.openbmap.db.Schema;
@@ -58,7 +60,7 @@ public class CatalogUpdater extends AsyncTask<Void, Void, Void> {
 		// dialog = new ProgressDialog(mContext);
 		// get shared preferences
 		prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		mDbHelper = new DatabaseHelper(mContext.getApplicationContext());
+		mDbHelper = DatabaseHelper.getInstance(mContext);
 	}
 
 	@Override
@@ -90,6 +92,10 @@ public class CatalogUpdater extends AsyncTask<Void, Void, Void> {
 					mContext.getExternalFilesDir(null).getAbsolutePath() + File.separator + Preferences.CATALOG_SUBDIR)
 					+ File.separator + prefs.getString(Preferences.KEY_CATALOG_FILE, Preferences.VAL_CATALOG_FILE);
 
+			// new wifis have to be added to tile index and density pyramid, otherwise they aren't shown on map.
+			// Builds index if missing (and fills in tiles of wifis added without index), waits for a build already running
+			CatalogTiles.ensureIndex(file);
+
 			SQLiteDatabase catalogDb = null;
 			try {
 				catalogDb = SQLiteDatabase.openDatabase(file, null, SQLiteDatabase.OPEN_READWRITE);
@@ -118,12 +124,21 @@ public class CatalogUpdater extends AsyncTask<Void, Void, Void> {
 
 			Log.i(TAG, "Pending inserts " + cursorWifis.getCount());
 			cursorWifis.close();
-			localDb.close();
 
 			catalogDb.beginTransaction();
 			try {
+				// checked within transaction, so index can't change underneath. Without index tile stays empty,
+				// it's filled in when index is built
+				final boolean tiles = CatalogTiles.hasIndex(catalogDb);
+				final boolean density = tiles && CatalogDensity.hasPyramid(catalogDb);
 				for (ContentValues add : newWifis) {
-					catalogDb.insertWithOnConflict("wifi_zone", null, add, SQLiteDatabase.CONFLICT_IGNORE);
+					if (tiles) {
+						add.put(CatalogTiles.COL_TILE, CatalogTiles.tileOf(add.getAsDouble("latitude"), add.getAsDouble("longitude")));
+					}
+					final long row = catalogDb.insertWithOnConflict("wifi_zone", null, add, SQLiteDatabase.CONFLICT_IGNORE);
+					if (row != -1 && density) {
+						CatalogDensity.add(catalogDb, add.getAsInteger(CatalogTiles.COL_TILE));
+					}
 				}
 				catalogDb.setTransactionSuccessful();
 			} finally {
@@ -142,6 +157,7 @@ public class CatalogUpdater extends AsyncTask<Void, Void, Void> {
 			}
 
 			catalogDb.close();
+			CatalogObjectsLoader.invalidateCache();
 			Log.i(TAG, "Catalog update finished ");
 		} catch (SQLiteException e) {
 			Log.e(TAG, "SQL exception occurred: " + e.toString(), e);
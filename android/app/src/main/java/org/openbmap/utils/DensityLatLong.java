@@ -0,0 +1,56 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.utils;
+
+import org.mapsforge.core.model.LatLong;
+
+/**
+ * LatLong type for aggregated catalog density: center of a density cell and number of wifis within
+ */
+public class DensityLatLong extends LatLong {
+
+	private static final long	serialVersionUID	= 1L;
+
+	private final int	mCount;
+
+	/**
+	 * Cell edge length (in degrees)
+	 */
+	private final double	mSize;
+
+	/**
+	 * @param latitude cell center latitude
+	 * @param longitude cell center longitude
+	 * @param count number of wifis in cell
+	 * @param size cell edge length (in degrees)
+	 */
+	public DensityLatLong(final double latitude, final double longitude, final int count, final double size) {
+		super(latitude, longitude);
+		mCount = count;
+		mSize = size;
+	}
+
+	public final int getCount() {
+		return mCount;
+	}
+
+	public final double getSize() {
+		return mSize;
+	}
+}
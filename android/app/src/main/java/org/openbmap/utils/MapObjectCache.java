@@ -0,0 +1,338 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.utils;
+
+import org.mapsforge.core.model.LatLong;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tile-keyed cache for map objects.
+ *
+ * The world is split into a fixed grid of tiles. {@link #get} returns all objects of the tiles covering a viewport,
+ * but queries only tiles which aren't cached yet, so panning just loads the tiles entering the viewport.
+ * Tiles are evicted in least-recently-used order once the cached objects exceed the memory budget,
+ * tiles of the current viewport are never evicted.
+ *
+ * Only complete loads are cached: if a loader reports a truncated result (e.g. row limit reached) or fails,
+ * its objects are returned but the tiles are queried again next time.
+ *
+ * Thread-safe, loaders are called without holding the cache lock. Loads overlapping an
+ * {@link #invalidate} or {@link #clear} aren't cached either.
+ */
+public class MapObjectCache<T extends LatLong> {
+
+    /**
+     * Estimated heap size of a cached object (in bytes), including list overhead
+     */
+    static final int BYTES_PER_OBJECT = 64;
+
+    /**
+     * Missing tiles are loaded with a single query over their bounding box, if they cover at least
+     * this share of the box. Otherwise each row of missing tiles is loaded separately
+     */
+    private static final float MERGE_RATIO = 0.5f;
+
+    /**
+     * Viewports with more tiles bypass the cache (zoomed out too far)
+     */
+    static final int MAX_VIEWPORT_TILES = 4096;
+
+    /**
+     * Loads objects within a bounding box
+     */
+    public interface Loader<T> {
+        /**
+         * @param objects receives objects within bounding box
+         * @return true if all objects have been loaded, false if result is incomplete (truncated or failed query)
+         */
+        boolean load(double minLat, double maxLat, double minLon, double maxLon, List<T> objects);
+    }
+
+    /**
+     * Block of missing tiles, loaded with a single query
+     */
+    private static final class Block {
+        private final int mFirstRow;
+        private final int mLastRow;
+        private final int mFirstColumn;
+        private final int mLastColumn;
+
+        private Block(final int firstRow, final int lastRow, final int firstColumn, final int lastColumn) {
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+            mFirstColumn = firstColumn;
+            mLastColumn = lastColumn;
+        }
+    }
+
+    private final int mTilesPerDegree;
+
+    private final int mColumns;
+
+    private final long mMaxObjects;
+
+    /**
+     * Cached tiles in access order
+     */
+    private final LinkedHashMap<Long, List<T>> mTiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long mObjects;
+
+    /**
+     * Incremented on each invalidation, loads started before are discarded
+     */
+    private long mGeneration;
+
+    private int mHits;
+
+    private int mMisses;
+
+    /**
+     * @param tilesPerDegree grid resolution
+     * @param budget memory budget (in bytes)
+     */
+    public MapObjectCache(final int tilesPerDegree, final long budget) {
+        mTilesPerDegree = tilesPerDegree;
+        mColumns = 360 * tilesPerDegree;
+        mMaxObjects = budget / BYTES_PER_OBJECT;
+    }
+
+    /**
+     * Returns objects of all tiles covering the viewport, missing tiles are loaded first.
+     * As whole tiles are returned, objects slightly outside the viewport are included
+     */
+    public List<T> get(final double minLat, final double maxLat, final double minLon, final double maxLon,
+                       final Loader<T> loader) {
+        final int firstRow = row(minLat);
+        final int lastRow = row(maxLat);
+        final int firstColumn = column(minLon);
+        final int lastColumn = column(maxLon);
+        if ((long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > MAX_VIEWPORT_TILES) {
+            final List<T> objects = new ArrayList<>();
+            loader.load(minLat, maxLat, minLon, maxLon, objects);
+            return objects;
+        }
+
+        // tiles of current viewport
+        final Set<Long> visible = new HashSet<>();
+        final Set<Long> missing = new HashSet<>();
+        final List<T> objects = new ArrayList<>();
+        final List<Block> blocks = new ArrayList<>();
+        final long generation;
+        synchronized (this) {
+            int missingFirstRow = Integer.MAX_VALUE;
+            int missingLastRow = Integer.MIN_VALUE;
+            int missingFirstColumn = Integer.MAX_VALUE;
+            int missingLastColumn = Integer.MIN_VALUE;
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    final long key = key(row, column);
+                    visible.add(key);
+                    final List<T> tile = mTiles.get(key);
+                    if (tile != null) {
+                        mHits++;
+                        objects.addAll(tile);
+                        continue;
+                    }
+                    mMisses++;
+                    missing.add(key);
+                    missingFirstRow = Math.min(missingFirstRow, row);
+                    missingLastRow = Math.max(missingLastRow, row);
+                    missingFirstColumn = Math.min(missingFirstColumn, column);
+                    missingLastColumn = Math.max(missingLastColumn, column);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                final long area = (long) (missingLastRow - missingFirstRow + 1) * (missingLastColumn - missingFirstColumn + 1);
+                if (missing.size() >= area * MERGE_RATIO) {
+                    blocks.add(new Block(missingFirstRow, missingLastRow, missingFirstColumn, missingLastColumn));
+                } else {
+                    for (int row = missingFirstRow; row <= missingLastRow; row++) {
+                        addRowBlocks(blocks, missing, row, missingFirstColumn, missingLastColumn);
+                    }
+                }
+            }
+            generation = mGeneration;
+        }
+
+        // query missing tiles without blocking other callers
+        final Map<Long, List<T>> loaded = new HashMap<>();
+        final Set<Long> complete = new HashSet<>();
+        for (final long key : missing) {
+            loaded.put(key, new ArrayList<T>());
+        }
+        for (final Block block : blocks) {
+            load(loader, block, loaded, complete);
+        }
+
+        for (final List<T> tile : loaded.values()) {
+            objects.addAll(tile);
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                for (final long key : complete) {
+                    if (!mTiles.containsKey(key)) {
+                        final List<T> tile = loaded.get(key);
+                        mTiles.put(key, tile);
+                        mObjects += tile.size();
+                    }
+                }
+            }
+            evict(visible);
+        }
+        return objects;
+    }
+
+    /**
+     * Drops tile containing given position and its neighbours, e.g. after new objects have been recorded there
+     */
+    public synchronized void invalidate(final double lat, final double lon) {
+        mGeneration++;
+        final int row = row(lat);
+        final int column = column(lon);
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = column - 1; c <= column + 1; c++) {
+                if (r >= 0 && c >= 0 && c < mColumns) {
+                    final List<T> removed = mTiles.remove(key(r, c));
+                    if (removed != null) {
+                        mObjects -= removed.size();
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mTiles.clear();
+        mObjects = 0;
+    }
+
+    /**
+     * Number of cached tiles
+     */
+    public synchronized int size() {
+        return mTiles.size();
+    }
+
+    /**
+     * Number of cached objects
+     */
+    public synchronized long getObjects() {
+        return mObjects;
+    }
+
+    /**
+     * Number of tile requests answered from cache
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * Number of tile requests, which needed a query
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Splits missing tiles of a single row into blocks, one per contiguous run
+     */
+    private void addRowBlocks(final List<Block> blocks, final Set<Long> missing, final int row,
+                              final int firstColumn, final int lastColumn) {
+        int column = firstColumn;
+        while (column <= lastColumn) {
+            if (!missing.contains(key(row, column))) {
+                column++;
+                continue;
+            }
+            final int runStart = column;
+            while (column + 1 <= lastColumn && missing.contains(key(row, column + 1))) {
+                column++;
+            }
+            blocks.add(new Block(row, row, runStart, column));
+            column++;
+        }
+    }
+
+    /**
+     * Queries a block of tiles and distributes results into missing tiles. Objects of already cached tiles are dropped.
+     * Missing tiles of the block are marked complete, if loader has returned all objects
+     */
+    private void load(final Loader<T> loader, final Block block, final Map<Long, List<T>> loaded, final Set<Long> complete) {
+        final List<T> objects = new ArrayList<>();
+        final boolean all = loader.load(
+                (double) block.mFirstRow / mTilesPerDegree - 90, (double) (block.mLastRow + 1) / mTilesPerDegree - 90,
+                (double) block.mFirstColumn / mTilesPerDegree - 180, (double) (block.mLastColumn + 1) / mTilesPerDegree - 180,
+                objects);
+        for (final T object : objects) {
+            final List<T> tile = loaded.get(key(row(object.latitude), column(object.longitude)));
+            if (tile != null) {
+                tile.add(object);
+            }
+        }
+        if (all) {
+            for (int row = block.mFirstRow; row <= block.mLastRow; row++) {
+                for (int column = block.mFirstColumn; column <= block.mLastColumn; column++) {
+                    final long key = key(row, column);
+                    if (loaded.containsKey(key)) {
+                        complete.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used tiles until budget is met, visible tiles are kept
+     */
+    private void evict(final Set<Long> visible) {
+        final Iterator<Map.Entry<Long, List<T>>> eldest = mTiles.entrySet().iterator();
+        while (mObjects > mMaxObjects && eldest.hasNext()) {
+            final Map.Entry<Long, List<T>> tile = eldest.next();
+            if (!visible.contains(tile.getKey())) {
+                mObjects -= tile.getValue().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    private long key(final int row, final int column) {
+        return (long) row * mColumns + column;
+    }
+
+    private int row(final double lat) {
+        return Math.max(0, Math.min(180 * mTilesPerDegree - 1, (int) ((lat + 90.0) * mTilesPerDegree)));
+    }
+
+    private int column(final double lon) {
+        return Math.max(0, Math.min(mColumns - 1, (int) ((lon + 180.0) * mTilesPerDegree)));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.utils;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Schedules refreshes of a single map layer.
+ *
+ * Viewport changes are debounced: a refresh starts once no further request has arrived for the debounce delay,
+ * but at the latest after the max. delay, so continuous panning or driving still refreshes regularly.
+ * A new refresh cancels the one still running, whose result is outdated anyway. Loaders read the viewport
+ * when the refresh starts, so the layer always converges on the most recent viewport.
+ *
+ * Latency is measured from the first request of a refresh until its result has been drawn.
+ *
+ * Call from main thread only.
+ */
+public class MapRefreshScheduler {
+
+    private static final String TAG = MapRefreshScheduler.class.getSimpleName();
+
+    /**
+     * Starts loading the current viewport
+     */
+    public interface Refresh {
+        /**
+         * @return loader task, already executed, or null if nothing to load
+         */
+        AsyncTask<?, ?, ?> start();
+    }
+
+    private final String mName;
+
+    private final Refresh mRefresh;
+
+    private final long mDebounce;
+
+    private final long mMaxDelay;
+
+    private Handler mHandler;
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            start();
+        }
+    };
+
+    /**
+     * Running loader task
+     */
+    private AsyncTask<?, ?, ?> mTask;
+
+    /**
+     * Time of first request not yet answered by a started refresh (in millis), 0 if none
+     */
+    private long mRequestedAt;
+
+    /**
+     * Time of first request answered by the running refresh (in millis)
+     */
+    private long mTaskRequestedAt;
+
+    private long mTaskStartedAt;
+
+    /*
+     * Metrics
+     */
+    private int mRequests;
+    private int mRefreshes;
+    private int mCancelled;
+    private long mLastLatency;
+    private long mMaxLatency;
+    private long mTotalLatency;
+
+    /**
+     * @param name layer name, for logging only
+     * @param refresh starts loader
+     * @param debounce quiet time before refresh starts (in millis)
+     * @param maxDelay max. time between request and refresh start (in millis)
+     */
+    public MapRefreshScheduler(final String name, final Refresh refresh, final long debounce, final long maxDelay) {
+        mName = name;
+        mRefresh = refresh;
+        mDebounce = debounce;
+        mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Requests refresh of current viewport. Requests arriving while waiting are merged into a single refresh
+     */
+    public void request() {
+        final long now = now();
+        mRequests++;
+        if (mRequestedAt == 0) {
+            mRequestedAt = now;
+        }
+        removeCallbacks(mStart);
+        postDelayed(mStart, Math.max(0, Math.min(mDebounce, mRequestedAt + mMaxDelay - now)));
+    }
+
+    /**
+     * Starts refresh now, cancelling running one
+     */
+    void start() {
+        removeCallbacks(mStart);
+        cancelTask();
+
+        final long now = now();
+        mTaskRequestedAt = mRequestedAt != 0 ? mRequestedAt : now;
+        mTaskStartedAt = now;
+        mRequestedAt = 0;
+        mTask = mRefresh.start();
+    }
+
+    /**
+     * Marks running refresh as completed, call after result has been drawn.
+     * Cancelled tasks don't deliver results, so this always refers to the latest refresh
+     */
+    public void onLoaded(final int objects) {
+        if (mTask == null) {
+            // not started by scheduler, e.g. a highlighted wifi
+            return;
+        }
+        mTask = null;
+
+        final long now = now();
+        mLastLatency = now - mTaskRequestedAt;
+        mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+        mTotalLatency += mLastLatency;
+        mRefreshes++;
+        Log.d(TAG, mName + " refresh took " + mLastLatency + " ms (waiting " + (mTaskStartedAt - mTaskRequestedAt)
+                + " ms, loading " + (now - mTaskStartedAt) + " ms, " + objects + " objects)");
+    }
+
+    /**
+     * Drops pending requests and cancels running refresh, e.g. when map is hidden
+     */
+    public void cancel() {
+        removeCallbacks(mStart);
+        mRequestedAt = 0;
+        cancelTask();
+    }
+
+    /**
+     * Is a refresh waiting or running?
+     */
+    public boolean isPending() {
+        return mRequestedAt != 0 || mTask != null;
+    }
+
+    private void cancelTask() {
+        if (mTask != null) {
+            if (cancel(mTask)) {
+                mCancelled++;
+            }
+            mTask = null;
+        }
+    }
+
+    /**
+     * Number of refreshes, which have been drawn
+     */
+    public int getRefreshes() {
+        return mRefreshes;
+    }
+
+    /**
+     * Number of superseded refreshes
+     */
+    public int getCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Latency of last refresh (in millis)
+     */
+    public long getLastLatency() {
+        return mLastLatency;
+    }
+
+    /**
+     * Human-readable summary of refresh metrics
+     */
+    public String getMetrics() {
+        return mName + ": requests " + mRequests
+                + ", refreshes " + mRefreshes
+                + ", cancelled " + mCancelled
+                + ", latency avg " + (mRefreshes > 0 ? mTotalLatency / mRefreshes : 0) + " ms"
+                + ", max " + mMaxLatency + " ms";
+    }
+
+    /**
+     * Cancels task without interrupting it: sqlite queries aren't interruptible, loaders check for cancellation
+     * between queries instead. Cancelled tasks don't deliver their result
+     * @return true if task has been running or waiting
+     */
+    boolean cancel(final AsyncTask<?, ?, ?> task) {
+        return task.getStatus() != AsyncTask.Status.FINISHED && task.cancel(false);
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    void postDelayed(final Runnable runnable, final long delay) {
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        mHandler.postDelayed(runnable, delay);
+    }
+
+    void removeCallbacks(final Runnable runnable) {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+}
@@ -116,6 +116,14 @@ public final class MapUtils {
         return AndroidUtil.createTileCache(ctx.getApplicationContext(), "mapcache", tileSize, 1f, overdrawFactor);
     }
 
+    /**
+     * Creates persistent tile cache for rendered heat-map tiles (memory and disk).
+     * Disk tiles survive destroy(): tile keys contain source and data version, so they never become stale
+     */
+    public static final TileCache createHeatmapCache(final Context ctx, int tileSize, double overdrawFactor) {
+        return AndroidUtil.createTileCache(ctx.getApplicationContext(), "heatmap", tileSize, 1f, overdrawFactor, true);
+    }
+
 	/**
 	 * Reads custom render theme from assets
 	 *
@@ -0,0 +1,170 @@
+/*
+	Radiobeacon - Openbmap wifi and cell logger
+    Copyright (C) 2013  wish7
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openbmap.utils;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.Layer;
+
+import java.util.Arrays;
+
+/**
+ * Overlay layer, which draws many circles in a single pass.
+ *
+ * Unlike one {@link org.mapsforge.map.layer.overlay.Circle} layer per point, points are kept in primitive arrays
+ * ({@link Points}) and the whole set is replaced atomically by {@link #setPoints(Points)}, which costs a single
+ * redraw. Points outside the visible area are skipped while drawing.
+ */
+public class PointsLayer extends Layer {
+
+    /**
+     * Approximate length of one degree latitude (in meter)
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * Fill and stroke paint per style, stroke may be null
+     */
+    private final Paint[] mFills;
+    private final Paint[] mStrokes;
+
+    private volatile Points mPoints = new Points(0);
+
+    /**
+     * @param fills fill paint per style
+     * @param strokes stroke paint per style, entries may be null
+     */
+    public PointsLayer(final Paint[] fills, final Paint[] strokes) {
+        super();
+        mFills = fills;
+        mStrokes = strokes;
+    }
+
+    /**
+     * Replaces all points and redraws layer. Points must not be modified afterwards
+     */
+    public final void setPoints(final Points points) {
+        mPoints = points;
+        requestRedraw();
+    }
+
+    /**
+     * Removes all points
+     */
+    public final void clear() {
+        setPoints(new Points(0));
+    }
+
+    public final Points getPoints() {
+        return mPoints;
+    }
+
+    @Override
+    public void draw(final BoundingBox boundingBox, final byte zoomLevel, final Canvas canvas, final Point topLeftPoint) {
+        final Points points = mPoints;
+        if (points.mSize == 0) {
+            return;
+        }
+
+        final long mapSize = MercatorProjection.getMapSize(zoomLevel, displayModel.getTileSize());
+        // scale hardly changes within a viewport, so it's evaluated once at viewport center
+        final double pixelsPerMeter = MercatorProjection.metersToPixels(1, boundingBox.getCenterPoint().latitude, mapSize);
+        final double margin = points.mMaxRadius / METERS_PER_DEGREE;
+        final double minLat = boundingBox.minLatitude - margin;
+        final double maxLat = boundingBox.maxLatitude + margin;
+        final int width = canvas.getWidth();
+        final int height = canvas.getHeight();
+
+        for (int i = 0; i < points.mSize; i++) {
+            final double lat = points.mLatitudes[i];
+            if (lat < minLat || lat > maxLat) {
+                continue;
+            }
+            final int radius = Math.max(1, (int) (points.mRadii[i] * pixelsPerMeter));
+            final int x = (int) (MercatorProjection.longitudeToPixelX(points.mLongitudes[i], mapSize) - topLeftPoint.x);
+            if (x + radius < 0 || x - radius > width) {
+                continue;
+            }
+            final int y = (int) (MercatorProjection.latitudeToPixelY(lat, mapSize) - topLeftPoint.y);
+            if (y + radius < 0 || y - radius > height) {
+                continue;
+            }
+
+            final int style = points.mStyles[i];
+            if (mFills[style] != null) {
+                canvas.drawCircle(x, y, radius, mFills[style]);
+            }
+            if (mStrokes[style] != null) {
+                canvas.drawCircle(x, y, radius, mStrokes[style]);
+            }
+        }
+    }
+
+    /**
+     * Growable point list: position, radius (in meter) and style index per point
+     */
+    public static final class Points {
+
+        private double[] mLatitudes;
+        private double[] mLongitudes;
+        private float[] mRadii;
+        private byte[] mStyles;
+        private int mSize;
+        private float mMaxRadius;
+
+        /**
+         * @param capacity expected number of points
+         */
+        public Points(final int capacity) {
+            mLatitudes = new double[capacity];
+            mLongitudes = new double[capacity];
+            mRadii = new float[capacity];
+            mStyles = new byte[capacity];
+        }
+
+        /**
+         * @param latitude latitude
+         * @param longitude longitude
+         * @param radius circle radius (in meter)
+         * @param style index into layer's paints
+         */
+        public void add(final double latitude, final double longitude, final float radius, final int style) {
+            if (mSize == mLatitudes.length) {
+                final int capacity = Math.max(16, mSize * 2);
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+                mRadii = Arrays.copyOf(mRadii, capacity);
+                mStyles = Arrays.copyOf(mStyles, capacity);
+            }
+            mLatitudes[mSize] = latitude;
+            mLongitudes[mSize] = longitude;
+            mRadii[mSize] = radius;
+            mStyles[mSize] = (byte) style;
+            mMaxRadius = Math.max(mMaxRadius, radius);
+            mSize++;
+        }
+
+        public int size() {
+            return mSize;
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class SessionLatLong extends LatLong {
 
 	private static final long	serialVersionUID	= 1L;
 		private int	mSession;
+		private String	mBssid;
 		/**
 		 * @param latitude
 		 * @param longitude
@@ -40,11 +41,24 @@ public class SessionLatLong extends LatLong {
 			super(latitude, longitude);
 			this.setSession(session);
 		}
+		/**
+		 * @param latitude
+		 * @param longitude
+		 * @param session
+		 * @param bssid wifi shown at this position
+		 */
+		public SessionLatLong(final double latitude, final double longitude, final int session, final String bssid) {
+			this(latitude, longitude, session);
+			mBssid = bssid;
+		}
 		public final int getSession() {
 			return mSession;
 		}
 		public final void setSession(final int session) {
 			this.mSession = session;
 		}
+		public final String getBssid() {
+			return mBssid;
+		}
 
 	}
@@ -20,17 +20,24 @@ package org.openbmap.utils;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
 import org.openbmap.db.DataHelper;
 import org.openbmap.db.DatabaseHelper;
 import org.openbmap.db.Schema;
 import org.openbmap.db.models.PositionRecord;
 import org.openbmap.db.models.WifiRecord;
+import org.openbmap.events.onScansWritten;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Loads session wifis asynchronously.
@@ -63,6 +70,44 @@ public class SessionObjectsLoader extends AsyncTask<Object, Void, List<SessionLa
         void onSessionLoaded(List<SessionLatLong> points);
     }
 
+    /**
+     * Cache grid resolution: 0.01 degree tiles
+     */
+    private static final int CACHE_TILES_PER_DEGREE = 100;
+
+    /**
+     * Memory budget of cached session wifis (in bytes)
+     */
+    private static final long CACHE_BUDGET = 2 * 1024 * 1024;
+
+    /**
+     * Session wifis, shared by all loaders. Only valid for {@link #sCachedSessions}
+     */
+    private static final MapObjectCache<SessionLatLong> sCache = new MapObjectCache<>(CACHE_TILES_PER_DEGREE, CACHE_BUDGET);
+
+    private static String sCachedSessions;
+
+    /**
+     * Keeps {@link #sCache} up to date while wifis are recorded, registered with first loader
+     */
+    private static CacheInvalidator sInvalidator;
+
+    /**
+     * Drops cached session wifis around new wifis, as soon as they have been committed
+     */
+    public static final class CacheInvalidator {
+
+        /**
+         * Called on scan writer thread
+         */
+        @Subscribe
+        public void onEvent(final onScansWritten event) {
+            for (int i = 0; i < event.wifiPositions.length; i += 2) {
+                sCache.invalidate(event.wifiPositions[i], event.wifiPositions[i + 1]);
+            }
+        }
+    }
+
     private final Context mContext;
 
     private OnSessionLoadedListener mListener;
@@ -77,6 +122,13 @@ public class SessionObjectsLoader extends AsyncTask<Object, Void, List<SessionLa
         mContext = context;
         mToLoad = sessions;
 
+        synchronized (SessionObjectsLoader.class) {
+            if (sInvalidator == null) {
+                sInvalidator = new CacheInvalidator();
+                EventBus.getDefault().register(sInvalidator);
+            }
+        }
+
         setOnSessionLoadedListener(listener);
     }
 
@@ -98,41 +150,42 @@ public class SessionObjectsLoader extends AsyncTask<Object, Void, List<SessionLa
 
         if(args[HIGHLIGHT_WIFI_COL] == null) {
             // Draw either all session wifis ...
-
-            //long start = System.currentTimeMillis();
-            final DatabaseHelper mDbHelper = new DatabaseHelper(mContext.getApplicationContext());
-
-            final StringBuilder selected = new StringBuilder();
-            for(int i = 0; i < mToLoad.size(); i++) {
-                selected.append(mToLoad.get(i));
-
-                if(i < mToLoad.size() - 1) {
-                    selected.append(", ");
+            final String selected = TextUtils.join(", ", mToLoad);
+            synchronized (sCache) {
+                if (!selected.equals(sCachedSessions)) {
+                    // other sessions than last time
+                    sCache.clear();
+                    sCachedSessions = selected;
                 }
             }
 
-            // use raw query for performance reasons
-            final String query = "SELECT w.rowid as " + Schema.COL_ID + ", MAX(" + Schema.COL_LEVEL + "), w." + Schema.COL_SESSION_ID + ", "
-                                         + " b." + Schema.COL_LATITUDE + ", b." + Schema.COL_LONGITUDE
-                                         + " FROM " + Schema.TBL_WIFIS + " as w "
-                                         + " JOIN " + Schema.TBL_POSITIONS + " as b ON " + Schema.COL_BEGIN_POSITION_ID + " = b." + Schema.COL_ID
-                                         + " WHERE w." + Schema.COL_SESSION_ID + " IN (" + selected + ") AND "
-                                         + " b.longitude >= " + args[MIN_LON_COL] + " AND "
-                                         + " b.longitude <= " + args[MAX_LON_COL] + " AND "
-                                         + " b.latitude >= " + args[MIN_LAT_COL] + " AND "
-                                         + " b.latitude <= " + args[MAX_LAT_COL] + " GROUP BY w." + Schema.COL_BSSID;
-
-            final Cursor cursor = mDbHelper.getReadableDatabase().rawQuery(query, null);
-            final int colLat = cursor.getColumnIndex(Schema.COL_LATITUDE);
-            final int colLon = cursor.getColumnIndex(Schema.COL_LONGITUDE);
-            final int colSession = cursor.getColumnIndex(Schema.COL_SESSION_ID);
-
-            while(cursor.moveToNext()) {
-                points.add(new SessionLatLong(cursor.getDouble(colLat), cursor.getDouble(colLon),
-                                              cursor.getInt(colSession)));
+            if (isCancelled()) {
+                // superseded by newer viewport
+                return points;
             }
-            Log.d(TAG, cursor.getCount() + " session points loaded");
-            cursor.close();
+
+            final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+            final List<SessionLatLong> cached = sCache.get((Double) args[MIN_LAT_COL],
+                                     (Double) args[MAX_LAT_COL],
+                                     (Double) args[MIN_LON_COL],
+                                     (Double) args[MAX_LON_COL],
+                                     new MapObjectCache.Loader<SessionLatLong>() {
+                                         @Override
+                                         public boolean load(double minLat, double maxLat, double minLon, double maxLon,
+                                                             List<SessionLatLong> objects) {
+                                             loadArea(db, selected, minLat, maxLat, minLon, maxLon, objects);
+                                             return true;
+                                         }
+                                     });
+
+            // tiles are grouped separately, so a wifi seen in several tiles is returned once per tile
+            final Set<String> seen = new HashSet<>();
+            for (final SessionLatLong point : cached) {
+                if (seen.add(point.getBssid())) {
+                    points.add(point);
+                }
+            }
+            Log.d(TAG, points.size() + " session points loaded (cache: " + sCache.getHits() + " hits, " + sCache.getMisses() + " misses)");
 
         } else {
             // ... or only selected
@@ -149,6 +202,38 @@ public class SessionObjectsLoader extends AsyncTask<Object, Void, List<SessionLa
         return points;
     }
 
+    /**
+     * Loads session wifis within bounding box
+     * @param sessions comma-separated session ids
+     * @param points receives session wifis
+     */
+    private static void loadArea(final SQLiteDatabase db, final String sessions,
+                                 final double minLat, final double maxLat, final double minLon, final double maxLon,
+                                 final List<SessionLatLong> points) {
+        // use raw query for performance reasons
+        // strongest measurement per session is taken from wifi overview, see WifiOverview
+        final String query = "SELECT " + Schema.COL_WIFI_ID + " as " + Schema.COL_ID + ", MAX(" + Schema.COL_LEVEL + "), " + Schema.COL_SESSION_ID + ", " + Schema.COL_BSSID + ", "
+                                     + Schema.COL_LATITUDE + ", " + Schema.COL_LONGITUDE
+                                     + " FROM " + Schema.TBL_WIFI_OVERVIEW
+                                     + " WHERE " + Schema.COL_SESSION_ID + " IN (" + sessions + ") AND "
+                                     + " latitude >= " + minLat + " AND "
+                                     + " latitude <= " + maxLat + " AND "
+                                     + " longitude >= " + minLon + " AND "
+                                     + " longitude <= " + maxLon + " GROUP BY " + Schema.COL_BSSID;
+
+        final Cursor cursor = db.rawQuery(query, null);
+        final int colLat = cursor.getColumnIndex(Schema.COL_LATITUDE);
+        final int colLon = cursor.getColumnIndex(Schema.COL_LONGITUDE);
+        final int colSession = cursor.getColumnIndex(Schema.COL_SESSION_ID);
+        final int colBssid = cursor.getColumnIndex(Schema.COL_BSSID);
+
+        while(cursor.moveToNext()) {
+            points.add(new SessionLatLong(cursor.getDouble(colLat), cursor.getDouble(colLon),
+                                          cursor.getInt(colSession), cursor.getString(colBssid)));
+        }
+        cursor.close();
+    }
+
     /**
      * Informs activity on available results by calling mListener.
      */
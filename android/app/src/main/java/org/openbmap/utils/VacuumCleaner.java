@@ -59,10 +59,9 @@ public class VacuumCleaner extends AsyncTask<Void, Void, Boolean> {
 
 		Log.i(TAG, "Cleaning database");
 		try {
-			final SQLiteDatabase db = new DatabaseHelper(mContext.getApplicationContext()).getWritableDatabase();
+			final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getWritableDatabase();
 			db.execSQL("VACUUM");
 			Log.i(TAG, "Finished cleaning");
-			db.close();
 		} catch (final SQLiteDatabaseLockedException e){
 			// possibly a database upgrade is currently taking place
 			Log.e(TAG, "Error locking database");
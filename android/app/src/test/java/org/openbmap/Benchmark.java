@@ -0,0 +1,8 @@
+package org.openbmap;
+
+/**
+ * JUnit category of benchmarks, which print their measurements. Excluded from regular
+ * unit test runs, run with {@code gradlew testDebugUnitTest -Pbenchmarks}
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,243 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds the catalog density pyramid on sqlite-jdbc: checks counts on all levels, incremental updates
+ * and compares viewport queries against the former point query
+ */
+public class CatalogDensityTest {
+
+    private static final int CATALOG_SIZE = 1000000;
+
+    private static final int QUERIES = 20;
+
+    @Test
+    public void testLevelsSumToCatalogSize() throws Exception {
+        final Connection db = createCatalog(0, 10000);
+        TestDatabase.buildPyramid(db);
+
+        final ResultSet sums = db.createStatement().executeQuery(
+                "SELECT level, sum(count) FROM " + CatalogDensity.TBL_DENSITY + " GROUP BY level ORDER BY level");
+        int levels = 0;
+        while (sums.next()) {
+            assertEquals(levels, sums.getInt(1));
+            assertEquals(10000, sums.getInt(2));
+            levels++;
+        }
+        sums.close();
+        assertEquals(CatalogDensity.LEVELS, levels);
+
+        // sql and java agree on cell numbers
+        final int[] tiles = readTiles(db);
+        final Random random = new Random(3);
+        final PreparedStatement count = db.prepareStatement(
+                "SELECT count FROM " + CatalogDensity.TBL_DENSITY + " WHERE level = ? AND cell = ?");
+        for (int i = 0; i < 50; i++) {
+            final int tile = CatalogTiles.tileOf(47.0 + random.nextDouble() * 8.0, 6.0 + random.nextDouble() * 9.0);
+            for (int level = 0; level < CatalogDensity.LEVELS; level++) {
+                count.setInt(1, level);
+                count.setLong(2, CatalogDensity.cellOf(level, tile));
+                final ResultSet rs = count.executeQuery();
+                final int wifis = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+                assertEquals(wifis, countWifis(tiles, level, CatalogDensity.cellOf(level, tile)));
+            }
+        }
+        db.close();
+    }
+
+    @Test
+    public void testIncrementalAddMatchesRebuild() throws Exception {
+        final Connection db = createCatalog(0, 10000);
+        TestDatabase.buildPyramid(db);
+
+        // same statements as CatalogUpdater: insert wifi, then count it on all levels
+        db.setAutoCommit(false);
+        final PreparedStatement insert = db.prepareStatement("INSERT OR IGNORE INTO wifi_zone VALUES (?, ?, ?, 99, ?)");
+        final PreparedStatement insertCell = db.prepareStatement(CatalogDensity.INSERT_CELL);
+        final PreparedStatement incrementCell = db.prepareStatement(CatalogDensity.INCREMENT_CELL);
+        final Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            final double lat = 47.0 + random.nextDouble() * 8.0;
+            final double lon = 6.0 + random.nextDouble() * 9.0;
+            final int tile = CatalogTiles.tileOf(lat, lon);
+            insert.setString(1, String.format(Locale.US, "LOCAL%07X", i));
+            insert.setDouble(2, lat);
+            insert.setDouble(3, lon);
+            insert.setInt(4, tile);
+            insert.executeUpdate();
+            for (int level = 0; level < CatalogDensity.LEVELS; level++) {
+                for (PreparedStatement statement : new PreparedStatement[] {insertCell, incrementCell}) {
+                    statement.setInt(1, level);
+                    statement.setLong(2, CatalogDensity.cellOf(level, tile));
+                    statement.executeUpdate();
+                }
+            }
+        }
+        db.commit();
+        db.setAutoCommit(true);
+        final Map<String, Integer> incremental = readPyramid(db);
+
+        final Statement ddl = db.createStatement();
+        ddl.execute("DROP TABLE " + CatalogDensity.TBL_DENSITY);
+        ddl.close();
+        for (String sql : CatalogDensity.buildStatements()) {
+            db.createStatement().execute(sql);
+        }
+        assertEquals(readPyramid(db), incremental);
+        db.close();
+    }
+
+    @Test
+    public void testViewportCellsAreBounded() {
+        for (double size : new double[] {0.001, 0.02, 0.2, 1.0, 8.0, 50.0, 170.0}) {
+            final int level = CatalogDensity.levelFor(0, size, 0, size);
+            final long[][] ranges = CatalogDensity.ranges(level, 0, size, 0, size);
+            assertTrue(ranges.length <= CatalogDensity.MAX_CELLS_PER_SIDE + 1);
+            for (long[] range : ranges) {
+                assertTrue(range[1] - range[0] + 1 <= CatalogDensity.MAX_CELLS_PER_SIDE + 1);
+            }
+        }
+        assertEquals(0, CatalogDensity.levelFor(52.0, 52.1, 13.0, 13.1));
+        assertEquals(CatalogDensity.LEVELS - 1, CatalogDensity.levelFor(-90, 90, -180, 180));
+        assertEquals(0, CatalogDensity.ranges(0, 1, 0, 1, 0).length);
+    }
+
+    /**
+     * Compares country-wide viewports: former point query (truncated to 5000 points) vs density cells
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkDensityQuery() throws Exception {
+        final Connection db = createCatalog(0, CATALOG_SIZE);
+        long start = System.nanoTime();
+        TestDatabase.buildPyramid(db);
+        final long buildNanos = System.nanoTime() - start;
+
+        final PreparedStatement points = db.prepareStatement(CatalogDatabaseHelper.HIGHSPEED_QUERY + " LIMIT 5000");
+        final PreparedStatement cells = db.prepareStatement(CatalogDensity.CELL_QUERY);
+        for (double size : new double[] {0.2, 2.0, 8.0}) {
+            final Random random = new Random(42);
+            long pointNanos = 0;
+            long cellNanos = 0;
+            long cellWifis = 0;
+            int cellCount = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                final double minLat = 47.0 + random.nextDouble() * (8.0 - size);
+                final double minLon = 6.0 + random.nextDouble() * (9.0 - size);
+
+                start = System.nanoTime();
+                points.setString(1, String.valueOf(minLat));
+                points.setString(2, String.valueOf(minLat + size));
+                points.setString(3, String.valueOf(minLon));
+                points.setString(4, String.valueOf(minLon + size));
+                final ResultSet rs = points.executeQuery();
+                while (rs.next()) {
+                    // read all
+                }
+                rs.close();
+                pointNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                final int level = CatalogDensity.levelFor(minLat, minLat + size, minLon, minLon + size);
+                for (long[] range : CatalogDensity.ranges(level, minLat, minLat + size, minLon, minLon + size)) {
+                    cells.setString(1, String.valueOf(level));
+                    cells.setString(2, String.valueOf(range[0]));
+                    cells.setString(3, String.valueOf(range[1]));
+                    final ResultSet cs = cells.executeQuery();
+                    while (cs.next()) {
+                        cellWifis += cs.getInt(2);
+                        cellCount++;
+                    }
+                    cs.close();
+                }
+                cellNanos += System.nanoTime() - start;
+            }
+            System.out.println(String.format(Locale.US, "Viewport %.1f deg: point query %.2f ms (max. 5000 points), density %.2f ms (%d cells, %d wifis)",
+                    size, pointNanos / 1.0E6 / QUERIES, cellNanos / 1.0E6 / QUERIES, cellCount / QUERIES, cellWifis / QUERIES));
+        }
+        System.out.println(String.format(Locale.US, "Tile index and density pyramid for %d wifis built in %d ms",
+                CATALOG_SIZE, buildNanos / 1000000));
+        db.close();
+    }
+
+    private static Connection createCatalog(final int seed, final int size) throws Exception {
+        final Connection db = TestDatabase.createCatalog();
+        db.setAutoCommit(false);
+        final Random random = new Random(seed);
+        final PreparedStatement insert = db.prepareStatement("INSERT OR IGNORE INTO wifi_zone VALUES (?, ?, ?, 1)");
+        for (int i = 0; i < size; i++) {
+            insert.setString(1, String.format(Locale.US, "%012X", i));
+            // clustered around a few cities, like real catalogs
+            final double lat = 47.0 + (i % 3 == 0 ? random.nextDouble() * 8.0 : 52.0 - 47.0 + random.nextGaussian() * 0.2);
+            final double lon = 6.0 + (i % 3 == 0 ? random.nextDouble() * 9.0 : 13.0 - 6.0 + random.nextGaussian() * 0.3);
+            insert.setDouble(2, lat);
+            insert.setDouble(3, lon);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        db.commit();
+        db.setAutoCommit(true);
+        return db;
+    }
+
+    /**
+     * Tiles of all catalog wifis, computed in java
+     */
+    private static int[] readTiles(final Connection db) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery("SELECT latitude, longitude FROM wifi_zone");
+        final int[] tiles = new int[countRows(db)];
+        int i = 0;
+        while (rs.next()) {
+            tiles[i++] = CatalogTiles.tileOf(rs.getDouble(1), rs.getDouble(2));
+        }
+        rs.close();
+        return tiles;
+    }
+
+    private static int countRows(final Connection db) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery("SELECT count(*) FROM wifi_zone");
+        rs.next();
+        final int rows = rs.getInt(1);
+        rs.close();
+        return rows;
+    }
+
+    /**
+     * Counts wifis within a cell, without density pyramid
+     */
+    private static int countWifis(final int[] tiles, final int level, final long cell) {
+        int count = 0;
+        for (int tile : tiles) {
+            if (CatalogDensity.cellOf(level, tile) == cell) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Map<String, Integer> readPyramid(final Connection db) throws Exception {
+        final Map<String, Integer> cells = new HashMap<>();
+        final ResultSet rs = db.createStatement().executeQuery("SELECT level, cell, count FROM " + CatalogDensity.TBL_DENSITY);
+        while (rs.next()) {
+            cells.put(rs.getInt(1) + "/" + rs.getLong(2), rs.getInt(3));
+        }
+        rs.close();
+        return cells;
+    }
+}
@@ -0,0 +1,140 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.db.models.WifiRecord.CatalogStatus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogIndexTest {
+
+    private static final int CATALOG_SIZE = 200000;
+
+    private static final int LOOKUPS = 100000;
+
+    @Test
+    public void testPack() {
+        assertEquals(0x001122aabbccL, CatalogIndex.pack("00:11:22:aa:bb:cc"));
+        assertEquals(0x001122aabbccL, CatalogIndex.pack("001122AABBCC"));
+        assertEquals(0xffffffffffffL, CatalogIndex.pack("FF:FF:FF:FF:FF:FF"));
+        assertEquals(CatalogIndex.INVALID, CatalogIndex.pack("00:11:22:aa:bb"));
+        assertEquals(CatalogIndex.INVALID, CatalogIndex.pack("00:11:22:aa:bb:cc:dd"));
+        assertEquals(CatalogIndex.INVALID, CatalogIndex.pack("00:11:22:aa:bb:cx"));
+        assertEquals(CatalogIndex.INVALID, CatalogIndex.pack(null));
+    }
+
+    @Test
+    public void testLookup() {
+        final CatalogIndex index = new CatalogIndex(2);
+        assertTrue(index.put("001122AABBCC", CatalogStatus.OPENBMAP.ordinal()));
+        assertTrue(index.put("001122AABBCD", 99));
+
+        assertEquals(CatalogStatus.OPENBMAP, index.lookup("00:11:22:aa:bb:cc"));
+        assertEquals(CatalogStatus.LOCAL, index.lookup("00:11:22:aa:bb:cd"));
+        assertEquals(CatalogStatus.NEW, index.lookup("00:11:22:aa:bb:ce"));
+        assertEquals(CatalogStatus.NEW, index.lookup("garbage"));
+
+        // overwrite source
+        index.put("001122AABBCD", CatalogStatus.OPENBMAP.ordinal());
+        assertEquals(CatalogStatus.OPENBMAP, index.lookup("00:11:22:aa:bb:cd"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testGrow() {
+        final CatalogIndex index = new CatalogIndex(16);
+        for (long i = 0; i < 10000; i++) {
+            index.put(i * 7919, (int) (i % 2));
+        }
+        assertEquals(10000, index.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 1 ? CatalogStatus.OPENBMAP : CatalogStatus.LOCAL, index.lookup(i * 7919));
+        }
+        assertEquals(CatalogStatus.NEW, index.lookup(10001L * 7919 + 1));
+    }
+
+    @Test
+    public void testBytesFor() {
+        // 2^21 slots of one long and one byte each
+        assertEquals(2097152L * 9, CatalogIndex.bytesFor(1000000));
+        assertEquals(32L * 9, CatalogIndex.bytesFor(2));
+        assertTrue(CatalogIndex.bytesFor(100000) < CatalogIndex.bytesFor(1000000));
+    }
+
+    /**
+     * Compares index lookups against the per-bssid catalog query used before
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkAgainstCatalogQuery() throws Exception {
+        final Random random = new Random(42);
+        final String[] catalog = new String[CATALOG_SIZE];
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            catalog[i] = String.format(Locale.US, "%012X", random.nextLong() & 0xffffffffffffL);
+        }
+        // half of scanned wifis are known, half are new
+        final String[] scanned = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            final String bssid = (i % 2 == 0) ? catalog[random.nextInt(CATALOG_SIZE)]
+                    : String.format(Locale.US, "%012X", random.nextLong() & 0xffffffffffffL);
+            scanned[i] = bssid.replaceAll("(..)(?!$)", "$1:").toLowerCase(Locale.US);
+        }
+
+        final Connection db = TestDatabase.createCatalog();
+        db.setAutoCommit(false);
+        final PreparedStatement insert = db.prepareStatement("INSERT OR IGNORE INTO wifi_zone VALUES (?, 0, 0, ?)");
+        for (String bssid : catalog) {
+            insert.setString(1, bssid);
+            insert.setInt(2, 1);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        db.commit();
+
+        // per-row query, as in WirelessLoggerService.checkCatalogStatus
+        long start = System.nanoTime();
+        int knownQuery = 0;
+        final PreparedStatement query = db.prepareStatement("SELECT bssid, source FROM wifi_zone WHERE bssid = ?");
+        for (String bssid : scanned) {
+            query.setString(1, bssid.replace(":", "").toUpperCase());
+            final ResultSet rs = query.executeQuery();
+            if (rs.next()) {
+                knownQuery++;
+            }
+            rs.close();
+        }
+        final long queryNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final CatalogIndex index = new CatalogIndex(CATALOG_SIZE);
+        final ResultSet all = db.createStatement().executeQuery("SELECT bssid, source FROM wifi_zone");
+        while (all.next()) {
+            index.put(all.getString(1), all.getInt(2));
+        }
+        all.close();
+        final long loadNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int knownIndex = 0;
+        for (String bssid : scanned) {
+            if (index.lookup(bssid) != CatalogStatus.NEW) {
+                knownIndex++;
+            }
+        }
+        final long indexNanos = System.nanoTime() - start;
+        db.close();
+
+        assertEquals(knownQuery, knownIndex);
+        System.out.println(String.format(Locale.US, "Catalog query: %.0f ns/lookup", (double) queryNanos / LOOKUPS));
+        System.out.println(String.format(Locale.US, "Catalog index: %.0f ns/lookup (load %d ms for %d bssids)",
+                (double) indexNanos / LOOKUPS, loadNanos / 1000000, index.size()));
+    }
+}
@@ -0,0 +1,212 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the catalog tile index on sqlite-jdbc: checks that java and sql tile numbers agree,
+ * that tile ranges cover a viewport and compares viewport queries against the former lat/lon range query
+ */
+public class CatalogTilesTest {
+
+    /**
+     * Roughly a national catalog
+     */
+    private static final int CATALOG_SIZE = 1000000;
+
+    private static final int QUERIES = 20;
+
+    private static final String HIGHSPEED_QUERY = CatalogDatabaseHelper.HIGHSPEED_QUERY + " LIMIT 5000";
+
+    @Test
+    public void testSqlMatchesJava() throws Exception {
+        final Connection db = createCatalog(20000, -90, 90, -180, 180);
+        final Statement edges = db.createStatement();
+        edges.execute("INSERT INTO wifi_zone VALUES ('A', 90, 180, 1)");
+        edges.execute("INSERT INTO wifi_zone VALUES ('B', -90, -180, 1)");
+        edges.execute("INSERT INTO wifi_zone VALUES ('C', 52.01, 13.01, 1)");
+        edges.close();
+        TestDatabase.buildTileIndex(db);
+
+        final ResultSet rs = db.createStatement().executeQuery("SELECT latitude, longitude, tile FROM wifi_zone");
+        int rows = 0;
+        while (rs.next()) {
+            assertEquals(CatalogTiles.tileOf(rs.getDouble(1), rs.getDouble(2)), rs.getLong(3));
+            rows++;
+        }
+        rs.close();
+        db.close();
+        assertEquals(20003, rows);
+        assertEquals(CatalogTiles.ROWS * CatalogTiles.COLUMNS - 1, CatalogTiles.tileOf(90, 180));
+        assertEquals(0, CatalogTiles.tileOf(-90, -180));
+    }
+
+    @Test
+    public void testBackfillFillsMissingTilesOnly() throws Exception {
+        final Connection db = createCatalog(1000, 52.0, 53.0, 13.0, 14.0);
+        TestDatabase.buildTileIndex(db);
+        final Statement statement = db.createStatement();
+        // added while index was missing, and a wrong tile which must not be touched
+        statement.execute("INSERT INTO wifi_zone (bssid, latitude, longitude, source) VALUES ('NEW', 52.5, 13.5, 99)");
+        statement.execute("UPDATE wifi_zone SET tile = -1 WHERE bssid = '000000000001'");
+
+        assertEquals(1, statement.executeUpdate(CatalogTiles.BACKFILL_TILES));
+        assertEquals(0, statement.executeUpdate(CatalogTiles.BACKFILL_TILES));
+        final ResultSet rs = statement.executeQuery("SELECT tile FROM wifi_zone WHERE bssid IN ('NEW', '000000000001') ORDER BY bssid");
+        rs.next();
+        assertEquals(-1, rs.getLong(1));
+        rs.next();
+        assertEquals(CatalogTiles.tileOf(52.5, 13.5), rs.getLong(1));
+        rs.close();
+        statement.close();
+        db.close();
+    }
+
+    @Test
+    public void testRangesCoverViewport() throws Exception {
+        final Connection db = createCatalog(20000, 52.0, 53.0, 13.0, 14.0);
+        TestDatabase.buildTileIndex(db);
+        final PreparedStatement plain = db.prepareStatement(
+                "SELECT latitude, longitude FROM wifi_zone WHERE latitude > ? AND latitude < ? AND longitude > ? AND longitude < ?");
+        final PreparedStatement tiles = db.prepareStatement(CatalogTiles.TILE_QUERY);
+
+        final Random random = new Random(7);
+        for (int i = 0; i < 20; i++) {
+            final double minLat = 52.0 + random.nextDouble() * 0.3;
+            final double minLon = 13.0 + random.nextDouble() * 0.3;
+            final double size = 0.01 + random.nextDouble() * 0.3;
+            final double[] viewport = {minLat, minLat + size, minLon, minLon + size};
+
+            final Set<String> expected = new HashSet<>();
+            bind(plain, viewport, 1);
+            read(plain.executeQuery(), expected);
+
+            final Set<String> actual = new HashSet<>();
+            for (long[] range : CatalogTiles.ranges(viewport[0], viewport[1], viewport[2], viewport[3])) {
+                tiles.setString(1, String.valueOf(range[0]));
+                tiles.setString(2, String.valueOf(range[1]));
+                bind(tiles, viewport, 3);
+                tiles.setString(7, String.valueOf(Integer.MAX_VALUE));
+                read(tiles.executeQuery(), actual);
+            }
+            assertEquals(expected, actual);
+        }
+        db.close();
+    }
+
+    @Test
+    public void testRangesCoverEveryRow() {
+        assertEquals(1, CatalogTiles.ranges(52.001, 52.009, 13.0, 14.0).length);
+        assertEquals(11, CatalogTiles.ranges(52.0, 52.1, 13.0, 13.1).length);
+        assertEquals(0, CatalogTiles.ranges(53, 52, 13, 14).length);
+
+        // large viewports aren't sampled, i.e. no band of rows is skipped
+        final long[][] ranges = CatalogTiles.ranges(52.0, 53.28, 6.0, 15.0);
+        assertEquals(129, ranges.length);
+        for (int i = 0; i < ranges.length; i++) {
+            assertEquals(CatalogTiles.tileOf(52.0, 6.0) + (long) i * CatalogTiles.COLUMNS, ranges[i][0]);
+            assertEquals(CatalogTiles.tileOf(52.0, 15.0) + (long) i * CatalogTiles.COLUMNS, ranges[i][1]);
+        }
+        assertEquals(CatalogTiles.tileOf(53.28, 15.0), ranges[ranges.length - 1][1]);
+    }
+
+    /**
+     * Compares viewport queries on a national catalog: former range query vs tile index
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkViewportQuery() throws Exception {
+        final Connection db = createCatalog(CATALOG_SIZE, 47.0, 55.0, 6.0, 15.0);
+        long start = System.nanoTime();
+        TestDatabase.buildTileIndex(db);
+        final long buildNanos = System.nanoTime() - start;
+
+        final PreparedStatement plain = db.prepareStatement(HIGHSPEED_QUERY);
+        final PreparedStatement tiles = db.prepareStatement(CatalogTiles.TILE_QUERY);
+        // street level, city level and whole country
+        for (double size : new double[] {0.02, 0.2, 8.0}) {
+            final Random random = new Random(42);
+            long plainNanos = 0;
+            long tileNanos = 0;
+            int plainRows = 0;
+            int tileRows = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                final double minLat = 47.0 + random.nextDouble() * (8.0 - size);
+                final double minLon = 6.0 + random.nextDouble() * (9.0 - size);
+                final double[] viewport = {minLat, minLat + size, minLon, minLon + size};
+
+                start = System.nanoTime();
+                bind(plain, viewport, 1);
+                plainRows += count(plain.executeQuery());
+                plainNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                final long[][] ranges = CatalogTiles.ranges(viewport[0], viewport[1], viewport[2], viewport[3]);
+                for (long[] range : ranges) {
+                    tiles.setString(1, String.valueOf(range[0]));
+                    tiles.setString(2, String.valueOf(range[1]));
+                    bind(tiles, viewport, 3);
+                    tiles.setString(7, String.valueOf(5000 / ranges.length + 1));
+                    tileRows += count(tiles.executeQuery());
+                }
+                tileNanos += System.nanoTime() - start;
+            }
+            System.out.println(String.format(Locale.US, "Viewport %.2f deg: range query %.2f ms (%d rows), tile index %.2f ms (%d rows)",
+                    size, plainNanos / 1.0E6 / QUERIES, plainRows / QUERIES, tileNanos / 1.0E6 / QUERIES, tileRows / QUERIES));
+        }
+        System.out.println(String.format(Locale.US, "Tile index for %d wifis built in %d ms", CATALOG_SIZE, buildNanos / 1000000));
+        db.close();
+    }
+
+    private static Connection createCatalog(final int size, final double minLat, final double maxLat,
+                                            final double minLon, final double maxLon) throws Exception {
+        final Connection db = TestDatabase.createCatalog();
+        db.setAutoCommit(false);
+        final Random random = new Random(size);
+        final PreparedStatement insert = db.prepareStatement("INSERT OR IGNORE INTO wifi_zone VALUES (?, ?, ?, 1)");
+        for (int i = 0; i < size; i++) {
+            insert.setString(1, String.format(Locale.US, "%012X", i));
+            insert.setDouble(2, minLat + random.nextDouble() * (maxLat - minLat));
+            insert.setDouble(3, minLon + random.nextDouble() * (maxLon - minLon));
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        db.commit();
+        db.setAutoCommit(true);
+        return db;
+    }
+
+    private static void bind(final PreparedStatement statement, final double[] viewport, final int first) throws Exception {
+        for (int i = 0; i < viewport.length; i++) {
+            statement.setString(first + i, String.valueOf(viewport[i]));
+        }
+    }
+
+    private static void read(final ResultSet rs, final Set<String> points) throws Exception {
+        while (rs.next()) {
+            points.add(rs.getDouble(1) + "," + rs.getDouble(2));
+        }
+        rs.close();
+    }
+
+    private static int count(final ResultSet rs) throws Exception {
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+        }
+        rs.close();
+        return rows;
+    }
+}
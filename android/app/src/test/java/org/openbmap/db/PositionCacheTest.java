@@ -0,0 +1,200 @@
+package org.openbmap.db;
+
+import android.database.Cursor;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.db.models.PositionRecord;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Loads positions through {@link PositionCache} from sqlite-jdbc and counts queries
+ */
+public class PositionCacheTest {
+
+    private static final String[] COLUMNS = {Schema.COL_ID, Schema.COL_LATITUDE, Schema.COL_LONGITUDE, Schema.COL_ALTITUDE,
+            Schema.COL_ACCURACY, Schema.COL_TIMESTAMP, Schema.COL_BEARING, Schema.COL_SPEED, Schema.COL_SESSION_ID, Schema.COL_SOURCE};
+
+    /**
+     * Position cache on sqlite-jdbc instead of content resolver
+     */
+    private static final class JdbcPositionCache extends PositionCache {
+        private final Connection mDb;
+        int queries;
+
+        JdbcPositionCache(final Connection db) {
+            super(null);
+            mDb = db;
+        }
+
+        @Override
+        Cursor query(final String selection, final String[] selectionArgs) {
+            queries++;
+            return queryPositions(mDb, selection, selectionArgs);
+        }
+    }
+
+    @Test
+    public void testSharedPositionsLoadedOnce() throws Exception {
+        final Connection db = createDatabase(300);
+        final JdbcPositionCache cache = new JdbcPositionCache(db);
+
+        // 5000 wifis of 250 scans, begin and end position per scan
+        for (int i = 0; i < 5000; i++) {
+            cache.request(1 + (i / 20) % 250);
+            cache.request(51 + (i / 20) % 250);
+        }
+        final PositionRecord first = cache.get(1);
+        assertEquals(1, cache.queries);
+        assertEquals(52.001, first.getLatitude(), 1E-9);
+        assertEquals(13.001, first.getLongitude(), 1E-9);
+        assertSame(first, cache.get(1));
+        assertEquals(52.3, cache.get(300).getLatitude(), 1E-9);
+        assertEquals(1, cache.queries);
+        db.close();
+    }
+
+    @Test
+    public void testBatchesAndMissingIds() throws Exception {
+        final Connection db = createDatabase(2 * PositionCache.BATCH_SIZE + 10);
+        final JdbcPositionCache cache = new JdbcPositionCache(db);
+        for (int i = 1; i <= 2 * PositionCache.BATCH_SIZE + 20; i++) {
+            cache.request(i);
+        }
+        cache.get(1);
+        assertEquals(3, cache.queries);
+
+        // unknown ids yield empty positions, like DataHelper.loadPositionById
+        final PositionRecord missing = cache.get(2 * PositionCache.BATCH_SIZE + 20);
+        assertEquals(0.0, missing.getLatitude(), 0.0);
+        assertEquals(3, cache.queries);
+        db.close();
+    }
+
+    /**
+     * Compares one query per begin and end position (former loaders) with batched loading
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkPositionLoading() throws Exception {
+        final int wifis = 5000;
+        final Connection db = createDatabase(wifis / 20);
+
+        long start = System.nanoTime();
+        int single = 0;
+        for (int i = 0; i < wifis; i++) {
+            for (long id : new long[]{1 + i / 20, 1 + i / 20}) {
+                final Cursor cursor = queryPositions(db, Schema.COL_ID + " = ?", new String[]{String.valueOf(id)});
+                cursor.moveToNext();
+                DataHelper.positionFromCursor(cursor);
+                cursor.close();
+                single++;
+            }
+        }
+        final long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final JdbcPositionCache cache = new JdbcPositionCache(db);
+        for (int i = 0; i < wifis; i++) {
+            cache.request(1 + i / 20);
+            cache.request(1 + i / 20);
+        }
+        for (int i = 0; i < wifis; i++) {
+            cache.get(1 + i / 20);
+            cache.get(1 + i / 20);
+        }
+        final long cacheNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d wifis: %d position queries %.1f ms, batched %d queries %.1f ms",
+                wifis, single, singleNanos / 1.0E6, cache.queries, cacheNanos / 1.0E6));
+        db.close();
+    }
+
+    private static Cursor queryPositions(final Connection db, final String selection, final String[] selectionArgs) {
+        try {
+            final PreparedStatement statement = db.prepareStatement("SELECT * FROM positions WHERE " + selection);
+            for (int i = 0; i < selectionArgs.length; i++) {
+                statement.setString(i + 1, selectionArgs[i]);
+            }
+            final ResultSet rs = statement.executeQuery();
+            final List<Object[]> rows = new ArrayList<>();
+            while (rs.next()) {
+                final Object[] row = new Object[COLUMNS.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rs.getObject(COLUMNS[i]);
+                }
+                rows.add(row);
+            }
+            final Cursor cursor = rowCursor(rows);
+            rs.close();
+            statement.close();
+            return cursor;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Minimal cursor over rows of {@link #COLUMNS}, android's cursor implementations require native code
+     */
+    private static Cursor rowCursor(final List<Object[]> rows) {
+        final int[] position = {-1};
+        final InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                switch (method.getName()) {
+                    case "getColumnIndex":
+                        return Arrays.asList(COLUMNS).indexOf(args[0]);
+                    case "getCount":
+                        return rows.size();
+                    case "getPosition":
+                        return position[0];
+                    case "moveToNext":
+                        return ++position[0] < rows.size();
+                    case "close":
+                        return null;
+                    default:
+                        final Object value = rows.get(position[0])[(Integer) args[0]];
+                        if (method.getReturnType() == String.class) {
+                            return value == null ? null : value.toString();
+                        } else if (method.getReturnType() == long.class) {
+                            return ((Number) value).longValue();
+                        } else if (method.getReturnType() == int.class) {
+                            return ((Number) value).intValue();
+                        }
+                        return ((Number) value).doubleValue();
+                }
+            }
+        };
+        return (Cursor) Proxy.newProxyInstance(Cursor.class.getClassLoader(), new Class<?>[]{Cursor.class}, handler);
+    }
+
+    private static Connection createDatabase(final int positions) throws Exception {
+        final Connection db = TestDatabase.create();
+        db.setAutoCommit(false);
+        final PreparedStatement insert = db.prepareStatement("INSERT INTO positions (latitude, longitude, altitude, accuracy,"
+                + " timestamp, bearing, speed, session_id, source) VALUES (?, ?, 50, 5, 20161017120000, 0, 0, 1, 'gps')");
+        for (int i = 1; i <= positions; i++) {
+            insert.setDouble(1, 52.0 + i * 0.001);
+            insert.setDouble(2, 13.0 + i * 0.001);
+            insert.executeUpdate();
+        }
+        db.commit();
+        db.setAutoCommit(true);
+        return db;
+    }
+}
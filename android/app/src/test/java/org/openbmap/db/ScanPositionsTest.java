@@ -0,0 +1,297 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.RadioBeacon;
+import org.openbmap.db.models.PositionRecord;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Collapses duplicate positions written by the former write path on sqlite-jdbc and checks position lookup
+ */
+public class ScanPositionsTest {
+
+    /**
+     * Begin and end position of every wifi and cell, resolved to coordinates
+     */
+    private static final String REFERENCES = "SELECT t.rowid, b.session_id, b.timestamp, b.latitude, b.longitude, b.source,"
+            + " e.session_id, e.timestamp, e.latitude, e.longitude, e.source"
+            + " FROM %s AS t JOIN positions AS b ON t.request_pos_id = b._id JOIN positions AS e ON t.last_pos_id = e._id"
+            + " ORDER BY t.rowid";
+
+    @Test
+    public void testCollapseKeepsReferences() throws Exception {
+        final Connection db = TestDatabase.create();
+        insertLegacyScans(db, 1, 300, 1);
+        insertLegacyScans(db, 2, 100, 2);
+        final List<String> wifis = readReferences(db, Schema.TBL_WIFIS);
+        final List<String> cells = readReferences(db, Schema.TBL_CELLS);
+        final List<String> overview = readReferences(db, Schema.TBL_WIFI_OVERVIEW);
+        final int fixes = count(db, "SELECT count(*) FROM (SELECT DISTINCT session_id, timestamp, latitude, longitude, source"
+                + " FROM positions WHERE source != '" + RadioBeacon.PROVIDER_USER_DEFINED + "')");
+        final int waypoints = count(db, "SELECT count(*) FROM positions WHERE source = '" + RadioBeacon.PROVIDER_USER_DEFINED + "'");
+        final int before = count(db, "SELECT count(*) FROM positions");
+
+        execute(db, ScanPositions.buildStatements());
+
+        assertEquals(fixes + waypoints, count(db, "SELECT count(*) FROM positions"));
+        assertTrue(fixes + waypoints < before / 3);
+        assertEquals(wifis, readReferences(db, Schema.TBL_WIFIS));
+        assertEquals(cells, readReferences(db, Schema.TBL_CELLS));
+        assertEquals(overview, readReferences(db, Schema.TBL_WIFI_OVERVIEW));
+
+        // running twice is a no-op
+        execute(db, ScanPositions.buildStatements());
+        assertEquals(fixes + waypoints, count(db, "SELECT count(*) FROM positions"));
+        db.close();
+    }
+
+    @Test
+    public void testFindPosition() throws Exception {
+        final Connection db = TestDatabase.create();
+        final Statement statement = db.createStatement();
+        statement.execute("INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52.5, 13.4, 20161017120000, 1, 'gps')");
+        statement.execute("INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52.5, 13.4, 20161017120000, 1, 'gps')");
+        statement.execute("INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52.5, 13.4, 20161017120000, 1, NULL)");
+        statement.execute("INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52.5, 13.4, 20161017120000, 1, '"
+                + RadioBeacon.PROVIDER_USER_DEFINED + "')");
+        statement.close();
+
+        assertEquals(1, find(db, 1, 20161017120000L, 52.5, 13.4, "gps"));
+        assertEquals(3, find(db, 1, 20161017120000L, 52.5, 13.4, null));
+        assertEquals(-1, find(db, 2, 20161017120000L, 52.5, 13.4, "gps"));
+        assertEquals(-1, find(db, 1, 20161017120001L, 52.5, 13.4, "gps"));
+        assertEquals(-1, find(db, 1, 20161017120000L, 52.5, 13.41, "gps"));
+        // waypoints are never shared
+        assertEquals(-1, find(db, 1, 20161017120000L, 52.5, 13.4, RadioBeacon.PROVIDER_USER_DEFINED));
+        db.close();
+    }
+
+    @Test
+    public void testIsSameFix() {
+        final PositionRecord a = position(52.5, 13.4, 20161017120000L, "gps");
+        assertTrue(ScanPositions.isSameFix(a, position(52.5, 13.4, 20161017120000L, "gps")));
+        assertFalse(ScanPositions.isSameFix(a, position(52.5, 13.4, 20161017120001L, "gps")));
+        assertFalse(ScanPositions.isSameFix(a, position(52.5, 13.5, 20161017120000L, "gps")));
+        assertFalse(ScanPositions.isSameFix(a, position(52.5, 13.4, 20161017120000L, "network")));
+        assertFalse(ScanPositions.isSameFix(a, null));
+        assertTrue(ScanPositions.isSameFix(position(1, 2, 3, null), position(1, 2, 3, null)));
+    }
+
+    /**
+     * Compares database size and export joins before and after collapsing duplicates
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkCollapse() throws Exception {
+        final Connection db = TestDatabase.create();
+        insertLegacyScans(db, 1, 5000, 5);
+        final int before = count(db, "SELECT count(*) FROM positions");
+        final long sizeBefore = size(db);
+        final long joinBefore = timeJoins(db);
+
+        long start = System.nanoTime();
+        execute(db, ScanPositions.buildStatements());
+        final long collapseNanos = System.nanoTime() - start;
+        final int after = count(db, "SELECT count(*) FROM positions");
+        final long sizeAfter = size(db);
+        final long joinAfter = timeJoins(db);
+
+        System.out.println(String.format(Locale.US, "%d -> %d positions (collapsed in %d ms), database %d -> %d kB,"
+                        + " export joins %.1f -> %.1f ms",
+                before, after, collapseNanos / 1000000, sizeBefore / 1024, sizeAfter / 1024, joinBefore / 1.0E6, joinAfter / 1.0E6));
+        db.close();
+    }
+
+    /**
+     * Writes scans like the former write path: wifi scan with begin and end row, cell scan with two rows
+     * of the same fix, trackpoint of the same fix and a few duplicate waypoints
+     */
+    private static void insertLegacyScans(final Connection db, final int session, final int fixes, final long seed) throws Exception {
+        db.setAutoCommit(false);
+        final Random random = new Random(seed);
+        final PreparedStatement position = db.prepareStatement(ScanWriter.SQL_INSERT_POSITION, Statement.RETURN_GENERATED_KEYS);
+        final PreparedStatement wifi = db.prepareStatement(ScanWriter.SQL_INSERT_WIFI, Statement.RETURN_GENERATED_KEYS);
+        final PreparedStatement cell = db.prepareStatement("INSERT INTO cells (cid, dbm, timestamp, request_pos_id, last_pos_id,"
+                + " session_id) VALUES (?, ?, ?, ?, ?, ?)");
+        final PreparedStatement overview = db.prepareStatement("INSERT OR IGNORE INTO wifi_overview (session_id, bssid, md5ssid,"
+                + " wifi_id, level, request_pos_id, last_pos_id) VALUES (?, ?, '', ?, ?, ?, ?)");
+
+        double lat = 52.0;
+        double lon = 13.0;
+        for (int fix = 0; fix < fixes; fix++) {
+            final long timestamp = 20161017120000L + fix;
+            final long next = timestamp + (random.nextInt(4) == 0 ? 1 : 0);
+            final double nextLat = next == timestamp ? lat : lat + 0.0001;
+
+            // wifi scan: begin and end position, end often equal to begin
+            final long begin = insertPosition(position, session, timestamp, lat, lon, "gps");
+            final long end = insertPosition(position, session, next, nextLat, lon, "gps");
+            for (int i = 0; i < 20; i++) {
+                final String bssid = String.format(Locale.US, "00:11:22:33:%02X:%02X", random.nextInt(16), random.nextInt(16));
+                final int level = -40 - random.nextInt(60);
+                wifi.setString(1, bssid);
+                wifi.setString(2, "ssid");
+                wifi.setString(3, "");
+                wifi.setString(4, "[ESS]");
+                wifi.setInt(5, 2412);
+                wifi.setInt(6, level);
+                wifi.setLong(7, timestamp);
+                wifi.setLong(8, begin);
+                wifi.setLong(9, end);
+                wifi.setInt(10, session);
+                wifi.setInt(11, 0);
+                wifi.executeUpdate();
+                final ResultSet keys = wifi.getGeneratedKeys();
+                keys.next();
+                final long wifiId = keys.getLong(1);
+                keys.close();
+
+                overview.setInt(1, session);
+                overview.setString(2, bssid);
+                overview.setLong(3, wifiId);
+                overview.setInt(4, level);
+                overview.setLong(5, begin);
+                overview.setLong(6, end);
+                overview.executeUpdate();
+            }
+
+            // cell scan: same fix as begin and end position
+            final long cellBegin = insertPosition(position, session, timestamp, lat, lon, "gps");
+            final long cellEnd = insertPosition(position, session, timestamp, lat, lon, "gps");
+            for (int i = 0; i < 3; i++) {
+                cell.setInt(1, random.nextInt(100));
+                cell.setInt(2, -60 - random.nextInt(50));
+                cell.setLong(3, timestamp);
+                cell.setLong(4, cellBegin);
+                cell.setLong(5, cellEnd);
+                cell.setInt(6, session);
+                cell.executeUpdate();
+            }
+
+            // gpx trackpoint
+            insertPosition(position, session, timestamp, lat, lon, "gps");
+
+            if (fix % 50 == 0) {
+                insertPosition(position, session, timestamp, lat, lon, RadioBeacon.PROVIDER_USER_DEFINED);
+                insertPosition(position, session, timestamp, lat, lon, RadioBeacon.PROVIDER_USER_DEFINED);
+            }
+            lat = nextLat;
+            lon += 0.0001;
+        }
+        db.commit();
+        db.setAutoCommit(true);
+        position.close();
+        wifi.close();
+        cell.close();
+        overview.close();
+    }
+
+    private static long insertPosition(final PreparedStatement statement, final int session, final long timestamp,
+                                       final double lat, final double lon, final String source) throws Exception {
+        statement.setDouble(1, lat);
+        statement.setDouble(2, lon);
+        statement.setDouble(3, 35.0);
+        statement.setLong(4, timestamp);
+        statement.setDouble(5, 5.0);
+        statement.setDouble(6, 0.0);
+        statement.setDouble(7, 10.0);
+        statement.setInt(8, session);
+        statement.setString(9, source);
+        statement.executeUpdate();
+        final ResultSet keys = statement.getGeneratedKeys();
+        keys.next();
+        final long id = keys.getLong(1);
+        keys.close();
+        return id;
+    }
+
+    private static long find(final Connection db, final int session, final long timestamp, final double lat, final double lon,
+                             final String source) throws Exception {
+        final PreparedStatement statement = db.prepareStatement(ScanPositions.SQL_FIND);
+        statement.setInt(1, session);
+        statement.setLong(2, timestamp);
+        statement.setDouble(3, lat);
+        statement.setDouble(4, lon);
+        statement.setString(5, source);
+        final ResultSet rs = statement.executeQuery();
+        rs.next();
+        final long id = rs.getLong(1);
+        rs.close();
+        statement.close();
+        return id;
+    }
+
+    private static PositionRecord position(final double lat, final double lon, final long timestamp, final String source) {
+        final PositionRecord position = new PositionRecord();
+        position.setLatitude(lat);
+        position.setLongitude(lon);
+        position.setTimestampByOpenbmap(timestamp);
+        position.setSession(1);
+        position.setSource(source);
+        return position;
+    }
+
+    private static List<String> readReferences(final Connection db, final String table) throws Exception {
+        final List<String> rows = new ArrayList<>();
+        final ResultSet rs = db.createStatement().executeQuery(String.format(REFERENCES, table));
+        while (rs.next()) {
+            final StringBuilder row = new StringBuilder();
+            for (int i = 1; i <= 11; i++) {
+                row.append(rs.getString(i)).append('/');
+            }
+            rows.add(row.toString());
+        }
+        rs.close();
+        return rows;
+    }
+
+    /**
+     * Wifi and cell export joins (see WifiSerializer, CellSerializer)
+     */
+    private static long timeJoins(final Connection db) throws Exception {
+        final long start = System.nanoTime();
+        for (String table : new String[]{Schema.TBL_WIFIS, Schema.TBL_CELLS}) {
+            final ResultSet rs = db.createStatement().executeQuery(String.format(REFERENCES, table));
+            while (rs.next()) {
+                // read all
+            }
+            rs.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long size(final Connection db) throws Exception {
+        db.createStatement().execute("VACUUM");
+        return count(db, "PRAGMA page_count") * (long) count(db, "PRAGMA page_size");
+    }
+
+    private static int count(final Connection db, final String sql) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery(sql);
+        rs.next();
+        final int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+
+    private static void execute(final Connection db, final String[] statements) throws Exception {
+        final Statement statement = db.createStatement();
+        for (String sql : statements) {
+            statement.execute(sql);
+        }
+        statement.close();
+    }
+}
@@ -0,0 +1,303 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.openbmap.db.models.CellRecord;
+import org.openbmap.db.models.PositionRecord;
+import org.openbmap.db.models.WifiRecord;
+import org.openbmap.db.models.WifiRecord.CatalogStatus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs ScanWriter's statements with its parameter binding on sqlite-jdbc against the application schema
+ */
+public class ScanWriterTest {
+
+    private static final long TIMESTAMP = 20161017120000L;
+
+    /**
+     * Binds ScanWriter's parameters to a jdbc statement
+     */
+    private static final class JdbcBinder implements ScanWriter.Binder {
+        private final PreparedStatement mStatement;
+
+        JdbcBinder(final Connection db, final String sql) throws SQLException {
+            mStatement = db.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        }
+
+        @Override
+        public void bindLong(final int index, final long value) {
+            try {
+                mStatement.setLong(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindDouble(final int index, final double value) {
+            try {
+                mStatement.setDouble(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindString(final int index, final String value) {
+            try {
+                mStatement.setString(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindNull(final int index) {
+            try {
+                mStatement.setNull(index, Types.NULL);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return row id of inserted row or -1 if no row has been inserted, like SQLiteStatement.executeInsert()
+         */
+        long executeInsert() throws SQLException {
+            if (mStatement.executeUpdate() == 0) {
+                return -1;
+            }
+            final ResultSet keys = mStatement.getGeneratedKeys();
+            keys.next();
+            final long id = keys.getLong(1);
+            keys.close();
+            return id;
+        }
+
+        int executeUpdateDelete() throws SQLException {
+            return mStatement.executeUpdate();
+        }
+
+        long simpleQueryForLong() throws SQLException {
+            final ResultSet rs = mStatement.executeQuery();
+            rs.next();
+            final long value = rs.getLong(1);
+            rs.close();
+            return value;
+        }
+    }
+
+    /**
+     * Same steps as ScanWriter, without transaction handling and session statistics
+     */
+    private static final class Writer {
+        private final JdbcBinder mFindPosition;
+        private final JdbcBinder mInsertPosition;
+        private final JdbcBinder mInsertWifi;
+        private final JdbcBinder mInsertCell;
+        private final JdbcBinder mInsertOverview;
+        private final JdbcBinder mUpdateOverviewSeen;
+        private final JdbcBinder mUpdateOverviewStrongest;
+
+        Writer(final Connection db) throws SQLException {
+            mFindPosition = new JdbcBinder(db, ScanPositions.SQL_FIND);
+            mInsertPosition = new JdbcBinder(db, ScanWriter.SQL_INSERT_POSITION);
+            mInsertWifi = new JdbcBinder(db, ScanWriter.SQL_INSERT_WIFI);
+            mInsertCell = new JdbcBinder(db, ScanWriter.SQL_INSERT_CELL);
+            mInsertOverview = new JdbcBinder(db, WifiOverview.SQL_INSERT);
+            mUpdateOverviewSeen = new JdbcBinder(db, WifiOverview.SQL_UPDATE_SEEN);
+            mUpdateOverviewStrongest = new JdbcBinder(db, WifiOverview.SQL_UPDATE_STRONGEST);
+        }
+
+        long position(final PositionRecord position) throws SQLException {
+            ScanWriter.bindFindPosition(mFindPosition, position);
+            final long id = mFindPosition.simpleQueryForLong();
+            if (id != -1) {
+                return id;
+            }
+            ScanWriter.bindPosition(mInsertPosition, position);
+            return mInsertPosition.executeInsert();
+        }
+
+        long wifi(final WifiRecord wifi, final PositionRecord begin, final PositionRecord end) throws SQLException {
+            final long beginId = position(begin);
+            final long endId = position(end);
+            ScanWriter.bindWifi(mInsertWifi, wifi, beginId, endId);
+            final long wifiId = mInsertWifi.executeInsert();
+
+            ScanWriter.bindOverviewInsert(mInsertOverview, wifi, wifiId, begin, beginId, endId);
+            if (mInsertOverview.executeInsert() == -1) {
+                ScanWriter.bindOverviewSeen(mUpdateOverviewSeen, wifi);
+                mUpdateOverviewSeen.executeUpdateDelete();
+                ScanWriter.bindOverviewStrongest(mUpdateOverviewStrongest, wifi, wifiId, begin, beginId, endId);
+                mUpdateOverviewStrongest.executeUpdateDelete();
+            }
+            return wifiId;
+        }
+
+        long cell(final CellRecord cell, final PositionRecord begin, final PositionRecord end) throws SQLException {
+            ScanWriter.bindCell(mInsertCell, cell, position(begin), position(end));
+            return mInsertCell.executeInsert();
+        }
+    }
+
+    @Test
+    public void testWifiScan() throws Exception {
+        final Connection db = TestDatabase.create();
+        final Writer writer = new Writer(db);
+        final PositionRecord begin = position(52.5, 13.4, TIMESTAMP);
+        final PositionRecord end = position(52.5, 13.4, TIMESTAMP);
+        final WifiRecord hidden = wifi("00:11:22:33:44:55", "", -70, CatalogStatus.NEW);
+        hidden.setCapabilities(null);
+        writer.wifi(wifi("00:11:22:33:44:66", "ssid", -60, CatalogStatus.OPENBMAP), begin, end);
+        final long id = writer.wifi(hidden, begin, end);
+
+        // begin and end are the same fix, so both wifis share one position row
+        assertEquals(1, count(db, "SELECT count(*) FROM " + Schema.TBL_POSITIONS));
+        final ResultSet rs = db.createStatement().executeQuery("SELECT w.bssid, w.ssid, w.md5ssid, w.capabilities, w.frequency,"
+                + " w.level, w.timestamp, w.session_id, w.is_known, b.latitude, b.longitude, b.altitude, b.accuracy, b.timestamp,"
+                + " b.session_id, b.source, w.request_pos_id = w.last_pos_id"
+                + " FROM wifis AS w JOIN positions AS b ON w.request_pos_id = b._id WHERE w._id = " + id);
+        rs.next();
+        assertEquals("00:11:22:33:44:55", rs.getString(1));
+        assertEquals("", rs.getString(2));
+        assertEquals(hidden.getMd5Ssid(), rs.getString(3));
+        assertNull(rs.getString(4));
+        assertEquals(2412, rs.getInt(5));
+        assertEquals(-70, rs.getInt(6));
+        assertEquals(TIMESTAMP, rs.getLong(7));
+        assertEquals(1, rs.getInt(8));
+        assertEquals(CatalogStatus.NEW.ordinal(), rs.getInt(9));
+        assertEquals(52.5, rs.getDouble(10), 0.0);
+        assertEquals(13.4, rs.getDouble(11), 0.0);
+        assertEquals(35.0, rs.getDouble(12), 0.0);
+        assertEquals(5.0, rs.getDouble(13), 0.0);
+        assertEquals(TIMESTAMP, rs.getLong(14));
+        assertEquals(1, rs.getInt(15));
+        assertEquals("gps", rs.getString(16));
+        assertEquals(1, rs.getInt(17));
+        rs.close();
+        db.close();
+    }
+
+    @Test
+    public void testOverviewKeepsStrongestMeasurement() throws Exception {
+        final Connection db = TestDatabase.create();
+        final Writer writer = new Writer(db);
+        writer.wifi(wifi("00:11:22:33:44:55", "ssid", -80, CatalogStatus.LOCAL), position(52.0, 13.0, TIMESTAMP),
+                position(52.0, 13.0, TIMESTAMP));
+        final long strongest = writer.wifi(wifi("00:11:22:33:44:55", "ssid", -60, CatalogStatus.NEW),
+                position(52.1, 13.1, TIMESTAMP + 1), position(52.1, 13.1, TIMESTAMP + 1));
+        writer.wifi(wifi("00:11:22:33:44:55", "ssid", -70, CatalogStatus.LOCAL), position(52.2, 13.2, TIMESTAMP + 2),
+                position(52.2, 13.2, TIMESTAMP + 2));
+
+        final String query = "SELECT wifi_id, level, latitude, longitude, is_known FROM " + Schema.TBL_WIFI_OVERVIEW;
+        final String incremental = readRow(db, query);
+        assertEquals(strongest + "/-60/52.1/13.1/" + CatalogStatus.NEW.ordinal() + "/", incremental);
+
+        // same result as rebuilding overview from wifis
+        final Statement statement = db.createStatement();
+        statement.execute("DELETE FROM " + Schema.TBL_WIFI_OVERVIEW);
+        statement.execute(WifiOverview.buildStatement(null));
+        statement.close();
+        assertEquals(incremental, readRow(db, query));
+        db.close();
+    }
+
+    @Test
+    public void testCellDefaults() throws Exception {
+        final Connection db = TestDatabase.create();
+        final Writer writer = new Writer(db);
+        final PositionRecord position = position(52.5, 13.4, TIMESTAMP);
+
+        final CellRecord gsm = new CellRecord(1);
+        gsm.setIsServing(true);
+        gsm.setLogicalCellId(12345);
+        gsm.setActualCid(345);
+        gsm.setArea(678);
+        gsm.setMcc("262");
+        gsm.setMnc("01");
+        gsm.setStrengthdBm(-85);
+        gsm.setStrengthAsu(14);
+        gsm.setOpenBmapTimestamp(TIMESTAMP);
+        final long gsmId = writer.cell(gsm, position, position);
+
+        final CellRecord cdma = new CellRecord(1);
+        cdma.setIsCdma(true);
+        cdma.setIsNeighbor(true);
+        cdma.setLogicalCellId(12345);
+        cdma.setBaseId("17");
+        cdma.setNetworkId("18");
+        cdma.setSystemId("19");
+        cdma.setStrengthdBm(-95);
+        cdma.setStrengthAsu(3);
+        cdma.setOpenBmapTimestamp(TIMESTAMP);
+        final long cdmaId = writer.cell(cdma, position, position);
+
+        final String query = "SELECT " + Schema.COL_IS_CDMA + ", " + Schema.COL_IS_SERVING + ", " + Schema.COL_IS_NEIGHBOR + ", "
+                + Schema.COL_LOGICAL_CELLID + ", " + Schema.COL_ACTUAL_CELLID + ", " + Schema.COL_AREA + ", " + Schema.COL_MCC + ", "
+                + Schema.COL_STRENGTHDBM + ", " + Schema.COL_STRENGTHASU + ", " + Schema.COL_CDMA_BASEID + ", "
+                + Schema.COL_CDMA_NETWORKID + ", " + Schema.COL_CDMA_SYSTEMID + " FROM " + Schema.TBL_CELLS + " WHERE _id = ";
+        assertEquals("0/1/0/12345/345/678/262/-85/14/-1/-1/-1/", readRow(db, query + gsmId));
+        // GSM fields are reset for CDMA cells
+        assertEquals("1/0/1/-1/-1/-1/" + cdma.getMcc() + "/-95/0/17/18/19/", readRow(db, query + cdmaId));
+        assertEquals(1, count(db, "SELECT count(*) FROM " + Schema.TBL_POSITIONS));
+        db.close();
+    }
+
+    private static PositionRecord position(final double lat, final double lon, final long timestamp) {
+        final PositionRecord position = new PositionRecord();
+        position.setLatitude(lat);
+        position.setLongitude(lon);
+        position.setAltitude(35.0);
+        position.setAccuracy(5.0);
+        position.setTimestampByOpenbmap(timestamp);
+        position.setSession(1);
+        position.setSource("gps");
+        return position;
+    }
+
+    private static WifiRecord wifi(final String bssid, final String ssid, final int level, final CatalogStatus status) {
+        final WifiRecord wifi = new WifiRecord();
+        wifi.setBssid(bssid);
+        wifi.setSsid(ssid);
+        wifi.setCapabilities("[WPA2-PSK-CCMP][ESS]");
+        wifi.setFrequency(2412);
+        wifi.setLevel(level);
+        wifi.setOpenBmapTimestamp(TIMESTAMP);
+        wifi.setSessionId(1);
+        wifi.setCatalogStatus(status);
+        return wifi;
+    }
+
+    /**
+     * Single result row, columns separated by '/'
+     */
+    private static String readRow(final Connection db, final String sql) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery(sql);
+        rs.next();
+        final StringBuilder row = new StringBuilder();
+        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+            row.append(rs.getString(i)).append('/');
+        }
+        rs.close();
+        return row.toString();
+    }
+
+    private static int count(final Connection db, final String sql) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery(sql);
+        rs.next();
+        final int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+}
@@ -0,0 +1,251 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.RadioBeacon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks incremental session counters against the former overview queries on sqlite-jdbc
+ */
+public class SessionStatsTest {
+
+    private static final String[] MD5_SSIDS = {"D41D8CD98F00B204E9800998ECF8427E", "0CC175B9C0F1B6A831C399E269772661", null};
+
+    /**
+     * Former wifi overview query, as used by countWifis and countNewWifis
+     */
+    private static final String OVERVIEW_WIFIS = "SELECT w.rowid FROM wifis AS w JOIN positions AS b ON request_pos_id = b._id"
+            + " WHERE w.session_id = ? %s GROUP BY w.bssid, w.md5ssid";
+
+    /**
+     * Former cell overview query, as used by countCells
+     */
+    private static final String OVERVIEW_CELLS = "SELECT c.rowid, MAX(dbm) FROM cells AS c JOIN positions AS b ON request_pos_id = b._id"
+            + " WHERE c.session_id = ? AND cid > ? GROUP BY c.cid, psc, systemid, networkid, baseid, is_serving";
+
+    @Test
+    public void testIncrementalCountsMatchOverview() throws Exception {
+        final Connection db = TestDatabase.create();
+        final SessionStats stats = new SessionStats();
+        stats.reset(1);
+        insertScans(db, stats, 1, 5000, 1);
+        insertScans(db, null, 2, 1000, 2);
+
+        assertEquals(countRows(db, String.format(OVERVIEW_WIFIS, ""), 1), stats.getWifis(1));
+        assertEquals(countRows(db, String.format(OVERVIEW_WIFIS, "AND is_known = 0"), 1), stats.getNewWifis(1));
+        assertEquals(countRows(db, OVERVIEW_CELLS, 1), stats.getCells(1));
+        assertEquals(SessionStats.UNKNOWN, stats.getWifis(2));
+
+        stats.addWaypoint(1);
+        stats.addWaypoint(2);
+        assertEquals(1, stats.getWaypoints(1));
+        db.close();
+    }
+
+    @Test
+    public void testReloadMatchesIncremental() throws Exception {
+        final Connection db = TestDatabase.create();
+        final SessionStats incremental = new SessionStats();
+        incremental.reset(1);
+        insertScans(db, incremental, 1, 3000, 3);
+
+        final Statement ddl = db.createStatement();
+        ddl.execute(WifiOverview.buildStatement(null));
+        ddl.close();
+
+        // same queries as SessionStats.select
+        final SessionStats loaded = new SessionStats();
+        loaded.reset(1);
+        final PreparedStatement wifis = db.prepareStatement(SessionStats.SQL_WIFI_KEYS);
+        wifis.setInt(1, 1);
+        ResultSet rs = wifis.executeQuery();
+        while (rs.next()) {
+            loaded.loadWifi(rs.getString(1), rs.getInt(2) == 0);
+        }
+        rs.close();
+        final PreparedStatement cells = db.prepareStatement(SessionStats.SQL_CELL_KEYS);
+        cells.setInt(1, 1);
+        rs = cells.executeQuery();
+        while (rs.next()) {
+            loaded.loadCell(rs.getString(1));
+        }
+        rs.close();
+
+        assertEquals(incremental.getWifis(1), loaded.getWifis(1));
+        assertEquals(incremental.getNewWifis(1), loaded.getNewWifis(1));
+        assertEquals(incremental.getCells(1), loaded.getCells(1));
+
+        // keys built in java match keys built in sql, so known wifis and cells aren't counted twice
+        insertScans(db, loaded, 1, 3000, 3);
+        assertEquals(incremental.getWifis(1), loaded.getWifis(1));
+        assertEquals(incremental.getNewWifis(1), loaded.getNewWifis(1));
+        assertEquals(incremental.getCells(1), loaded.getCells(1));
+        db.close();
+    }
+
+    @Test
+    public void testRecountAll() throws Exception {
+        final Connection db = TestDatabase.create();
+        final SessionStats stats = new SessionStats();
+        stats.reset(1);
+        insertScans(db, stats, 1, 2000, 4);
+        final Statement statement = db.createStatement();
+        statement.execute("INSERT INTO sessions (_id) VALUES (1)");
+        statement.execute("INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52, 13, 0, 1, '"
+                + RadioBeacon.PROVIDER_USER_DEFINED + "')");
+        statement.execute(SessionStats.SQL_RECOUNT_ALL);
+
+        final ResultSet rs = statement.executeQuery("SELECT no_wifis, no_new_wifis, no_cells, no_waypoints FROM sessions WHERE _id = 1");
+        rs.next();
+        assertEquals(stats.getWifis(1), rs.getInt(1));
+        assertEquals(stats.getNewWifis(1), rs.getInt(2));
+        assertEquals(stats.getCells(1), rs.getInt(3));
+        assertEquals(1, rs.getInt(4));
+        rs.close();
+        statement.close();
+        db.close();
+    }
+
+    @Test
+    public void testInvalidate() {
+        final SessionStats stats = new SessionStats();
+        stats.reset(1);
+        stats.addWifi("00:11:22:33:44:55", MD5_SSIDS[0], 0);
+        stats.addWifi("00:11:22:33:44:55", MD5_SSIDS[0], 1);
+        stats.addWifi("00:11:22:33:44:55", MD5_SSIDS[1], 1);
+        stats.addCell(-1, 0, true);
+        assertEquals(2, stats.getWifis(1));
+        assertEquals(1, stats.getNewWifis(1));
+        assertEquals(0, stats.getCells(1));
+
+        stats.invalidate();
+        assertEquals(SessionStats.UNKNOWN, stats.getWifis(1));
+        assertEquals(SessionStats.UNKNOWN, stats.getWaypoints(1));
+    }
+
+    /**
+     * Compares former overview queries (status bar update on each new wifi) with in-memory counters
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkCounts() throws Exception {
+        final int queries = 20;
+        for (int size : new int[]{1000, 10000, 50000}) {
+            final Connection db = TestDatabase.create();
+            final SessionStats stats = new SessionStats();
+            stats.reset(1);
+            insertScans(db, stats, 1, size, 5);
+
+            long start = System.nanoTime();
+            int overview = 0;
+            for (int i = 0; i < queries; i++) {
+                overview = countRows(db, String.format(OVERVIEW_WIFIS, ""), 1)
+                        + countRows(db, String.format(OVERVIEW_WIFIS, "AND is_known = 0"), 1);
+            }
+            final long overviewNanos = (System.nanoTime() - start) / queries;
+
+            start = System.nanoTime();
+            int counters = 0;
+            for (int i = 0; i < queries; i++) {
+                counters = stats.getWifis(1) + stats.getNewWifis(1);
+            }
+            final long counterNanos = (System.nanoTime() - start) / queries;
+            assertEquals(overview, counters);
+
+            System.out.println(String.format(Locale.US, "%d wifi rows: overview queries %.2f ms, session counters %.4f ms",
+                    size, overviewNanos / 1.0E6, counterNanos / 1.0E6));
+            db.close();
+        }
+    }
+
+    /**
+     * Inserts wifis and cells with plenty of duplicates, counting them in stats (if not null)
+     */
+    private static void insertScans(final Connection db, final SessionStats stats, final int session, final int rows, final long seed)
+            throws Exception {
+        db.setAutoCommit(false);
+        final Random random = new Random(seed);
+        final PreparedStatement position = db.prepareStatement(
+                "INSERT INTO positions (latitude, longitude, timestamp, session_id, source) VALUES (52, 13, 0, ?, 'gps')",
+                Statement.RETURN_GENERATED_KEYS);
+        final PreparedStatement wifi = db.prepareStatement(
+                "INSERT INTO wifis (bssid, md5ssid, level, timestamp, request_pos_id, last_pos_id, session_id, is_known)"
+                        + " VALUES (?, ?, ?, 0, ?, ?, ?, ?)");
+        final PreparedStatement cell = db.prepareStatement(
+                "INSERT INTO cells (cid, psc, is_serving, dbm, baseid, networkid, systemid, timestamp, request_pos_id, last_pos_id, session_id)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?)");
+
+        position.setInt(1, session);
+        position.executeUpdate();
+        final ResultSet keys = position.getGeneratedKeys();
+        keys.next();
+        final long positionId = keys.getLong(1);
+        keys.close();
+
+        for (int i = 0; i < rows; i++) {
+            final String bssid = String.format(Locale.US, "00:11:22:%02X:%02X:%02X", random.nextInt(4), random.nextInt(256), random.nextInt(8));
+            final String md5 = MD5_SSIDS[random.nextInt(MD5_SSIDS.length)];
+            final int status = random.nextInt(3);
+            wifi.setString(1, bssid);
+            wifi.setString(2, md5);
+            wifi.setInt(3, -50 - random.nextInt(40));
+            wifi.setLong(4, positionId);
+            wifi.setLong(5, positionId);
+            wifi.setInt(6, session);
+            wifi.setInt(7, status);
+            wifi.executeUpdate();
+
+            final boolean cdma = random.nextInt(10) == 0;
+            final int cellId = cdma ? -1 : random.nextInt(300);
+            final int psc = random.nextInt(4);
+            final boolean serving = random.nextBoolean();
+            cell.setInt(1, cellId);
+            cell.setInt(2, psc);
+            cell.setInt(3, serving ? 1 : 0);
+            cell.setInt(4, -60 - random.nextInt(50));
+            cell.setString(5, cdma ? String.valueOf(random.nextInt(50)) : "-1");
+            cell.setString(6, cdma ? "7" : "-1");
+            cell.setString(7, cdma ? "8" : "-1");
+            cell.setLong(8, positionId);
+            cell.setLong(9, positionId);
+            cell.setInt(10, session);
+            cell.executeUpdate();
+
+            if (stats != null) {
+                stats.addWifi(bssid, md5, status);
+                stats.addCell(cellId, psc, serving);
+            }
+        }
+        db.commit();
+        db.setAutoCommit(true);
+        position.close();
+        wifi.close();
+        cell.close();
+    }
+
+    private static int countRows(final Connection db, final String sql, final int session) throws Exception {
+        final PreparedStatement statement = db.prepareStatement(sql);
+        statement.setInt(1, session);
+        if (sql.contains("cid > ?")) {
+            statement.setInt(2, -1);
+        }
+        final ResultSet rs = statement.executeQuery();
+        int count = 0;
+        while (rs.next()) {
+            count++;
+        }
+        rs.close();
+        statement.close();
+        return count;
+    }
+}
@@ -0,0 +1,83 @@
+package org.openbmap.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+/**
+ * sqlite-jdbc databases for unit tests, built from production statements: application database
+ * from {@link DatabaseHelper#SQL_CREATE_SCHEMA}, catalog index from {@link CatalogTiles#buildStatements()}
+ * and {@link CatalogDensity#buildStatements()}
+ */
+public final class TestDatabase {
+
+    /**
+     * Catalog table as contained in downloaded wifi catalogs (the app never creates it)
+     */
+    static final String CREATE_CATALOG = "CREATE TABLE " + CatalogTiles.TBL_CATALOG
+            + " (bssid TEXT PRIMARY KEY, latitude REAL, longitude REAL, source INTEGER)";
+
+    private TestDatabase() {
+    }
+
+    /**
+     * Creates in-memory application database
+     */
+    public static Connection create() throws Exception {
+        return create(open("jdbc:sqlite::memory:"), DatabaseHelper.SQL_CREATE_SCHEMA);
+    }
+
+    /**
+     * Creates application database in a temporary file, for tests with several connections
+     * @param journalMode journal mode, e.g. DELETE or WAL
+     */
+    public static File createFile(final String journalMode) throws Exception {
+        final File file = File.createTempFile("radiobeacon", ".sqlite");
+        file.deleteOnExit();
+        new File(file.getAbsolutePath() + "-wal").deleteOnExit();
+        new File(file.getAbsolutePath() + "-shm").deleteOnExit();
+        final Connection db = open("jdbc:sqlite:" + file.getAbsolutePath());
+        final Statement statement = db.createStatement();
+        statement.execute("PRAGMA journal_mode = " + journalMode);
+        statement.close();
+        create(db, DatabaseHelper.SQL_CREATE_SCHEMA).close();
+        return file;
+    }
+
+    /**
+     * Creates in-memory wifi catalog without tile index
+     */
+    public static Connection createCatalog() throws Exception {
+        return create(open("jdbc:sqlite::memory:"), new String[]{CREATE_CATALOG});
+    }
+
+    /**
+     * Adds tile index to catalog, like {@link CatalogTiles#ensureIndex}
+     */
+    public static void buildTileIndex(final Connection catalog) throws Exception {
+        create(catalog, CatalogTiles.buildStatements());
+    }
+
+    /**
+     * Adds tile index and density pyramid to catalog, like {@link CatalogTiles#ensureIndex(String)}
+     */
+    public static void buildPyramid(final Connection catalog) throws Exception {
+        buildTileIndex(catalog);
+        create(catalog, CatalogDensity.buildStatements());
+    }
+
+    private static Connection open(final String url) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        return DriverManager.getConnection(url);
+    }
+
+    private static Connection create(final Connection db, final String[] statements) throws Exception {
+        final Statement ddl = db.createStatement();
+        for (final String sql : statements) {
+            ddl.execute(sql);
+        }
+        ddl.close();
+        return db;
+    }
+}
@@ -0,0 +1,281 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Maintains the wifi overview with ScanWriter's statements on sqlite-jdbc and compares it against
+ * the former GROUP BY overview query and a rebuild from scratch
+ */
+public class WifiOverviewTest {
+
+    private static final String[] MD5_SSIDS = {"D41D8CD98F00B204E9800998ECF8427E", "0CC175B9C0F1B6A831C399E269772661", null};
+
+    /**
+     * Former overview query of ContentProvider (URI_CODE_WIFI_OVERVIEW)
+     */
+    private static final String FORMER_OVERVIEW = "SELECT w.rowid AS _id, w.bssid, w.md5ssid, w.ssid, MAX(level), w.capabilities,"
+            + " w.frequency, w.timestamp, w.request_pos_id, w.last_pos_id, w.is_known"
+            + " FROM wifis AS w JOIN positions AS b ON request_pos_id = b._id WHERE w.session_id = ?"
+            + " GROUP BY w.bssid, w.md5ssid ORDER BY w.timestamp";
+
+    private static final String OVERVIEW = "SELECT wifi_id AS _id, bssid, md5ssid, ssid, level, capabilities, frequency, timestamp,"
+            + " request_pos_id, last_pos_id, is_known, latitude, longitude FROM wifi_overview WHERE session_id = ? ORDER BY timestamp";
+
+    @Test
+    public void testIncrementalMatchesFormerOverview() throws Exception {
+        final Connection db = TestDatabase.create();
+        final Writer writer = new Writer(db);
+        writer.insert(1, 5000, 1);
+        writer.insert(2, 1000, 2);
+
+        final Map<String, int[]> former = new HashMap<>();
+        final PreparedStatement query = db.prepareStatement(FORMER_OVERVIEW);
+        query.setInt(1, 1);
+        ResultSet rs = query.executeQuery();
+        while (rs.next()) {
+            former.put(key(rs.getString(2), rs.getString(3)), new int[]{rs.getInt(5), minStatus(db, 1, rs.getString(2), rs.getString(3))});
+        }
+        rs.close();
+
+        final PreparedStatement overview = db.prepareStatement(OVERVIEW);
+        overview.setInt(1, 1);
+        rs = overview.executeQuery();
+        int rows = 0;
+        while (rs.next()) {
+            final int[] expected = former.get(key(rs.getString(2), rs.getString(3)));
+            assertEquals(expected[0], rs.getInt(5));
+            assertEquals(expected[1], rs.getInt(11));
+            // referenced measurement is the strongest one
+            assertEquals(expected[0], levelOf(db, rs.getLong(1)));
+            rows++;
+        }
+        rs.close();
+        assertEquals(former.size(), rows);
+        db.close();
+    }
+
+    @Test
+    public void testRebuildMatchesIncremental() throws Exception {
+        final Connection db = TestDatabase.create();
+        new Writer(db).insert(1, 5000, 3);
+        final Map<String, String> incremental = readOverview(db);
+
+        final Statement ddl = db.createStatement();
+        ddl.execute("DELETE FROM wifi_overview");
+        ddl.execute(WifiOverview.buildStatement(null));
+        ddl.close();
+        final Map<String, String> rebuilt = readOverview(db);
+
+        assertEquals(incremental.size(), rebuilt.size());
+        for (Map.Entry<String, String> row : incremental.entrySet()) {
+            // strongest measurement may differ on equal levels, everything else has to match
+            assertEquals(row.getValue(), rebuilt.get(row.getKey()));
+        }
+        db.close();
+    }
+
+    /**
+     * Compares former overview query against overview table: full session (wifi list) and viewport (map)
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkOverview() throws Exception {
+        final int queries = 10;
+        for (int size : new int[]{10000, 100000}) {
+            final Connection db = TestDatabase.create();
+            final Writer writer = new Writer(db);
+            long start = System.nanoTime();
+            writer.insert(1, size, 5);
+            final long insertNanos = System.nanoTime() - start;
+
+            final PreparedStatement former = db.prepareStatement(FORMER_OVERVIEW);
+            final PreparedStatement overview = db.prepareStatement(OVERVIEW);
+            final PreparedStatement formerArea = db.prepareStatement("SELECT w.rowid AS _id, MAX(level), w.session_id, w.bssid,"
+                    + " b.latitude, b.longitude FROM wifis AS w JOIN positions AS b ON request_pos_id = b._id WHERE w.session_id IN (1)"
+                    + " AND b.latitude >= 52.0 AND b.latitude <= 52.01 AND b.longitude >= 13.0 AND b.longitude <= 13.01 GROUP BY w.bssid");
+            final PreparedStatement area = db.prepareStatement("SELECT wifi_id AS _id, MAX(level), session_id, bssid, latitude, longitude"
+                    + " FROM wifi_overview WHERE session_id IN (1)"
+                    + " AND latitude >= 52.0 AND latitude <= 52.01 AND longitude >= 13.0 AND longitude <= 13.01 GROUP BY bssid");
+            former.setInt(1, 1);
+            overview.setInt(1, 1);
+
+            final long[] nanos = new long[4];
+            final int[] rows = new int[4];
+            final PreparedStatement[] statements = {former, overview, formerArea, area};
+            for (int i = 0; i < queries; i++) {
+                for (int s = 0; s < statements.length; s++) {
+                    start = System.nanoTime();
+                    rows[s] = countRows(statements[s].executeQuery());
+                    nanos[s] += System.nanoTime() - start;
+                }
+            }
+            assertEquals(rows[0], rows[1]);
+            assertTrue(rows[3] > 0);
+
+            System.out.println(String.format(Locale.US, "%d wifi rows (%d wifis, written in %d ms): session overview %.1f ms -> %.1f ms,"
+                            + " viewport %.1f ms -> %.1f ms",
+                    size, rows[1], insertNanos / 1000000, nanos[0] / 1.0E6 / queries, nanos[1] / 1.0E6 / queries,
+                    nanos[2] / 1.0E6 / queries, nanos[3] / 1.0E6 / queries));
+            db.close();
+        }
+    }
+
+    /**
+     * Inserts wifis and maintains overview with the same statements as ScanWriter
+     */
+    private static final class Writer {
+        private final Connection mDb;
+        private final SessionStats mStats = new SessionStats();
+        private final PreparedStatement mPosition;
+        private final PreparedStatement mWifi;
+        private final PreparedStatement mInsert;
+        private final PreparedStatement mUpdateSeen;
+        private final PreparedStatement mUpdateStrongest;
+
+        Writer(final Connection db) throws Exception {
+            mDb = db;
+            mPosition = db.prepareStatement("INSERT INTO positions (latitude, longitude, timestamp, session_id, source)"
+                    + " VALUES (?, ?, ?, ?, 'gps')", Statement.RETURN_GENERATED_KEYS);
+            mWifi = db.prepareStatement("INSERT INTO wifis (bssid, ssid, md5ssid, capabilities, frequency, level, timestamp,"
+                    + " request_pos_id, last_pos_id, session_id, is_known) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS);
+            mInsert = db.prepareStatement(WifiOverview.SQL_INSERT);
+            mUpdateSeen = db.prepareStatement(WifiOverview.SQL_UPDATE_SEEN);
+            mUpdateStrongest = db.prepareStatement(WifiOverview.SQL_UPDATE_STRONGEST);
+        }
+
+        void insert(final int session, final int rows, final long seed) throws Exception {
+            mDb.setAutoCommit(false);
+            mStats.reset(session);
+            final Random random = new Random(seed);
+            long positionId = 0;
+            double lat = 0;
+            double lon = 0;
+            for (int i = 0; i < rows; i++) {
+                final long timestamp = 20161017120000L + i / 20;
+                if (i % 20 == 0) {
+                    // one scan per 20 wifis
+                    lat = 52.0 + random.nextDouble() * 0.1;
+                    lon = 13.0 + random.nextDouble() * 0.1;
+                    mPosition.setDouble(1, lat);
+                    mPosition.setDouble(2, lon);
+                    mPosition.setLong(3, timestamp);
+                    mPosition.setInt(4, session);
+                    positionId = insert(mPosition);
+                }
+                final String bssid = String.format(Locale.US, "00:11:%02X:%02X:%02X:%02X", random.nextInt(4), random.nextInt(256),
+                        random.nextInt(Math.max(1, rows / 2000)), random.nextInt(4));
+                final String md5 = MD5_SSIDS[random.nextInt(MD5_SSIDS.length)];
+                final int level = -40 - random.nextInt(60);
+                final int status = random.nextInt(3);
+
+                mWifi.setString(1, bssid);
+                mWifi.setString(2, "ssid");
+                mWifi.setString(3, md5);
+                mWifi.setString(4, "[ESS]");
+                mWifi.setInt(5, 2412);
+                mWifi.setInt(6, level);
+                mWifi.setLong(7, timestamp);
+                mWifi.setLong(8, positionId);
+                mWifi.setLong(9, positionId);
+                mWifi.setInt(10, session);
+                mWifi.setInt(11, status);
+                final long wifiId = insert(mWifi);
+
+                if (mStats.addWifi(bssid, md5, status)) {
+                    final Object[] values = {session, WifiOverview.nullToEmpty(bssid), WifiOverview.nullToEmpty(md5), wifiId, level,
+                            "ssid", "[ESS]", 2412, timestamp, positionId, positionId, lat, lon, status, timestamp, timestamp};
+                    bind(mInsert, values);
+                    mInsert.executeUpdate();
+                } else {
+                    bind(mUpdateSeen, status, timestamp, timestamp, session, WifiOverview.nullToEmpty(bssid), WifiOverview.nullToEmpty(md5));
+                    mUpdateSeen.executeUpdate();
+                    bind(mUpdateStrongest, wifiId, level, "ssid", "[ESS]", 2412, timestamp, positionId, positionId, lat, lon,
+                            session, WifiOverview.nullToEmpty(bssid), WifiOverview.nullToEmpty(md5), level);
+                    mUpdateStrongest.executeUpdate();
+                }
+            }
+            mDb.commit();
+            mDb.setAutoCommit(true);
+        }
+
+        private static long insert(final PreparedStatement statement) throws Exception {
+            statement.executeUpdate();
+            final ResultSet keys = statement.getGeneratedKeys();
+            keys.next();
+            final long id = keys.getLong(1);
+            keys.close();
+            return id;
+        }
+
+        private static void bind(final PreparedStatement statement, final Object... values) throws Exception {
+            for (int i = 0; i < values.length; i++) {
+                statement.setObject(i + 1, values[i]);
+            }
+        }
+    }
+
+    private static String key(final String bssid, final String md5Ssid) {
+        return WifiOverview.nullToEmpty(bssid) + '/' + WifiOverview.nullToEmpty(md5Ssid);
+    }
+
+    /**
+     * Reads all overview rows without strongest measurement's id and position
+     */
+    private static Map<String, String> readOverview(final Connection db) throws Exception {
+        final Map<String, String> rows = new HashMap<>();
+        final ResultSet rs = db.createStatement().executeQuery(
+                "SELECT session_id, bssid, md5ssid, level, is_known, first_seen, last_seen FROM wifi_overview");
+        while (rs.next()) {
+            rows.put(rs.getInt(1) + "/" + key(rs.getString(2), rs.getString(3)),
+                    rs.getInt(4) + "/" + rs.getInt(5) + "/" + rs.getLong(6) + "/" + rs.getLong(7));
+        }
+        rs.close();
+        return rows;
+    }
+
+    private static int minStatus(final Connection db, final int session, final String bssid, final String md5Ssid) throws Exception {
+        final PreparedStatement statement = db.prepareStatement(
+                "SELECT MIN(is_known) FROM wifis WHERE session_id = ? AND bssid = ? AND md5ssid IS ?");
+        statement.setInt(1, session);
+        statement.setString(2, bssid);
+        statement.setString(3, md5Ssid);
+        final ResultSet rs = statement.executeQuery();
+        rs.next();
+        final int status = rs.getInt(1);
+        rs.close();
+        statement.close();
+        return status;
+    }
+
+    private static int levelOf(final Connection db, final long wifiId) throws Exception {
+        final ResultSet rs = db.createStatement().executeQuery("SELECT level FROM wifis WHERE _id = " + wifiId);
+        rs.next();
+        final int level = rs.getInt(1);
+        rs.close();
+        return level;
+    }
+
+    private static int countRows(final ResultSet rs) throws Exception {
+        int count = 0;
+        while (rs.next()) {
+            count++;
+        }
+        rs.close();
+        return count;
+    }
+}
@@ -0,0 +1,164 @@
+package org.openbmap.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Logger inserts while an export reads the database on sqlite-jdbc: rollback journal vs. write-ahead logging
+ * with the pragmas of {@link DatabaseHelper}
+ */
+public class WriteAheadLogTest {
+
+    private static final int ROWS = 50000;
+
+    private static final int SCANS = 20;
+
+    private static final int WIFIS_PER_SCAN = 50;
+
+    /**
+     * Reader pauses (in millis) every this many rows, like an export writing its xml file
+     */
+    private static final int READ_PAUSE_ROWS = 5000;
+
+    @Test
+    public void testCheckpointTruncatesLog() throws Exception {
+        final File file = createDatabase("WAL", 1000);
+        final Connection db = open(file, "WAL");
+        insertScans(db, 5);
+        final File wal = new File(file.getAbsolutePath() + "-wal");
+        assertTrue(wal.length() > 0);
+
+        final ResultSet rs = db.createStatement().executeQuery("PRAGMA wal_checkpoint(TRUNCATE)");
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+        rs.close();
+        assertEquals(0, wal.length());
+        db.close();
+    }
+
+    /**
+     * Max. commit latency of the logger while a long export query runs
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkWritesDuringExport() throws Exception {
+        for (String mode : new String[]{"DELETE", "WAL"}) {
+            final File file = createDatabase(mode, ROWS);
+            final Connection writer = open(file, mode);
+            final Connection reader = open(file, mode);
+
+            final CountDownLatch reading = new CountDownLatch(1);
+            final AtomicLong readNanos = new AtomicLong();
+            final Thread export = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final long start = System.nanoTime();
+                        final ResultSet rs = reader.createStatement().executeQuery("SELECT w.bssid, w.level, b.latitude, b.longitude"
+                                + " FROM wifis AS w JOIN positions AS b ON w.request_pos_id = b._id ORDER BY w._id");
+                        int rows = 0;
+                        while (rs.next()) {
+                            if (rows++ % READ_PAUSE_ROWS == 0) {
+                                reading.countDown();
+                                Thread.sleep(20);
+                            }
+                        }
+                        rs.close();
+                        readNanos.set(System.nanoTime() - start);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            export.start();
+            reading.await();
+
+            final long maxCommitNanos = insertScans(writer, SCANS);
+            export.join();
+
+            System.out.println(String.format(Locale.US, "%s journal: export %.0f ms, max. logger commit %.1f ms",
+                    mode, readNanos.get() / 1.0E6, maxCommitNanos / 1.0E6));
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Inserts scans in one transaction each, like ScanWriter
+     * @return max. time of a single scan transaction
+     */
+    private static long insertScans(final Connection db, final int scans) throws Exception {
+        final PreparedStatement position = db.prepareStatement("INSERT INTO positions (latitude, longitude, timestamp, session_id,"
+                + " source) VALUES (52, 13, 20161017120000, 2, 'gps')");
+        final PreparedStatement wifi = db.prepareStatement("INSERT INTO wifis (bssid, level, timestamp, request_pos_id, last_pos_id,"
+                + " session_id, is_known) VALUES (?, -70, 20161017120000, last_insert_rowid(), last_insert_rowid(), 2, 0)");
+        long max = 0;
+        db.setAutoCommit(false);
+        for (int scan = 0; scan < scans; scan++) {
+            final long start = System.nanoTime();
+            position.executeUpdate();
+            for (int i = 0; i < WIFIS_PER_SCAN; i++) {
+                wifi.setString(1, String.format(Locale.US, "00:22:%04X:%04X", scan, i));
+                wifi.executeUpdate();
+            }
+            db.commit();
+            max = Math.max(max, System.nanoTime() - start);
+            Thread.sleep(5);
+        }
+        db.setAutoCommit(true);
+        position.close();
+        wifi.close();
+        return max;
+    }
+
+    private static Connection open(final File file, final String mode) throws Exception {
+        final Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        final Statement statement = db.createStatement();
+        statement.execute("PRAGMA busy_timeout = 30000");
+        if ("WAL".equals(mode)) {
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA cache_size = -4096");
+        }
+        statement.close();
+        return db;
+    }
+
+    private static File createDatabase(final String mode, final int rows) throws Exception {
+        final File file = TestDatabase.createFile(mode);
+        final Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+
+        // finished session to export
+        db.setAutoCommit(false);
+        final PreparedStatement position = db.prepareStatement("INSERT INTO positions (latitude, longitude, timestamp, session_id,"
+                + " source) VALUES (?, 13, 20161017110000, 1, 'gps')");
+        final PreparedStatement wifi = db.prepareStatement("INSERT INTO wifis (bssid, level, timestamp, request_pos_id, last_pos_id,"
+                + " session_id, is_known) VALUES (?, -70, 20161017110000, ?, ?, 1, 0)");
+        for (int i = 0; i < rows; i++) {
+            if (i % WIFIS_PER_SCAN == 0) {
+                position.setDouble(1, 52.0 + i * 0.00001);
+                position.executeUpdate();
+            }
+            wifi.setString(1, String.format(Locale.US, "00:11:%010X", i));
+            wifi.setLong(2, 1 + i / WIFIS_PER_SCAN);
+            wifi.setLong(3, 1 + i / WIFIS_PER_SCAN);
+            wifi.executeUpdate();
+        }
+        db.commit();
+        db.close();
+        return file;
+    }
+}
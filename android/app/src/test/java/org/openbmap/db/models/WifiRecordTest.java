@@ -0,0 +1,168 @@
+package org.openbmap.db.models;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks ssid hashes against the former implementation, record pooling and allocations per wifi scan
+ */
+public class WifiRecordTest {
+
+    private static final int WIFIS_PER_SCAN = 40;
+
+    private static final int SCANS = 2000;
+
+    @Test
+    public void testMd5MatchesFormer() throws Exception {
+        final Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            final String ssid = "ssid-" + Integer.toHexString(random.nextInt());
+            assertEquals(formerMd5(ssid), WifiRecord.md5(ssid));
+        }
+        assertEquals(formerMd5(""), WifiRecord.md5(""));
+        assertEquals(formerMd5("紅米手機"), WifiRecord.md5("紅米手機"));
+        assertEquals(formerMd5("emoji😀"), WifiRecord.md5("emoji😀"));
+        // longer than initial encoder buffers
+        final String longSsid = new String(new char[100]).replace('\0', 'ß');
+        assertEquals(formerMd5(longSsid), WifiRecord.md5(longSsid));
+
+        final WifiRecord wifi = new WifiRecord();
+        wifi.setSsid("fritz!box 7490");
+        assertEquals(formerMd5("fritz!box 7490").toUpperCase(Locale.US), wifi.getMd5Ssid());
+        // cached
+        assertSame(wifi.getMd5Ssid(), wifi.getMd5Ssid());
+    }
+
+    @Test
+    public void testRecycledRecordsAreReused() {
+        final WifiRecord wifi = WifiRecord.obtain();
+        wifi.setBssid("00:11:22:aa:bb:cc");
+        wifi.setSsid("test");
+        assertEquals("00:11:22:AA:BB:CC", wifi.getBssid());
+        wifi.recycle();
+
+        final WifiRecord reused = WifiRecord.obtain();
+        assertSame(wifi, reused);
+        assertNull(reused.getSsid());
+        assertNull(reused.getCatalogStatus());
+    }
+
+    /**
+     * Bytes allocated per scan of 40 wifis, including hashing in scan writer: former path vs pooled records and cached hashes
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkScanAllocations() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final String[][] results = createResults();
+
+        // warm-up
+        ingestFormer(results);
+        ingestPooled(results);
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        long nanos = System.nanoTime();
+        for (int scan = 0; scan < SCANS; scan++) {
+            ingestFormer(results);
+        }
+        final long formerNanos = System.nanoTime() - nanos;
+        final long formerBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        nanos = System.nanoTime();
+        for (int scan = 0; scan < SCANS; scan++) {
+            ingestPooled(results);
+        }
+        final long pooledNanos = System.nanoTime() - nanos;
+        final long pooledBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+        System.out.println(String.format(Locale.US, "Scan of %d wifis: former %d bytes / %.1f us, pooled %d bytes / %.1f us",
+                WIFIS_PER_SCAN, formerBytes / SCANS, formerNanos / 1.0E3 / SCANS, pooledBytes / SCANS, pooledNanos / 1.0E3 / SCANS));
+    }
+
+    /**
+     * Former service and writer path: new record per result, fresh digest per hash, verbose log message per result
+     */
+    private static int ingestFormer(final String[][] results) {
+        final List<WifiRecord> wifis = new ArrayList<>();
+        int length = 0;
+        for (String[] result : results) {
+            length += ("Wifi not ssid blocked " + result[1]).length();
+            final WifiRecord wifi = new WifiRecord();
+            wifi.setBssid(result[0]);
+            wifi.setSsid(result[1].toLowerCase(Locale.US));
+            wifi.setCapabilities(result[2]);
+            wifis.add(wifi);
+        }
+        for (WifiRecord wifi : wifis) {
+            length += wifi.getBssid().toUpperCase().length() + formerMd5(wifi.getSsid()).toUpperCase().length();
+        }
+        return length;
+    }
+
+    /**
+     * Current path: pooled records, cached hashes, recycled after writing
+     */
+    private static int ingestPooled(final String[][] results) {
+        final List<WifiRecord> wifis = new ArrayList<>(results.length);
+        int length = 0;
+        for (String[] result : results) {
+            final WifiRecord wifi = WifiRecord.obtain();
+            wifi.setBssid(result[0]);
+            wifi.setSsid(result[1].toLowerCase(Locale.US));
+            wifi.setCapabilities(result[2]);
+            wifis.add(wifi);
+        }
+        for (WifiRecord wifi : wifis) {
+            length += wifi.getBssid().length() + wifi.getMd5Ssid().length();
+            wifi.recycle();
+        }
+        return length;
+    }
+
+    /**
+     * Scan results as reported by WifiManager: bssid, ssid, capabilities
+     */
+    private static String[][] createResults() {
+        final Random random = new Random(WIFIS_PER_SCAN);
+        final String[][] results = new String[WIFIS_PER_SCAN][];
+        for (int i = 0; i < WIFIS_PER_SCAN; i++) {
+            results[i] = new String[] {
+                    String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x", 0x24, 0x65, 0x11, i, random.nextInt(256), random.nextInt(256)),
+                    "FRITZ!Box " + random.nextInt(10000),
+                    "[WPA2-PSK-CCMP][ESS]"};
+        }
+        return results;
+    }
+
+    /**
+     * Former {@link WifiRecord#md5(String)}, with UTF-8 as Android's default charset
+     */
+    private static String formerMd5(final String source) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(source.getBytes("UTF-8"));
+            final byte[] messageDigest = digest.digest();
+            final StringBuffer hexString = new StringBuffer();
+            for (byte b : messageDigest) {
+                hexString.append(Integer.toHexString(0xFF & b));
+            }
+            return hexString.toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.openbmap.heatmap;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks kernel stamp, heat accumulation and color lookup table, benchmarks accumulation and coloring
+ */
+public class HeatmapGridTest {
+
+    private static final float RADIUS = 50f;
+
+    private static final int SIZE = 1024;
+
+    private static final int RUNS = 5;
+
+    @Test
+    public void testKernelDecaysFromCenter() {
+        final HeatmapKernel kernel = new HeatmapKernel(RADIUS);
+        assertEquals(101, kernel.mSize);
+        final int center = kernel.mRadius * kernel.mSize + kernel.mRadius;
+        assertEquals(1f, kernel.mWeights[center], 0);
+        assertEquals(0.5f, kernel.mWeights[center + 25], 0.001);
+        assertEquals(0f, kernel.mWeights[center + 50], 0);
+        assertEquals(0f, kernel.mWeights[0], 0);
+
+        for (int y = 0; y < kernel.mSize; y++) {
+            for (int x = 0; x < kernel.mSize; x++) {
+                final float weight = kernel.mWeights[y * kernel.mSize + x];
+                // symmetric
+                assertEquals(weight, kernel.mWeights[x * kernel.mSize + y], 0);
+                assertEquals(weight, kernel.mWeights[y * kernel.mSize + kernel.mSize - 1 - x], 0);
+                // decays towards border
+                if (x > kernel.mRadius) {
+                    assertTrue(weight <= kernel.mWeights[y * kernel.mSize + x - 1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAccumulationSaturates() {
+        final HeatmapGrid grid = new HeatmapGrid(200, 100, new HeatmapKernel(RADIUS));
+        grid.add(100, 50, 128);
+        assertEquals(128, grid.getIntensity(100, 50));
+        assertEquals(64, grid.getIntensity(125, 50));
+        assertEquals(0, grid.getIntensity(150, 50));
+
+        // source over: 128 + 128 * (1 - 128 / 255)
+        grid.add(100, 50, 128);
+        assertEquals(192, grid.getIntensity(100, 50));
+        for (int i = 0; i < 100; i++) {
+            grid.add(100, 50, 255);
+        }
+        assertEquals(255, grid.getIntensity(100, 50));
+    }
+
+    @Test
+    public void testStampsAreClipped() {
+        final HeatmapGrid grid = new HeatmapGrid(100, 100, new HeatmapKernel(RADIUS));
+        grid.add(-10, 50, 255);
+        grid.add(109, 50, 255);
+        grid.add(500, 500, 255);
+        assertEquals(204, grid.getIntensity(0, 50));
+        assertEquals(204, grid.getIntensity(99, 50));
+        assertEquals(0, grid.getIntensity(50, 50));
+    }
+
+    @Test
+    public void testColorsMatchHeatScale() {
+        assertEquals(0, HeatmapGrid.COLORS[0]);
+        assertEquals(argb(127, 255, 0, 0), HeatmapGrid.COLORS[255]);
+        assertEquals(argb(117, 235, 240, 0), HeatmapGrid.COLORS[235]);
+        assertEquals(argb(117, 255, 255, 0), HeatmapGrid.COLORS[234]);
+        assertEquals(argb(100, 0, 255, 0), HeatmapGrid.COLORS[200]);
+        assertEquals(argb(75, 0, 255, 245), HeatmapGrid.COLORS[150]);
+        assertEquals(argb(50, 0, 10, 255), HeatmapGrid.COLORS[100]);
+        assertEquals(argb(49, 0, 0, 255), HeatmapGrid.COLORS[99]);
+        assertEquals(argb(0, 0, 0, 255), HeatmapGrid.COLORS[1]);
+    }
+
+    @Test
+    public void testParallelColorizeMatchesSequential() throws Exception {
+        final HeatmapGrid grid = createGrid(1000, 300, 700);
+        final int[] sequential = new int[grid.getWidth() * grid.getHeight()];
+        grid.colorize(sequential);
+
+        final int[] parallel = new int[sequential.length];
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            grid.colorize(parallel, executor, 4);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testCenterAlphaKeepsFormerPaints() {
+        assertEquals(255, HeatmapTileRenderer.centerAlpha(1));
+        assertEquals(255, HeatmapTileRenderer.centerAlpha(25));
+        assertEquals(4, HeatmapTileRenderer.centerAlpha(26));
+    }
+
+    /**
+     * Accumulation and coloring of 1k to 100k points on a 1024 x 1024 grid, sequential vs parallel coloring
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkGrid() throws Exception {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final int[] pixels = new int[SIZE * SIZE];
+        try {
+            for (int points : new int[] {1000, 10000, 100000}) {
+                // warm-up
+                createGrid(points, SIZE, SIZE).colorize(pixels);
+
+                long accumulateNanos = 0;
+                long sequentialNanos = 0;
+                long parallelNanos = 0;
+                for (int run = 0; run < RUNS; run++) {
+                    long start = System.nanoTime();
+                    final HeatmapGrid grid = createGrid(points, SIZE, SIZE);
+                    accumulateNanos += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    grid.colorize(pixels);
+                    sequentialNanos += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    grid.colorize(pixels, executor, threads);
+                    parallelNanos += System.nanoTime() - start;
+                }
+                System.out.println(String.format(Locale.US,
+                        "%d points: accumulate %.2f ms, colorize %.2f ms, parallel colorize %.2f ms (%d threads)",
+                        points, accumulateNanos / 1.0E6 / RUNS, sequentialNanos / 1.0E6 / RUNS,
+                        parallelNanos / 1.0E6 / RUNS, threads));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static HeatmapGrid createGrid(final int points, final int width, final int height) {
+        final HeatmapGrid grid = new HeatmapGrid(width, height, new HeatmapKernel(RADIUS));
+        final Random random = new Random(points);
+        for (int i = 0; i < points; i++) {
+            grid.add(random.nextFloat() * width, random.nextFloat() * height, HeatmapTileRenderer.centerAlpha(1 + random.nextInt(5)));
+        }
+        return grid;
+    }
+
+    private static int argb(final int a, final int r, final int g, final int b) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}
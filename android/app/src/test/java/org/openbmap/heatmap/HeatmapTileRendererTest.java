@@ -0,0 +1,169 @@
+package org.openbmap.heatmap;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.openbmap.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks point selection per heat-map tile, data versions and cache keys
+ */
+public class HeatmapTileRendererTest {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final float RADIUS = 50f;
+
+    private static final byte ZOOM = 16;
+
+    @Test
+    public void testPointsNearBorderAffectBothTiles() {
+        final Tile tile = tileOf(52.5, 13.4);
+        final double mapSize = MercatorProjection.getMapSize(ZOOM, TILE_SIZE);
+        // 10 pixels right of tile's right border
+        final double lon = MercatorProjection.pixelXToLongitude((tile.tileX + 1) * TILE_SIZE + 10, (long) mapSize);
+        final double lat = MercatorProjection.pixelYToLatitude(tile.tileY * TILE_SIZE + 100, (long) mapSize);
+        final List<HeatLatLong> points = new ArrayList<>();
+        points.add(new HeatLatLong(lat, lon, 3));
+
+        final HeatmapTileRenderer renderer = new HeatmapTileRenderer(points, RADIUS);
+        final float[] out = new float[3];
+        assertEquals(1, renderer.collect(tile, out));
+        assertEquals(TILE_SIZE + 10, out[0], 0.01);
+        assertEquals(100, out[1], 0.01);
+        assertEquals(3, out[2], 0);
+
+        final Tile right = new Tile(tile.tileX + 1, tile.tileY, ZOOM, TILE_SIZE);
+        assertEquals(1, renderer.collect(right, out));
+        assertEquals(10, out[0], 0.01);
+
+        // out of radius
+        final Tile farRight = new Tile(tile.tileX + 2, tile.tileY, ZOOM, TILE_SIZE);
+        assertEquals(0, renderer.collect(farRight, out));
+    }
+
+    @Test
+    public void testTilesCoverAllPoints() {
+        final List<HeatLatLong> points = createPoints(2000);
+        final HeatmapTileRenderer renderer = new HeatmapTileRenderer(points, RADIUS);
+        final float[] out = new float[3 * points.size()];
+
+        // every point lies within exactly one tile, so inner points summed over all tiles equal point count
+        final Tile first = tileOf(52.51, 13.39);
+        final Tile last = tileOf(52.49, 13.41);
+        int inner = 0;
+        for (int x = first.tileX; x <= last.tileX; x++) {
+            for (int y = first.tileY; y <= last.tileY; y++) {
+                final int count = renderer.collect(new Tile(x, y, ZOOM, TILE_SIZE), out);
+                for (int i = 0; i < count; i++) {
+                    if (out[3 * i] >= 0 && out[3 * i] < TILE_SIZE && out[3 * i + 1] >= 0 && out[3 * i + 1] < TILE_SIZE) {
+                        inner++;
+                    }
+                }
+            }
+        }
+        assertEquals(points.size(), inner);
+    }
+
+    @Test
+    public void testVersionChangesWithData() {
+        final List<HeatLatLong> points = createPoints(100);
+        final String version = new HeatmapTileRenderer(points, RADIUS).getVersion();
+        assertEquals(version, new HeatmapTileRenderer(createPoints(100), RADIUS).getVersion());
+        assertNotEquals(version, new HeatmapTileRenderer(points, RADIUS * 2).getVersion());
+
+        points.add(new HeatLatLong(52.5, 13.4, 1));
+        assertNotEquals(version, new HeatmapTileRenderer(points, RADIUS).getVersion());
+    }
+
+    @Test
+    public void testJobKeys() {
+        final Tile tile = tileOf(52.5, 13.4);
+        final HeatmapTileRenderer renderer = new HeatmapTileRenderer(createPoints(100), RADIUS);
+        final HeatmapJob job = new HeatmapJob(tile, "wifi_001122334455", renderer);
+
+        assertEquals(job, new HeatmapJob(tile, "wifi_001122334455", renderer));
+        assertEquals(job.hashCode(), new HeatmapJob(tile, "wifi_001122334455", renderer).hashCode());
+        assertFalse(job.equals(new HeatmapJob(tile, "wifi_001122334466", renderer)));
+        assertFalse(job.equals(new HeatmapJob(tile, "wifi_001122334455", new HeatmapTileRenderer(createPoints(50), RADIUS))));
+
+        // file system cache expects zoom/x/y
+        final String[] parts = job.getKey().split("/");
+        assertEquals(3, parts.length);
+        assertTrue(parts[0].startsWith("wifi_001122334455_" + renderer.getVersion()));
+        assertTrue(parts[0].endsWith("_" + ZOOM));
+        assertEquals(String.valueOf(tile.tileX), parts[1]);
+        assertEquals(String.valueOf(tile.tileY), parts[2]);
+    }
+
+    /**
+     * Former builder projected every point on each refresh. Compares a full-screen refresh with
+     * selecting points for the 20 tiles of a screen from projected points, for points spread along a drive
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkTileSelection() {
+        final Random random = new Random(1);
+        final List<HeatLatLong> points = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            points.add(new HeatLatLong(52.4 + random.nextDouble() * 0.2, 13.3 + random.nextDouble() * 0.2, 1));
+        }
+        final HeatmapTileRenderer renderer = new HeatmapTileRenderer(points, RADIUS);
+        final float[] out = new float[3 * points.size()];
+        final Tile center = tileOf(52.5, 13.4);
+        // warm-up, includes projection
+        renderer.collect(center, out);
+
+        long start = System.nanoTime();
+        int projected = 0;
+        for (int i = 0; i < 10; i++) {
+            for (final HeatLatLong heat : points) {
+                final long mapSize = MercatorProjection.getMapSize(ZOOM, TILE_SIZE);
+                if (MercatorProjection.longitudeToPixelX(heat.longitude, mapSize) > 0
+                        && MercatorProjection.latitudeToPixelY(heat.latitude, mapSize) > 0) {
+                    projected++;
+                }
+            }
+        }
+        final long fullNanos = (System.nanoTime() - start) / 10;
+
+        start = System.nanoTime();
+        int selected = 0;
+        for (int i = 0; i < 10; i++) {
+            for (int x = -2; x < 3; x++) {
+                for (int y = -2; y < 2; y++) {
+                    selected += renderer.collect(new Tile(center.tileX + x, center.tileY + y, ZOOM, TILE_SIZE), out);
+                }
+            }
+        }
+        final long tileNanos = (System.nanoTime() - start) / 10;
+
+        System.out.println(String.format(Locale.US, "%d points: full projection %.2f ms, selection for 20 tiles %.2f ms (%d points)",
+                points.size(), fullNanos / 1.0E6, tileNanos / 1.0E6, selected / 10));
+        assertEquals(points.size() * 10, projected);
+    }
+
+    private static Tile tileOf(final double lat, final double lon) {
+        return new Tile(MercatorProjection.longitudeToTileX(lon, ZOOM), MercatorProjection.latitudeToTileY(lat, ZOOM), ZOOM, TILE_SIZE);
+    }
+
+    private static List<HeatLatLong> createPoints(final int size) {
+        final Random random = new Random(size);
+        final List<HeatLatLong> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(new HeatLatLong(52.49 + random.nextDouble() * 0.02, 13.39 + random.nextDouble() * 0.02, 1 + random.nextInt(5)));
+        }
+        return points;
+    }
+}
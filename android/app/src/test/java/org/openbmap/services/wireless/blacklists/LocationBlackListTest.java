@@ -0,0 +1,147 @@
+package org.openbmap.services.wireless.blacklists;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares grid-indexed location blacklist with exact distance checks against all areas
+ */
+public class LocationBlackListTest {
+
+    private static final int AREAS = 5000;
+
+    private static final int LOCATIONS = 2000;
+
+    @Test
+    public void testSingleArea() {
+        final LocationBlackList blackList = new LocationBlackList();
+        blackList.add(location(49.55306, 9.0057), 550);
+        blackList.buildIndex();
+
+        assertTrue(blackList.contains(location(49.55306, 9.0057)));
+        // roughly 500 m north, east and south-west
+        assertTrue(blackList.contains(location(49.55756, 9.0057)));
+        assertTrue(blackList.contains(location(49.55306, 9.0126)));
+        assertTrue(blackList.contains(location(49.5503, 9.0015)));
+        // roughly 600 m north
+        assertFalse(blackList.contains(location(49.55846, 9.0057)));
+        assertFalse(blackList.contains(location(-49.55306, 9.0057)));
+    }
+
+    @Test
+    public void testLargeAreasAndEdges() {
+        final LocationBlackList blackList = new LocationBlackList();
+        // 100 km, across date line and at north pole
+        blackList.add(location(52.0, 13.0), 100000);
+        blackList.add(location(0.0, 179.999), 1000);
+        blackList.add(location(90.0, 0.0), 2000);
+        blackList.buildIndex();
+
+        assertTrue(blackList.contains(location(52.8, 13.0)));
+        assertFalse(blackList.contains(location(53.0, 13.0)));
+        assertTrue(blackList.contains(location(0.0, -179.999)));
+        assertTrue(blackList.contains(location(89.99, 120.0)));
+        assertFalse(blackList.contains(location(89.9, 120.0)));
+        assertFalse(new LocationBlackList().contains(location(52.0, 13.0)));
+    }
+
+    @Test
+    public void testMatchesExactCheck() {
+        final List<Location> centers = new ArrayList<>();
+        final List<Long> radii = new ArrayList<>();
+        final LocationBlackList blackList = createBlackList(centers, radii);
+        final Location[] locations = createLocations();
+
+        int blocked = 0;
+        for (Location location : locations) {
+            final boolean expected = scan(location, centers, radii);
+            assertEquals(expected, blackList.contains(location));
+            blocked += expected ? 1 : 0;
+        }
+        assertTrue(blocked > 0 && blocked < LOCATIONS);
+    }
+
+    /**
+     * 5000 privacy zones: former scan over all areas vs grid index
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkContains() {
+        final List<Location> centers = new ArrayList<>();
+        final List<Long> radii = new ArrayList<>();
+        final LocationBlackList blackList = createBlackList(centers, radii);
+        final Location[] locations = createLocations();
+
+        int matches = 0;
+        long start = System.nanoTime();
+        for (Location location : locations) {
+            matches += scan(location, centers, radii) ? 1 : 0;
+        }
+        final long scanNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Location location : locations) {
+            matches += blackList.contains(location) ? 1 : 0;
+        }
+        final long gridNanos = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "%d areas, %d locations: scan %.1f ms, grid index %.1f ms (%d matches)",
+                AREAS, LOCATIONS, scanNanos / 1.0E6, gridNanos / 1.0E6, matches));
+    }
+
+    /**
+     * Home and work places spread over a country, 200 m to 2 km radius
+     */
+    private static LocationBlackList createBlackList(final List<Location> centers, final List<Long> radii) {
+        final LocationBlackList blackList = new LocationBlackList();
+        final Random random = new Random(AREAS);
+        for (int i = 0; i < AREAS; i++) {
+            final Location center = location(47.0 + random.nextDouble() * 8.0, 6.0 + random.nextDouble() * 9.0);
+            final long radius = 200 + random.nextInt(1800);
+            centers.add(center);
+            radii.add(radius);
+            blackList.add(center, radius);
+        }
+        blackList.buildIndex();
+        return blackList;
+    }
+
+    private static Location[] createLocations() {
+        final Random random = new Random(LOCATIONS);
+        final Location[] locations = new Location[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            locations[i] = location(47.0 + random.nextDouble() * 8.0, 6.0 + random.nextDouble() * 9.0);
+        }
+        return locations;
+    }
+
+    /**
+     * Former {@link LocationBlackList#contains(Location)}
+     */
+    private static boolean scan(final Location location, final List<Location> centers, final List<Long> radii) {
+        for (int i = 0; i < centers.size(); i++) {
+            if (location.distanceTo(centers.get(i)) < radii.get(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Location location(final double lat, final double lon) {
+        final Location location = new Location("test");
+        location.setLatitude(lat);
+        location.setLongitude(lon);
+        return location;
+    }
+}
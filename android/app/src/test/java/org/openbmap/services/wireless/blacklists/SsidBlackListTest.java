@@ -0,0 +1,179 @@
+package org.openbmap.services.wireless.blacklists;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks compiled ssid blacklist against default entries of {@link SsidBlackListBootstraper}
+ * and compares it with the former linear scan
+ */
+public class SsidBlackListTest {
+
+    private static final int SSIDS = 100000;
+
+    private static final int RUNS = 10;
+
+    private final List<String> mPrefixes = new ArrayList<>();
+
+    private final List<String> mSuffixes = new ArrayList<>();
+
+    private SsidBlackList mBlackList;
+
+    @Before
+    public void setUp() {
+        for (String[] prefix : SsidBlackListBootstraper.PREFIXES) {
+            mPrefixes.add(prefix[1]);
+        }
+        for (String[] suffix : SsidBlackListBootstraper.SUFFIXES) {
+            mSuffixes.add(suffix[1]);
+        }
+        // empty prefix would block every ssid, xml parser never yields it
+        mPrefixes.remove("");
+        mBlackList = new SsidBlackList();
+        mBlackList.add(mPrefixes, mSuffixes);
+    }
+
+    @Test
+    public void testDefaultEntries() {
+        assertTrue(mBlackList.contains("AndroidAP"));
+        assertTrue(mBlackList.contains("androidap1234"));
+        assertTrue(mBlackList.contains("Telekom_ICE"));
+        assertTrue(mBlackList.contains("FLIXBUS Free"));
+        assertTrue(mBlackList.contains("紅米手機_1234"));
+        assertTrue(mBlackList.contains("Jane's iPhone"));
+        assertTrue(mBlackList.contains("home_nomap"));
+        assertTrue(mBlackList.contains("MyTether"));
+
+        assertFalse(mBlackList.contains("FRITZ!Box 7490"));
+        assertFalse(mBlackList.contains("PhoneHome"));
+        assertFalse(mBlackList.contains("ICE"));
+        assertFalse(mBlackList.contains("Android"));
+        assertFalse(mBlackList.contains(""));
+        assertFalse(mBlackList.contains(null));
+    }
+
+    @Test
+    public void testEmptyBlackList() {
+        final SsidBlackList empty = new SsidBlackList();
+        assertFalse(empty.contains("AndroidAP"));
+        assertFalse(empty.contains(""));
+
+        // same as former String.startsWith("")
+        final SsidTrie all = new SsidTrie(Arrays.asList(""), false);
+        assertTrue(all.matches("anything"));
+        assertEquals(1, all.size());
+    }
+
+    @Test
+    public void testSuffixesAreReversed() {
+        final SsidTrie suffixes = new SsidTrie(Arrays.asList("abc", "XbC", "c"), true);
+        assertTrue(suffixes.matches("zzzc"));
+        assertTrue(suffixes.matches("ABC"));
+        assertFalse(suffixes.matches("cab"));
+        // shared nodes: root, c, b, a, x
+        assertEquals(5, suffixes.size());
+    }
+
+    @Test
+    public void testMatchesFormerScan() {
+        final String[] ssids = createSsids(SSIDS);
+        int blocked = 0;
+        for (String ssid : ssids) {
+            final boolean expected = scan(ssid);
+            assertEquals(ssid, expected, mBlackList.contains(ssid));
+            if (expected) {
+                blocked++;
+            }
+        }
+        assertTrue(blocked > 0 && blocked < SSIDS);
+    }
+
+    /**
+     * 100k ssids: former linear scan with lower-casing vs compiled tries
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkContains() {
+        final String[] ssids = createSsids(SSIDS);
+        int matches = 0;
+        // warm-up
+        for (String ssid : ssids) {
+            matches += scan(ssid) ? 1 : 0;
+            matches += mBlackList.contains(ssid) ? 1 : 0;
+        }
+
+        long start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) {
+            for (String ssid : ssids) {
+                matches += scan(ssid) ? 1 : 0;
+            }
+        }
+        final long scanNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) {
+            for (String ssid : ssids) {
+                matches += mBlackList.contains(ssid) ? 1 : 0;
+            }
+        }
+        final long trieNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d ssids, %d entries: linear scan %.1f ms, tries %.1f ms (%d matches)",
+                SSIDS, mPrefixes.size() + mSuffixes.size(), scanNanos / 1.0E6 / RUNS, trieNanos / 1.0E6 / RUNS, matches));
+    }
+
+    /**
+     * Former {@link SsidBlackList#contains(String)}
+     */
+    private boolean scan(final String ssid) {
+        for (String prefix : mPrefixes) {
+            if (ssid.toLowerCase(Locale.US).startsWith(prefix.toLowerCase(Locale.US))) {
+                return true;
+            }
+        }
+        for (String suffix : mSuffixes) {
+            if (ssid.toLowerCase(Locale.US).endsWith(suffix.toLowerCase(Locale.US))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mostly home and office ssids, some of them built from blacklist entries
+     */
+    private String[] createSsids(final int count) {
+        final String[] words = {"FRITZ!Box ", "WLAN-", "Vodafone-", "eduroam", "Home", "Office", "UPC", "TP-LINK_", "guest"};
+        final Random random = new Random(count);
+        final String[] ssids = new String[count];
+        for (int i = 0; i < count; i++) {
+            final StringBuilder ssid = new StringBuilder();
+            switch (random.nextInt(10)) {
+                case 0:
+                    ssid.append(mPrefixes.get(random.nextInt(mPrefixes.size())));
+                    break;
+                case 1:
+                    ssid.append(words[random.nextInt(words.length)]);
+                    ssid.append(mSuffixes.get(random.nextInt(mSuffixes.size())));
+                    break;
+                default:
+                    ssid.append(words[random.nextInt(words.length)]);
+                    ssid.append(Integer.toHexString(random.nextInt()));
+            }
+            ssids[i] = random.nextBoolean() ? ssid.toString().toUpperCase(Locale.US) : ssid.toString();
+        }
+        return ssids;
+    }
+}
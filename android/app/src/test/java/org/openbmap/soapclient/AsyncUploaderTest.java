@@ -0,0 +1,277 @@
+package org.openbmap.soapclient;
+
+import android.database.CharArrayBuffer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads log files to a local stand-in server, which parses the multipart message
+ * and inflates gzipped file parts. Also compares pooled keep-alive connections against a client per upload
+ */
+public class AsyncUploaderTest {
+
+    private static final String TOKEN = "0123456789abcdef";
+
+    private static final int WIFIS = 1000;
+
+    private static final int BENCHMARK_UPLOADS = 300;
+
+    private HttpServer mServer;
+
+    private String mUrl;
+
+    private File mFile;
+
+    /**
+     * Last upload as received by server
+     */
+    private volatile String mContentType;
+    private volatile String mFileName;
+    private volatile byte[] mFileContent;
+    private volatile String mToken;
+    private volatile long mBodySize;
+
+    /**
+     * Client ports seen by server, i.e. number of TCP connections
+     */
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/uploads/wifis", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                receive(exchange);
+            }
+        });
+        mServer.createContext("/uploads/broken", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                read(exchange.getRequestBody());
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/uploads/wifis";
+
+        mFile = File.createTempFile("V1_log20161017120000", "-wifi.xml");
+        mFile.deleteOnExit();
+        writeWifiLog(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+    @Test
+    public void testPlainUpload() throws Exception {
+        final AsyncUploader uploader = new AsyncUploader(null, TOKEN, mUrl);
+
+        assertTrue(uploader.doInBackground(mFile.getAbsolutePath()));
+        assertEquals("text/xml", mContentType);
+        assertEquals(mFile.getName(), mFileName);
+        assertEquals(TOKEN, mToken);
+        assertArrayEquals(read(mFile), mFileContent);
+    }
+
+    @Test
+    public void testCompressedUpload() throws Exception {
+        final AsyncUploader uploader = new AsyncUploader(null, TOKEN, mUrl);
+        uploader.setCompress(true);
+
+        assertTrue(uploader.doInBackground(mFile.getAbsolutePath()));
+        final long compressedBody = mBodySize;
+        assertEquals(AsyncUploader.GZIP_MIME, mContentType);
+        assertEquals(mFile.getName() + AsyncUploader.GZIP_SUFFIX, mFileName);
+        assertEquals(TOKEN, mToken);
+        assertArrayEquals(read(mFile), gunzip(mFileContent));
+
+        new AsyncUploader(null, TOKEN, mUrl).doInBackground(mFile.getAbsolutePath());
+        final long plainBody = mBodySize;
+
+        assertTrue(compressedBody * 4 < plainBody);
+    }
+
+    @Test
+    public void testPooledUploadsReuseConnection() throws Exception {
+        final UploadConnectionPool pool = new UploadConnectionPool(2);
+        for (int i = 0; i < 20; i++) {
+            final AsyncUploader uploader = new AsyncUploader(null, TOKEN, mUrl);
+            uploader.setHttpClient(pool.getClient());
+            assertTrue(uploader.doInBackground(mFile.getAbsolutePath()));
+        }
+        pool.shutdown();
+
+        assertEquals(1, mClientPorts.size());
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkConnectionReuse() throws Exception {
+        final UploadConnectionPool pool = new UploadConnectionPool(1);
+
+        // warm up
+        upload(BENCHMARK_UPLOADS / 10, null);
+        upload(BENCHMARK_UPLOADS / 10, pool);
+
+        mClientPorts.clear();
+        long start = System.nanoTime();
+        upload(BENCHMARK_UPLOADS, null);
+        final long newClientNanos = System.nanoTime() - start;
+        final int newClientConnections = mClientPorts.size();
+
+        mClientPorts.clear();
+        start = System.nanoTime();
+        upload(BENCHMARK_UPLOADS, pool);
+        final long pooledNanos = System.nanoTime() - start;
+        final int pooledConnections = mClientPorts.size();
+        pool.shutdown();
+
+        System.out.println(String.format(Locale.US, "Client per upload: %d ms for %d uploads, %d connections",
+                newClientNanos / 1000000, BENCHMARK_UPLOADS, newClientConnections));
+        System.out.println(String.format(Locale.US, "Pooled client: %d ms for %d uploads, %d connections",
+                pooledNanos / 1000000, BENCHMARK_UPLOADS, pooledConnections));
+        assertEquals(BENCHMARK_UPLOADS, newClientConnections);
+        assertTrue(pooledConnections <= 1);
+    }
+
+    @Test
+    public void testFailedUpload() throws Exception {
+        final AsyncUploader uploader = new AsyncUploader(null, TOKEN, mUrl.replace("wifis", "broken"));
+        uploader.setCompress(true);
+
+        assertFalse(uploader.doInBackground(mFile.getAbsolutePath()));
+    }
+
+    private void upload(final int count, final UploadConnectionPool pool) {
+        for (int i = 0; i < count; i++) {
+            final AsyncUploader uploader = new AsyncUploader(null, TOKEN, mUrl);
+            if (pool != null) {
+                uploader.setHttpClient(pool.getClient());
+            }
+            assertTrue(uploader.doInBackground(mFile.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Minimal multipart/form-data parser: extracts file and api parts
+     */
+    private void receive(final HttpExchange exchange) throws IOException {
+        mClientPorts.add(exchange.getRemoteAddress().getPort());
+        final String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        final byte[] body = read(exchange.getRequestBody());
+        mBodySize = body.length;
+
+        final String boundary = "--" + type.substring(type.indexOf("boundary=") + "boundary=".length());
+        // ISO-8859-1 maps bytes 1:1 to chars, so binary parts survive
+        final String message = new String(body, "ISO-8859-1");
+        int start = message.indexOf(boundary);
+        while (start >= 0) {
+            final int headerStart = start + boundary.length() + 2;
+            final int headerEnd = message.indexOf("\r\n\r\n", headerStart);
+            final int end = message.indexOf("\r\n" + boundary, headerEnd);
+            if (headerEnd < 0 || end < 0) {
+                break;
+            }
+            final String headers = message.substring(headerStart, headerEnd);
+            final String content = message.substring(headerEnd + 4, end);
+            if (headers.contains("name=\"file\"")) {
+                mFileName = headers.replaceAll("(?s).*filename=\"([^\"]*)\".*", "$1");
+                mContentType = headers.replaceAll("(?s).*Content-Type: ([^\r\n;]*).*", "$1");
+                mFileContent = content.getBytes("ISO-8859-1");
+            } else if (headers.contains("name=\"api\"")) {
+                mToken = content;
+            }
+            start = end + 2;
+        }
+
+        exchange.sendResponseHeaders(mFileContent != null ? 200 : 400, -1);
+        exchange.close();
+    }
+
+    /**
+     * Writes a realistic wifi log with LogXmlWriter
+     */
+    private static void writeWifiLog(final File file) throws IOException {
+        final LogXmlWriter writer = new LogXmlWriter(new FileOutputStream(file));
+        writer.openLogfile("LGE", "Nexus 5", "hammerhead", "Radiobeacon", "0.8.15", "0.8.16");
+        final CharArrayBuffer bssid = new CharArrayBuffer(17);
+        final CharArrayBuffer md5 = new CharArrayBuffer(32);
+        final CharArrayBuffer ssid = new CharArrayBuffer(32);
+        final CharArrayBuffer capa = new CharArrayBuffer(64);
+        for (int i = 0; i < WIFIS; i++) {
+            if (i % 20 == 0) {
+                writer.openScan(20161017120000L + i);
+                writer.position(20161017120000L + i, 13.404954 + i * 1.0E-5, 52.520008 - i * 3.0E-6, 35.5, 270.0, 12.5, 8.0, "begin");
+            }
+            copy(bssid, String.format(Locale.US, "00:11:22:33:%02X:%02X", i / 20, i % 20));
+            copy(md5, String.format(Locale.US, "%032X", i * 2654435761L));
+            copy(ssid, "wifi-" + (i % 20));
+            copy(capa, i % 3 == 0 ? "[WPA2-PSK-CCMP][ESS]" : "[ESS]");
+            writer.wifi(bssid, md5, ssid, capa, -40 - i % 50, 2412 + 5 * (i % 13));
+            if (i % 20 == 19) {
+                writer.position(20161017120001L + i, 13.404954 + i * 1.0E-5, 52.520008 - i * 3.0E-6, 35.5, 270.0, 12.5, 8.0, "end");
+                writer.closeScan();
+            }
+        }
+        writer.closeLogfile();
+        writer.close();
+    }
+
+    private static void copy(final CharArrayBuffer buffer, final String value) {
+        buffer.data = value.toCharArray();
+        buffer.sizeCopied = value.length();
+    }
+
+    private static byte[] gunzip(final byte[] data) throws IOException {
+        assertNotNull(data);
+        return read(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,259 @@
+package org.openbmap.soapclient;
+
+import android.database.CharArrayBuffer;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.utils.XmlSanitizer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares LogXmlWriter's output against golden files, which have been written by the former
+ * String.format based serializers for the same rows
+ */
+public class LogXmlWriterTest {
+
+    private static final String[] SSIDS = {
+            "FRITZ!Box 7490", "Café", "<evil>", "", "tab\tssid", "o'neil", "a&b", "emoji😀", "free_wifi-1.2+"
+    };
+
+    private static final double[] DOUBLES = {
+            52.520008, 13.404954, 0.0, -0.0, 1.0E-5, 123456789.123, -17.25, 1.0E7, 0.1 + 0.2, Double.NaN
+    };
+
+    private static final String[] MNCS = {"01", "2", "410"};
+
+    private static final String[] TECHNOLOGIES = {"GSM", "UMTS", "LTE", "HSPA+"};
+
+    private static final int SCANS = 50;
+
+    private static final int BENCHMARK_ROWS = 1000000;
+
+    @Test
+    public void testWifiGolden() throws Exception {
+        assertArrayEquals(golden("wifi-golden.xml"), writeWifis(false));
+    }
+
+    @Test
+    public void testWifiAnonymisedGolden() throws Exception {
+        assertArrayEquals(golden("wifi-anonymised-golden.xml"), writeWifis(true));
+    }
+
+    @Test
+    public void testCellGolden() throws Exception {
+        assertArrayEquals(golden("cell-golden.xml"), writeCells());
+    }
+
+    @Test
+    public void testSmallBuffers() throws Exception {
+        // underlying stream receives buffer in chunks, result must not depend on flush points
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LogXmlWriter writer = new LogXmlWriter(out);
+        final String model = new String(new char[40000]).replace('\0', 'ü');
+        writer.openLogfile("x", model, "r", "s", "v", "e");
+        writer.closeLogfile();
+        writer.close();
+        final String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<logfile manufacturer=\"x\" model=\"" + model
+                + "\" revision=\"r\" swid=\"s\" swver=\"v\" exportver=\"e\">\n</logfile>";
+        assertArrayEquals(expected.getBytes("UTF-8"), out.toByteArray());
+    }
+
+    @Test
+    public void testIsPlainSsid() {
+        final CharArrayBuffer buffer = new CharArrayBuffer(1);
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            final String ssid = "a" + c;
+            buffer.data = ssid.toCharArray();
+            buffer.sizeCopied = ssid.length();
+            assertEquals("char " + (int) c, XmlSanitizer.isValid(ssid), LogXmlWriter.isPlainSsid(buffer));
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkWifis() throws Exception {
+        final NullOutputStream out = new NullOutputStream();
+
+        // warm up
+        writeWifiRows(new LogXmlWriter(out), BENCHMARK_ROWS / 10);
+        writeWifiRowsFormatted(out, BENCHMARK_ROWS / 10);
+
+        long start = System.nanoTime();
+        writeWifiRowsFormatted(out, BENCHMARK_ROWS);
+        final long formatNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        writeWifiRows(new LogXmlWriter(out), BENCHMARK_ROWS);
+        final long writerNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "String.format: %d ms for %d wifis (%d wifis/s)",
+                formatNanos / 1000000, BENCHMARK_ROWS, BENCHMARK_ROWS * 1000000000L / formatNanos));
+        System.out.println(String.format(Locale.US, "LogXmlWriter: %d ms for %d wifis (%d wifis/s)",
+                writerNanos / 1000000, BENCHMARK_ROWS, BENCHMARK_ROWS * 1000000000L / writerNanos));
+    }
+
+    /**
+     * Writes wifi rows like WifiSerializer does: one scan per begin position, 10 wifis per scan
+     */
+    private static byte[] writeWifis(final boolean anonymise) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LogXmlWriter writer = new LogXmlWriter(out);
+        writer.openLogfile("LGE", "Nexus 5 ü", "hammerhead", "Radiobeacon", "0.8.15", "0.8.16");
+
+        final CharArrayBuffer bssid = new CharArrayBuffer(17);
+        final CharArrayBuffer md5 = new CharArrayBuffer(32);
+        final CharArrayBuffer ssid = new CharArrayBuffer(32);
+        final CharArrayBuffer capa = new CharArrayBuffer(64);
+        for (int scan = 0; scan < SCANS; scan++) {
+            writer.openScan(20161017120000L + scan);
+            writePosition(writer, scan, "begin");
+            for (int i = 0; i < 10; i++) {
+                copy(bssid, String.format(Locale.US, "00:11:22:%02x:%02X:%02d", scan, i, scan % 100));
+                copy(md5, "D41D8CD98F00B204E9800998ECF8427" + i);
+                copy(ssid, SSIDS[(scan + i) % SSIDS.length]);
+                copy(capa, i % 2 == 0 ? "[WPA2-PSK-CCMP][ESS]" : "");
+                final boolean sendSsid = !anonymise && LogXmlWriter.isPlainSsid(ssid);
+                writer.wifi(bssid, md5, sendSsid ? ssid : null, capa, -40 - scan - i, 2412 + 5 * i);
+            }
+            writePosition(writer, scan + 1, "end");
+            writer.closeScan();
+        }
+        writer.closeLogfile();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes cell rows like CellSerializer does: one scan per begin position, 3 cells per scan
+     */
+    private static byte[] writeCells() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LogXmlWriter writer = new LogXmlWriter(out);
+        writer.openLogfile("samsung", "GT-I9300", "m0", "Radiobeacon", "0.8.15", "0.8.16");
+
+        final CharArrayBuffer mcc = new CharArrayBuffer(3);
+        final CharArrayBuffer mnc = new CharArrayBuffer(3);
+        for (int scan = 0; scan < SCANS; scan++) {
+            writer.openScan(20161017120000L + scan);
+            writePosition(writer, scan, "begin");
+            for (int i = 0; i < 3; i++) {
+                copy(mcc, "262");
+                copy(mnc, MNCS[(scan + i) % MNCS.length]);
+                writer.cell(i == 0, i != 0 || scan % 5 == 0, mcc, mnc,
+                        1000L + scan, 268435455L - scan * 1000L - i, i == 2 ? -1 : 4711L + i, i == 1 ? -1 : 13L * scan,
+                        -51L - scan, scan % 32, TECHNOLOGIES[(scan + i) % TECHNOLOGIES.length], i == 0 ? -1 : 300 + i);
+            }
+            writePosition(writer, scan + 1, "end");
+            writer.closeScan();
+        }
+        writer.closeLogfile();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static void writePosition(final LogXmlWriter writer, final int scan, final String type) throws Exception {
+        writer.position(20161017120000L + scan,
+                DOUBLES[scan % DOUBLES.length] + scan * 0.001,
+                DOUBLES[(scan + 1) % DOUBLES.length],
+                DOUBLES[(scan + 2) % DOUBLES.length],
+                DOUBLES[(scan + 3) % DOUBLES.length],
+                DOUBLES[(scan + 4) % DOUBLES.length],
+                DOUBLES[(scan + 5) % DOUBLES.length],
+                type);
+    }
+
+    private static void writeWifiRows(final LogXmlWriter writer, final int rows) throws Exception {
+        final CharArrayBuffer bssid = new CharArrayBuffer(17);
+        final CharArrayBuffer md5 = new CharArrayBuffer(32);
+        final CharArrayBuffer ssid = new CharArrayBuffer(32);
+        final CharArrayBuffer capa = new CharArrayBuffer(64);
+        copy(bssid, "00:11:22:33:44:55");
+        copy(md5, "D41D8CD98F00B204E9800998ECF8427E");
+        copy(ssid, "FRITZ!Box 7490");
+        copy(capa, "[WPA2-PSK-CCMP][ESS]");
+        for (int i = 0; i < rows; i++) {
+            if (i % 10 == 0) {
+                writer.openScan(20161017120000L + i);
+                writer.position(20161017120000L + i, 13.404954 + i * 1.0E-6, 52.520008, 35.5, 270.0, 12.5, 8.0, "begin");
+            }
+            writer.wifi(bssid, md5, LogXmlWriter.isPlainSsid(ssid) ? ssid : null, capa, -70, 2412);
+            if (i % 10 == 9) {
+                writer.position(20161017120001L + i, 13.404954 + i * 1.0E-6, 52.520008, 35.5, 270.0, 12.5, 8.0, "end");
+                writer.closeScan();
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Former implementation, for comparison
+     */
+    private static void writeWifiRowsFormatted(final OutputStream out, final int rows) throws Exception {
+        final Writer bw = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 30 * 1024);
+        for (int i = 0; i < rows; i++) {
+            if (i % 10 == 0) {
+                bw.write(String.format("\n<scan time=\"%s\">", 20161017120000L + i));
+            }
+            final String begin = String.format("\n\t<gps time=\"%s\" lng=\"%s\" lat=\"%s\" alt=\"%s\" hdg=\"%s\" spe=\"%s\" accuracy=\"%s\" type=\"%s\" />",
+                    20161017120000L + i, 13.404954 + i * 1.0E-6, 52.520008, 35.5, 270.0, 12.5, 8.0, "begin");
+            final String end = String.format("\n\t<gps time=\"%s\" lng=\"%s\" lat=\"%s\" alt=\"%s\" hdg=\"%s\" spe=\"%s\" accuracy=\"%s\" type=\"%s\" />",
+                    20161017120001L + i, 13.404954 + i * 1.0E-6, 52.520008, 35.5, 270.0, 12.5, 8.0, "end");
+            if (i % 10 == 0) {
+                bw.write(begin);
+            }
+            final String ssid = "FRITZ!Box 7490";
+            final String ssidXml = XmlSanitizer.isValid(ssid) ? String.format(" ssid=\"%s\"", ssid) : "";
+            bw.write(String.format("\n\t\t<wifiap bssid=\"%s\" md5essid=\"%s\"%s capa=\"%s\" ss=\"%s\" ntiu=\"%s\"/>",
+                    "00:11:22:33:44:55".replace(":", ""), "D41D8CD98F00B204E9800998ECF8427E", ssidXml, "[WPA2-PSK-CCMP][ESS]",
+                    String.valueOf(-70), String.valueOf(2412)));
+            if (i % 10 == 9) {
+                bw.write(end);
+                bw.write("\n</scan>");
+            }
+        }
+        bw.flush();
+    }
+
+    private static void copy(final CharArrayBuffer buffer, final String value) {
+        // buffers are filled directly, as unit tests run against android.jar stubs
+        if (buffer.data == null || buffer.data.length < value.length()) {
+            buffer.data = value.toCharArray();
+        } else {
+            value.getChars(0, value.length(), buffer.data, 0);
+        }
+        buffer.sizeCopied = value.length();
+    }
+
+    private byte[] golden(final String name) throws Exception {
+        final InputStream in = getClass().getResourceAsStream(name);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+}
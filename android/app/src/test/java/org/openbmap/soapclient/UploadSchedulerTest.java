@@ -0,0 +1,180 @@
+package org.openbmap.soapclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbmap.soapclient.AsyncUploader.FileUploadListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs UploadScheduler against a local stand-in server, which counts concurrent requests
+ * and can reject requests to trigger retries
+ */
+public class UploadSchedulerTest {
+
+    private static final int MAX_UPLOADS = 3;
+
+    private HttpServer mServer;
+
+    private String mUrl;
+
+    private File mFile;
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    private volatile int mMaxInFlight;
+
+    /**
+     * Number of requests to reject before accepting uploads
+     */
+    private final AtomicInteger mRejections = new AtomicInteger();
+
+    private final AtomicInteger mCompleted = new AtomicInteger();
+
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private final FileUploadListener mListener = new FileUploadListener() {
+        @Override
+        public void onUploadCompleted(final String file, final long size, final long speed) {
+            mCompleted.incrementAndGet();
+        }
+
+        @Override
+        public void onUploadFailed(final String file, final String error) {
+            mFailed.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/uploads/wifis", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                receive(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/uploads/wifis";
+
+        mFile = File.createTempFile("V1_log20161017120000", "-wifi.xml");
+        mFile.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[64 * 1024]);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+    @Test
+    public void testParallelUploadsAreBounded() throws Exception {
+        final UploadConnectionPool pool = new UploadConnectionPool(MAX_UPLOADS);
+        final UploadScheduler scheduler = new UploadScheduler(mListener, MAX_UPLOADS);
+        for (int i = 0; i < 30; i++) {
+            assertTrue(scheduler.submit(uploader(pool), mFile.getAbsolutePath()));
+        }
+        assertTrue(scheduler.awaitCompletion(10000));
+        pool.shutdown();
+
+        assertEquals(30, mCompleted.get());
+        assertEquals(0, mFailed.get());
+        assertEquals(30, scheduler.getCompleted());
+        assertEquals(30 * mFile.length(), scheduler.getBytes(), 30 * 1024);
+        assertTrue(scheduler.getThroughput() > 0);
+        // ramped up to parallel uploads, but never beyond limit
+        assertEquals(MAX_UPLOADS, mMaxInFlight);
+        assertEquals(MAX_UPLOADS, scheduler.getMaxActive());
+    }
+
+    @Test
+    public void testRetryAfterRejection() throws Exception {
+        mRejections.set(1);
+        final UploadScheduler scheduler = new UploadScheduler(mListener, MAX_UPLOADS);
+        assertTrue(scheduler.submit(uploader(null), mFile.getAbsolutePath()));
+        assertTrue(scheduler.awaitCompletion(10000));
+
+        assertEquals(1, mCompleted.get());
+        assertEquals(1, scheduler.getRetries());
+    }
+
+    @Test
+    public void testFailureFallsBackToSingleUpload() throws Exception {
+        // more rejections than retries: first upload fails
+        mRejections.set(4);
+        final UploadConnectionPool pool = new UploadConnectionPool(MAX_UPLOADS);
+        final UploadScheduler scheduler = new UploadScheduler(mListener, MAX_UPLOADS);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scheduler.submit(uploader(pool), mFile.getAbsolutePath()));
+        }
+        assertTrue(scheduler.awaitCompletion(30000));
+        pool.shutdown();
+
+        assertEquals(1, mFailed.get());
+        assertEquals(1, scheduler.getFailed());
+        assertEquals(9, mCompleted.get());
+        assertTrue(mMaxInFlight <= MAX_UPLOADS);
+    }
+
+    @Test
+    public void testBackoff() {
+        final Random random = new Random(42);
+        for (int retry = 0; retry < 40; retry++) {
+            final long max = Math.min(30000, 1000L << Math.min(retry, 20));
+            for (int i = 0; i < 100; i++) {
+                final long delay = AsyncUploader.backoff(retry, random);
+                assertTrue(delay >= max / 2);
+                assertTrue(delay <= max);
+            }
+        }
+    }
+
+    private AsyncUploader uploader(final UploadConnectionPool pool) {
+        final AsyncUploader uploader = new AsyncUploader(null, "token", mUrl);
+        if (pool != null) {
+            uploader.setHttpClient(pool.getClient());
+        }
+        return uploader;
+    }
+
+    private void receive(final HttpExchange exchange) throws IOException {
+        final int inFlight = mInFlight.incrementAndGet();
+        synchronized (this) {
+            mMaxInFlight = Math.max(mMaxInFlight, inFlight);
+        }
+        final InputStream in = exchange.getRequestBody();
+        final byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+        in.close();
+        try {
+            Thread.sleep(20);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mInFlight.decrementAndGet();
+
+        exchange.sendResponseHeaders(mRejections.getAndDecrement() > 0 ? 503 : 200, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,276 @@
+package org.openbmap.soapclient;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openbmap.Benchmark;
+import org.openbmap.db.Schema;
+import org.openbmap.db.TestDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs WifiSerializer's export queries on sqlite-jdbc: checks chunk planning and compares keyset pagination
+ * against the former LIMIT/OFFSET pagination for growing sessions.
+ * Parameters are bound as strings, like SQLiteDatabase.rawQuery does on device
+ */
+public class WifiSerializerTest {
+
+    private static final int WIFIS_PER_SCAN = 40;
+
+    private static final int CURSOR_SIZE = WifiSerializer.WIFIS_PER_FILE;
+
+    private static final int SESSION = 1;
+
+    /**
+     * Former export query: same columns, but paged by OFFSET
+     */
+    private static final String OFFSET_SQL_QUERY =
+            WifiSerializer.WIFI_SQL_QUERY.substring(0, WifiSerializer.WIFI_SQL_QUERY.indexOf(" AND ("))
+            + " ORDER BY " + Schema.COL_BEGIN_POSITION_ID
+            + " LIMIT " + CURSOR_SIZE
+            + " OFFSET ?";
+
+    @Test
+    public void testKeysetExportsEveryWifiOnce() throws Exception {
+        final Connection db = createDatabase(1000);
+        final Set<Long> seen = new HashSet<>();
+        final long[] pages = exportByKeyset(db, seen, 1000);
+        db.close();
+
+        assertEquals(1000, seen.size());
+        assertEquals(1, pages.length);
+    }
+
+    @Test
+    public void testChunksCoverEveryWifiOnce() throws Exception {
+        final int wifis = 2 * CURSOR_SIZE + 400;
+        final Connection db = createDatabase(wifis);
+        final List<ExportChunk> chunks = WifiSerializer.planChunks(new JdbcKeyQuery(db), SESSION);
+
+        assertEquals(3, chunks.size());
+        final PreparedStatement query = db.prepareStatement(WifiSerializer.WIFI_SQL_QUERY);
+        final Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            final ResultSet rs = execute(query, chunks.get(i));
+            int rows = 0;
+            long lastBeginId = -1;
+            long lastId = -1;
+            while (rs.next()) {
+                lastId = rs.getLong(Schema.COL_ID);
+                lastBeginId = rs.getLong(Schema.COL_BEGIN_POSITION_ID);
+                assertTrue(seen.add(lastId));
+                rows++;
+            }
+            rs.close();
+            assertEquals(i < 2 ? CURSOR_SIZE : 400, rows);
+            if (i + 1 < chunks.size()) {
+                // next chunk starts right after last row of this chunk
+                assertEquals(lastBeginId, chunks.get(i + 1).mAfterBeginId);
+                assertEquals(lastId, chunks.get(i + 1).mAfterId);
+            }
+        }
+        query.close();
+        db.close();
+
+        assertEquals(wifis, seen.size());
+    }
+
+    @Test
+    public void testChunksOnExactMultiple() throws Exception {
+        final Connection db = createDatabase(2 * CURSOR_SIZE);
+        assertEquals(2, WifiSerializer.planChunks(new JdbcKeyQuery(db), SESSION).size());
+        db.close();
+    }
+
+    /**
+     * Export duration for growing sessions: OFFSET pages rescan all skipped rows, so the export grows
+     * quadratically, keyset pages seek to their start, so it grows linearly. Both use the same indices
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkExport() throws Exception {
+        for (int wifis : new int[] {15000, 30000, 60000, 120000}) {
+            final Connection db = createDatabase(wifis);
+
+            final Set<Long> offsetSeen = new HashSet<>();
+            long start = System.nanoTime();
+            final long[] offsetPages = exportByOffset(db, offsetSeen, wifis);
+            final long offsetNanos = System.nanoTime() - start;
+
+            final Set<Long> keysetSeen = new HashSet<>();
+            start = System.nanoTime();
+            final long[] keysetPages = exportByKeyset(db, keysetSeen, wifis);
+            final long keysetNanos = System.nanoTime() - start;
+            db.close();
+
+            assertEquals(wifis, offsetSeen.size());
+            assertEquals(wifis, keysetSeen.size());
+            System.out.println(String.format(Locale.US,
+                    "%d wifis: offset export %d ms (last page %.1f ms), keyset export %d ms (last page %.1f ms), %.0f wifis/s",
+                    wifis, offsetNanos / 1000000, offsetPages[offsetPages.length - 1] / 1.0E6,
+                    keysetNanos / 1000000, keysetPages[keysetPages.length - 1] / 1.0E6, wifis * 1.0E9 / keysetNanos));
+        }
+    }
+
+    /**
+     * Runs chunk boundary queries on sqlite-jdbc
+     */
+    private static final class JdbcKeyQuery implements ExportChunk.KeyQuery {
+        private final Connection mDb;
+
+        private JdbcKeyQuery(final Connection db) {
+            mDb = db;
+        }
+
+        @Override
+        public long[][] query(final String sql, final String[] args) {
+            try {
+                final PreparedStatement query = mDb.prepareStatement(sql);
+                for (int i = 0; i < args.length; i++) {
+                    query.setString(i + 1, args[i]);
+                }
+                final ResultSet rs = query.executeQuery();
+                final List<long[]> rows = new ArrayList<>();
+                while (rs.next()) {
+                    rows.add(new long[] {rs.getLong(1), rs.getLong(2)});
+                }
+                rs.close();
+                query.close();
+                return rows.toArray(new long[rows.size()][]);
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static ResultSet execute(final PreparedStatement query, final ExportChunk chunk) throws Exception {
+        final String[] args = chunk.toArgs(SESSION);
+        for (int i = 0; i < args.length; i++) {
+            query.setString(i + 1, args[i]);
+        }
+        return query.executeQuery();
+    }
+
+    /**
+     * Pages through session like WifiSerializer.export() does
+     * @return duration of each page in nanos
+     */
+    private static long[] exportByKeyset(final Connection db, final Set<Long> seen, final int wifis) throws Exception {
+        final PreparedStatement query = db.prepareStatement(WifiSerializer.WIFI_SQL_QUERY);
+        final long[] pages = new long[wifis / CURSOR_SIZE + 1];
+        int page = 0;
+        long lastBeginId = -1;
+        long lastId = -1;
+        while (true) {
+            final long start = System.nanoTime();
+            query.setString(1, String.valueOf(SESSION));
+            query.setString(2, String.valueOf(lastBeginId));
+            query.setString(3, String.valueOf(lastBeginId));
+            query.setString(4, String.valueOf(lastId));
+            final ResultSet rs = query.executeQuery();
+            int rows = 0;
+            while (rs.next()) {
+                lastId = rs.getLong(Schema.COL_ID);
+                lastBeginId = rs.getLong(Schema.COL_BEGIN_POSITION_ID);
+                assertTrue(seen.add(lastId));
+                rows++;
+            }
+            rs.close();
+            if (rows == 0) {
+                break;
+            }
+            pages[page++] = System.nanoTime() - start;
+        }
+        query.close();
+        return trim(pages, page);
+    }
+
+    private static long[] exportByOffset(final Connection db, final Set<Long> seen, final int wifis) throws Exception {
+        final PreparedStatement query = db.prepareStatement(OFFSET_SQL_QUERY);
+        final long[] pages = new long[wifis / CURSOR_SIZE + 1];
+        int page = 0;
+        long outer = 0;
+        while (true) {
+            final long start = System.nanoTime();
+            query.setString(1, String.valueOf(SESSION));
+            query.setString(2, String.valueOf(outer));
+            final ResultSet rs = query.executeQuery();
+            int rows = 0;
+            while (rs.next()) {
+                seen.add(rs.getLong(Schema.COL_ID));
+                rows++;
+            }
+            rs.close();
+            if (rows == 0) {
+                break;
+            }
+            pages[page++] = System.nanoTime() - start;
+            outer += CURSOR_SIZE;
+        }
+        query.close();
+        return trim(pages, page);
+    }
+
+    private static long[] trim(final long[] pages, final int count) {
+        final long[] result = new long[count];
+        System.arraycopy(pages, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Creates session with given number of wifis in application schema. Another session is interleaved, so session filter matters
+     */
+    private static Connection createDatabase(final int wifis) throws Exception {
+        final Connection db = TestDatabase.create();
+        db.setAutoCommit(false);
+        final PreparedStatement position = db.prepareStatement("INSERT INTO " + Schema.TBL_POSITIONS
+                + " (latitude, longitude, altitude, accuracy, timestamp, bearing, speed, session_id, source)"
+                + " VALUES (?, 13.0, 35.0, 5.0, ?, 0.0, 10.0, ?, 'gps')", Statement.RETURN_GENERATED_KEYS);
+        final PreparedStatement wifi = db.prepareStatement("INSERT INTO " + Schema.TBL_WIFIS
+                + " (bssid, ssid, md5ssid, capabilities, frequency, level, timestamp, request_pos_id, last_pos_id, session_id, is_known)"
+                + " VALUES (?, 'ssid', 'D41D8CD98F00B204E9800998ECF8427E', '[ESS]', 2412, -70, ?, ?, ?, ?, 0)");
+        for (int scan = 0; scan < 2 * wifis / WIFIS_PER_SCAN; scan++) {
+            final int session = scan % 2 == 0 ? SESSION : SESSION + 1;
+            final long timestamp = 20161017120000L + scan;
+            final long begin = insertPosition(position, scan, timestamp, session);
+            final long end = insertPosition(position, scan, timestamp, session);
+            for (int i = 0; i < WIFIS_PER_SCAN; i++) {
+                wifi.setString(1, String.format(Locale.US, "%08X%04X", scan, i));
+                wifi.setLong(2, timestamp);
+                wifi.setLong(3, begin);
+                wifi.setLong(4, end);
+                wifi.setInt(5, session);
+                wifi.executeUpdate();
+            }
+        }
+        db.commit();
+        position.close();
+        wifi.close();
+        db.setAutoCommit(true);
+        return db;
+    }
+
+    private static long insertPosition(final PreparedStatement statement, final int scan, final long timestamp, final int session) throws Exception {
+        statement.setDouble(1, 52.0 + scan * 0.0001);
+        statement.setLong(2, timestamp);
+        statement.setInt(3, session);
+        statement.executeUpdate();
+        final ResultSet keys = statement.getGeneratedKeys();
+        keys.next();
+        final long id = keys.getLong(1);
+        keys.close();
+        return id;
+    }
+}
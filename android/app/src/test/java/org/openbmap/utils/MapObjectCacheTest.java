@@ -0,0 +1,218 @@
+package org.openbmap.utils;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mapsforge.core.model.LatLong;
+import org.openbmap.Benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the map object cache returns the same objects as a direct query, loads only tiles entering
+ * the viewport and stays within its memory budget. Compares panning with and without cache
+ */
+public class MapObjectCacheTest {
+
+    private static final int TILES_PER_DEGREE = 50;
+
+    /**
+     * Counts loader calls and loaded objects, filters a fixed point list. Optionally truncates results
+     */
+    private static class CountingLoader implements MapObjectCache.Loader<LatLong> {
+        private final List<LatLong> mPoints;
+        private int mCalls;
+        private int mLoaded;
+        private int mLimit = Integer.MAX_VALUE;
+
+        CountingLoader(final List<LatLong> points) {
+            mPoints = points;
+        }
+
+        @Override
+        public boolean load(final double minLat, final double maxLat, final double minLon, final double maxLon,
+                            final List<LatLong> objects) {
+            mCalls++;
+            final List<LatLong> result = filter(mPoints, minLat, maxLat, minLon, maxLon);
+            final int size = Math.min(result.size(), mLimit);
+            objects.addAll(result.subList(0, size));
+            mLoaded += size;
+            return size == result.size();
+        }
+    }
+
+    @Test
+    public void testMatchesDirectQuery() {
+        final List<LatLong> points = createPoints(20000, 52.0, 53.0, 13.0, 14.0);
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1024 * 1024);
+        final CountingLoader loader = new CountingLoader(points);
+
+        final Random random = new Random(11);
+        for (int i = 0; i < 50; i++) {
+            final double minLat = 52.1 + random.nextDouble() * 0.5;
+            final double minLon = 13.1 + random.nextDouble() * 0.5;
+            final double size = 0.01 + random.nextDouble() * 0.2;
+
+            // cache returns whole tiles, so compare within viewport only
+            final Set<LatLong> expected = new HashSet<>(filter(points, minLat, minLat + size, minLon, minLon + size));
+            final Set<LatLong> actual = new HashSet<>(filter(cache.get(minLat, minLat + size, minLon, minLon + size, loader),
+                    minLat, minLat + size, minLon, minLon + size));
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testPanLoadsNewTilesOnly() {
+        final List<LatLong> points = createPoints(20000, 52.0, 53.0, 13.0, 14.0);
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1024 * 1024);
+        final CountingLoader loader = new CountingLoader(points);
+
+        cache.get(52.5, 52.6, 13.5, 13.6, loader);
+        assertEquals(1, loader.mCalls);
+        final int first = cache.size();
+
+        // same viewport: no query at all
+        cache.get(52.5, 52.6, 13.5, 13.6, loader);
+        assertEquals(1, loader.mCalls);
+
+        // pan east by one tile: a single column enters the viewport
+        loader.mLoaded = 0;
+        final double tile = 1.0 / TILES_PER_DEGREE;
+        cache.get(52.5, 52.6, 13.5 + tile, 13.6 + tile, loader);
+        assertEquals(2, loader.mCalls);
+        final int rows = first / (int) Math.round(0.1 * TILES_PER_DEGREE + 1);
+        assertEquals(first + rows, cache.size());
+        assertTrue(loader.mLoaded < points.size() / 100);
+    }
+
+    @Test
+    public void testBudgetKeepsVisibleTiles() {
+        final List<LatLong> points = createPoints(50000, 52.0, 53.0, 13.0, 14.0);
+        // roughly 1000 objects
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1000 * MapObjectCache.BYTES_PER_OBJECT);
+        final CountingLoader loader = new CountingLoader(points);
+
+        for (int i = 0; i < 20; i++) {
+            final double lat = 52.0 + i * 0.04;
+            cache.get(lat, lat + 0.02, 13.5, 13.52, loader);
+            assertTrue(cache.getObjects() <= 1000 || cache.size() <= 4);
+        }
+
+        // viewport larger than budget is returned completely
+        final List<LatLong> large = cache.get(52.2, 52.4, 13.2, 13.4, loader);
+        assertEquals(filter(points, 52.2, 52.4, 13.2, 13.4).size(), filter(large, 52.2, 52.4, 13.2, 13.4).size());
+    }
+
+    @Test
+    public void testInvalidateReloads() {
+        final List<LatLong> points = createPoints(1000, 52.0, 52.1, 13.0, 13.1);
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1024 * 1024);
+        final CountingLoader loader = new CountingLoader(points);
+
+        final int before = cache.get(52.0, 52.1, 13.0, 13.1, loader).size();
+        points.add(new LatLong(52.05, 13.05));
+        assertEquals(before, cache.get(52.0, 52.1, 13.0, 13.1, loader).size());
+
+        cache.invalidate(52.05, 13.05);
+        assertEquals(before + 1, cache.get(52.0, 52.1, 13.0, 13.1, loader).size());
+        assertEquals(2, loader.mCalls);
+    }
+
+    @Test
+    public void testIncompleteLoadsAreNotCached() {
+        final List<LatLong> points = createPoints(1000, 52.0, 52.1, 13.0, 13.1);
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1024 * 1024);
+        final CountingLoader loader = new CountingLoader(points);
+
+        // truncated result is returned, but queried again next time
+        loader.mLimit = 100;
+        assertEquals(100, cache.get(52.0, 52.1, 13.0, 13.1, loader).size());
+        assertEquals(0, cache.size());
+        loader.mLimit = Integer.MAX_VALUE;
+        assertEquals(1000, filter(cache.get(52.0, 52.1, 13.0, 13.1, loader), 52.0, 52.1, 13.0, 13.1).size());
+        assertEquals(2, loader.mCalls);
+        assertTrue(cache.size() > 0);
+        cache.get(52.0, 52.1, 13.0, 13.1, loader);
+        assertEquals(2, loader.mCalls);
+    }
+
+    @Test
+    public void testLoadsOverlappingInvalidationAreNotCached() {
+        final List<LatLong> points = createPoints(1000, 52.0, 52.1, 13.0, 13.1);
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 1024 * 1024);
+        final CountingLoader loader = new CountingLoader(points) {
+            @Override
+            public boolean load(final double minLat, final double maxLat, final double minLon, final double maxLon,
+                                final List<LatLong> objects) {
+                // new objects recorded while loading
+                cache.invalidate(52.05, 13.05);
+                return super.load(minLat, maxLat, minLon, maxLon, objects);
+            }
+        };
+        assertEquals(1000, filter(cache.get(52.0, 52.1, 13.0, 13.1, loader), 52.0, 52.1, 13.0, 13.1).size());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Pans a street level viewport across a city: full reload per refresh vs cache
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkPan() {
+        final List<LatLong> points = createPoints(300000, 52.0, 53.0, 13.0, 14.0);
+        final int steps = 200;
+        final double size = 0.05;
+
+        final CountingLoader direct = new CountingLoader(points);
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            final double lon = 13.1 + i * 0.002;
+            direct.load(52.4, 52.4 + size, lon, lon + size, new ArrayList<LatLong>());
+        }
+        final long directNanos = System.nanoTime() - start;
+
+        final MapObjectCache<LatLong> cache = new MapObjectCache<>(TILES_PER_DEGREE, 4 * 1024 * 1024);
+        final CountingLoader cached = new CountingLoader(points);
+        start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            final double lon = 13.1 + i * 0.002;
+            cache.get(52.4, 52.4 + size, lon, lon + size, cached);
+        }
+        final long cacheNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US,
+                "Pan %d steps: full reload %.2f ms (%d queries, %d objects), cache %.2f ms (%d queries, %d objects, hit rate %.0f%%)",
+                steps, directNanos / 1.0E6, direct.mCalls, direct.mLoaded, cacheNanos / 1.0E6, cached.mCalls, cached.mLoaded,
+                100.0 * cache.getHits() / (cache.getHits() + cache.getMisses())));
+        assertTrue(cached.mLoaded < direct.mLoaded / 5);
+    }
+
+    private static List<LatLong> createPoints(final int size, final double minLat, final double maxLat,
+                                              final double minLon, final double maxLon) {
+        final Random random = new Random(size);
+        final List<LatLong> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(new LatLong(minLat + random.nextDouble() * (maxLat - minLat),
+                    minLon + random.nextDouble() * (maxLon - minLon)));
+        }
+        return points;
+    }
+
+    private static List<LatLong> filter(final List<LatLong> points, final double minLat, final double maxLat,
+                                        final double minLon, final double maxLon) {
+        final List<LatLong> result = new ArrayList<>();
+        for (final LatLong point : points) {
+            if (point.latitude > minLat && point.latitude < maxLat && point.longitude > minLon && point.longitude < maxLon) {
+                result.add(point);
+            }
+        }
+        return result;
+    }
+}
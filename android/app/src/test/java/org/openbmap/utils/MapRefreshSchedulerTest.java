@@ -0,0 +1,177 @@
+package org.openbmap.utils;
+
+import android.os.AsyncTask;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the map refresh scheduler with a fake clock: checks debouncing, max. delay, cancellation of
+ * superseded refreshes and latency measurement
+ */
+public class MapRefreshSchedulerTest {
+
+    private static final long DEBOUNCE = 300;
+
+    private static final long MAX_DELAY = 1500;
+
+    /**
+     * Loader stand-in, never executed
+     */
+    private static class Task extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(final Void... params) {
+            return null;
+        }
+    }
+
+    /**
+     * Scheduler with fake clock and a single delayed runnable instead of a handler. Tasks aren't executed,
+     * so cancellation is recorded only
+     */
+    private class TestScheduler extends MapRefreshScheduler {
+        private long mNow = 1000;
+        private Runnable mPosted;
+        private long mDue;
+
+        TestScheduler(final Refresh refresh) {
+            super("Test", refresh, DEBOUNCE, MAX_DELAY);
+        }
+
+        @Override
+        boolean cancel(final AsyncTask<?, ?, ?> task) {
+            mCancelledTasks.add(task);
+            return true;
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+
+        @Override
+        void postDelayed(final Runnable runnable, final long delay) {
+            mPosted = runnable;
+            mDue = mNow + delay;
+        }
+
+        @Override
+        void removeCallbacks(final Runnable runnable) {
+            if (mPosted == runnable) {
+                mPosted = null;
+            }
+        }
+
+        /**
+         * Advances clock, running the posted runnable when due
+         */
+        void advance(final long millis) {
+            final long end = mNow + millis;
+            while (mPosted != null && mDue <= end) {
+                mNow = mDue;
+                final Runnable runnable = mPosted;
+                mPosted = null;
+                runnable.run();
+            }
+            mNow = end;
+        }
+    }
+
+    private final List<Task> mStarted = new ArrayList<>();
+
+    private final Set<AsyncTask<?, ?, ?>> mCancelledTasks = new HashSet<>();
+
+    private TestScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mStarted.clear();
+        mCancelledTasks.clear();
+        mScheduler = new TestScheduler(new MapRefreshScheduler.Refresh() {
+            @Override
+            public AsyncTask<?, ?, ?> start() {
+                final Task task = new Task();
+                mStarted.add(task);
+                return task;
+            }
+        });
+    }
+
+    @Test
+    public void testBurstIsCoalesced() {
+        for (int i = 0; i < 5; i++) {
+            mScheduler.request();
+            mScheduler.advance(100);
+        }
+        assertEquals(0, mStarted.size());
+        assertTrue(mScheduler.isPending());
+
+        // debounce delay after last request
+        mScheduler.advance(DEBOUNCE - 100);
+        assertEquals(1, mStarted.size());
+
+        mScheduler.advance(50);
+        mScheduler.onLoaded(10);
+        assertFalse(mScheduler.isPending());
+        assertEquals(1, mScheduler.getRefreshes());
+        // measured from first request: 400 ms burst, 300 ms debounce, 50 ms loading
+        assertEquals(750, mScheduler.getLastLatency());
+    }
+
+    @Test
+    public void testContinuousMovementRefreshesAfterMaxDelay() {
+        // a request every 100 ms for 5 seconds
+        for (int i = 0; i < 50; i++) {
+            mScheduler.request();
+            mScheduler.advance(100);
+        }
+        assertTrue(mStarted.size() >= 50 * 100 / MAX_DELAY - 1);
+        assertTrue(mStarted.size() <= 50 * 100 / MAX_DELAY + 1);
+    }
+
+    @Test
+    public void testNewRefreshCancelsRunningOne() {
+        mScheduler.request();
+        mScheduler.advance(DEBOUNCE);
+        assertEquals(1, mStarted.size());
+
+        // viewport changes while first refresh is still loading
+        mScheduler.request();
+        mScheduler.advance(DEBOUNCE);
+        assertEquals(2, mStarted.size());
+        assertTrue(mCancelledTasks.contains(mStarted.get(0)));
+        assertFalse(mCancelledTasks.contains(mStarted.get(1)));
+        assertEquals(1, mScheduler.getCancelled());
+
+        // only latest refresh delivers a result
+        mScheduler.onLoaded(10);
+        assertEquals(1, mScheduler.getRefreshes());
+        assertFalse(mScheduler.isPending());
+    }
+
+    @Test
+    public void testCancelDropsPendingRequests() {
+        mScheduler.request();
+        mScheduler.advance(DEBOUNCE);
+        mScheduler.request();
+        mScheduler.cancel();
+        mScheduler.advance(MAX_DELAY);
+
+        assertEquals(1, mStarted.size());
+        assertTrue(mCancelledTasks.contains(mStarted.get(0)));
+        assertFalse(mScheduler.isPending());
+
+        // results without running refresh are ignored
+        mScheduler.onLoaded(10);
+        assertEquals(0, mScheduler.getRefreshes());
+    }
+}
@@ -0,0 +1,194 @@
+package org.openbmap.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.overlay.Circle;
+import org.mapsforge.map.model.DisplayModel;
+import org.openbmap.Benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Draws PointsLayer on a counting canvas: checks culling and compares a single layer
+ * against one Circle layer per point
+ */
+public class PointsLayerTest {
+
+    private static final int WIDTH = 1080;
+
+    private static final int HEIGHT = 1920;
+
+    private static final byte ZOOM = 15;
+
+    private static final int BENCHMARK_POINTS = 50000;
+
+    private static final LatLong CENTER = new LatLong(52.52, 13.40);
+
+    private final DisplayModel mDisplayModel = new DisplayModel();
+
+    private int mCircles;
+
+    private Canvas mCanvas;
+
+    private Paint mPaint;
+
+    private Point mTopLeft;
+
+    private BoundingBox mBoundingBox;
+
+    @Before
+    public void setUp() {
+        mCanvas = (Canvas) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Canvas.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (method.getName().equals("drawCircle")) {
+                            mCircles++;
+                        } else if (method.getName().equals("getWidth")) {
+                            return WIDTH;
+                        } else if (method.getName().equals("getHeight")) {
+                            return HEIGHT;
+                        }
+                        return null;
+                    }
+                });
+        mPaint = (Paint) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Paint.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+
+        final long mapSize = MercatorProjection.getMapSize(ZOOM, mDisplayModel.getTileSize());
+        final Point center = MercatorProjection.getPixel(CENTER, mapSize);
+        mTopLeft = new Point(center.x - WIDTH / 2, center.y - HEIGHT / 2);
+        final LatLong topLeft = MercatorProjection.fromPixels(mTopLeft.x, mTopLeft.y, mapSize);
+        final LatLong bottomRight = MercatorProjection.fromPixels(mTopLeft.x + WIDTH, mTopLeft.y + HEIGHT, mapSize);
+        mBoundingBox = new BoundingBox(bottomRight.latitude, topLeft.longitude, topLeft.latitude, bottomRight.longitude);
+    }
+
+    @Test
+    public void testDrawsVisiblePointsOnly() {
+        final PointsLayer layer = new PointsLayer(new Paint[] {mPaint, mPaint}, new Paint[] {mPaint, null});
+        layer.setDisplayModel(mDisplayModel);
+
+        final PointsLayer.Points points = new PointsLayer.Points(0);
+        final Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            // well inside viewport: fill and stroke
+            points.add(lat(0.1 + 0.8 * random.nextDouble()), lon(0.1 + 0.8 * random.nextDouble()), 15, 0);
+            // well outside viewport
+            points.add(lat(2 + random.nextDouble()), lon(random.nextDouble()), 15, 1);
+            points.add(lat(random.nextDouble()), lon(-1 - random.nextDouble()), 15, 1);
+        }
+        assertEquals(3000, points.size());
+        layer.setPoints(points);
+        assertSame(points, layer.getPoints());
+
+        layer.draw(mBoundingBox, ZOOM, mCanvas, mTopLeft);
+        assertEquals(2000, mCircles);
+
+        mCircles = 0;
+        layer.clear();
+        layer.draw(mBoundingBox, ZOOM, mCanvas, mTopLeft);
+        assertEquals(0, mCircles);
+    }
+
+    @Test
+    public void testLargeCirclesOverlappingViewportAreDrawn() {
+        final PointsLayer layer = new PointsLayer(new Paint[] {mPaint}, new Paint[] {null});
+        layer.setDisplayModel(mDisplayModel);
+        final PointsLayer.Points points = new PointsLayer.Points(1);
+        // center just outside viewport, but 5 km radius reaches into it
+        points.add(lat(-0.05), lon(0.5), 5000, 0);
+        layer.setPoints(points);
+
+        layer.draw(mBoundingBox, ZOOM, mCanvas, mTopLeft);
+        assertEquals(1, mCircles);
+    }
+
+    /**
+     * Builds and draws {@link #BENCHMARK_POINTS} points: one Circle layer per point vs a single PointsLayer
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkDraw() {
+        final Random random = new Random(42);
+        final double[] lats = new double[BENCHMARK_POINTS];
+        final double[] lons = new double[BENCHMARK_POINTS];
+        for (int i = 0; i < BENCHMARK_POINTS; i++) {
+            // prefetched area: twice the viewport
+            lats[i] = lat(-0.5 + 2 * random.nextDouble());
+            lons[i] = lon(-0.5 + 2 * random.nextDouble());
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            final List<Circle> circles = new ArrayList<>(BENCHMARK_POINTS);
+            for (int i = 0; i < BENCHMARK_POINTS; i++) {
+                final Circle circle = new Circle(new LatLong(lats[i], lons[i]), 15, mPaint, mPaint);
+                circle.setDisplayModel(mDisplayModel);
+                circles.add(circle);
+            }
+            final long circleBuildNanos = System.nanoTime() - start;
+            mCircles = 0;
+            start = System.nanoTime();
+            for (final Circle circle : circles) {
+                circle.draw(mBoundingBox, ZOOM, mCanvas, mTopLeft);
+            }
+            final long circleDrawNanos = System.nanoTime() - start;
+            final int circleCount = mCircles;
+
+            start = System.nanoTime();
+            final PointsLayer layer = new PointsLayer(new Paint[] {mPaint}, new Paint[] {mPaint});
+            layer.setDisplayModel(mDisplayModel);
+            final PointsLayer.Points points = new PointsLayer.Points(BENCHMARK_POINTS);
+            for (int i = 0; i < BENCHMARK_POINTS; i++) {
+                points.add(lats[i], lons[i], 15, 0);
+            }
+            layer.setPoints(points);
+            final long layerBuildNanos = System.nanoTime() - start;
+            mCircles = 0;
+            start = System.nanoTime();
+            layer.draw(mBoundingBox, ZOOM, mCanvas, mTopLeft);
+            final long layerDrawNanos = System.nanoTime() - start;
+
+            assertEquals(circleCount, mCircles, circleCount / 100);
+            System.out.println(String.format(Locale.US,
+                    "%d points: circle layers build %.1f ms, draw %.1f ms; points layer build %.1f ms, draw %.1f ms (%d circles drawn)",
+                    BENCHMARK_POINTS, circleBuildNanos / 1.0E6, circleDrawNanos / 1.0E6,
+                    layerBuildNanos / 1.0E6, layerDrawNanos / 1.0E6, mCircles));
+        }
+    }
+
+    /**
+     * Latitude at given fraction of viewport height (0 = bottom, 1 = top)
+     */
+    private double lat(final double fraction) {
+        return mBoundingBox.minLatitude + fraction * mBoundingBox.getLatitudeSpan();
+    }
+
+    /**
+     * Longitude at given fraction of viewport width (0 = left, 1 = right)
+     */
+    private double lon(final double fraction) {
+        return mBoundingBox.minLongitude + fraction * mBoundingBox.getLongitudeSpan();
+    }
+}